@@ -1,18 +1,31 @@
 package com.jetbrains.php.tools.quality.phpstan;
 
 import com.intellij.codeInspection.InspectionProfile;
+import com.intellij.execution.process.ProcessOutput;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.roots.ProjectRootManager;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.PsiDocumentManager;
 import com.intellij.psi.PsiFile;
-import com.intellij.util.SmartList;
 import com.jetbrains.php.tools.quality.QualityToolAnnotator;
 import com.jetbrains.php.tools.quality.QualityToolAnnotatorInfo;
 import com.jetbrains.php.tools.quality.QualityToolConfiguration;
 import com.jetbrains.php.tools.quality.QualityToolMessageProcessor;
+import com.jetbrains.php.tools.quality.phpstan.remote.PhpStanContainerService;
+import com.jetbrains.php.tools.quality.phpstan.remote.PhpStanRemoteConfiguration;
+import com.jetbrains.php.tools.quality.phpstan.remote.PhpStanSshSyncService;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.xml.sax.SAXException;
 
+import java.io.IOException;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -23,12 +36,26 @@ import static java.util.Collections.singletonList;
 
 public final class PhpStanAnnotatorProxy extends QualityToolAnnotator<PhpStanValidationInspection> {
   public static final PhpStanAnnotatorProxy INSTANCE = new PhpStanAnnotatorProxy();
+  private static final Logger LOG = Logger.getInstance(PhpStanAnnotatorProxy.class);
+  private static final Key<PreviousResult> PREVIOUS_RESULT = Key.create("PHPSTAN_PREVIOUS_RESULT");
   
   // Map to store original file paths for PHPStan editor mode support
   // Key: temp file path, Value: original file path
   // See: https://phpstan.org/user-guide/editor-mode
   private static final Map<String, String> ORIGINAL_FILE_PATHS = new ConcurrentHashMap<>();
 
+  /**
+   * @param content text of the document the problems of the result are placed in
+   */
+  private record PreviousResult(@NotNull QualityToolMessageProcessor processor, @NotNull CharSequence content) {
+  }
+
+  /**
+   * @param timedOut whether the process was killed for exceeding the timeout of the run
+   */
+  private record RunResult(@Nullable QualityToolMessageProcessor processor, boolean timedOut) {
+  }
+
   @Override
   protected List<String> getOptions(@Nullable String filePath, @NotNull PhpStanValidationInspection inspection, 
                                     @Nullable InspectionProfile profile, @NotNull Project project) {
@@ -46,18 +73,42 @@ public final class PhpStanAnnotatorProxy extends QualityToolAnnotator<PhpStanVal
       return emptyList();
     }
 
+    // The run's own inspection leads to the information collected for it
+    PhpStanQualityToolAnnotatorInfo info = inspection instanceof PhpStanQualityToolAnnotatorInfo.RunInspection runInspection
+                                           ? runInspection.getInfo() : null;
+    boolean local = info != null && info.isLocal();
+    String editorTempPath = info != null ? info.getEditorTempPath() : null;
+    VirtualFile file = info != null && info.getPsiFile() != null ? info.getPsiFile().getVirtualFile() : null;
+    if (isOnTheFly && editorTempPath != null && file != null) {
+      return tool.getCommandLineOptions(editorTempPath, file.getPath(), project, local);
+    }
     if (isOnTheFly) {
       // Use PHPStan editor mode with --tmp-file and --instead-of for proper ignore handling
       // Extract relative path from temp file path to look up original
       String originalFilePath = findOriginalFilePath(filePath);
-      return tool.getCommandLineOptions(filePath, originalFilePath, project);
+      return tool.getCommandLineOptions(filePath, originalFilePath, project, local);
+    }
+    return getBatchOptions(tool, filePath, project, local, info != null ? info.getScopePaths() : null);
+  }
+
+  /**
+   * @param filePath   file to analyse along with the project, if any
+   * @param scopePaths paths covering the analysis scope, or null for the whole project
+   */
+  private static @NotNull List<String> getBatchOptions(@NotNull PhpStanGlobalInspection tool,
+                                                       @Nullable String filePath,
+                                                       @NotNull Project project,
+                                                       boolean local,
+                                                       @Nullable List<String> scopePaths) {
+    if (scopePaths != null) {
+      return tool.getCommandLineOptions(scopePaths, project, false, local);
     }
     PhpStanOptionsConfiguration configuration = PhpStanOptionsConfiguration.getInstance(project);
     return tool.getCommandLineOptions(configuration.isFullProject()
-                                      ? new SmartList<>(filePath, project.getBasePath())
+                                      ? packNullables(filePath, project.getBasePath())
                                       : isNotEmpty(configuration.getConfig()) ? emptyList() : concat(map(
                                         ProjectRootManager.getInstance(project).getContentSourceRoots(),
-                                        VirtualFile::getPath)), project);
+                                        VirtualFile::getPath)), project, false, local);
   }
   
   /**
@@ -78,6 +129,262 @@ public final class PhpStanAnnotatorProxy extends QualityToolAnnotator<PhpStanVal
     return null;
   }
 
+  @Override
+  public @Nullable QualityToolMessageProcessor doAnnotate(QualityToolAnnotatorInfo<PhpStanValidationInspection> collectedInfo) {
+    if (collectedInfo == null) return null;
+    PsiFile psiFile = collectedInfo.getPsiFile();
+    VirtualFile file = psiFile != null ? psiFile.getVirtualFile() : null;
+    // Don't spawn PHPStan for files it would not analyse anyway: vendor, generated code, excludePaths, ignored files
+    if (file != null && !PhpStanPathFilter.getInstance(collectedInfo.getProject()).isInScope(file)) {
+      return null;
+    }
+    Project project = collectedInfo.getProject();
+    PhpStanResultCache<QualityToolMessageProcessor> cache = PhpStanResultCacheService.getInstance(project).getCache();
+    PhpStanResultCache.Key cacheKey = createCacheKey(collectedInfo, file);
+    if (cacheKey != null) {
+      QualityToolMessageProcessor cached = cache.get(cacheKey);
+      if (cached != null) {
+        PhpStanMetrics.getInstance().increment(PhpStanMetrics.Counter.CACHED_RUNS);
+        setPreviousResult(collectedInfo, cached);
+        return cached;
+      }
+    }
+    long generation = cache.getGeneration();
+    if (cacheKey != null && file != null && collectedInfo instanceof PhpStanQualityToolAnnotatorInfo info) {
+      // Another checkout of the repository may have analysed the same content
+      QualityToolMessageProcessor shared = PhpStanSharedResultCacheService.getInstance(project).get(info, file);
+      if (shared != null) {
+        PhpStanMetrics.getInstance().increment(PhpStanMetrics.Counter.SHARED_RESULTS);
+        setPreviousResult(collectedInfo, shared);
+        cache.put(cacheKey, shared, generation);
+        return shared;
+      }
+    }
+    ProgressIndicator indicator = ProgressManager.getGlobalProgressIndicator();
+    PhpStanPriority priority = getPriority(project, psiFile != null ? file : null);
+    // Editor runs of a document reuse one copy of its contents, so they are started one after the other. The platform
+    // cancels the run of a document that is edited meanwhile, so the newer run doesn't wait for it long.
+    try (PhpStanDocumentLocks.Lock documentLock = cacheKey != null && file != null
+                                                  ? PhpStanEditorTempFileService.getInstance(project).lock(file, indicator) : null) {
+      String platformTempPath = collectedInfo.getTempFilePath();
+      if (cacheKey != null && file != null && platformTempPath != null && collectedInfo instanceof PhpStanQualityToolAnnotatorInfo info) {
+        QualityToolMessageProcessor merged =
+          PhpStanEditorBatchService.getInstance(project).analyse(info, file, platformTempPath, priority, indicator);
+        ProgressManager.checkCanceled();
+        if (merged != null) {
+          storeResult(collectedInfo, merged, cacheKey, generation);
+          return merged;
+        }
+      }
+      // Editor runs analyse a single file; a non-sharded batch run may use all parallel workers
+      try (PhpStanProcessQueue.Permit permit = PhpStanGovernor.getInstance()
+        .acquire(project, psiFile != null ? 1 : Integer.MAX_VALUE, priority, indicator)) {
+        String tempFilePath = collectedInfo.getTempFilePath();
+        if (tempFilePath == null) {
+          return runWithAdaptiveTimeout(collectedInfo, cacheKey, generation);
+        }
+        // The persistent container is sent the editor contents and tracks its process by itself
+        boolean containerRun = isContainerEditorRun(collectedInfo);
+        String editorTempPath = containerRun ? null : writeEditorTempFile(collectedInfo, file, tempFilePath);
+        if (editorTempPath != null) {
+          ((PhpStanQualityToolAnnotatorInfo)collectedInfo).setEditorTempPath(editorTempPath);
+          tempFilePath = editorTempPath;
+        }
+        // The platform starts the process, so a local one is recognised by its temporary file and its tree killed on
+        // cancellation; a remote one can't be told apart from the others.
+        // The run is not paused for runs of a higher class: its timeout would keep running meanwhile.
+        try (PhpStanProcessTracker.Run ignored = collectedInfo.getInterpreterId() == null && !containerRun
+                                                 ? PhpStanProcessTracker.getInstance(project).trackByArgument(tempFilePath, file, indicator)
+                                                 : null) {
+          return runWithAdaptiveTimeout(collectedInfo, cacheKey, generation);
+        }
+      }
+    }
+  }
+
+  /**
+   * @return key of the result of an on-the-fly run in the {@link PhpStanResultCache result cache}, or null if it isn't cached
+   */
+  private static @Nullable PhpStanResultCache.Key createCacheKey(@NotNull QualityToolAnnotatorInfo<PhpStanValidationInspection> collectedInfo,
+                                                                 @Nullable VirtualFile file) {
+    if (file == null || !(collectedInfo instanceof PhpStanQualityToolAnnotatorInfo info) ||
+        info.getRunKind() != PhpStanConfigOverlay.RunKind.EDITOR || info.getContent() == null) {
+      return null;
+    }
+    return PhpStanResultCacheService.getInstance(collectedInfo.getProject())
+      .createKey(file, info.getContent(), collectedInfo.getInterpreterId());
+  }
+
+  /**
+   * Only in editor mode PHPStan reports the problems of the copy under the path of the document, which the message
+   * processor expects: analysed directly, the copy would have to keep the path of the platform's temporary file.
+   *
+   * SSH interpreters may keep the copy on their host, which is updated with the changes since the previous run.
+   *
+   * @return path of the reused copy of the document, or null to pass the temporary file of the platform
+   */
+  private static @Nullable String writeEditorTempFile(@NotNull QualityToolAnnotatorInfo<PhpStanValidationInspection> collectedInfo,
+                                                      @Nullable VirtualFile file,
+                                                      @NotNull String tempFilePath) {
+    if (file == null || !(collectedInfo instanceof PhpStanQualityToolAnnotatorInfo info) ||
+        info.getRunKind() != PhpStanConfigOverlay.RunKind.EDITOR || info.getContent() == null) {
+      return null;
+    }
+    Project project = collectedInfo.getProject();
+    if (!PhpStanVersionSupport.supportsEditorMode(PhpStanConfigurationManager.getInstance(project).getLocalSettings().getVersion())) {
+      return null;
+    }
+    if (info.getPhpStanConfiguration() instanceof PhpStanRemoteConfiguration remoteConfiguration &&
+        !remoteConfiguration.getSshDestination().isBlank()) {
+      String remotePath = PhpStanSshSyncService.getInstance(project).sync(remoteConfiguration, file, info.getContent());
+      if (remotePath != null) return remotePath;
+    }
+    return PhpStanEditorTempFileService.getInstance(project)
+      .write(file, info.getContent(), tempFilePath, collectedInfo.getInterpreterId() == null);
+  }
+
+  /**
+   * Records the duration of the run for the {@link PhpStanMetrics#getAdaptiveTimeout adaptive timeout} of the next one.
+   * When the run times out, the previous results of the file are kept instead of clearing its highlighting, unless the
+   * file has been edited since.
+   *
+   * @param cacheKey   key to store the result of the run in the {@link PhpStanResultCache result cache}, or null
+   * @param generation generation of the result cache when the run started
+   */
+  private @Nullable QualityToolMessageProcessor runWithAdaptiveTimeout(@NotNull QualityToolAnnotatorInfo<PhpStanValidationInspection> collectedInfo,
+                                                                       @Nullable PhpStanResultCache.Key cacheKey,
+                                                                       long generation) {
+    if (!(collectedInfo instanceof PhpStanQualityToolAnnotatorInfo info)) {
+      return super.doAnnotate(collectedInfo);
+    }
+    long started = System.currentTimeMillis();
+    RunResult runResult = runPhpStan(info);
+    QualityToolMessageProcessor result = runResult.processor();
+    long duration = System.currentTimeMillis() - started;
+    // A cancelled run tells nothing about how long the analysis takes
+    ProgressManager.checkCanceled();
+    PsiFile psiFile = collectedInfo.getPsiFile();
+    if (!runResult.timedOut()) {
+      PhpStanMetrics.getInstance().recordDuration(info.getRunKind(), info.getDurationKey(), duration);
+      if (result != null) storeResult(collectedInfo, result, cacheKey, generation);
+      if (result != null && psiFile != null && info.getRunKind() == PhpStanConfigOverlay.RunKind.EDITOR) {
+        PhpStanCacheHealthService.getInstance(collectedInfo.getProject()).recordDuration(duration);
+      }
+      return result;
+    }
+    LOG.info("PHPStan timed out after " + info.getTimeoutMs() + " ms on " + info.getDurationKey());
+    PhpStanMetrics.getInstance().recordTimeout(info.getRunKind(), info.getDurationKey(), info.getTimeoutMs());
+    PhpStanMetrics.getInstance().increment(PhpStanMetrics.Counter.TIMED_OUT_RUNS);
+    QualityToolMessageProcessor previous = getPreviousResult(psiFile);
+    return previous != null ? previous : result;
+  }
+
+  /**
+   * @return the result of the last completed run of the file, or null if the file has been edited since
+   */
+  private static @Nullable QualityToolMessageProcessor getPreviousResult(@Nullable PsiFile psiFile) {
+    PreviousResult previous = psiFile != null ? psiFile.getUserData(PREVIOUS_RESULT) : null;
+    if (previous == null) return null;
+    // Its problems are placed by the offsets in the text it was computed for
+    Document document = ReadAction.compute(() -> PsiDocumentManager.getInstance(psiFile.getProject()).getDocument(psiFile));
+    if (document != null && StringUtil.equals(previous.content(), document.getImmutableCharSequence())) {
+      return previous.processor();
+    }
+    psiFile.putUserData(PREVIOUS_RESULT, null);
+    return null;
+  }
+
+  /**
+   * Replaces the result kept for runs of the file that time out. A result mapped to a document edited during its run
+   * isn't placed in the text of the run, so none is kept then.
+   */
+  private static void setPreviousResult(@NotNull QualityToolAnnotatorInfo<PhpStanValidationInspection> collectedInfo,
+                                        @NotNull QualityToolMessageProcessor result) {
+    PsiFile psiFile = collectedInfo.getPsiFile();
+    if (psiFile == null) return;
+    CharSequence content = collectedInfo instanceof PhpStanQualityToolAnnotatorInfo info ? info.getContent() : null;
+    boolean remapped = result instanceof PhpStanMessageProcessor processor && processor.isRemapped();
+    psiFile.putUserData(PREVIOUS_RESULT, content != null && !remapped ? new PreviousResult(result, content) : null);
+  }
+
+  /**
+   * @return whether the run analyses the editor contents in the persistent container of a Docker interpreter
+   */
+  private static boolean isContainerEditorRun(@NotNull QualityToolAnnotatorInfo<PhpStanValidationInspection> collectedInfo) {
+    if (!(collectedInfo instanceof PhpStanQualityToolAnnotatorInfo info) ||
+        !(info.getPhpStanConfiguration() instanceof PhpStanRemoteConfiguration remoteConfiguration) ||
+        remoteConfiguration.getContainerImage().isBlank()) {
+      return false;
+    }
+    PsiFile psiFile = info.getPsiFile();
+    return psiFile != null && psiFile.getVirtualFile() != null && info.getContent() != null &&
+           info.getRunKind() == PhpStanConfigOverlay.RunKind.EDITOR &&
+           PhpStanVersionSupport.supportsEditorMode(PhpStanConfigurationManager.getInstance(info.getProject()).getLocalSettings().getVersion());
+  }
+
+  /**
+   * Runs PHPStan in the persistent container of a Docker interpreter if it has one, and the usual way otherwise.
+   */
+  private @NotNull RunResult runPhpStan(@NotNull PhpStanQualityToolAnnotatorInfo info) {
+    PsiFile psiFile = info.getPsiFile();
+    VirtualFile file = psiFile != null ? psiFile.getVirtualFile() : null;
+    CharSequence content = info.getContent();
+    Project project = info.getProject();
+    if (info.getPhpStanConfiguration() instanceof PhpStanRemoteConfiguration remoteConfiguration &&
+        !remoteConfiguration.getContainerImage().isBlank()) {
+      PhpStanContainerService containerService = PhpStanContainerService.getInstance(project);
+      ProgressIndicator indicator = ProgressManager.getGlobalProgressIndicator();
+      ProcessOutput output = null;
+      if (isContainerEditorRun(info) && file != null && content != null) {
+        output = containerService.analyse(remoteConfiguration, file, content, indicator, info.getTimeoutMs());
+      }
+      else if (psiFile == null && getQualityToolType().getGlobalTool(project, null) instanceof PhpStanGlobalInspection tool) {
+        List<String> options = getBatchOptions(tool, null, project, false, info.getScopePaths());
+        output = containerService.analyseProject(remoteConfiguration, options, indicator, info.getTimeoutMs());
+      }
+      if (output != null) {
+        if (output.isCancelled() || output.isTimeout()) return new RunResult(null, output.isTimeout());
+        PhpStanMessageProcessor processor = new PhpStanMessageProcessor(info);
+        try {
+          processor.processReport(output.getStdout());
+        }
+        catch (SAXException | IOException e) {
+          LOG.warn("Cannot parse PHPStan output: " + StringUtil.first(output.getStdout(), 1000, true), e);
+          return new RunResult(null, false);
+        }
+        return new RunResult(processor, false);
+      }
+    }
+    long started = System.currentTimeMillis();
+    QualityToolMessageProcessor processor = super.doAnnotate(info);
+    // The platform runs the process and keeps its output to itself, so only the elapsed time tells
+    return new RunResult(processor, System.currentTimeMillis() - started >= info.getTimeoutMs());
+  }
+
+  /**
+   * Keeps the result of a completed run for runs that time out and, by its content, in the result cache.
+   */
+  private static void storeResult(@NotNull QualityToolAnnotatorInfo<PhpStanValidationInspection> collectedInfo,
+                                  @NotNull QualityToolMessageProcessor result,
+                                  @Nullable PhpStanResultCache.Key cacheKey,
+                                  long generation) {
+    setPreviousResult(collectedInfo, result);
+    // Results mapped to a document edited during the run no longer match the cached content
+    if (cacheKey != null && !(result instanceof PhpStanMessageProcessor processor && processor.isRemapped())) {
+      PhpStanResultCacheService.getInstance(collectedInfo.getProject()).getCache().put(cacheKey, result, generation);
+    }
+  }
+
+  /**
+   * @param file the analysed file, null for batch runs
+   */
+  private static @NotNull PhpStanPriority getPriority(@NotNull Project project, @Nullable VirtualFile file) {
+    if (file == null) return PhpStanPriority.BATCH;
+    List<VirtualFile> selected = PhpStanSelectedEditors.getInstance(project).getSelectedFiles();
+    if (!selected.isEmpty() && file.equals(selected.get(0))) return PhpStanPriority.FOCUSED_EDITOR;
+    return selected.contains(file) ? PhpStanPriority.VISIBLE_EDITOR : PhpStanPriority.BACKGROUND;
+  }
+
   @Override
   protected QualityToolMessageProcessor createMessageProcessor(@NotNull QualityToolAnnotatorInfo<PhpStanValidationInspection> collectedInfo) {
     return new PhpStanMessageProcessor(collectedInfo);
@@ -113,7 +420,23 @@ public final class PhpStanAnnotatorProxy extends QualityToolAnnotator<PhpStanVal
       // Also store by filename as a fallback
       ORIGINAL_FILE_PATHS.put(file.getName(), originalPath);
     }
-    return new PhpStanQualityToolAnnotatorInfo(file, tool, inspectionProfile, project, configuration, isOnTheFly);
+    PhpStanConfigOverlay.RunKind kind = file != null && isOnTheFly ? PhpStanConfigOverlay.RunKind.EDITOR : PhpStanConfigOverlay.RunKind.BATCH;
+    VirtualFile virtualFile = file != null ? file.getVirtualFile() : null;
+    String durationKey = virtualFile != null ? virtualFile.getPath() : String.valueOf(project.getBasePath());
+    int timeout = PhpStanMetrics.getInstance().getAdaptiveTimeout(kind, durationKey, configuration.getTimeout());
+    // The platform takes the timeout from the configuration, so the run gets a copy with the adaptive one
+    QualityToolConfiguration runConfiguration = configuration;
+    if (configuration instanceof PhpStanConfiguration phpStanConfiguration) {
+      PhpStanConfiguration copy = phpStanConfiguration.clone();
+      copy.setTimeout(timeout);
+      runConfiguration = copy;
+    }
+    // Taken now, in the read action of the platform, so the copy matches the text the results are mapped to
+    Document document = file != null && isOnTheFly ? PsiDocumentManager.getInstance(project).getDocument(file) : null;
+    CharSequence content = document != null ? document.getImmutableCharSequence() : null;
+    long stamp = document != null ? document.getModificationStamp() : -1;
+    return new PhpStanQualityToolAnnotatorInfo(file, inspectionProfile, project, runConfiguration, isOnTheFly, kind, durationKey,
+                                               timeout, content, stamp);
   }
 
   @Override
@@ -0,0 +1,195 @@
+package com.jetbrains.php.tools.quality.phpstan;
+
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Index of the {@code ignoreErrors} entries of a PHPStan baseline, keyed by file and message pattern.
+ * <p>
+ * Entries for the same file and pattern are folded together and their counts summed, so looking up a reported error
+ * costs one hash lookup plus a scan of the few patterns recorded for that file.
+ */
+public final class PhpStanBaseline {
+  public static final PhpStanBaseline EMPTY = new PhpStanBaseline(Map.of());
+
+  private final Map<String, Map<String, Entry>> myEntries;
+  private final Map<String, Optional<Pattern>> myPatterns = new ConcurrentHashMap<>();
+
+  private PhpStanBaseline(@NotNull Map<String, Map<String, Entry>> entries) {
+    myEntries = entries;
+  }
+
+  /**
+   * A baseline entry.
+   *
+   * @param path    absolute system-independent path of the file
+   * @param message PCRE pattern with delimiters (the {@code message} key), or the literal {@code rawMessage}
+   * @param raw     whether {@code message} is a literal message rather than a pattern
+   * @param count   number of occurrences ignored
+   */
+  public record Entry(@NotNull String path, @NotNull String message, boolean raw, int count) {
+  }
+
+  /**
+   * Builds the index from the {@code parameters.ignoreErrors} section of a parsed baseline file.
+   * Entries without a single {@code path} don't belong to a baseline and are skipped.
+   */
+  public static @NotNull PhpStanBaseline fromConfigFile(@NotNull PhpStanNeonConfig.ConfigFile file) {
+    if (!(file.data().get("parameters") instanceof Map<?, ?> parameters) ||
+        !(parameters.get("ignoreErrors") instanceof List<?> ignoreErrors)) {
+      return EMPTY;
+    }
+    List<Entry> entries = new ArrayList<>(ignoreErrors.size());
+    for (Object item : ignoreErrors) {
+      if (!(item instanceof Map<?, ?> map) || !(map.get("path") instanceof String path)) continue;
+      int count = map.get("count") instanceof Number number ? number.intValue() : 1;
+      if (map.get("message") instanceof String message) {
+        entries.add(new Entry(path, message, false, count));
+      }
+      else if (map.get("rawMessage") instanceof String rawMessage) {
+        entries.add(new Entry(path, rawMessage, true, count));
+      }
+    }
+    return of(entries);
+  }
+
+  public static @NotNull PhpStanBaseline of(@NotNull Collection<Entry> entries) {
+    if (entries.isEmpty()) return EMPTY;
+    Map<String, Map<String, Entry>> index = new HashMap<>();
+    for (Entry entry : entries) {
+      index.computeIfAbsent(entry.path(), p -> new LinkedHashMap<>())
+        .merge(key(entry), entry, (a, b) -> new Entry(a.path(), a.message(), a.raw(), a.count() + b.count()));
+    }
+    return new PhpStanBaseline(index);
+  }
+
+  public static @NotNull PhpStanBaseline merge(@NotNull List<PhpStanBaseline> baselines) {
+    if (baselines.size() == 1) return baselines.get(0);
+    List<Entry> entries = new ArrayList<>();
+    for (PhpStanBaseline baseline : baselines) entries.addAll(baseline.getEntries());
+    return of(entries);
+  }
+
+  private static @NotNull String key(@NotNull Entry entry) {
+    return (entry.raw() ? "raw:" : "re:") + entry.message();
+  }
+
+  public boolean isEmpty() {
+    return myEntries.isEmpty();
+  }
+
+  /**
+   * @return true if the baseline contains entries for the file
+   */
+  public boolean hasEntries(@NotNull String path) {
+    return myEntries.containsKey(path);
+  }
+
+  /**
+   * @return entries for the file, in declaration order
+   */
+  public @NotNull Collection<Entry> getEntries(@NotNull String path) {
+    Map<String, Entry> entries = myEntries.get(path);
+    return entries == null ? List.of() : entries.values();
+  }
+
+  public @NotNull List<Entry> getEntries() {
+    List<Entry> result = new ArrayList<>();
+    for (Map<String, Entry> entries : myEntries.values()) result.addAll(entries.values());
+    return result;
+  }
+
+  /**
+   * Creates a matcher that consumes entry counts, so that errors beyond the recorded count are reported.
+   * A matcher is meant to be used for the results of a single run.
+   */
+  public @NotNull Matcher newMatcher() {
+    return new Matcher();
+  }
+
+  public final class Matcher {
+    private final Map<Entry, Integer> myUsed = new HashMap<>();
+
+    private Matcher() {
+    }
+
+    /**
+     * @return true if the error is covered by the baseline and should not be shown
+     */
+    public boolean isBaselined(@NotNull String path, @NotNull String message) {
+      Map<String, Entry> entries = myEntries.get(path);
+      if (entries == null) return false;
+      for (Entry entry : entries.values()) {
+        if (!matches(entry, message)) continue;
+        int used = myUsed.getOrDefault(entry, 0);
+        if (used < entry.count()) {
+          myUsed.put(entry, used + 1);
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  private boolean matches(@NotNull Entry entry, @NotNull String message) {
+    if (entry.raw()) return entry.message().equals(message);
+    // Patterns are compiled lazily: a run only ever touches the entries of the files it reports
+    Optional<Pattern> pattern = myPatterns.computeIfAbsent(entry.message(), PhpStanBaseline::compilePcre);
+    return pattern.isPresent() && pattern.get().matcher(message).find();
+  }
+
+  /**
+   * Converts a PCRE pattern with delimiters and modifiers, e.g. {@code #^Foo\.$#i}, to a Java pattern.
+   */
+  static @NotNull Optional<Pattern> compilePcre(@NotNull @NonNls String pcre) {
+    if (pcre.length() < 2) return Optional.empty();
+    char delimiter = pcre.charAt(0);
+    char closing = switch (delimiter) {
+      case '(' -> ')';
+      case '{' -> '}';
+      case '[' -> ']';
+      case '<' -> '>';
+      default -> delimiter;
+    };
+    int end = pcre.lastIndexOf(closing);
+    if (end <= 0) return Optional.empty();
+    int flags = 0;
+    for (char modifier : pcre.substring(end + 1).toCharArray()) {
+      switch (modifier) {
+        case 'i' -> flags |= Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+        case 'm' -> flags |= Pattern.MULTILINE;
+        case 's' -> flags |= Pattern.DOTALL;
+        case 'x' -> flags |= Pattern.COMMENTS;
+        case 'u' -> flags |= Pattern.UNICODE_CHARACTER_CLASS;
+        default -> { }
+      }
+    }
+    try {
+      return Optional.of(Pattern.compile(pcre.substring(1, end), flags));
+    }
+    catch (PatternSyntaxException e) {
+      return Optional.empty();
+    }
+  }
+
+  /**
+   * @return the baseline files among the configuration files, recognised by their name
+   */
+  public static @NotNull List<PhpStanNeonConfig.ConfigFile> findBaselineFiles(@Nullable PhpStanNeonConfig config) {
+    if (config == null) return List.of();
+    List<PhpStanNeonConfig.ConfigFile> result = new ArrayList<>();
+    for (PhpStanNeonConfig.ConfigFile file : config.getFiles()) {
+      String name = file.path().getFileName().toString();
+      if (name.contains("baseline") && (name.endsWith(".neon") || name.endsWith(".neon.dist"))) {
+        result.add(file);
+      }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,77 @@
+package com.jetbrains.php.tools.quality.phpstan;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+
+/**
+ * Structural difference between two baselines: entries that were added, removed or whose count changed.
+ */
+public final class PhpStanBaselineDiff {
+  private final List<Change> myChanges;
+
+  private PhpStanBaselineDiff(@NotNull List<Change> changes) {
+    myChanges = changes;
+  }
+
+  public enum Kind {ADDED, REMOVED, COUNT_CHANGED}
+
+  /**
+   * @param oldCount count in the current baseline, 0 for added entries
+   * @param newCount count in the regenerated baseline, 0 for removed entries
+   */
+  public record Change(@NotNull Kind kind, @NotNull String path, @NotNull String message, int oldCount, int newCount) {
+  }
+
+  public static @NotNull PhpStanBaselineDiff compute(@NotNull PhpStanBaseline oldBaseline, @NotNull PhpStanBaseline newBaseline) {
+    Map<EntryKey, PhpStanBaseline.Entry> oldEntries = index(oldBaseline);
+    Map<EntryKey, PhpStanBaseline.Entry> newEntries = index(newBaseline);
+    List<Change> changes = new ArrayList<>();
+    for (Map.Entry<EntryKey, PhpStanBaseline.Entry> entry : newEntries.entrySet()) {
+      PhpStanBaseline.Entry newEntry = entry.getValue();
+      PhpStanBaseline.Entry oldEntry = oldEntries.get(entry.getKey());
+      if (oldEntry == null) {
+        changes.add(new Change(Kind.ADDED, newEntry.path(), newEntry.message(), 0, newEntry.count()));
+      }
+      else if (oldEntry.count() != newEntry.count()) {
+        changes.add(new Change(Kind.COUNT_CHANGED, newEntry.path(), newEntry.message(), oldEntry.count(), newEntry.count()));
+      }
+    }
+    for (Map.Entry<EntryKey, PhpStanBaseline.Entry> entry : oldEntries.entrySet()) {
+      if (!newEntries.containsKey(entry.getKey())) {
+        PhpStanBaseline.Entry oldEntry = entry.getValue();
+        changes.add(new Change(Kind.REMOVED, oldEntry.path(), oldEntry.message(), oldEntry.count(), 0));
+      }
+    }
+    changes.sort(Comparator.comparing(Change::path).thenComparing(Change::message).thenComparing(Change::kind));
+    return new PhpStanBaselineDiff(changes);
+  }
+
+  private record EntryKey(@NotNull String path, @NotNull String message, boolean raw) {
+  }
+
+  private static @NotNull Map<EntryKey, PhpStanBaseline.Entry> index(@NotNull PhpStanBaseline baseline) {
+    List<PhpStanBaseline.Entry> entries = baseline.getEntries();
+    Map<EntryKey, PhpStanBaseline.Entry> result = new HashMap<>(entries.size() * 2);
+    for (PhpStanBaseline.Entry entry : entries) {
+      result.put(new EntryKey(entry.path(), entry.message(), entry.raw()), entry);
+    }
+    return result;
+  }
+
+  public @NotNull List<Change> getChanges() {
+    return myChanges;
+  }
+
+  public boolean isEmpty() {
+    return myChanges.isEmpty();
+  }
+
+  public int count(@NotNull Kind kind) {
+    int result = 0;
+    for (Change change : myChanges) {
+      if (change.kind() == kind) result++;
+    }
+    return result;
+  }
+}
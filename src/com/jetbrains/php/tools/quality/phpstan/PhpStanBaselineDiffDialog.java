@@ -0,0 +1,105 @@
+package com.jetbrains.php.tools.quality.phpstan;
+
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.ui.DialogWrapper;
+import com.intellij.ui.ScrollPaneFactory;
+import com.intellij.ui.components.JBLabel;
+import com.intellij.ui.table.JBTable;
+import com.intellij.util.ui.JBUI;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
+import java.awt.*;
+import java.nio.file.Path;
+import java.util.List;
+
+import static com.jetbrains.php.tools.quality.phpstan.PhpStanBaselineDiff.Kind.*;
+
+/**
+ * Shows the structural changes of a regenerated baseline and asks whether to write it.
+ * The table model reads straight from the change list, so baselines with tens of thousands of entries stay responsive.
+ */
+public class PhpStanBaselineDiffDialog extends DialogWrapper {
+  private final PhpStanBaselineDiff myDiff;
+  private final @Nullable String myBasePath;
+
+  public PhpStanBaselineDiffDialog(@NotNull Project project, @NotNull PhpStanBaselineDiff diff) {
+    super(project);
+    myDiff = diff;
+    myBasePath = project.getBasePath();
+    setTitle(PhpStanBundle.message("phpstan.baseline.diff.title"));
+    setOKButtonText(PhpStanBundle.message("phpstan.baseline.diff.write"));
+    init();
+  }
+
+  @Override
+  protected @Nullable JComponent createCenterPanel() {
+    JBTable table = new JBTable(new ChangesTableModel(myDiff.getChanges()));
+    table.setAutoCreateRowSorter(true);
+    table.getColumnModel().getColumn(0).setPreferredWidth(JBUI.scale(90));
+    table.getColumnModel().getColumn(1).setPreferredWidth(JBUI.scale(250));
+    table.getColumnModel().getColumn(2).setPreferredWidth(JBUI.scale(450));
+    table.getColumnModel().getColumn(3).setPreferredWidth(JBUI.scale(60));
+    table.getColumnModel().getColumn(4).setPreferredWidth(JBUI.scale(60));
+
+    JPanel panel = new JPanel(new BorderLayout(0, JBUI.scale(8)));
+    panel.add(new JBLabel(PhpStanBundle.message("phpstan.baseline.diff.summary",
+                                                myDiff.count(ADDED), myDiff.count(REMOVED), myDiff.count(COUNT_CHANGED))),
+              BorderLayout.NORTH);
+    panel.add(ScrollPaneFactory.createScrollPane(table), BorderLayout.CENTER);
+    panel.setPreferredSize(JBUI.size(900, 500));
+    return panel;
+  }
+
+  private final class ChangesTableModel extends AbstractTableModel {
+    private final List<PhpStanBaselineDiff.Change> myChanges;
+
+    private ChangesTableModel(@NotNull List<PhpStanBaselineDiff.Change> changes) {
+      myChanges = changes;
+    }
+
+    @Override
+    public int getRowCount() {
+      return myChanges.size();
+    }
+
+    @Override
+    public int getColumnCount() {
+      return 5;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+      return switch (column) {
+        case 0 -> PhpStanBundle.message("phpstan.baseline.column.change");
+        case 1 -> PhpStanBundle.message("phpstan.baseline.column.file");
+        case 2 -> PhpStanBundle.message("phpstan.baseline.column.message");
+        case 3 -> PhpStanBundle.message("phpstan.baseline.column.old.count");
+        default -> PhpStanBundle.message("phpstan.baseline.column.new.count");
+      };
+    }
+
+    @Override
+    public Class<?> getColumnClass(int column) {
+      return column >= 3 ? Integer.class : String.class;
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+      PhpStanBaselineDiff.Change change = myChanges.get(row);
+      return switch (column) {
+        case 0 -> switch (change.kind()) {
+          case ADDED -> PhpStanBundle.message("phpstan.baseline.change.added");
+          case REMOVED -> PhpStanBundle.message("phpstan.baseline.change.removed");
+          case COUNT_CHANGED -> PhpStanBundle.message("phpstan.baseline.change.count");
+        };
+        case 1 -> PhpStanNeonConfig.relativize(Path.of(change.path()), myBasePath);
+        case 2 -> change.message();
+        case 3 -> change.oldCount();
+        default -> change.newCount();
+      };
+    }
+  }
+}
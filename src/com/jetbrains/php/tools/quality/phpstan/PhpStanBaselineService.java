@@ -0,0 +1,64 @@
+package com.jetbrains.php.tools.quality.phpstan;
+
+import com.intellij.openapi.project.Project;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Provides the baseline index of the active PHPStan configuration.
+ * <p>
+ * The index is rebuilt only when the configuration fingerprint changes, and then only for the baseline files whose
+ * content actually changed, so a 30k-entry baseline is parsed once rather than on every run.
+ */
+public final class PhpStanBaselineService {
+  private final Project myProject;
+  private final Map<Path, IndexedFile> myFiles = new ConcurrentHashMap<>();
+  private volatile @Nullable LoadedBaseline myLoaded;
+
+  private record IndexedFile(@NotNull String contentHash, @NotNull PhpStanBaseline baseline) {
+  }
+
+  private record LoadedBaseline(@NotNull String fingerprint, @NotNull PhpStanBaseline baseline) {
+  }
+
+  public PhpStanBaselineService(@NotNull Project project) {
+    myProject = project;
+  }
+
+  public static PhpStanBaselineService getInstance(@NotNull Project project) {
+    return project.getService(PhpStanBaselineService.class);
+  }
+
+  public @NotNull PhpStanBaseline getBaseline() {
+    PhpStanNeonConfig config = PhpStanNeonConfigService.getInstance(myProject).getConfig();
+    if (config == null) return PhpStanBaseline.EMPTY;
+    LoadedBaseline loaded = myLoaded;
+    if (loaded != null && loaded.fingerprint().equals(config.getFingerprint())) {
+      return loaded.baseline();
+    }
+    List<PhpStanNeonConfig.ConfigFile> files = PhpStanBaseline.findBaselineFiles(config);
+    List<PhpStanBaseline> parts = new ArrayList<>(files.size());
+    Set<Path> paths = new HashSet<>();
+    for (PhpStanNeonConfig.ConfigFile file : files) {
+      paths.add(file.path());
+      IndexedFile indexed = myFiles.get(file.path());
+      if (indexed == null || !indexed.contentHash().equals(file.contentHash())) {
+        indexed = new IndexedFile(file.contentHash(), PhpStanBaseline.fromConfigFile(file));
+        myFiles.put(file.path(), indexed);
+      }
+      parts.add(indexed.baseline());
+    }
+    myFiles.keySet().retainAll(paths);
+    PhpStanBaseline baseline = parts.isEmpty() ? PhpStanBaseline.EMPTY : PhpStanBaseline.merge(parts);
+    myLoaded = new LoadedBaseline(config.getFingerprint(), baseline);
+    return baseline;
+  }
+}
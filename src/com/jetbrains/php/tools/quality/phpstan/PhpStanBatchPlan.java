@@ -0,0 +1,187 @@
+package com.jetbrains.php.tools.quality.phpstan;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Splits a batch analysis into shards that are analysed by separate PHPStan runs, so results can be reported as soon
+ * as a shard is done instead of after the whole project.
+ * <p>
+ * Shards are built from consecutive units (directories or single files) and keep their order, so the files the
+ * inspection visits first are analysed first.
+ */
+public final class PhpStanBatchPlan {
+  private final List<Shard> myShards;
+  private final Map<String, Shard> myShardByPath = new HashMap<>();
+  private final int myFileCount;
+
+  /**
+   * @param path      absolute system-independent path of a directory or file passed to PHPStan
+   * @param fileCount number of analysed files in it
+   */
+  public record Unit(@NotNull String path, int fileCount) {
+  }
+
+  public record Shard(int index, @NotNull List<String> paths, int fileCount) {
+  }
+
+  /**
+   * Files and directories under the analysed paths, as {@link #collectUnits} walks them.
+   *
+   * @param <F> a file or directory
+   */
+  public interface FileTree<F> {
+    @NotNull String getPath(@NotNull F file);
+
+    /**
+     * @return children of the directory sorted by name, or null if it is a file
+     */
+    @Nullable List<F> getChildren(@NotNull F file);
+
+    /**
+     * @return whether PHPStan analyses the file when passed a directory containing it
+     */
+    boolean isAnalysed(@NotNull F file);
+
+    boolean isInScope(@NotNull F file);
+  }
+
+  private PhpStanBatchPlan(@NotNull List<Shard> shards) {
+    myShards = shards;
+    int fileCount = 0;
+    for (Shard shard : shards) {
+      fileCount += shard.fileCount();
+      for (String path : shard.paths()) {
+        myShardByPath.put(path, shard);
+      }
+    }
+    myFileCount = fileCount;
+  }
+
+  /**
+   * Groups units into shards of at least {@code minShardSize} files, aiming at {@code shardCount} shards.
+   * Units are never split, so a unit larger than the target makes a shard of its own.
+   */
+  public static @NotNull PhpStanBatchPlan create(@NotNull List<Unit> units, int shardCount, int minShardSize) {
+    int total = 0;
+    for (Unit unit : units) total += unit.fileCount();
+    int target = Math.max(minShardSize, (total + shardCount - 1) / Math.max(1, shardCount));
+    List<Shard> shards = new ArrayList<>();
+    List<String> paths = new ArrayList<>();
+    int size = 0;
+    for (Unit unit : units) {
+      if (unit.fileCount() == 0) continue;
+      paths.add(unit.path());
+      size += unit.fileCount();
+      if (size >= target) {
+        shards.add(new Shard(shards.size(), List.copyOf(paths), size));
+        paths.clear();
+        size = 0;
+      }
+    }
+    if (!paths.isEmpty()) {
+      shards.add(new Shard(shards.size(), List.copyOf(paths), size));
+    }
+    return new PhpStanBatchPlan(shards);
+  }
+
+  /**
+   * Splits the roots into units no larger than a shard: a directory with too many analysed files is replaced by its
+   * children, so shards stay balanced while the command line mostly lists directories. So is a directory with analysed
+   * files out of the scope, down to the files in the scope.
+   *
+   * @param counts collects the number of analysed files in the scope of every file and directory under the roots
+   */
+  public static <F> @NotNull List<Unit> collectUnits(@NotNull FileTree<F> tree,
+                                                     @NotNull List<F> roots,
+                                                     @NotNull Map<F, Integer> counts,
+                                                     int minShardSize,
+                                                     int shardCount) {
+    Set<F> partial = count(tree, roots, counts);
+    int total = 0;
+    for (F root : roots) {
+      total += counts.getOrDefault(root, 0);
+    }
+    int limit = Math.max(minShardSize, total / shardCount);
+    List<Unit> units = new ArrayList<>();
+    for (F root : roots) {
+      split(tree, root, limit, counts, partial, units);
+    }
+    return units;
+  }
+
+  /**
+   * @param counts collects the number of analysed files in the scope of every file and directory under the roots
+   * @return the analysed files out of the scope and the directories containing them
+   */
+  public static <F> @NotNull Set<F> count(@NotNull FileTree<F> tree, @NotNull List<F> roots, @NotNull Map<F, Integer> counts) {
+    Set<F> partial = new HashSet<>();
+    for (F root : roots) {
+      count(tree, root, counts, partial);
+    }
+    return partial;
+  }
+
+  private static <F> int count(@NotNull FileTree<F> tree, @NotNull F file, @NotNull Map<F, Integer> counts, @NotNull Set<F> partial) {
+    int count = 0;
+    List<F> children = tree.getChildren(file);
+    if (children != null) {
+      for (F child : children) {
+        count += count(tree, child, counts, partial);
+        if (partial.contains(child)) partial.add(file);
+      }
+    }
+    else if (tree.isAnalysed(file)) {
+      if (tree.isInScope(file)) {
+        count = 1;
+      }
+      else {
+        partial.add(file);
+      }
+    }
+    counts.put(file, count);
+    return count;
+  }
+
+  private static <F> void split(@NotNull FileTree<F> tree,
+                                @NotNull F file,
+                                int limit,
+                                @NotNull Map<F, Integer> counts,
+                                @NotNull Set<F> partial,
+                                @NotNull List<Unit> units) {
+    int count = counts.getOrDefault(file, 0);
+    if (count == 0) return;
+    List<F> children = count <= limit && !partial.contains(file) ? null : tree.getChildren(file);
+    if (children == null) {
+      units.add(new Unit(tree.getPath(file), count));
+      return;
+    }
+    for (F child : children) {
+      split(tree, child, limit, counts, partial, units);
+    }
+  }
+
+  public @NotNull List<Shard> getShards() {
+    return myShards;
+  }
+
+  public int getFileCount() {
+    return myFileCount;
+  }
+
+  /**
+   * @return the shard analysing the file, or null if the file is not part of the plan
+   */
+  public @Nullable Shard findShard(@NotNull String filePath) {
+    String path = filePath;
+    while (true) {
+      Shard shard = myShardByPath.get(path);
+      if (shard != null) return shard;
+      int slash = path.lastIndexOf('/');
+      if (slash <= 0) return null;
+      path = path.substring(0, slash);
+    }
+  }
+}
@@ -0,0 +1,102 @@
+package com.jetbrains.php.tools.quality.phpstan;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Tracks the progress of a sharded batch run from the progress bar PHPStan prints to stderr,
+ * e.g. {@code  120/1500 [==--------------------------]   8%}.
+ * <p>
+ * PHPStan counts files of the running shard only, so its fraction is scaled by the shard size. The time a shard is
+ * paused for editor runs is left out of the rate the remaining time is estimated at.
+ */
+public final class PhpStanBatchProgress {
+  private static final Pattern PROGRESS = Pattern.compile("(\\d+)/(\\d+) \\[");
+
+  private final int myTotalFiles;
+  private int myCompletedFiles;
+  private int myShardFiles;
+  private double myShardFraction;
+  private long myPausedMillis;
+  private long myPausedSince = -1;
+
+  public PhpStanBatchProgress(int totalFiles) {
+    myTotalFiles = totalFiles;
+  }
+
+  public synchronized void startShard(int fileCount) {
+    myShardFiles = fileCount;
+    myShardFraction = 0;
+  }
+
+  public synchronized void finishShard() {
+    myCompletedFiles += myShardFiles;
+    myShardFiles = 0;
+    myShardFraction = 0;
+  }
+
+  /**
+   * Consumes a chunk of stderr output of the running shard.
+   *
+   * @return true if the chunk contained a progress update
+   */
+  public synchronized boolean update(@NotNull CharSequence stderr) {
+    Matcher matcher = PROGRESS.matcher(stderr);
+    boolean found = false;
+    while (matcher.find()) {
+      long done = Long.parseLong(matcher.group(1));
+      long total = Long.parseLong(matcher.group(2));
+      if (total > 0 && done <= total) {
+        myShardFraction = (double)done / total;
+        found = true;
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Starts or ends a pause of the running shard; repeated calls are ignored.
+   */
+  public synchronized void setPaused(boolean paused, long nowMillis) {
+    if (paused && myPausedSince < 0) {
+      myPausedSince = nowMillis;
+    }
+    else if (!paused && myPausedSince >= 0) {
+      myPausedMillis += Math.max(0, nowMillis - myPausedSince);
+      myPausedSince = -1;
+    }
+  }
+
+  /**
+   * @return time spent analysing since the start of the run, without the pauses so far
+   */
+  public synchronized long getActiveMillis(long startedMillis, long nowMillis) {
+    long paused = myPausedMillis + (myPausedSince >= 0 ? Math.max(0, nowMillis - myPausedSince) : 0);
+    return Math.max(0, nowMillis - startedMillis - paused);
+  }
+
+  public synchronized int getProcessedFiles() {
+    return myCompletedFiles + (int)Math.round(myShardFiles * myShardFraction);
+  }
+
+  public int getTotalFiles() {
+    return myTotalFiles;
+  }
+
+  public double getFraction() {
+    return myTotalFiles == 0 ? 0 : Math.min(1.0, (double)getProcessedFiles() / myTotalFiles);
+  }
+
+  /**
+   * @param elapsedMillis time spent analysing so far, see {@link #getActiveMillis}
+   * @return estimated time left assuming the remaining files are analysed at the rate observed so far,
+   * or -1 if nothing has been processed yet
+   */
+  public long estimateRemainingMillis(long elapsedMillis) {
+    int processed = getProcessedFiles();
+    if (processed == 0 || elapsedMillis <= 0) return -1;
+    return Math.round((double)elapsedMillis / processed * Math.max(0, myTotalFiles - processed));
+  }
+}
@@ -0,0 +1,527 @@
+package com.jetbrains.php.tools.quality.phpstan;
+
+import com.intellij.analysis.AnalysisScope;
+import com.intellij.execution.ExecutionException;
+import com.intellij.execution.configurations.GeneralCommandLine;
+import com.intellij.execution.process.CapturingProcessHandler;
+import com.intellij.execution.process.ProcessEvent;
+import com.intellij.execution.process.ProcessListener;
+import com.intellij.execution.process.ProcessOutput;
+import com.intellij.execution.process.ProcessOutputTypes;
+import com.intellij.notification.Notification;
+import com.intellij.notification.NotificationType;
+import com.intellij.notification.Notifications;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ProjectRootManager;
+import com.intellij.openapi.util.Key;
+import com.intellij.openapi.util.UserDataHolderEx;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VFileProperty;
+import com.intellij.openapi.vfs.VfsUtilCore;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.containers.ContainerUtil;
+import com.jetbrains.php.tools.quality.QualityToolXmlMessageProcessor.ProblemDescription;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static com.intellij.openapi.util.text.StringUtil.isNotEmpty;
+
+/**
+ * Batch analysis split into {@link PhpStanBatchPlan shards} that run one after another in the background.
+ * <p>
+ * PHPStan only formats its errors once the whole analysis is done, so results are streamed per shard:
+ * the problems of a shard are published as soon as it finishes, and {@link #awaitFile} lets the inspection report
+ * a file as soon as its shard is done. Progress and ETA come from the progress bar PHPStan prints to stderr.
+ * If the run is cancelled, the problems of the shards finished so far are kept.
+ * <p>
+ * A shard that runs out of memory is analysed again in two halves, recursively up to {@value #MAX_SPLIT_DEPTH} times,
+ * keeping the results of the parts that succeed. The paths that needed splitting are reported at the end of the run.
+ * <p>
+ * Only the files in the analysis scope of the inspection are analysed. A directory is only passed to PHPStan if all of
+ * its analysed files are in the scope.
+ * <p>
+ * If a {@link PhpStanImportedReportService report is imported}, the run starts with its problems in the scope and only
+ * analyses the files changed since the commit it was made on.
+ */
+final class PhpStanBatchRun {
+  private static final Logger LOG = Logger.getInstance(PhpStanBatchRun.class);
+  private static final Key<PhpStanBatchRun> BATCH_RUN = Key.create("PHPSTAN_BATCH_RUN");
+  private static final int SHARD_COUNT = 16;
+  private static final int MIN_SHARD_SIZE = 200;
+  private static final int MAX_SPLIT_DEPTH = 4;
+  private static final int MAX_REPORTED_PATHS = 10;
+  private static final @NonNls String NOTIFICATION_GROUP = "PHPStan";
+  private static final long WAIT_SLICE_MS = 50;
+  private static final @NonNls String PHP_EXTENSION = "php";
+
+  private final Project myProject;
+  private final PhpStanGlobalInspection myTool;
+  private final String myToolPath;
+  private final PhpStanBatchPlan myPlan;
+  private final Map<VirtualFile, Integer> myFileCounts;
+  private final List<ProblemDescription> myProblems;
+  private final List<CompletableFuture<Void>> myShardsDone = new ArrayList<>();
+  private final PhpStanBatchProgress myProgress;
+  private final Set<String> mySplitPaths = new LinkedHashSet<>();
+  private final Set<String> myFailedPaths = new LinkedHashSet<>();
+  private final Set<String> myNotStartedPaths = new LinkedHashSet<>();
+  private volatile @Nullable ProgressIndicator myIndicator;
+  private volatile boolean myCancelled;
+
+  private PhpStanBatchRun(@NotNull Project project,
+                          @NotNull PhpStanGlobalInspection tool,
+                          @NotNull String toolPath,
+                          @NotNull PhpStanBatchPlan plan,
+                          @NotNull Map<VirtualFile, Integer> fileCounts,
+                          @NotNull List<ProblemDescription> problems) {
+    myProject = project;
+    myTool = tool;
+    myToolPath = toolPath;
+    myPlan = plan;
+    myFileCounts = fileCounts;
+    myProblems = problems;
+    myProgress = new PhpStanBatchProgress(plan.getFileCount());
+    for (int i = 0; i < plan.getShards().size(); i++) {
+      myShardsDone.add(new CompletableFuture<>());
+    }
+  }
+
+  static @Nullable PhpStanBatchRun getInstance(@NotNull Project project) {
+    return project.getUserData(BATCH_RUN);
+  }
+
+  /**
+   * Plans and starts a batch run with the local PHPStan.
+   *
+   * @param scope    scope of the inspection, or null for the whole project
+   * @param problems concurrent list the problems of finished shards are added to
+   * @return the started run, or null if the analysed paths are not known up front and the run can't be sharded
+   */
+  static @Nullable PhpStanBatchRun start(@NotNull Project project,
+                                         @NotNull PhpStanGlobalInspection tool,
+                                         @Nullable AnalysisScope scope,
+                                         @NotNull List<ProblemDescription> problems) {
+    String toolPath = PhpStanProcessRunner.getLocalToolPath(project);
+    if (toolPath == null) return null;
+    List<VirtualFile> roots = getRoots(project);
+    if (roots.isEmpty()) return null;
+    Map<VirtualFile, Integer> fileCounts = new HashMap<>();
+    // Neither shards nor the changed files alone give the errors of the whole analysis then
+    PhpStanNeonConfig config = PhpStanNeonConfigService.getInstance(project).getConfig();
+    boolean whole = config != null && config.requiresWholeAnalysis();
+    int shardCount = whole ? 1 : SHARD_COUNT;
+    PhpStanImportedReportService.Seed seed =
+      whole ? null : PhpStanImportedReportService.getInstance(project).createSeed(path -> isInScope(project, scope, path));
+    List<PhpStanBatchPlan.Unit> units = seed != null
+                                        ? collectChangedUnits(project, roots, scope, fileCounts, seed.changedFiles())
+                                        : collectUnits(project, roots, scope, fileCounts, MIN_SHARD_SIZE, shardCount);
+    PhpStanBatchPlan plan = PhpStanBatchPlan.create(units, shardCount, MIN_SHARD_SIZE);
+    if (plan.getShards().isEmpty() && seed == null) return null;
+    if (seed != null) {
+      problems.addAll(seed.problems());
+      LOG.info("PHPStan batch run reuses the report of " + seed.commit() + ", analysing " + plan.getFileCount() + " changed files");
+    }
+
+    PhpStanBatchRun run = new PhpStanBatchRun(project, tool, toolPath, plan, fileCounts, problems);
+    cancel(project);
+    project.putUserData(BATCH_RUN, run);
+    new Task.Backgroundable(project, PhpStanBundle.message("phpstan.batch.title"), true) {
+      @Override
+      public void run(@NotNull ProgressIndicator indicator) {
+        run.runShards(indicator);
+      }
+    }.queue();
+    return run;
+  }
+
+  /**
+   * Cancels the current batch run of the project, if any, keeping the problems found so far.
+   */
+  static void cancel(@NotNull Project project) {
+    PhpStanBatchRun run = project.getUserData(BATCH_RUN);
+    if (run != null) {
+      run.cancel();
+      run.detach();
+    }
+  }
+
+  /**
+   * Paths for a non-sharded batch run to analyse instead of the whole project: the fewest files and directories that
+   * cover the analysed files in the scope.
+   *
+   * @return the paths, or null if the analysed paths are not known up front
+   */
+  static @Nullable List<String> getScopePaths(@NotNull Project project, @NotNull AnalysisScope scope) {
+    List<VirtualFile> roots = getRoots(project);
+    if (roots.isEmpty()) return null;
+    List<PhpStanBatchPlan.Unit> units = collectUnits(project, roots, scope, new HashMap<>(), Integer.MAX_VALUE, 1);
+    return ContainerUtil.map(units, PhpStanBatchPlan.Unit::path);
+  }
+
+  /**
+   * Same paths as a non-sharded batch run would pass: the configured {@code paths}, the whole project
+   * or the source roots.
+   */
+  private static @NotNull List<VirtualFile> getRoots(@NotNull Project project) {
+    PhpStanOptionsConfiguration configuration = PhpStanOptionsConfiguration.getInstance(project);
+    List<String> paths = new ArrayList<>();
+    if (configuration.isFullProject()) {
+      if (project.getBasePath() != null) paths.add(project.getBasePath());
+    }
+    else if (isNotEmpty(configuration.getConfig())) {
+      PhpStanNeonConfig config = PhpStanNeonConfigService.getInstance(project).getConfig();
+      if (config != null) paths.addAll(config.getPaths());
+    }
+    else {
+      for (VirtualFile root : ProjectRootManager.getInstance(project).getContentSourceRoots()) {
+        paths.add(root.getPath());
+      }
+    }
+    List<VirtualFile> roots = new ArrayList<>();
+    for (String path : paths) {
+      // Wildcard paths can't be enumerated here; PHPStan is the only authority on them
+      if (path.contains("*") || path.contains("?")) return List.of();
+      VirtualFile root = LocalFileSystem.getInstance().findFileByPath(path);
+      if (root != null) roots.add(root);
+    }
+    return roots;
+  }
+
+  private static @NotNull List<PhpStanBatchPlan.Unit> collectUnits(@NotNull Project project,
+                                                                   @NotNull List<VirtualFile> roots,
+                                                                   @Nullable AnalysisScope scope,
+                                                                   @NotNull Map<VirtualFile, Integer> counts,
+                                                                   int minShardSize,
+                                                                   int shardCount) {
+    return PhpStanBatchPlan.collectUnits(new VfsTree(project, scope), roots, counts, minShardSize, shardCount);
+  }
+
+  /**
+   * Lists the analysed files among the changed ones one by one; there are few of them, unlike the files of a full run.
+   *
+   * @param changedFiles paths relative to the project
+   */
+  private static @NotNull List<PhpStanBatchPlan.Unit> collectChangedUnits(@NotNull Project project,
+                                                                          @NotNull List<VirtualFile> roots,
+                                                                          @Nullable AnalysisScope scope,
+                                                                          @NotNull Map<VirtualFile, Integer> counts,
+                                                                          @NotNull Set<String> changedFiles) {
+    PhpStanBatchPlan.count(new VfsTree(project, scope), roots, counts);
+    List<PhpStanBatchPlan.Unit> units = new ArrayList<>();
+    String basePath = project.getBasePath();
+    if (basePath == null) return units;
+    for (String path : new TreeSet<>(changedFiles)) {
+      VirtualFile file = LocalFileSystem.getInstance().findFileByPath(basePath + "/" + path);
+      if (file != null && !file.isDirectory() && counts.getOrDefault(file, 0) == 1) {
+        units.add(new PhpStanBatchPlan.Unit(file.getPath(), 1));
+      }
+    }
+    return units;
+  }
+
+  /**
+   * @param path path relative to the project
+   * @return whether the file is in the scope, the whole project if null
+   */
+  private static boolean isInScope(@NotNull Project project, @Nullable AnalysisScope scope, @NotNull String path) {
+    if (scope == null) return true;
+    VirtualFile file = LocalFileSystem.getInstance().findFileByPath(project.getBasePath() + "/" + path);
+    return file != null && ReadAction.compute(() -> scope.contains(file));
+  }
+
+  /**
+   * PHP files of the VFS that pass the {@link PhpStanPathFilter path filter}.
+   */
+  private static final class VfsTree implements PhpStanBatchPlan.FileTree<VirtualFile> {
+    private final PhpStanPathFilter myFilter;
+    private final @Nullable AnalysisScope myScope;
+
+    private VfsTree(@NotNull Project project, @Nullable AnalysisScope scope) {
+      myFilter = PhpStanPathFilter.getInstance(project);
+      myScope = scope;
+    }
+
+    @Override
+    public @NotNull String getPath(@NotNull VirtualFile file) {
+      return file.getPath();
+    }
+
+    @Override
+    public @Nullable List<VirtualFile> getChildren(@NotNull VirtualFile file) {
+      ProgressManager.checkCanceled();
+      if (!file.isDirectory()) return null;
+      if (isSymlinkLoop(file)) return List.of();
+      VirtualFile[] children = file.getChildren().clone();
+      Arrays.sort(children, Comparator.comparing(VirtualFile::getName));
+      return Arrays.asList(children);
+    }
+
+    @Override
+    public boolean isAnalysed(@NotNull VirtualFile file) {
+      return PHP_EXTENSION.equals(file.getExtension()) && myFilter.isInScope(file);
+    }
+
+    @Override
+    public boolean isInScope(@NotNull VirtualFile file) {
+      return myScope == null || ReadAction.compute(() -> myScope.contains(file));
+    }
+  }
+
+  /**
+   * @return whether the directory is a symbolic link to a directory containing it, which is walked into endlessly
+   */
+  private static boolean isSymlinkLoop(@NotNull VirtualFile directory) {
+    if (!directory.is(VFileProperty.SYMLINK)) return false;
+    VirtualFile target = directory.getCanonicalFile();
+    return target == null || VfsUtilCore.isAncestor(target, directory, false);
+  }
+
+  private void runShards(@NotNull ProgressIndicator indicator) {
+    myIndicator = indicator;
+    indicator.setIndeterminate(false);
+    long started = System.currentTimeMillis();
+    try {
+      for (PhpStanBatchPlan.Shard shard : myPlan.getShards()) {
+        if (myCancelled || indicator.isCanceled() || myProject.isDisposed()) break;
+        if (!runShard(shard, indicator, started)) break;
+        myShardsDone.get(shard.index()).complete(null);
+      }
+      reportFailures();
+    }
+    finally {
+      // Unblock waiting inspections: files of shards that did not run simply have no problems reported
+      for (CompletableFuture<Void> done : myShardsDone) {
+        done.complete(null);
+      }
+      detach();
+    }
+  }
+
+  private void detach() {
+    ((UserDataHolderEx)myProject).replace(BATCH_RUN, this, null);
+  }
+
+  /**
+   * @return false if the run was cancelled
+   */
+  private boolean runShard(@NotNull PhpStanBatchPlan.Shard shard, @NotNull ProgressIndicator indicator, long started) {
+    List<PhpStanBatchPlan.Unit> units = new ArrayList<>();
+    for (String path : shard.paths()) {
+      VirtualFile file = LocalFileSystem.getInstance().findFileByPath(path);
+      units.add(new PhpStanBatchPlan.Unit(path, file != null ? myFileCounts.getOrDefault(file, 0) : 0));
+    }
+    LOG.info("PHPStan batch shard " + (shard.index() + 1) + "/" + myPlan.getShards().size());
+    return runUnits(units, shard.fileCount(), 0, indicator, started);
+  }
+
+  /**
+   * Analyses the units, splitting them if PHPStan runs out of memory.
+   *
+   * @return false if the run was cancelled
+   */
+  private boolean runUnits(@NotNull List<PhpStanBatchPlan.Unit> units,
+                           int fileCount,
+                           int depth,
+                           @NotNull ProgressIndicator indicator,
+                           long started) {
+    List<String> paths = ContainerUtil.map(units, PhpStanBatchPlan.Unit::path);
+    myProgress.startShard(fileCount);
+    ProcessOutput output = runPhpStan(paths, fileCount, indicator, started);
+    if (output == null) {
+      // The other shards may still run, and the files of this one are reported as not analysed
+      myNotStartedPaths.addAll(paths);
+      complete(fileCount, indicator, started);
+      return true;
+    }
+    if (output.isCancelled() || myCancelled) return false;
+    if (PhpStanMemoryRecovery.isOutOfMemory(output.getExitCode(), output.getStdout(), output.getStderr())) {
+      List<List<PhpStanBatchPlan.Unit>> parts = depth < MAX_SPLIT_DEPTH ? PhpStanMemoryRecovery.halve(expand(units)) : null;
+      if (parts == null) {
+        LOG.warn("PHPStan ran out of memory on " + paths + ", giving up");
+        myFailedPaths.addAll(paths);
+        complete(fileCount, indicator, started);
+        return true;
+      }
+      LOG.info("PHPStan ran out of memory on " + paths + ", splitting");
+      if (depth == 0) mySplitPaths.addAll(paths);
+      for (List<PhpStanBatchPlan.Unit> part : parts) {
+        int partFileCount = 0;
+        for (PhpStanBatchPlan.Unit unit : part) partFileCount += unit.fileCount();
+        if (!runUnits(part, partFileCount, depth + 1, indicator, started)) return false;
+      }
+      return true;
+    }
+    try {
+      myProblems.addAll(PhpStanMessageProcessor.parseReport(output.getStdout()));
+    }
+    catch (Exception e) {
+      LOG.warn("Cannot parse PHPStan output: " + StringUtil.first(output.getStdout(), 1000, true), e);
+    }
+    complete(fileCount, indicator, started);
+    return true;
+  }
+
+  /**
+   * Counts the files as processed, whether PHPStan could analyse them or not.
+   */
+  private void complete(int fileCount, @NotNull ProgressIndicator indicator, long started) {
+    myProgress.startShard(fileCount);
+    myProgress.finishShard();
+    updateIndicator(indicator, started);
+  }
+
+  /**
+   * A single directory is replaced by its children, so it can be halved.
+   */
+  private @NotNull List<PhpStanBatchPlan.Unit> expand(@NotNull List<PhpStanBatchPlan.Unit> units) {
+    List<PhpStanBatchPlan.Unit> result = units;
+    while (result.size() == 1) {
+      VirtualFile directory = LocalFileSystem.getInstance().findFileByPath(result.get(0).path());
+      if (directory == null || !directory.isDirectory()) break;
+      VirtualFile[] children = directory.getChildren().clone();
+      Arrays.sort(children, Comparator.comparing(VirtualFile::getName));
+      result = new ArrayList<>();
+      for (VirtualFile child : children) {
+        int count = myFileCounts.getOrDefault(child, 0);
+        if (count > 0) result.add(new PhpStanBatchPlan.Unit(child.getPath(), count));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return the output, or null if PHPStan could not be started
+   * @throws ProcessCanceledException if the run was cancelled while waiting for its turn
+   */
+  private @Nullable ProcessOutput runPhpStan(@NotNull List<String> paths, int fileCount, @NotNull ProgressIndicator indicator, long started) {
+    List<String> options = myTool.getCommandLineOptions(paths, myProject, true, true);
+    GeneralCommandLine commandLine = PhpStanProcessRunner.createCommandLine(myProject, myToolPath, options, false);
+    // The process starts with the handler, so admission has to be granted first
+    try (PhpStanProcessQueue.Permit permit =
+           PhpStanGovernor.getInstance().acquire(myProject, fileCount, PhpStanPriority.BATCH, indicator)) {
+      LOG.info("PHPStan command: " + commandLine.getCommandLineString());
+      CapturingProcessHandler handler = new CapturingProcessHandler(commandLine);
+      handler.addProcessListener(new ProcessListener() {
+        @Override
+        public void onTextAvailable(@NotNull ProcessEvent event, @NotNull Key outputType) {
+          if (outputType == ProcessOutputTypes.STDERR && myProgress.update(event.getText())) {
+            updateIndicator(indicator, started);
+          }
+        }
+      });
+      try (PhpStanProcessTracker.Run run = PhpStanProcessTracker.getInstance(myProject).track(handler.getProcess(), indicator)) {
+        // Editor runs take precedence: the shard is paused while they wait or run
+        if (PhpStanProcessTree.isSignalSupported()) {
+          permit.setSuspendHandler(suspended -> {
+            run.setSuspended(suspended);
+            myProgress.setPaused(suspended, System.currentTimeMillis());
+            if (suspended) {
+              indicator.setText2(PhpStanBundle.message("phpstan.batch.paused"));
+            }
+            else {
+              updateIndicator(indicator, started);
+            }
+          });
+        }
+        return handler.runProcessWithProgressIndicator(indicator);
+      }
+    }
+    catch (ExecutionException e) {
+      LOG.warn("Cannot run PHPStan batch shard", e);
+      return null;
+    }
+    finally {
+      // The permit may pause the shard until it is released
+      myProgress.setPaused(false, System.currentTimeMillis());
+    }
+  }
+
+  private void reportFailures() {
+    if (!mySplitPaths.isEmpty()) {
+      notify(PhpStanBundle.message("phpstan.batch.out.of.memory.split", formatPaths(mySplitPaths)), NotificationType.WARNING);
+    }
+    if (!myFailedPaths.isEmpty()) {
+      notify(PhpStanBundle.message("phpstan.batch.out.of.memory.failed", formatPaths(myFailedPaths)), NotificationType.ERROR);
+    }
+    if (!myNotStartedPaths.isEmpty()) {
+      notify(PhpStanBundle.message("phpstan.batch.not.started", formatPaths(myNotStartedPaths)), NotificationType.ERROR);
+    }
+  }
+
+  private void notify(@NotNull String content, @NotNull NotificationType type) {
+    Notifications.Bus.notify(new Notification(NOTIFICATION_GROUP, PhpStanBundle.message("phpstan.notification.group"), content, type),
+                             myProject);
+  }
+
+  private @NotNull String formatPaths(@NotNull Collection<String> paths) {
+    String basePath = myProject.getBasePath();
+    List<String> shown = new ArrayList<>();
+    for (String path : ContainerUtil.getFirstItems(new ArrayList<>(paths), MAX_REPORTED_PATHS)) {
+      String relative = basePath != null ? FileUtil.getRelativePath(basePath, path, '/') : null;
+      shown.add(relative != null ? relative : path);
+    }
+    String result = String.join(", ", shown);
+    return paths.size() > shown.size()
+           ? PhpStanBundle.message("phpstan.batch.paths.more", result, paths.size() - shown.size())
+           : result;
+  }
+
+  private void updateIndicator(@NotNull ProgressIndicator indicator, long started) {
+    indicator.setFraction(myProgress.getFraction());
+    long remaining = myProgress.estimateRemainingMillis(myProgress.getActiveMillis(started, System.currentTimeMillis()));
+    indicator.setText2(remaining < 0
+                       ? PhpStanBundle.message("phpstan.batch.progress", myProgress.getProcessedFiles(), myProgress.getTotalFiles())
+                       : PhpStanBundle.message("phpstan.batch.progress.eta", myProgress.getProcessedFiles(),
+                                               myProgress.getTotalFiles(), StringUtil.formatDuration(remaining)));
+  }
+
+  /**
+   * Blocks until the shard analysing the file has finished, the run is cancelled or the caller is cancelled.
+   */
+  void awaitFile(@NotNull String filePath) {
+    PhpStanBatchPlan.Shard shard = myPlan.findShard(filePath);
+    if (shard == null) return;
+    CompletableFuture<Void> done = myShardsDone.get(shard.index());
+    while (!done.isDone()) {
+      try {
+        ProgressManager.checkCanceled();
+      }
+      catch (ProcessCanceledException e) {
+        cancel();
+        throw e;
+      }
+      try {
+        done.get(WAIT_SLICE_MS, TimeUnit.MILLISECONDS);
+      }
+      catch (TimeoutException ignored) {
+      }
+      catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      catch (java.util.concurrent.ExecutionException e) {
+        return;
+      }
+    }
+  }
+
+  void cancel() {
+    myCancelled = true;
+    ProgressIndicator indicator = myIndicator;
+    if (indicator != null) indicator.cancel();
+  }
+}
@@ -0,0 +1,149 @@
+package com.jetbrains.php.tools.quality.phpstan;
+
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Detects a result cache of PHPStan that is invalidated on every run although its inputs didn't change, which turns
+ * every run into a full analysis.
+ * <p>
+ * Runs started with {@link #VERBOSE_OPTION} report on stderr whether the result cache was restored and, if not, why.
+ * {@value #MISS_THRESHOLD} misses in a row for the same reason are diagnosed. Expected reasons, such as updated
+ * dependencies or another version of PHP, interrupt the streak. Runs whose output isn't seen are judged by their
+ * duration instead: taking about as long as the full analysis of the project, they can't have used the cache.
+ * <p>
+ * Each problem is diagnosed once for the same {@code inputs}, the configuration the runs share.
+ */
+public final class PhpStanCacheHealth {
+  public static final @NonNls String VERBOSE_OPTION = "-vvv";
+  static final int MISS_THRESHOLD = 3;
+  static final double FULL_ANALYSIS_RATIO = 0.5;
+  static final long MIN_FULL_ANALYSIS_MS = 10_000;
+
+  private static final @NonNls String RESTORED = "Result cache restored";
+  private static final @NonNls String MISSING_FILE = "Result cache not used because the cache file does not exist";
+  private static final Pattern METADATA_MISMATCH =
+    Pattern.compile("Result cache not used because the metadata do not match(?:: *(.*))?");
+  /** Metadata that differs when the project or the environment changed, not because of a broken cache */
+  private static final @NonNls Set<String> EXPECTED_METADATA =
+    Set.of("analysedPaths", "composerLocks", "composerInstalled", "phpstanVersion", "phpVersion", "phpExtensions",
+           "cacheVersion", "level", "stubFiles", "scannedFiles");
+  private static final @NonNls String EXECUTED_FILES = "executedFilesHashes";
+  private static final @NonNls String PROJECT_CONFIG = "projectConfig";
+
+  public enum Cause {
+    /** The cache file is gone by the next run, e.g. the {@code tmpDir} changes or is cleared between runs */
+    CHANGING_TMP_DIR,
+    /** Bootstrap files or other files executed by PHPStan change on every run */
+    NON_DETERMINISTIC_BOOTSTRAP,
+    /** The resolved configuration changes on every run, e.g. it includes absolute paths of temporary files */
+    CHANGING_CONFIG,
+    /** Other metadata of the cache doesn't match, see the details */
+    METADATA_MISMATCH,
+    /** Runs take as long as a full analysis, PHPStan didn't say why */
+    SLOW_RUNS
+  }
+
+  /**
+   * @param details what PHPStan reported, e.g. the metadata that didn't match
+   */
+  public record Diagnosis(@NotNull Cause cause, @NotNull String details) {
+  }
+
+  /**
+   * What a run reported about the result cache.
+   *
+   * @param cause why the cache wasn't used, or null if it was restored or the reason is expected
+   */
+  record Report(boolean restored, @Nullable Cause cause, @NotNull String details) {
+  }
+
+  private @Nullable String myInputs;
+  private @Nullable Report myLastMiss;
+  private int myMisses;
+  private long myFullAnalysisMs = -1;
+  private int mySlowRuns;
+  private final Set<Cause> myDiagnosed = EnumSet.noneOf(Cause.class);
+
+  /**
+   * @return what the output of a run with {@link #VERBOSE_OPTION} tells about the result cache, or null if nothing
+   */
+  static @Nullable Report parse(@NotNull String stderr) {
+    for (String line : stderr.split("\r?\n")) {
+      line = line.trim();
+      if (line.startsWith(RESTORED)) return new Report(true, null, "");
+      if (line.startsWith(MISSING_FILE)) return new Report(false, Cause.CHANGING_TMP_DIR, line);
+      Matcher matcher = METADATA_MISMATCH.matcher(line);
+      if (matcher.lookingAt()) return new Report(false, getMetadataCause(matcher.group(1)), line);
+    }
+    return null;
+  }
+
+  private static @Nullable Cause getMetadataCause(@Nullable String keys) {
+    // Versions of PHPStan that don't tell what differs can't be judged
+    if (keys == null || keys.isBlank()) return Cause.METADATA_MISMATCH;
+    Set<String> mismatched = new HashSet<>();
+    for (String key : keys.split("[,\\s.]+")) {
+      if (!key.isEmpty()) mismatched.add(key);
+    }
+    if (mismatched.contains(EXECUTED_FILES)) return Cause.NON_DETERMINISTIC_BOOTSTRAP;
+    if (mismatched.contains(PROJECT_CONFIG)) return Cause.CHANGING_CONFIG;
+    mismatched.removeAll(EXPECTED_METADATA);
+    return mismatched.isEmpty() ? null : Cause.METADATA_MISMATCH;
+  }
+
+  /**
+   * Records the stderr of a run started with {@link #VERBOSE_OPTION}.
+   *
+   * @param durationMs how long the run took; a full analysis that missed the cache tells how long the runs that miss
+   *                   it take
+   * @param full       whether the run analysed the whole project
+   * @return a problem diagnosed for the first time, or null
+   */
+  public synchronized @Nullable Diagnosis recordOutput(@NotNull String inputs, @NotNull String stderr, long durationMs, boolean full) {
+    reset(inputs);
+    Report report = parse(stderr);
+    if (report == null) return null;
+    if (full && !report.restored()) myFullAnalysisMs = durationMs;
+    if (report.cause() == null) {
+      myMisses = 0;
+      myLastMiss = null;
+      return null;
+    }
+    myMisses = myLastMiss != null && myLastMiss.cause() == report.cause() ? myMisses + 1 : 1;
+    myLastMiss = report;
+    return myMisses >= MISS_THRESHOLD ? diagnose(report.cause(), report.details()) : null;
+  }
+
+  /**
+   * Records the duration of an on-the-fly run whose output isn't seen.
+   *
+   * @return a problem diagnosed for the first time, or null
+   */
+  public synchronized @Nullable Diagnosis recordDuration(@NotNull String inputs, long durationMs) {
+    reset(inputs);
+    if (myFullAnalysisMs < MIN_FULL_ANALYSIS_MS) return null;
+    mySlowRuns = durationMs >= myFullAnalysisMs * FULL_ANALYSIS_RATIO ? mySlowRuns + 1 : 0;
+    if (mySlowRuns < MISS_THRESHOLD) return null;
+    return diagnose(Cause.SLOW_RUNS, durationMs + " ms, full analysis " + myFullAnalysisMs + " ms");
+  }
+
+  private @Nullable Diagnosis diagnose(@NotNull Cause cause, @NotNull String details) {
+    return myDiagnosed.add(cause) ? new Diagnosis(cause, details) : null;
+  }
+
+  private void reset(@NotNull String inputs) {
+    if (inputs.equals(myInputs)) return;
+    myInputs = inputs;
+    myLastMiss = null;
+    myMisses = 0;
+    myFullAnalysisMs = -1;
+    mySlowRuns = 0;
+    myDiagnosed.clear();
+  }
+}
@@ -0,0 +1,83 @@
+package com.jetbrains.php.tools.quality.phpstan;
+
+import com.intellij.notification.Notification;
+import com.intellij.notification.NotificationType;
+import com.intellij.notification.Notifications;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.text.StringUtil;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Watches the runs of the project for a {@link PhpStanCacheHealth result cache that is never reused} and tells the
+ * user the likely cause.
+ * <p>
+ * The warm-up and merged on-the-fly runs ask PHPStan about its result cache; other on-the-fly runs are judged by their
+ * duration. The inputs of the runs are the effective configuration and the version of PHPStan.
+ */
+public final class PhpStanCacheHealthService {
+  private static final Logger LOG = Logger.getInstance(PhpStanCacheHealthService.class);
+  private static final @NonNls String NOTIFICATION_GROUP = "PHPStan";
+
+  private final Project myProject;
+  private final PhpStanCacheHealth myHealth = new PhpStanCacheHealth();
+
+  public PhpStanCacheHealthService(@NotNull Project project) {
+    myProject = project;
+  }
+
+  public static PhpStanCacheHealthService getInstance(@NotNull Project project) {
+    return project.getService(PhpStanCacheHealthService.class);
+  }
+
+  /**
+   * @return the options with the one making PHPStan report on its result cache
+   */
+  public static @NotNull List<String> withCacheReport(@NotNull List<String> options) {
+    List<String> result = new ArrayList<>(options);
+    // After the command, before the paths
+    result.add(result.isEmpty() ? 0 : 1, PhpStanCacheHealth.VERBOSE_OPTION);
+    return result;
+  }
+
+  /**
+   * @param stderr output of a run with the options {@link #withCacheReport(List) reporting on the result cache}
+   * @param full   whether the run analysed the whole project
+   */
+  public void recordOutput(@NotNull String stderr, long durationMs, boolean full) {
+    report(myHealth.recordOutput(getInputs(), stderr, durationMs, full));
+  }
+
+  /**
+   * @param durationMs how long an on-the-fly run took
+   */
+  public void recordDuration(long durationMs) {
+    report(myHealth.recordDuration(getInputs(), durationMs));
+  }
+
+  private @NotNull String getInputs() {
+    return PhpStanNeonConfigService.getInstance(myProject).getFingerprint() + "@" +
+           PhpStanConfigurationManager.getInstance(myProject).getLocalSettings().getVersion();
+  }
+
+  private void report(@Nullable PhpStanCacheHealth.Diagnosis diagnosis) {
+    if (diagnosis == null || myProject.isDisposed()) return;
+    LOG.warn("PHPStan result cache is not reused: " + diagnosis.cause() + ", " + diagnosis.details());
+    String cause = switch (diagnosis.cause()) {
+      case CHANGING_TMP_DIR -> PhpStanBundle.message("phpstan.cache.health.changing.tmp.dir");
+      case NON_DETERMINISTIC_BOOTSTRAP -> PhpStanBundle.message("phpstan.cache.health.non.deterministic.bootstrap");
+      case CHANGING_CONFIG -> PhpStanBundle.message("phpstan.cache.health.changing.config");
+      case METADATA_MISMATCH -> PhpStanBundle.message("phpstan.cache.health.metadata.mismatch");
+      case SLOW_RUNS -> PhpStanBundle.message("phpstan.cache.health.slow.runs");
+    };
+    Notifications.Bus.notify(new Notification(NOTIFICATION_GROUP, PhpStanBundle.message("phpstan.cache.health.title"),
+                                              PhpStanBundle.message("phpstan.cache.health.content", cause,
+                                                                    StringUtil.escapeXmlEntities(diagnosis.details())),
+                                              NotificationType.WARNING), myProject);
+  }
+}
@@ -0,0 +1,124 @@
+package com.jetbrains.php.tools.quality.phpstan;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Keeps the cache directories of the plugin, such as the result caches of PHPStan per configuration, within a disk
+ * quota.
+ * <p>
+ * Every subdirectory of a cache root is a generation, last used when a file in it was last modified. Generations are
+ * evicted least recently used first, except those still in use, such as the result cache of the current configuration
+ * of an open project.
+ */
+public final class PhpStanCacheQuota {
+  /**
+   * @param lastUsed last modification time of the directory or its files, in milliseconds
+   */
+  public record Generation(@NotNull Path directory, long size, long lastUsed) {
+  }
+
+  /**
+   * @param size      bytes of all generations before pruning
+   * @param reclaimed bytes of the evicted generations
+   * @param evicted   number of evicted generations
+   */
+  public record Result(long size, long reclaimed, int evicted) {
+  }
+
+  private PhpStanCacheQuota() {
+  }
+
+  /**
+   * @param roots directories whose subdirectories are generations; missing ones are skipped
+   */
+  public static @NotNull List<Generation> scan(@NotNull List<Path> roots) throws IOException {
+    List<Generation> generations = new ArrayList<>();
+    for (Path root : roots) {
+      if (!Files.isDirectory(root)) continue;
+      try (Stream<Path> children = Files.list(root)) {
+        for (Path child : (Iterable<Path>)children::iterator) {
+          if (Files.isDirectory(child)) generations.add(measure(child));
+        }
+      }
+    }
+    return generations;
+  }
+
+  /**
+   * Deletes the least recently used generations until the others fit in the quota.
+   *
+   * @param inUse generations that are never deleted; they count towards the quota all the same
+   */
+  public static @NotNull Result prune(@NotNull List<Generation> generations, long quota, @NotNull Set<Path> inUse) {
+    long size = 0;
+    for (Generation generation : generations) size += generation.size();
+    List<Generation> candidates = new ArrayList<>(generations);
+    candidates.removeIf(generation -> inUse.contains(generation.directory()));
+    candidates.sort(Comparator.comparingLong(Generation::lastUsed));
+    long remaining = size;
+    long reclaimed = 0;
+    int evicted = 0;
+    for (Generation generation : candidates) {
+      if (remaining <= quota) break;
+      long deleted = delete(generation.directory());
+      remaining -= generation.size();
+      reclaimed += deleted;
+      evicted++;
+    }
+    return new Result(size, reclaimed, evicted);
+  }
+
+  private static @NotNull Generation measure(@NotNull Path directory) throws IOException {
+    long[] size = new long[1];
+    long[] lastUsed = {Files.getLastModifiedTime(directory).toMillis()};
+    try (Stream<Path> files = Files.walk(directory)) {
+      files.forEach(file -> {
+        try {
+          BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+          if (attributes.isRegularFile()) size[0] += attributes.size();
+          lastUsed[0] = Math.max(lastUsed[0], attributes.lastModifiedTime().toMillis());
+        }
+        catch (IOException ignored) {
+          // Deleted while walking, such as a temporary file of a run
+        }
+      });
+    }
+    catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    return new Generation(directory, size[0], lastUsed[0]);
+  }
+
+  /**
+   * @return bytes of the files that could be deleted; files in use on Windows may stay
+   */
+  private static long delete(@NotNull Path directory) {
+    long deleted = 0;
+    List<Path> paths;
+    try (Stream<Path> files = Files.walk(directory)) {
+      paths = new ArrayList<>(files.toList());
+    }
+    catch (IOException | UncheckedIOException e) {
+      return 0;
+    }
+    Collections.reverse(paths);
+    for (Path path : paths) {
+      try {
+        long size = Files.isRegularFile(path) ? Files.size(path) : 0;
+        Files.delete(path);
+        deleted += size;
+      }
+      catch (IOException ignored) {
+      }
+    }
+    return deleted;
+  }
+}
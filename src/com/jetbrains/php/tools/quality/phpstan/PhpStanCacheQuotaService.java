@@ -0,0 +1,101 @@
+package com.jetbrains.php.tools.quality.phpstan;
+
+import com.intellij.ide.AppLifecycleListener;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.project.ProjectManager;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import com.intellij.util.containers.ContainerUtil;
+import com.jetbrains.php.tools.quality.phpstan.remote.PhpStanContainerService;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the caches the plugin leaves in the system directory within the {@link PhpStanGovernorSettings#getCacheQuota()
+ * quota}: result caches of PHPStan per configuration, configuration overlays, compiled files, container mounts and
+ * results shared between projects.
+ * <p>
+ * Pruning runs {@value #INITIAL_DELAY_MINUTES} minutes after the IDE frame opens, every {@value #INTERVAL_MINUTES}
+ * minutes, and when the quota is changed. The caches of the current configurations of the open projects are kept.
+ */
+public final class PhpStanCacheQuotaService implements Disposable {
+  private static final Logger LOG = Logger.getInstance(PhpStanCacheQuotaService.class);
+  private static final long INITIAL_DELAY_MINUTES = 5;
+  private static final long INTERVAL_MINUTES = 60;
+  private static final @NonNls List<String> ROOTS =
+    List.of("phpstan/tmp", "phpstan/overlays", "phpstan/opcache", "phpstan/containers", "phpstan/shared");
+
+  private final ScheduledFuture<?> myScheduled;
+
+  public PhpStanCacheQuotaService() {
+    myScheduled = AppExecutorUtil.getAppScheduledExecutorService()
+      .scheduleWithFixedDelay(this::prune, INITIAL_DELAY_MINUTES, INTERVAL_MINUTES, TimeUnit.MINUTES);
+  }
+
+  public static PhpStanCacheQuotaService getInstance() {
+    return ApplicationManager.getApplication().getService(PhpStanCacheQuotaService.class);
+  }
+
+  /**
+   * Prunes the caches in the background, e.g. after the quota was lowered.
+   */
+  public void pruneSoon() {
+    AppExecutorUtil.getAppExecutorService().execute(this::prune);
+  }
+
+  private synchronized void prune() {
+    List<Path> roots = ContainerUtil.map(ROOTS, root -> Path.of(PathManager.getSystemPath(), root));
+    Set<Path> inUse = new HashSet<>();
+    for (Project project : ProjectManager.getInstance().getOpenProjects()) {
+      if (project.isDisposed()) continue;
+      inUse.addAll(PhpStanConfigOverlayService.getInstance(project).getCacheDirectories());
+      inUse.add(PhpStanProcessRunner.getOpcacheDirectory(project));
+      inUse.addAll(PhpStanContainerService.getInstance(project).getCacheDirectories());
+    }
+    PhpStanCacheQuota.Result result;
+    try {
+      result = PhpStanCacheQuota.prune(PhpStanCacheQuota.scan(roots), PhpStanGovernorSettings.getInstance().getEffectiveCacheQuota(), inUse);
+    }
+    catch (IOException e) {
+      LOG.warn("Cannot prune PHPStan caches", e);
+      return;
+    }
+    PhpStanMetrics metrics = PhpStanMetrics.getInstance();
+    metrics.add(PhpStanMetrics.Counter.EVICTED_CACHES, result.evicted());
+    metrics.add(PhpStanMetrics.Counter.RECLAIMED_CACHE_BYTES, result.reclaimed());
+    long cached = metrics.get(PhpStanMetrics.Counter.CACHED_RUNS);
+    long runs = metrics.get(PhpStanMetrics.Counter.RUNS) + cached;
+    // Nothing to tell before the first run and the first eviction
+    if (result.evicted() == 0 && runs == 0) return;
+    LOG.info("Pruned PHPStan caches of " + StringUtil.formatFileSize(result.size()) + ": evicted " + result.evicted() +
+             ", reclaimed " + StringUtil.formatFileSize(result.reclaimed()) + "; " + cached + " of " + runs +
+             " runs answered from the result cache since start");
+  }
+
+  /**
+   * Starts pruning with the IDE rather than with the first project that happens to use the caches.
+   */
+  static final class StartListener implements AppLifecycleListener {
+    @Override
+    public void appFrameCreated(@NotNull List<String> commandLineArgs) {
+      getInstance();
+    }
+  }
+
+  @Override
+  public void dispose() {
+    myScheduled.cancel(false);
+  }
+}
@@ -0,0 +1,76 @@
+package com.jetbrains.php.tools.quality.phpstan;
+
+import com.intellij.execution.ExecutionException;
+import com.intellij.execution.configurations.GeneralCommandLine;
+import com.intellij.execution.process.CapturingProcessHandler;
+import com.intellij.execution.process.ProcessOutput;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.text.StringUtil;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Asks {@code git} which files of a project differ from a commit, for batch runs {@link PhpStanImportedReportService
+ * seeded} with a report made on that commit.
+ * <p>
+ * The project may be a subdirectory of the repository: only its files are listed, by their paths relative to it.
+ */
+public final class PhpStanChangedFiles {
+  private static final Logger LOG = Logger.getInstance(PhpStanChangedFiles.class);
+  private static final @NonNls String GIT = "git";
+  private static final int GIT_TIMEOUT_MS = 30_000;
+
+  private PhpStanChangedFiles() {
+  }
+
+  /**
+   * @param directory directory of the project
+   * @return paths relative to the directory of its files that differ from the commit in the working tree, untracked
+   * files included, or null if {@code git} can't tell
+   */
+  public static @Nullable Set<String> find(@NotNull String directory, @NotNull String commit) {
+    // Both list the files in the working directory only, relative to it
+    String diff = runGit(directory, "diff", "--name-only", "--no-renames", "--relative", commit, "--");
+    String untracked = diff != null ? runGit(directory, "ls-files", "--others", "--exclude-standard") : null;
+    if (untracked == null) return null;
+    Set<String> changed = new HashSet<>();
+    for (String line : StringUtil.splitByLines(diff + "\n" + untracked)) {
+      changed.add(line.trim());
+    }
+    return changed;
+  }
+
+  /**
+   * @return the commit the revision names, or null if it isn't known
+   */
+  public static @Nullable String resolveCommit(@NotNull String directory, @NotNull String revision) {
+    String commit = runGit(directory, "rev-parse", "--verify", "--quiet", revision + "^{commit}");
+    return commit != null && !commit.isBlank() ? commit.trim() : null;
+  }
+
+  /**
+   * @return standard output of the command run in the directory, or null if it failed
+   */
+  private static @Nullable String runGit(@NotNull String directory, @NonNls @NotNull String... parameters) {
+    GeneralCommandLine commandLine = new GeneralCommandLine(GIT).withParameters(parameters)
+      .withWorkDirectory(directory)
+      .withCharset(StandardCharsets.UTF_8);
+    try {
+      ProcessOutput output = new CapturingProcessHandler(commandLine).runProcess(GIT_TIMEOUT_MS);
+      if (output.isTimeout() || output.getExitCode() != 0) {
+        LOG.info(commandLine.getCommandLineString() + " failed: " + StringUtil.first(output.getStderr(), 1000, true));
+        return null;
+      }
+      return output.getStdout();
+    }
+    catch (ExecutionException e) {
+      LOG.info("Cannot run " + commandLine.getCommandLineString(), e);
+      return null;
+    }
+  }
+}
@@ -0,0 +1,170 @@
+package com.jetbrains.php.tools.quality.phpstan;
+
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Configuration file generated by the IDE that includes the configuration of the project and overrides the options
+ * tuned for a particular machine, such as the number of parallel workers set up for CI servers.
+ * <p>
+ * The included file keeps its own location, so relative paths in it are resolved as before.
+ */
+public final class PhpStanConfigOverlay {
+  static final int DEFAULT_JOB_SIZE = 20;
+
+  /**
+   * Runs a configuration is generated for.
+   */
+  public enum RunKind {
+    /** On-the-fly analysis of a single file: forking workers only adds start-up time */
+    EDITOR,
+    /** Batch analysis of many files, using the CPU share of the IDE */
+    BATCH
+  }
+
+  /**
+   * @param maximumNumberOfProcesses value of {@code parallel.maximumNumberOfProcesses}
+   * @param jobSize                  value of {@code parallel.jobSize}
+   */
+  public record Parallel(int maximumNumberOfProcesses, int jobSize) {
+  }
+
+  private PhpStanConfigOverlay() {
+  }
+
+  /**
+   * PHPStan's default job size keeps every worker busy on shards of a few hundred files, whatever the CI servers use.
+   *
+   * @param cpuLimit     CPUs available to the IDE, see {@link #readCgroupCpuLimit}
+   * @param processLimit processes the {@link PhpStanGovernor governor} admits at once, the main process included
+   */
+  public static @NotNull Parallel computeParallel(@NotNull RunKind kind, int cpuLimit, int processLimit) {
+    if (kind == RunKind.EDITOR) return new Parallel(1, DEFAULT_JOB_SIZE);
+    return new Parallel(Math.max(1, Math.min(cpuLimit, processLimit - 1)), DEFAULT_JOB_SIZE);
+  }
+
+  /**
+   * @param config path of the configuration of the project
+   * @param tmpDir directory for the result cache, or null to keep the one of the included configuration
+   */
+  public static @NotNull String render(@NotNull RunKind kind, @NotNull String config, @NotNull Parallel parallel, @Nullable String tmpDir) {
+    @NonNls StringBuilder result = new StringBuilder();
+    result.append("# Generated by the IDE for ").append(kind.name().toLowerCase(Locale.ROOT)).append(" runs, changes will be overwritten\n");
+    result.append("includes:\n");
+    result.append("\t- ").append(quote(config)).append('\n');
+    result.append("parameters:\n");
+    result.append("\tparallel:\n");
+    result.append("\t\tmaximumNumberOfProcesses: ").append(parallel.maximumNumberOfProcesses()).append('\n');
+    result.append("\t\tjobSize: ").append(parallel.jobSize()).append('\n');
+    if (tmpDir != null) {
+      result.append("\ttmpDir: ").append(quote(tmpDir)).append('\n');
+    }
+    return result.toString();
+  }
+
+  private static @NotNull String quote(@NotNull String value) {
+    return "'" + value.replace("'", "''") + "'";
+  }
+
+  /**
+   * Reads the CPU quota of the control group the IDE runs in, which also applies to the PHP processes it starts.
+   * Both the unified hierarchy ({@code cpu.max}) and the legacy one ({@code cpu.cfs_quota_us}) are supported;
+   * the most restrictive quota on the path of the group to the root of its hierarchy wins.
+   *
+   * @param cgroupRoot  mount point of the control groups, usually {@code /sys/fs/cgroup}
+   * @param selfCgroups content of {@code /proc/self/cgroup}, or null if unavailable
+   * @return number of CPUs the quota amounts to, rounded up, or -1 if there is no quota
+   */
+  public static int readCgroupCpuLimit(@NotNull Path cgroupRoot, @Nullable String selfCgroups) {
+    int limit = -1;
+    String unifiedPath = "/";
+    String legacyPath = "/";
+    if (selfCgroups != null) {
+      // Lines are "hierarchy-ID:controllers:path", the unified hierarchy having ID 0 and no controllers
+      for (String line : selfCgroups.split("\n")) {
+        String[] parts = line.trim().split(":", 3);
+        if (parts.length < 3) continue;
+        if (parts[0].equals("0") && parts[1].isEmpty()) {
+          unifiedPath = parts[2];
+        }
+        else if (List.of(parts[1].split(",")).contains("cpu")) {
+          legacyPath = parts[2];
+        }
+      }
+    }
+    for (Path group : getGroupPath(cgroupRoot, unifiedPath)) {
+      limit = min(limit, parseCpuMax(readFirstLine(group.resolve("cpu.max"))));
+    }
+    for (@NonNls String controller : List.of("cpu", "cpu,cpuacct")) {
+      for (Path group : getGroupPath(cgroupRoot.resolve(controller), legacyPath)) {
+        limit = min(limit, parseCfsQuota(readFirstLine(group.resolve("cpu.cfs_quota_us")),
+                                         readFirstLine(group.resolve("cpu.cfs_period_us"))));
+      }
+    }
+    return limit;
+  }
+
+  /**
+   * Inside a container the group of the process is usually mounted as the root of the hierarchy, so its path doesn't
+   * exist there, and the quota is found on the root.
+   *
+   * @return directories of the group and of its ancestors in the hierarchy mounted at {@code hierarchyRoot}
+   */
+  private static @NotNull List<Path> getGroupPath(@NotNull Path hierarchyRoot, @NotNull String path) {
+    List<Path> result = new ArrayList<>();
+    Path group = hierarchyRoot.resolve(path.trim().replaceFirst("^/+", "")).normalize();
+    while (group.startsWith(hierarchyRoot)) {
+      result.add(group);
+      if (group.equals(hierarchyRoot)) break;
+      group = group.getParent();
+    }
+    return result;
+  }
+
+  /**
+   * @param cpuMax content of {@code cpu.max}, e.g. {@code "200000 100000"} or {@code "max 100000"}
+   * @return CPUs rounded up, or -1 without a quota
+   */
+  static int parseCpuMax(@Nullable String cpuMax) {
+    if (cpuMax == null) return -1;
+    String[] parts = cpuMax.trim().split("\\s+");
+    if (parts.length == 0 || "max".equals(parts[0])) return -1;
+    return parseCfsQuota(parts[0], parts.length > 1 ? parts[1] : "100000");
+  }
+
+  static int parseCfsQuota(@Nullable String quota, @Nullable String period) {
+    if (quota == null || period == null) return -1;
+    try {
+      long quotaValue = Long.parseLong(quota.trim());
+      long periodValue = Long.parseLong(period.trim());
+      if (quotaValue <= 0 || periodValue <= 0) return -1;
+      return (int)Math.max(1, (quotaValue + periodValue - 1) / periodValue);
+    }
+    catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private static int min(int limit, int other) {
+    if (limit < 0) return other;
+    return other < 0 ? limit : Math.min(limit, other);
+  }
+
+  private static @Nullable String readFirstLine(@NotNull Path file) {
+    try {
+      List<String> lines = Files.readAllLines(file);
+      return lines.isEmpty() ? null : lines.get(0);
+    }
+    catch (IOException | SecurityException e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,159 @@
+package com.jetbrains.php.tools.quality.phpstan;
+
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.SystemInfo;
+import com.intellij.openapi.util.text.StringUtil;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+
+import static com.intellij.openapi.util.text.StringUtil.isEmpty;
+
+/**
+ * Writes the {@link PhpStanConfigOverlay configuration overlays} of the project to the system directory of the IDE.
+ * <p>
+ * Overlays are only used with a configuration file set in the PHPStan options: without one PHPStan looks for
+ * {@code phpstan.neon} in the working directory itself, which passing {@code -c} would disable. They are only readable
+ * by PHPStan running on this machine, so remote interpreters keep using the configuration of the project.
+ */
+public final class PhpStanConfigOverlayService {
+  private static final Logger LOG = Logger.getInstance(PhpStanConfigOverlayService.class);
+  private static final @NonNls String OVERLAYS_DIR = "phpstan/overlays";
+  private static final @NonNls String TMP_DIR = "phpstan/tmp";
+  private static final int HASH_LENGTH = 16;
+
+  private final Project myProject;
+
+  public PhpStanConfigOverlayService(@NotNull Project project) {
+    myProject = project;
+  }
+
+  public static PhpStanConfigOverlayService getInstance(@NotNull Project project) {
+    return project.getService(PhpStanConfigOverlayService.class);
+  }
+
+  /**
+   * @return parallel options of the overlay for runs of this kind, or null if overlays are not used
+   */
+  public @Nullable PhpStanConfigOverlay.Parallel getParallel(@NotNull PhpStanConfigOverlay.RunKind kind) {
+    if (isEmpty(PhpStanOptionsConfiguration.getInstance(myProject).getConfig())) return null;
+    return PhpStanConfigOverlay.computeParallel(kind, CpuLimitHolder.CPU_LIMIT,
+                                                PhpStanGovernorSettings.getInstance().getEffectiveMaxProcesses());
+  }
+
+  /**
+   * @return path of the overlay to pass instead of the configuration of the project, or null to pass the latter
+   */
+  public @Nullable String getOverlayPath(@NotNull PhpStanConfigOverlay.RunKind kind) {
+    String config = PhpStanOptionsConfiguration.getInstance(myProject).getConfig();
+    return isEmpty(config) ? null : getOverlayPath(kind, config);
+  }
+
+  /**
+   * @param config configuration to include instead of the one of the project, such as a copy of it
+   * @return path of the overlay including it, or null to pass the configuration itself
+   */
+  public @Nullable String getOverlayPath(@NotNull PhpStanConfigOverlay.RunKind kind, @NotNull String config) {
+    PhpStanConfigOverlay.Parallel parallel = getParallel(kind);
+    if (parallel == null) return null;
+    String content = PhpStanConfigOverlay.render(kind, config, parallel, getTmpDir());
+    // Named after the content, so a file is never rewritten while another run reads it
+    Path overlay = getOverlayDirectory().resolve(StringUtil.toLowerCase(kind.name()) + "-" +
+                                                 sha256(content).substring(0, HASH_LENGTH) + ".neon");
+    try {
+      if (!Files.exists(overlay)) {
+        Files.createDirectories(overlay.getParent());
+        Path temp = Files.createTempFile(overlay.getParent(), overlay.getFileName().toString(), ".tmp");
+        Files.writeString(temp, content, StandardCharsets.UTF_8);
+        Files.move(temp, overlay, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      }
+      return overlay.toString();
+    }
+    catch (IOException e) {
+      LOG.warn("Cannot write PHPStan configuration overlay " + overlay, e);
+      return null;
+    }
+  }
+
+  /**
+   * The result cache goes to a directory of its own per project and effective configuration, unless the configuration
+   * of the project sets one: PHPStan would otherwise share the system temporary directory between all projects, and
+   * switching between branches with different configurations would invalidate the cache every time. Checkouts of the
+   * same repository have the same fingerprint, but their caches differ by the absolute paths in them.
+   */
+  private @Nullable String getTmpDir() {
+    Path tmpDir = getTmpDirectory();
+    return tmpDir != null ? tmpDir.toString() : null;
+  }
+
+  private @Nullable Path getTmpDirectory() {
+    PhpStanNeonConfig config = PhpStanNeonConfigService.getInstance(myProject).getConfig();
+    if (config != null && config.getTmpDir() != null) return null;
+    String fingerprint = PhpStanNeonConfigService.getInstance(myProject).getFingerprint();
+    return Path.of(PathManager.getSystemPath(), TMP_DIR, myProject.getLocationHash() + "-" + fingerprint.substring(0, HASH_LENGTH));
+  }
+
+  /**
+   * @return the result cache PHPStan writes when run with an overlay, or null if PHPStan decides where it goes
+   */
+  @Nullable Path getResultCacheFile() {
+    if (isEmpty(PhpStanOptionsConfiguration.getInstance(myProject).getConfig())) return null;
+    PhpStanNeonConfig config = PhpStanNeonConfigService.getInstance(myProject).getConfig();
+    String configTmpDir = config != null ? config.getTmpDir() : null;
+    Path tmpDir = configTmpDir != null ? Path.of(configTmpDir) : getTmpDirectory();
+    return tmpDir != null && tmpDir.isAbsolute() ? tmpDir.resolve(PhpStanResultCacheFile.NAME) : null;
+  }
+
+  private @NotNull Path getOverlayDirectory() {
+    return Path.of(PathManager.getSystemPath(), OVERLAYS_DIR, myProject.getLocationHash());
+  }
+
+  /**
+   * @return the directories of the overlays and of the result cache of the current configuration, which
+   * {@link PhpStanCacheQuotaService pruning} keeps
+   */
+  @NotNull List<Path> getCacheDirectories() {
+    Path tmpDir = getTmpDirectory();
+    return tmpDir != null ? List.of(getOverlayDirectory(), tmpDir) : List.of(getOverlayDirectory());
+  }
+
+  private static @NotNull String sha256(@NotNull String content) {
+    try {
+      return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content.getBytes(StandardCharsets.UTF_8)));
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static final class CpuLimitHolder {
+    /** The JVM only honours the quota of the container it runs in, not the one of an enclosing slice */
+    static final int CPU_LIMIT = computeCpuLimit();
+
+    private static int computeCpuLimit() {
+      int cpus = Runtime.getRuntime().availableProcessors();
+      if (!SystemInfo.isLinux) return cpus;
+      String selfCgroups;
+      try {
+        selfCgroups = Files.readString(Path.of("/proc/self/cgroup"));
+      }
+      catch (IOException e) {
+        selfCgroups = null;
+      }
+      int quota = PhpStanConfigOverlay.readCgroupCpuLimit(Path.of("/sys/fs/cgroup"), selfCgroups);
+      return quota > 0 ? Math.min(cpus, quota) : cpus;
+    }
+  }
+}
@@ -1,25 +1,70 @@
 package com.jetbrains.php.tools.quality.phpstan;
 
+import com.intellij.openapi.options.ConfigurationException;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.ui.ComboBox;
 import com.intellij.openapi.util.Pair;
 import com.intellij.openapi.util.Version;
+import com.intellij.ui.SimpleListCellRenderer;
+import com.intellij.util.ui.FormBuilder;
 import com.jetbrains.php.PhpBundle;
 import com.jetbrains.php.tools.quality.QualityToolConfigurableForm;
 import com.jetbrains.php.tools.quality.QualityToolType;
+import org.jetbrains.annotations.Nls;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 
+import javax.swing.*;
+
 import static com.jetbrains.php.tools.quality.phpstan.PhpStanConfigurationBaseManager.PHP_STAN;
 
 public class PhpStanConfigurableForm<C extends PhpStanConfiguration> extends QualityToolConfigurableForm<C> {
 
   private final C myPhpStanConfiguration;
+  private final ComboBox<PhpStanLaunchProfile> myLaunchProfileBox = new ComboBox<>(PhpStanLaunchProfile.values());
 
   public PhpStanConfigurableForm(@NotNull Project project, @NotNull C configuration) {
     super(project, configuration, PHP_STAN, "phpstan");
     myPhpStanConfiguration = configuration;
   }
 
+  @Override
+  public JComponent createComponent() {
+    JComponent component = super.createComponent();
+    myLaunchProfileBox.setRenderer(SimpleListCellRenderer.create("", PhpStanConfigurableForm::getPresentableName));
+    return FormBuilder.createFormBuilder()
+      .addComponent(component)
+      .addLabeledComponent(PhpStanBundle.message("label.launch.profile"), myLaunchProfileBox)
+      .addTooltip(PhpStanBundle.message("phpstan.launch.profile.hint"))
+      .addTooltip(PhpStanBundle.message("phpstan.launch.profile.editor.hint"))
+      .getPanel();
+  }
+
+  @Override
+  public boolean isModified() {
+    return super.isModified() || myLaunchProfileBox.getSelectedItem() != myPhpStanConfiguration.getLaunchProfile();
+  }
+
+  @Override
+  public void apply() throws ConfigurationException {
+    super.apply();
+    myPhpStanConfiguration.setLaunchProfile((PhpStanLaunchProfile)myLaunchProfileBox.getSelectedItem());
+  }
+
+  @Override
+  public void reset() {
+    super.reset();
+    myLaunchProfileBox.setSelectedItem(myPhpStanConfiguration.getLaunchProfile());
+  }
+
+  private static @Nls @NotNull String getPresentableName(@NotNull PhpStanLaunchProfile profile) {
+    return switch (profile) {
+      case DEFAULT -> PhpStanBundle.message("phpstan.launch.profile.default");
+      case TUNED -> PhpStanBundle.message("phpstan.launch.profile.tuned");
+      case TUNED_WITH_JIT -> PhpStanBundle.message("phpstan.launch.profile.tuned.jit");
+    };
+  }
+
   @Override
   public QualityToolType getQualityToolType() {
     return PhpStanQualityToolType.INSTANCE;
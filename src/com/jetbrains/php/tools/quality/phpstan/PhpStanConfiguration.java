@@ -19,6 +19,7 @@ public class PhpStanConfiguration extends QualityToolConfiguration {
   private int myMaxMessagesPerFile = DEFAULT_MAX_MESSAGES_PER_FILE;
   private int myTimeoutMs = 30000;
   private @Nullable String myVersion = null;
+  private @NotNull PhpStanLaunchProfile myLaunchProfile = PhpStanLaunchProfile.DEFAULT;
 
   @Override
   @Transient
@@ -87,6 +88,18 @@ public class PhpStanConfiguration extends QualityToolConfiguration {
     myVersion = version;
   }
 
+  /**
+   * Gets the PHP settings PHPStan processes started by the plugin are launched with.
+   */
+  @Attribute("launch_profile")
+  public @NotNull PhpStanLaunchProfile getLaunchProfile() {
+    return myLaunchProfile;
+  }
+
+  public void setLaunchProfile(@Nullable PhpStanLaunchProfile launchProfile) {
+    myLaunchProfile = launchProfile != null ? launchProfile : PhpStanLaunchProfile.DEFAULT;
+  }
+
   @Override
   public @NotNull @Nls String getId() {
     return PhpStanBundle.message("local");
@@ -109,6 +122,7 @@ public class PhpStanConfiguration extends QualityToolConfiguration {
     settings.myMaxMessagesPerFile = myMaxMessagesPerFile;
     settings.myTimeoutMs = myTimeoutMs;
     settings.myVersion = myVersion;
+    settings.myLaunchProfile = myLaunchProfile;
     return settings;
   }
 
@@ -0,0 +1,83 @@
+package com.jetbrains.php.tools.quality.phpstan;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Serialises the on-the-fly runs of a document, from writing the {@link PhpStanEditorTempFiles copy of its contents}
+ * to the end of the run, so one copy per document is enough and its processes are told apart from those of another
+ * run by their arguments.
+ * <p>
+ * A run waiting for the lock gives up as soon as it is cancelled. Runs of a document that is being edited are cancelled
+ * by the platform, so a newer run doesn't wait long for an older one.
+ */
+public final class PhpStanDocumentLocks {
+  private static final long POLL_INTERVAL_MS = 10;
+
+  private final Map<String, Entry> myEntries = new HashMap<>();
+
+  private static final class Entry {
+    private final ReentrantLock myLock = new ReentrantLock();
+    private int myUsers;
+  }
+
+  /**
+   * Held lock of a document, released by {@link #close()}.
+   */
+  public interface Lock extends AutoCloseable {
+    @Override
+    void close();
+  }
+
+  /**
+   * @param path      path of the document
+   * @param cancelled whether the run was cancelled while waiting
+   * @throws CancellationException if the run was cancelled before the lock was free
+   */
+  public @NotNull Lock lock(@NotNull String path, @NotNull BooleanSupplier cancelled) {
+    Entry entry;
+    synchronized (myEntries) {
+      entry = myEntries.computeIfAbsent(path, p -> new Entry());
+      entry.myUsers++;
+    }
+    try {
+      while (!entry.myLock.tryLock(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+        if (cancelled.getAsBoolean()) throw new CancellationException();
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      release(path, entry);
+      throw new CancellationException();
+    }
+    catch (CancellationException e) {
+      release(path, entry);
+      throw e;
+    }
+    return () -> {
+      entry.myLock.unlock();
+      release(path, entry);
+    };
+  }
+
+  /**
+   * @return number of documents locked or waited for, to check that entries don't leak
+   */
+  public int size() {
+    synchronized (myEntries) {
+      return myEntries.size();
+    }
+  }
+
+  private void release(@NotNull String path, @NotNull Entry entry) {
+    synchronized (myEntries) {
+      if (--entry.myUsers == 0) myEntries.remove(path);
+    }
+  }
+}
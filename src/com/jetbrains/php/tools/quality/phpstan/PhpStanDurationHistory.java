@@ -0,0 +1,108 @@
+package com.jetbrains.php.tools.quality.phpstan;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Recent durations of PHPStan runs, per key (e.g. an analysed file) and for all keys together, used to derive
+ * timeouts from what runs usually take instead of a fixed value.
+ * <p>
+ * A key with too few samples of its own falls back to the samples of all keys. Only the most recently used keys are
+ * kept. A key whose last run timed out gets twice that timeout next, until a run of it completes.
+ */
+public final class PhpStanDurationHistory {
+  static final int SAMPLES_PER_KEY = 20;
+  static final int GLOBAL_SAMPLES = 200;
+  static final int MIN_SAMPLES = 5;
+  static final int MAX_KEYS = 1000;
+  static final int TIMEOUT_BACKOFF = 2;
+
+  private final Map<String, Samples> myByKey = new LinkedHashMap<>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Samples> eldest) {
+      return size() > MAX_KEYS;
+    }
+  };
+  private final Map<String, Long> myTimedOut = new LinkedHashMap<>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+      return size() > MAX_KEYS;
+    }
+  };
+  private final Samples myAll = new Samples(GLOBAL_SAMPLES);
+
+  public synchronized void record(@NotNull String key, long durationMs) {
+    myByKey.computeIfAbsent(key, k -> new Samples(SAMPLES_PER_KEY)).add(durationMs);
+    myAll.add(durationMs);
+    myTimedOut.remove(key);
+  }
+
+  /**
+   * Records a run that timed out: it would have taken longer than its timeout, which is recorded as its duration.
+   */
+  public synchronized void recordTimeout(@NotNull String key, long timeoutMs) {
+    record(key, timeoutMs);
+    myTimedOut.put(key, timeoutMs);
+  }
+
+  /**
+   * @return the least timeout of the next run of the key, or -1 unless its last run timed out
+   */
+  public synchronized long getMinimumTimeout(@NotNull String key) {
+    Long timeout = myTimedOut.get(key);
+    return timeout != null ? timeout * TIMEOUT_BACKOFF : -1;
+  }
+
+  /**
+   * @param percentile between 0 and 1, e.g. 0.95
+   * @return the duration below which the given share of the recent runs finished, or -1 if there are too few samples
+   */
+  public synchronized long getPercentile(@NotNull String key, double percentile) {
+    Samples samples = myByKey.get(key);
+    if (samples != null && samples.size() >= MIN_SAMPLES) return samples.percentile(percentile);
+    return myAll.size() >= MIN_SAMPLES ? myAll.percentile(percentile) : -1;
+  }
+
+  /**
+   * @param percentile duration from {@link #getPercentile}, or -1 if unknown
+   * @param fallbackMs timeout to use while there is no history
+   * @return {@code factor} times the percentile, within the bounds
+   */
+  public static long computeTimeout(long percentile, double factor, long fallbackMs, long minMs, long maxMs) {
+    long timeout = percentile < 0 ? fallbackMs : Math.round(percentile * factor);
+    return Math.max(minMs, Math.min(maxMs, timeout));
+  }
+
+  /**
+   * Ring buffer of the most recent durations.
+   */
+  private static final class Samples {
+    private final long[] myValues;
+    private int myNext;
+    private int mySize;
+
+    Samples(int capacity) {
+      myValues = new long[capacity];
+    }
+
+    void add(long value) {
+      myValues[myNext] = value;
+      myNext = (myNext + 1) % myValues.length;
+      mySize = Math.min(mySize + 1, myValues.length);
+    }
+
+    int size() {
+      return mySize;
+    }
+
+    long percentile(double percentile) {
+      long[] sorted = Arrays.copyOf(myValues, mySize);
+      Arrays.sort(sorted);
+      int index = (int)Math.ceil(percentile * mySize) - 1;
+      return sorted[Math.max(0, Math.min(mySize - 1, index))];
+    }
+  }
+}
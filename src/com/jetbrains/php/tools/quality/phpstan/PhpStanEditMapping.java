@@ -0,0 +1,88 @@
+package com.jetbrains.php.tools.quality.phpstan;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Maps problems PHPStan reported for the text it analysed to the text of the document edited in the meantime.
+ * <p>
+ * The edits are taken as one changed region between the common prefix and suffix of both texts, which is exact for
+ * typing at one place. Problems before the region keep their offsets, problems after it are shifted, and problems
+ * touching it are dropped, since their code changed.
+ */
+public final class PhpStanEditMapping {
+  private final CharSequence myAnalysed;
+  private final int[] myLineStarts;
+  private final int myChangeStart;
+  private final int myAnalysedChangeEnd;
+  private final int myShift;
+
+  /**
+   * @param start offset in the current text
+   * @param end   offset in the current text, exclusive
+   */
+  public record Range(int start, int end) {
+  }
+
+  private PhpStanEditMapping(@NotNull CharSequence analysed, int changeStart, int analysedChangeEnd, int shift) {
+    myAnalysed = analysed;
+    myLineStarts = computeLineStarts(analysed);
+    myChangeStart = changeStart;
+    myAnalysedChangeEnd = analysedChangeEnd;
+    myShift = shift;
+  }
+
+  public static @NotNull PhpStanEditMapping create(@NotNull CharSequence analysed, @NotNull CharSequence current) {
+    int prefix = 0;
+    int common = Math.min(analysed.length(), current.length());
+    while (prefix < common && analysed.charAt(prefix) == current.charAt(prefix)) prefix++;
+    int suffix = 0;
+    while (suffix < common - prefix &&
+           analysed.charAt(analysed.length() - 1 - suffix) == current.charAt(current.length() - 1 - suffix)) {
+      suffix++;
+    }
+    return new PhpStanEditMapping(analysed, prefix, analysed.length() - suffix, current.length() - analysed.length());
+  }
+
+  /**
+   * @return whether the texts differ
+   */
+  public boolean isChanged() {
+    return myShift != 0 || myChangeStart < myAnalysedChangeEnd;
+  }
+
+  /**
+   * Maps the part of a line PHPStan reports a problem for, from the column to the end of the line.
+   *
+   * @param line   zero-based line in the analysed text
+   * @param column zero-based column in the analysed text
+   * @return the range in the current text, or null if the line doesn't exist or was edited
+   */
+  public @Nullable Range mapLine(int line, int column) {
+    if (line < 0 || line >= myLineStarts.length) return null;
+    int lineEnd = getLineEnd(line);
+    int start = Math.min(myLineStarts[line] + Math.max(0, column), lineEnd);
+    if (!isChanged() || lineEnd < myChangeStart) return new Range(start, lineEnd);
+    if (start > myAnalysedChangeEnd) return new Range(start + myShift, lineEnd + myShift);
+    return null;
+  }
+
+  private int getLineEnd(int line) {
+    if (line + 1 >= myLineStarts.length) return myAnalysed.length();
+    int end = myLineStarts[line + 1] - 1;
+    return end > myLineStarts[line] && myAnalysed.charAt(end - 1) == '\r' ? end - 1 : end;
+  }
+
+  private static int @NotNull [] computeLineStarts(@NotNull CharSequence text) {
+    int count = 1;
+    for (int i = 0; i < text.length(); i++) {
+      if (text.charAt(i) == '\n') count++;
+    }
+    int[] starts = new int[count];
+    int line = 1;
+    for (int i = 0; i < text.length(); i++) {
+      if (text.charAt(i) == '\n') starts[line++] = i + 1;
+    }
+    return starts;
+  }
+}
@@ -0,0 +1,187 @@
+package com.jetbrains.php.tools.quality.phpstan;
+
+import com.intellij.execution.ExecutionException;
+import com.intellij.execution.configurations.GeneralCommandLine;
+import com.intellij.execution.process.CapturingProcessHandler;
+import com.intellij.execution.process.ProcessOutput;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import com.jetbrains.php.tools.quality.QualityToolMessageProcessor;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Analyses files of the project requested for on-the-fly analysis at about the same time in one PHPStan run, such as
+ * the open files touched by a refactoring, and splits the report back per file.
+ * <p>
+ * Saved files are analysed from disk. PHPStan takes the editor contents of a single file only, so one unsaved file
+ * joins a merged run through {@code --tmp-file} and other unsaved files run alone. Only runs of the local PHPStan in
+ * editor mode are merged, and not the run of the focused editor, which would wait for the others. Requests only wait
+ * for others while other requests are in progress or runs are queued anyway.
+ */
+public final class PhpStanEditorBatchService {
+  private static final Logger LOG = Logger.getInstance(PhpStanEditorBatchService.class);
+  private static final long WINDOW_MS = 50;
+  private static final int MAX_FILES = 32;
+  private static final long POLL_INTERVAL_MS = 10;
+
+  private final Project myProject;
+  private final AtomicInteger myPending = new AtomicInteger();
+  private final PhpStanRunCoalescer<String, Request, QualityToolMessageProcessor> myCoalescer =
+    new PhpStanRunCoalescer<>(WINDOW_MS, MAX_FILES, POLL_INTERVAL_MS, this::runMerged);
+
+  private record Request(@NotNull PhpStanQualityToolAnnotatorInfo info,
+                         @NotNull VirtualFile file,
+                         @Nullable String editorTempPath,
+                         @NotNull PhpStanPriority priority) {
+  }
+
+  public PhpStanEditorBatchService(@NotNull Project project) {
+    myProject = project;
+  }
+
+  public static PhpStanEditorBatchService getInstance(@NotNull Project project) {
+    return project.getService(PhpStanEditorBatchService.class);
+  }
+
+  /**
+   * @param platformTempPath temporary file written by the platform for the run
+   * @return the result of a merged run, or null if the file has to be analysed alone
+   */
+  public @Nullable QualityToolMessageProcessor analyse(@NotNull PhpStanQualityToolAnnotatorInfo info,
+                                                       @NotNull VirtualFile file,
+                                                       @NotNull String platformTempPath,
+                                                       @NotNull PhpStanPriority priority,
+                                                       @Nullable ProgressIndicator indicator) {
+    CharSequence content = info.getContent();
+    String version = PhpStanConfigurationManager.getInstance(myProject).getLocalSettings().getVersion();
+    if (priority == PhpStanPriority.FOCUSED_EDITOR || content == null || info.getInterpreterId() != null ||
+        !PhpStanVersionSupport.supportsEditorMode(version) || PhpStanProcessRunner.getLocalToolPath(myProject) == null) {
+      return null;
+    }
+    String editorTempPath = null;
+    if (ReadAction.compute(() -> FileDocumentManager.getInstance().isFileModified(file))) {
+      editorTempPath = PhpStanEditorTempFileService.getInstance(myProject).write(file, content, platformTempPath, true);
+      if (editorTempPath == null) return null;
+    }
+    String key = PhpStanNeonConfigService.getInstance(myProject).getFingerprint() + "@" + version;
+    Request request = new Request(info, file, editorTempPath, priority);
+    try {
+      boolean othersExpected = myPending.incrementAndGet() > 1 || PhpStanGovernor.getInstance().isSaturated();
+      return myCoalescer.submit(key, request, othersExpected, () -> myProject.isDisposed() || indicator != null && indicator.isCanceled());
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ProcessCanceledException(e);
+    }
+    finally {
+      myPending.decrementAndGet();
+    }
+  }
+
+  /**
+   * Runs on the thread of the first request, until it is done or all requests are cancelled.
+   */
+  private @NotNull Map<Request, QualityToolMessageProcessor> runMerged(@NotNull List<Request> requests, @NotNull BooleanSupplier cancelled) {
+    List<Request> included = new ArrayList<>();
+    Request unsaved = null;
+    PhpStanPriority priority = PhpStanPriority.BACKGROUND;
+    long timeoutMs = 0;
+    for (Request request : requests) {
+      if (request.editorTempPath() != null) {
+        if (unsaved != null) continue;
+        unsaved = request;
+      }
+      included.add(request);
+      if (request.priority().isHigherThan(priority)) priority = request.priority();
+      timeoutMs += request.info().getTimeoutMs();
+    }
+    return included.size() < 2 ? Map.of() : run(included, unsaved, priority, timeoutMs, cancelled);
+  }
+
+  private @NotNull Map<Request, QualityToolMessageProcessor> run(@NotNull List<Request> included,
+                                                                 @Nullable Request unsaved,
+                                                                 @NotNull PhpStanPriority priority,
+                                                                 long timeoutMs,
+                                                                 @NotNull BooleanSupplier cancelled) {
+    String toolPath = PhpStanProcessRunner.getLocalToolPath(myProject);
+    PhpStanGlobalInspection tool = (PhpStanGlobalInspection)PhpStanQualityToolType.INSTANCE.getGlobalTool(myProject, null);
+    if (toolPath == null || tool == null) return Map.of();
+    // One bootstrap for all files, so the timeouts of the single runs are more than enough together
+    timeoutMs = Math.min(timeoutMs, PhpStanGovernorSettings.getInstance().getMaxTimeoutSeconds() * 1000L);
+
+    List<String> paths = new ArrayList<>();
+    for (Request request : included) paths.add(request.file().getPath());
+    List<String> warmPaths = PhpStanWarmUpService.getInstance(myProject).getWarmPaths();
+    List<String> options = PhpStanCacheHealthService.withCacheReport(
+      tool.getCommandLineOptions(warmPaths != null ? warmPaths : paths, unsaved != null ? unsaved.editorTempPath() : null,
+                                 unsaved != null ? unsaved.file().getPath() : null, myProject));
+    GeneralCommandLine commandLine = PhpStanProcessRunner.createCommandLine(myProject, toolPath, options, false);
+    ProcessOutput output;
+    long started;
+    // Cancelling one request must not cancel the run for the others
+    ProgressIndicator indicator = new EmptyProgressIndicator();
+    ScheduledFuture<?> cancellation = AppExecutorUtil.getAppScheduledExecutorService().scheduleWithFixedDelay(() -> {
+      if (myProject.isDisposed() || cancelled.getAsBoolean()) indicator.cancel();
+    }, POLL_INTERVAL_MS, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    // The process starts with the handler, so admission has to be granted first
+    try (PhpStanProcessQueue.Permit permit = PhpStanGovernor.getInstance().acquire(myProject, included.size(), priority, indicator)) {
+      LOG.info("PHPStan command: " + commandLine.getCommandLineString());
+      started = System.currentTimeMillis();
+      CapturingProcessHandler handler = new CapturingProcessHandler(commandLine);
+      // Not paused for runs of a higher class, as the timeout would keep running meanwhile
+      try (PhpStanProcessTracker.Run ignored = PhpStanProcessTracker.getInstance(myProject).track(handler.getProcess(), indicator)) {
+        output = handler.runProcessWithProgressIndicator(indicator, (int)timeoutMs);
+      }
+    }
+    catch (ExecutionException e) {
+      LOG.warn("Cannot run PHPStan on " + paths, e);
+      return Map.of();
+    }
+    finally {
+      cancellation.cancel(false);
+    }
+    if (output.isCancelled() || output.isTimeout() || !output.getStdout().contains("<checkstyle")) {
+      LOG.info("Merged PHPStan run on " + paths + " gave no report, analysing the files alone: " +
+               StringUtil.first(output.getStderr(), 1000, true));
+      return Map.of();
+    }
+    long duration = System.currentTimeMillis() - started;
+    PhpStanCacheHealthService.getInstance(myProject).recordOutput(output.getStderr(), duration, false);
+    // The merged run took at least as long as each file would alone, which errs on the side of longer timeouts.
+    // Files of a merged run that timed out are analysed alone, which records their timeouts.
+    for (Request request : included) {
+      PhpStanMetrics.getInstance().recordDuration(request.info().getRunKind(), request.info().getDurationKey(), duration);
+    }
+    Map<Request, QualityToolMessageProcessor> results = new HashMap<>();
+    for (Request request : included) {
+      PhpStanMessageProcessor processor = new PhpStanMessageProcessor(request.info());
+      try {
+        processor.processReport(output.getStdout());
+        results.put(request, processor);
+      }
+      catch (Exception e) {
+        LOG.warn("Cannot parse PHPStan output: " + StringUtil.first(output.getStdout(), 1000, true), e);
+        return Map.of();
+      }
+    }
+    return results;
+  }
+}
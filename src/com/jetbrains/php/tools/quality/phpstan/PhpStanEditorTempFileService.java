@@ -0,0 +1,99 @@
+package com.jetbrains.php.tools.quality.phpstan;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.SystemInfo;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Provides the {@link PhpStanEditorTempFiles copies of the editor contents} of the project for on-the-fly runs.
+ * <p>
+ * PHPStan on this machine reads them from a RAM-backed directory when there is one. A remote interpreter only sees
+ * the directories mapped into it, so its copies are kept next to the temporary file of the platform, which is
+ * reachable through the mapping.
+ */
+public final class PhpStanEditorTempFileService implements Disposable {
+  private static final Logger LOG = Logger.getInstance(PhpStanEditorTempFileService.class);
+  private static final @NonNls String RAM_DIRECTORY = "/dev/shm";
+  private static final @NonNls String DIRECTORY_NAME = "phpstan-editor";
+
+  private final Project myProject;
+  private final Map<Path, PhpStanEditorTempFiles> myFiles = new ConcurrentHashMap<>();
+  private final PhpStanDocumentLocks myLocks = new PhpStanDocumentLocks();
+
+  public PhpStanEditorTempFileService(@NotNull Project project) {
+    myProject = project;
+  }
+
+  public static PhpStanEditorTempFileService getInstance(@NotNull Project project) {
+    return project.getService(PhpStanEditorTempFileService.class);
+  }
+
+  /**
+   * @param platformTempPath temporary file written by the platform for this run
+   * @param local            whether PHPStan runs on this machine
+   * @return path of the copy of the document, which is the same for every run of it, or null to pass the temporary file
+   * of the platform
+   */
+  public @Nullable String write(@NotNull VirtualFile file,
+                                @NotNull CharSequence content,
+                                @NotNull String platformTempPath,
+                                boolean local) {
+    Path directory = local ? getLocalDirectory() : getRemoteDirectory(platformTempPath);
+    if (directory == null) return null;
+    try {
+      return myFiles.computeIfAbsent(directory, PhpStanEditorTempFiles::new).write(file.getPath(), content, file.getCharset()).toString();
+    }
+    catch (IOException e) {
+      LOG.warn("Cannot write the PHPStan copy of " + file.getPath() + " to " + directory, e);
+      return null;
+    }
+  }
+
+  /**
+   * Waits until no other on-the-fly run of the document is in progress, so the copy {@link #write written} for it stays
+   * unchanged until the returned lock is closed.
+   *
+   * @throws ProcessCanceledException if the run is cancelled while waiting
+   */
+  public @NotNull PhpStanDocumentLocks.Lock lock(@NotNull VirtualFile file, @Nullable ProgressIndicator indicator) {
+    try {
+      return myLocks.lock(file.getPath(), () -> indicator != null && indicator.isCanceled());
+    }
+    catch (CancellationException e) {
+      throw new ProcessCanceledException();
+    }
+  }
+
+  private @NotNull Path getLocalDirectory() {
+    Path parent = PhpStanEditorTempFiles.chooseDirectory(SystemInfo.isLinux ? Path.of(RAM_DIRECTORY) : null,
+                                                         Path.of(FileUtil.getTempDirectory()));
+    return parent.resolve(DIRECTORY_NAME + "-" + myProject.getLocationHash());
+  }
+
+  private static @Nullable Path getRemoteDirectory(@NotNull String platformTempPath) {
+    Path parent = Path.of(platformTempPath).getParent();
+    return parent != null ? parent.resolve(DIRECTORY_NAME) : null;
+  }
+
+  @Override
+  public void dispose() {
+    for (PhpStanEditorTempFiles files : myFiles.values()) {
+      files.clear();
+    }
+    myFiles.clear();
+  }
+}
@@ -0,0 +1,129 @@
+package com.jetbrains.php.tools.quality.phpstan;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Copies of the editor contents passed to PHPStan as {@code --tmp-file}, one per document, which are only rewritten
+ * when the content changed.
+ * <p>
+ * Runs of one document are {@link PhpStanDocumentLocks serialised}, so a copy isn't rewritten while a run reads it. A
+ * file is still replaced atomically, so a process that outlived its run never sees a partly written one. Only the most
+ * recently written files are kept.
+ */
+public final class PhpStanEditorTempFiles {
+  static final int MAX_FILES = 200;
+  private static final int NAME_HASH_LENGTH = 16;
+
+  private final Path myDirectory;
+  private final Map<String, Written> myFiles = new LinkedHashMap<>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Written> eldest) {
+      if (size() <= MAX_FILES) return false;
+      deleteQuietly(eldest.getValue().file());
+      return true;
+    }
+  };
+
+  private record Written(@NotNull Path file, byte @NotNull [] digest, long size) {
+  }
+
+  public PhpStanEditorTempFiles(@NotNull Path directory) {
+    myDirectory = directory;
+  }
+
+  /**
+   * @param ramDirectory RAM-backed directory such as {@code /dev/shm}, or null if the system has none
+   * @return the RAM-backed directory if it can be written to, otherwise the fallback
+   */
+  public static @NotNull Path chooseDirectory(@Nullable Path ramDirectory, @NotNull Path fallback) {
+    if (ramDirectory != null && Files.isDirectory(ramDirectory) && Files.isWritable(ramDirectory)) return ramDirectory;
+    return fallback;
+  }
+
+  public @NotNull Path getDirectory() {
+    return myDirectory;
+  }
+
+  /**
+   * @param originalPath path of the document in the project
+   * @return the copy of the document, written only if its content differs from the previous call
+   */
+  public synchronized @NotNull Path write(@NotNull String originalPath, @NotNull CharSequence content, @NotNull Charset charset)
+    throws IOException {
+    byte[] bytes = content.toString().getBytes(charset);
+    byte[] digest = sha256(bytes);
+    Written written = myFiles.get(originalPath);
+    // The size check notices copies removed or truncated by cleaners of the temporary directory
+    if (written != null && Arrays.equals(written.digest(), digest) && size(written.file()) == bytes.length) {
+      return written.file();
+    }
+    Path file = written != null ? written.file() : myDirectory.resolve(getFileName(originalPath));
+    Files.createDirectories(myDirectory);
+    Path temp = Files.createTempFile(myDirectory, file.getFileName().toString(), ".tmp");
+    try {
+      Files.write(temp, bytes);
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    finally {
+      deleteQuietly(temp);
+    }
+    myFiles.put(originalPath, new Written(file, digest, bytes.length));
+    return file;
+  }
+
+  /**
+   * Deletes all copies.
+   */
+  public synchronized void clear() {
+    for (Written written : myFiles.values()) {
+      deleteQuietly(written.file());
+    }
+    myFiles.clear();
+  }
+
+  /**
+   * Keeps the name and extension of the document, prefixed by a hash of its path to tell apart files of the same name.
+   */
+  public static @NotNull String getFileName(@NotNull String originalPath) {
+    String name = originalPath.substring(Math.max(originalPath.lastIndexOf('/'), originalPath.lastIndexOf('\\')) + 1);
+    String hash = HexFormat.of().formatHex(sha256(originalPath.getBytes(StandardCharsets.UTF_8)));
+    return hash.substring(0, NAME_HASH_LENGTH) + "-" + name;
+  }
+
+  private static long size(@NotNull Path file) {
+    try {
+      return Files.size(file);
+    }
+    catch (IOException e) {
+      return -1;
+    }
+  }
+
+  private static void deleteQuietly(@NotNull Path file) {
+    try {
+      Files.deleteIfExists(file);
+    }
+    catch (IOException ignored) {
+    }
+  }
+
+  private static byte @NotNull [] sha256(byte @NotNull [] bytes) {
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(bytes);
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -0,0 +1,247 @@
+package com.jetbrains.php.tools.quality.phpstan;
+
+import com.intellij.execution.ExecutionException;
+import com.intellij.execution.process.ProcessOutput;
+import com.intellij.notification.Notification;
+import com.intellij.notification.NotificationType;
+import com.intellij.notification.Notifications;
+import com.intellij.openapi.actionSystem.ActionUpdateThread;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.DumbAwareAction;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.io.FileUtilRt;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.util.containers.ContainerUtil;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Regenerates the PHPStan baseline in the background and lets the user review the changes before they are written.
+ * <p>
+ * The baseline of the project is never touched before the user accepts the diff. PHPStan runs with copies of the
+ * configuration files that leave the baseline out, written next to the originals so relative paths resolve the same,
+ * and generates the new baseline into a temporary file next to the current one. All of them are deleted once the run
+ * finishes.
+ */
+final class PhpStanGenerateBaselineAction extends DumbAwareAction {
+  private static final Logger LOG = Logger.getInstance(PhpStanGenerateBaselineAction.class);
+  private static final @NonNls String NOTIFICATION_GROUP = "PHPStan";
+  private static final @NonNls String DEFAULT_BASELINE_NAME = "phpstan-baseline.neon";
+  private static final @NonNls String NO_ERRORS_OUTPUT = "Baseline could not be generated";
+
+  @Override
+  public @NotNull ActionUpdateThread getActionUpdateThread() {
+    return ActionUpdateThread.BGT;
+  }
+
+  @Override
+  public void update(@NotNull AnActionEvent e) {
+    Project project = e.getProject();
+    e.getPresentation().setEnabledAndVisible(project != null &&
+                                              PhpStanProcessRunner.getLocalToolPath(project) != null &&
+                                              PhpStanNeonConfigService.getInstance(project).getConfig() != null);
+  }
+
+  @Override
+  public void actionPerformed(@NotNull AnActionEvent e) {
+    Project project = e.getProject();
+    if (project == null) return;
+    new Task.Backgroundable(project, PhpStanBundle.message("phpstan.baseline.generating"), true) {
+      @Override
+      public void run(@NotNull ProgressIndicator indicator) {
+        generate(project, indicator);
+      }
+    }.queue();
+  }
+
+  private static void generate(@NotNull Project project, @NotNull ProgressIndicator indicator) {
+    String toolPath = PhpStanProcessRunner.getLocalToolPath(project);
+    PhpStanNeonConfig config = PhpStanNeonConfigService.getInstance(project).getConfig();
+    if (toolPath == null || config == null || config.getFiles().isEmpty()) return;
+
+    String basePath = project.getBasePath();
+    Path baselinePath = getBaselinePath(config);
+    PhpStanNeonConfig.ConfigFile oldFile = PhpStanNeonConfig.ConfigFile.read(baselinePath, basePath);
+    boolean existed = Files.exists(baselinePath);
+    // Next to the baseline, so the paths PHPStan writes relative to it stay the same
+    String fileName = baselinePath.getFileName().toString();
+    Path generatedPath = baselinePath.resolveSibling("." + FileUtilRt.getNameWithoutExtension(fileName) + "-" + UUID.randomUUID() + "." +
+                                                     FileUtilRt.getExtension(fileName));
+    List<Path> copies = new ArrayList<>();
+    String overlay = null;
+    ProcessOutput output;
+    byte[] newContent;
+    PhpStanNeonConfig.ConfigFile newFile;
+    try {
+      Path configPath = writeConfigWithoutBaseline(config, baselinePath, basePath, copies);
+      overlay = PhpStanConfigOverlayService.getInstance(project).getOverlayPath(PhpStanConfigOverlay.RunKind.BATCH, configPath.toString());
+      List<String> options = new ArrayList<>(new PhpStanGlobalInspection().getCommandLineOptions(List.of(), project, false, false));
+      setConfig(options, overlay != null ? overlay : configPath.toString());
+      options.add("--generate-baseline=" + generatedPath);
+      output = PhpStanProcessRunner.run(project, PhpStanProcessRunner.createCommandLine(project, toolPath, options, true), indicator, -1);
+      newContent = Files.exists(generatedPath) ? Files.readAllBytes(generatedPath) : null;
+      newFile = newContent == null ? null : PhpStanNeonConfig.ConfigFile.read(generatedPath, basePath);
+    }
+    catch (ExecutionException | IOException e) {
+      notify(project, PhpStanBundle.message("phpstan.baseline.failed", e.getMessage()), NotificationType.ERROR);
+      return;
+    }
+    finally {
+      copies.add(generatedPath);
+      if (overlay != null) copies.add(Path.of(overlay));
+      for (Path copy : copies) {
+        deleteQuietly(copy);
+      }
+    }
+
+    if (output.isCancelled() || output.isTimeout()) return;
+    boolean noErrors = output.getStdout().contains(NO_ERRORS_OUTPUT) || output.getStderr().contains(NO_ERRORS_OUTPUT);
+    if (output.getExitCode() != 0 && !noErrors || newContent == null && !noErrors) {
+      LOG.warn("PHPStan baseline generation failed: " + output.getStderr());
+      notify(project, PhpStanBundle.message("phpstan.baseline.failed", output.getStderr().trim()), NotificationType.ERROR);
+      return;
+    }
+
+    PhpStanBaseline oldBaseline = PhpStanBaseline.fromConfigFile(oldFile);
+    PhpStanBaseline newBaseline = newFile == null ? PhpStanBaseline.EMPTY : PhpStanBaseline.fromConfigFile(newFile);
+    PhpStanBaselineDiff diff = PhpStanBaselineDiff.compute(oldBaseline, newBaseline);
+    if (diff.isEmpty()) {
+      notify(project, PhpStanBundle.message("phpstan.baseline.up.to.date"), NotificationType.INFORMATION);
+      return;
+    }
+    if (newContent == null) {
+      // Nothing is left to ignore: PHPStan refuses to write an empty baseline, so we write one ourselves
+      newContent = "parameters:\n\tignoreErrors: []\n".getBytes(StandardCharsets.UTF_8);
+    }
+
+    byte[] accepted = newContent;
+    String writtenKey = existed ? "phpstan.baseline.written" : "phpstan.baseline.written.include";
+    ApplicationManager.getApplication().invokeLater(() -> {
+      if (!new PhpStanBaselineDiffDialog(project, diff).showAndGet()) return;
+      ApplicationManager.getApplication().executeOnPooledThread(() -> {
+        try {
+          writeAtomically(baselinePath, accepted);
+          LocalFileSystem.getInstance().refreshNioFiles(List.of(baselinePath));
+          notify(project, PhpStanBundle.message(writtenKey, baselinePath), NotificationType.INFORMATION);
+        }
+        catch (IOException e) {
+          notify(project, PhpStanBundle.message("phpstan.baseline.failed", e.getMessage()), NotificationType.ERROR);
+        }
+      });
+    }, project.getDisposed());
+  }
+
+  /**
+   * @return the first baseline included by the configuration, or {@code phpstan-baseline.neon} next to the root config
+   */
+  private static @NotNull Path getBaselinePath(@NotNull PhpStanNeonConfig config) {
+    List<PhpStanNeonConfig.ConfigFile> baselineFiles = PhpStanBaseline.findBaselineFiles(config);
+    if (!baselineFiles.isEmpty()) return baselineFiles.get(0).path();
+    return config.getFiles().get(0).path().resolveSibling(DEFAULT_BASELINE_NAME);
+  }
+
+  /**
+   * Copies the configuration files that include the baseline, directly or not, next to their originals, leaving it
+   * out, so PHPStan reports the errors the baseline ignores.
+   *
+   * @param copies collects the written copies
+   * @return the configuration to run PHPStan with
+   */
+  private static @NotNull Path writeConfigWithoutBaseline(@NotNull PhpStanNeonConfig config,
+                                                          @NotNull Path baselinePath,
+                                                          @Nullable String basePath,
+                                                          @NotNull List<Path> copies) throws IOException {
+    String baseline = FileUtil.toSystemIndependentName(baselinePath.toString());
+    Set<String> affected = new HashSet<>(Set.of(baseline));
+    boolean added = true;
+    while (added) {
+      added = false;
+      for (PhpStanNeonConfig.ConfigFile file : config.getFiles()) {
+        String path = FileUtil.toSystemIndependentName(file.path().toString());
+        if (!affected.contains(path) && ContainerUtil.exists(file.includes(), affected::contains)) {
+          added = affected.add(path);
+        }
+      }
+    }
+    Path root = config.getFiles().get(0).path();
+    if (!affected.contains(FileUtil.toSystemIndependentName(root.toString()))) return root;
+
+    Map<String, String> includes = new HashMap<>();
+    includes.put(baseline, null);
+    Map<PhpStanNeonConfig.ConfigFile, Path> copyPaths = new LinkedHashMap<>();
+    for (PhpStanNeonConfig.ConfigFile file : config.getFiles()) {
+      String path = FileUtil.toSystemIndependentName(file.path().toString());
+      if (path.equals(baseline) || !affected.contains(path)) continue;
+      Path copy = Files.createTempFile(file.path().getParent(), "." + FileUtilRt.getNameWithoutExtension(file.path().getFileName().toString()) + "-",
+                                       ".neon");
+      copies.add(copy);
+      copyPaths.put(file, copy);
+      includes.put(path, FileUtil.toSystemIndependentName(copy.toString()));
+    }
+    for (Map.Entry<PhpStanNeonConfig.ConfigFile, Path> entry : copyPaths.entrySet()) {
+      Path original = entry.getKey().path();
+      Files.writeString(entry.getValue(), PhpStanNeonConfig.rewriteIncludes(Files.readString(original, StandardCharsets.UTF_8),
+                                                                            original.getParent(), basePath, includes),
+                        StandardCharsets.UTF_8);
+      // Includes the rewriting can't change, such as inline lists, would bring the baseline back
+      if (ContainerUtil.exists(PhpStanNeonConfig.ConfigFile.read(entry.getValue(), basePath).includes(),
+                               include -> include.equals(baseline) || includes.containsKey(include))) {
+        throw new IOException(PhpStanBundle.message("phpstan.baseline.include.not.removed", original));
+      }
+    }
+    return copyPaths.get(config.getFiles().get(0));
+  }
+
+  /**
+   * Replaces the configuration the options pass, or adds it.
+   */
+  private static void setConfig(@NonNls @NotNull List<String> options, @NotNull String config) {
+    int index = options.indexOf("-c");
+    if (index >= 0 && index + 1 < options.size()) {
+      options.set(index + 1, config);
+    }
+    else {
+      options.addAll(1, List.of("-c", config));
+    }
+  }
+
+  private static void deleteQuietly(@NotNull Path file) {
+    try {
+      Files.deleteIfExists(file);
+    }
+    catch (IOException e) {
+      LOG.warn("Cannot delete " + file, e);
+    }
+  }
+
+  /**
+   * Writes through a temporary file in the same directory, so readers never see a partially written baseline.
+   */
+  static void writeAtomically(@NotNull Path path, byte @NotNull [] content) throws IOException {
+    Path temp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp");
+    try {
+      Files.write(temp, content);
+      Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+    finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  private static void notify(@NotNull Project project, @NotNull String content, @NotNull NotificationType type) {
+    Notifications.Bus.notify(new Notification(NOTIFICATION_GROUP, PhpStanBundle.message("phpstan.notification.group"), content, type), project);
+  }
+}
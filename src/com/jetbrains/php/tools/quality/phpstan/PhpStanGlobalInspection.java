@@ -1,5 +1,6 @@
 package com.jetbrains.php.tools.quality.phpstan;
 
+import com.intellij.analysis.AnalysisScope;
 import com.intellij.codeInspection.*;
 import com.intellij.codeInspection.ex.ExternalAnnotatorBatchInspection;
 import com.intellij.notification.Notification;
@@ -46,9 +47,44 @@ public class PhpStanGlobalInspection extends QualityToolValidationGlobalInspecti
     final PhpStanAnnotatorProxy annotator = getAnnotator();
     final QualityToolAnnotatorInfo<PhpStanValidationInspection> info =
       annotator.collectAnnotatorInfo(null, null, globalContext.getProject(), ((InspectionManagerBase)manager).getCurrentProfile(), false);
-    if (info != null) {
-      manager.getProject().putUserData(ANNOTATOR_INFO, annotator.doAnnotate(info));
+    if (info == null) return;
+    Project project = manager.getProject();
+    AnalysisScope scope = getScope(globalContext);
+    if (info.getInterpreterId() == null) {
+      // Local runs are sharded so results show up while the rest of the project is still being analysed
+      List<QualityToolXmlMessageProcessor.ProblemDescription> problems = ContainerUtil.createConcurrentList();
+      if (PhpStanBatchRun.start(project, this, scope, problems) != null) {
+        project.putUserData(PHPSTAN_ANNOTATOR_INFO, problems);
+        project.putUserData(ANNOTATOR_INFO, annotator.createMessageProcessor(info));
+        return;
+      }
+    }
+    List<String> scopePaths = scope != null ? PhpStanBatchRun.getScopePaths(project, scope) : null;
+    if (scopePaths != null && scopePaths.isEmpty()) {
+      LOG.info("No files to analyse with PHPStan in " + scope.getDisplayName());
+      project.putUserData(ANNOTATOR_INFO, annotator.createMessageProcessor(info));
+      return;
     }
+    if (info instanceof PhpStanQualityToolAnnotatorInfo phpStanInfo) {
+      phpStanInfo.setScopePaths(scopePaths);
+    }
+    project.putUserData(ANNOTATOR_INFO, annotator.doAnnotate(info));
+  }
+
+  /**
+   * @return the scope of the inspection, or null if it is the whole project
+   */
+  private static @Nullable AnalysisScope getScope(@NotNull GlobalInspectionContext globalContext) {
+    AnalysisScope scope = globalContext.getRefManager().getScope();
+    return scope == null || scope.getScopeType() == AnalysisScope.PROJECT ? null : scope;
+  }
+
+  @Override
+  public void inspectionFinished(@NotNull InspectionManager manager,
+                                 @NotNull GlobalInspectionContext globalContext,
+                                 @NotNull ProblemDescriptionsProcessor problemDescriptionsProcessor) {
+    PhpStanBatchRun.cancel(globalContext.getProject());
+    super.inspectionFinished(manager, globalContext, problemDescriptionsProcessor);
   }
 
   @Override
@@ -78,16 +114,20 @@ public class PhpStanGlobalInspection extends QualityToolValidationGlobalInspecti
    * @return Command line options for PHPStan
    */
   public List<String> getCommandLineOptions(@Nullable String tmpFilePath, @Nullable String originalFilePath, @NotNull Project project) {
+    return getCommandLineOptions(tmpFilePath, originalFilePath, project, false);
+  }
+
+  /**
+   * @param local whether PHPStan runs on this machine and may use a {@link PhpStanConfigOverlayService configuration overlay}
+   */
+  public List<String> getCommandLineOptions(@Nullable String tmpFilePath,
+                                            @Nullable String originalFilePath,
+                                            @NotNull Project project,
+                                            boolean local) {
     @NonNls ArrayList<String> options = new ArrayList<>();
     PhpStanOptionsConfiguration configuration = PhpStanOptionsConfiguration.getInstance(project);
     options.add("analyze");
-    if (isNotEmpty(configuration.getConfig())) {
-      options.add("-c");
-      options.add(updateIfRemoteMappingExists(configuration.getConfig(), project, PhpStanQualityToolType.INSTANCE));
-    }
-    else {
-      options.add("--level=" + configuration.getLevel());
-    }
+    addConfigOptions(options, project, local ? PhpStanConfigOverlay.RunKind.EDITOR : null);
     if (isNotEmpty(configuration.getAutoload())) {
       options.add("-a");
       options.add(updateIfRemoteMappingExists(configuration.getAutoload(), project, PhpStanQualityToolType.INSTANCE));
@@ -117,12 +157,12 @@ public class PhpStanGlobalInspection extends QualityToolValidationGlobalInspecti
     // and the PHPStan version supports it (1.12.27+, 2.1.17+, or 3.x+)
     // This ensures ignoreErrors entries work correctly based on the original file path
     if (supportsEditorMode && isNotEmpty(tmpFilePath) && isNotEmpty(originalFilePath)) {
-      options.add("--tmp-file");
-      options.add(updateIfRemoteMappingExists(tmpFilePath, project, PhpStanQualityToolType.INSTANCE));
-      options.add("--instead-of");
-      options.add(updateIfRemoteMappingExists(originalFilePath, project, PhpStanQualityToolType.INSTANCE));
-      // In editor mode, analyze the original file path (PHPStan uses tmp-file contents instead)
-      options.add(updateIfRemoteMappingExists(originalFilePath, project, PhpStanQualityToolType.INSTANCE));
+      // In editor mode, analyze the original file path (PHPStan uses tmp-file contents instead), along with the project
+      // once the result cache of the local PHPStan is warm
+      options.addAll(PhpStanWarmUpService.getEditorModeArguments(
+        updateIfRemoteMappingExists(tmpFilePath, project, PhpStanQualityToolType.INSTANCE),
+        updateIfRemoteMappingExists(originalFilePath, project, PhpStanQualityToolType.INSTANCE),
+        local ? PhpStanWarmUpService.getInstance(project).getWarmPaths() : null));
     } else if (isNotEmpty(tmpFilePath)) {
       // Fallback to old behavior if editor mode not supported or original path not available
       options.add(updateIfRemoteMappingExists(tmpFilePath, project, PhpStanQualityToolType.INSTANCE));
@@ -146,23 +186,54 @@ public class PhpStanGlobalInspection extends QualityToolValidationGlobalInspecti
   }
 
   public List<String> getCommandLineOptions(@NotNull List<String> filePath, @NotNull Project project) {
+    return getCommandLineOptions(filePath, project, false, false);
+  }
+
+  /**
+   * @param withProgress whether PHPStan should print its progress bar to stderr, see {@link PhpStanBatchProgress}
+   * @param local        whether PHPStan runs on this machine and may use a {@link PhpStanConfigOverlayService configuration overlay}
+   */
+  public List<String> getCommandLineOptions(@NotNull List<String> filePath, @NotNull Project project, boolean withProgress, boolean local) {
+    return getCommandLineOptions(filePath, project, withProgress, local ? PhpStanConfigOverlay.RunKind.BATCH : null);
+  }
+
+  /**
+   * Options of an on-the-fly run of the local PHPStan analysing several files at once.
+   *
+   * @param filePaths        the files, or the {@link PhpStanWarmUpService#getWarmPaths paths of the warm-up} including them
+   * @param tmpFilePath      editor contents to analyse instead of the file at {@code originalFilePath}, or null
+   * @param originalFilePath one of the files, or null
+   */
+  public List<String> getCommandLineOptions(@NotNull List<String> filePaths,
+                                            @Nullable String tmpFilePath,
+                                            @Nullable String originalFilePath,
+                                            @NotNull Project project) {
+    @NonNls List<String> options = getCommandLineOptions(filePaths, project, false, PhpStanConfigOverlay.RunKind.EDITOR);
+    if (isNotEmpty(tmpFilePath) && isNotEmpty(originalFilePath)) {
+      // Before the paths, which end the options
+      int index = options.size() - filePaths.size();
+      options.addAll(index, List.of("--tmp-file", tmpFilePath, "--instead-of", originalFilePath));
+    }
+    return options;
+  }
+
+  private static List<String> getCommandLineOptions(@NotNull List<String> filePath,
+                                                    @NotNull Project project,
+                                                    boolean withProgress,
+                                                    @Nullable PhpStanConfigOverlay.RunKind overlayKind) {
     @NonNls ArrayList<String> options = new ArrayList<>();
     PhpStanOptionsConfiguration configuration = PhpStanOptionsConfiguration.getInstance(project);
     options.add("analyze");
-    if (isNotEmpty(configuration.getConfig())) {
-      options.add("-c");
-      options.add(updateIfRemoteMappingExists(configuration.getConfig(), project, PhpStanQualityToolType.INSTANCE));
-    }
-    else {
-      options.add("--level=" + configuration.getLevel());
-    }
+    addConfigOptions(options, project, overlayKind);
     if (isNotEmpty(configuration.getAutoload())) {
       options.add("-a");
       options.add(updateIfRemoteMappingExists(configuration.getAutoload(), project, PhpStanQualityToolType.INSTANCE));
     }
     options.add("--memory-limit=" + configuration.getMemoryLimit());
     options.add("--error-format=checkstyle");
-    options.add("--no-progress");
+    if (!withProgress) {
+      options.add("--no-progress");
+    }
     options.add("--no-ansi");
     options.add("--no-interaction");
     List<String> filePaths = ContainerUtil.filter(filePath, Objects::nonNull);
@@ -171,11 +242,29 @@ public class PhpStanGlobalInspection extends QualityToolValidationGlobalInspecti
     return options;
   }
 
+  private static void addConfigOptions(@NonNls @NotNull List<String> options,
+                                       @NotNull Project project,
+                                       @Nullable PhpStanConfigOverlay.RunKind overlayKind) {
+    PhpStanOptionsConfiguration configuration = PhpStanOptionsConfiguration.getInstance(project);
+    if (isNotEmpty(configuration.getConfig())) {
+      String overlay = overlayKind != null ? PhpStanConfigOverlayService.getInstance(project).getOverlayPath(overlayKind) : null;
+      options.add("-c");
+      options.add(overlay != null ? overlay : updateIfRemoteMappingExists(configuration.getConfig(), project, PhpStanQualityToolType.INSTANCE));
+    }
+    else {
+      options.add("--level=" + configuration.getLevel());
+    }
+  }
+
   @Override
   public ProblemDescriptor @NotNull [] checkFile(@NotNull PsiFile file,
                                                  @NotNull GlobalInspectionContext context,
                                                  @NotNull InspectionManager manager) {
     ProblemsHolder holder = new ProblemsHolder(manager, file, false);
+    PhpStanBatchRun batchRun = PhpStanBatchRun.getInstance(file.getProject());
+    if (batchRun != null && file.getVirtualFile() != null) {
+      batchRun.awaitFile(file.getVirtualFile().getPath());
+    }
     super.checkFile(file, manager, holder, context, null);
     return holder.getResultsArray();
   }
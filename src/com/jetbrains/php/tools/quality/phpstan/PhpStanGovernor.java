@@ -0,0 +1,93 @@
+package com.jetbrains.php.tools.quality.phpstan;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.project.Project;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Application-wide admission control for PHPStan runs of all open projects, see {@link PhpStanProcessQueue}.
+ * <p>
+ * A run claims one process per PHP process it will start and the memory limit for each of them. PHPStan only spawns
+ * parallel workers when there is more than one job, so single-file runs claim a single process.
+ */
+public final class PhpStanGovernor {
+  private static final long POLL_INTERVAL_MS = 50;
+  private static final int DEFAULT_MAX_WORKERS = 32;
+  private static final int DEFAULT_JOB_SIZE = 20;
+  /** What a run without a memory limit is assumed to use: the default limit of the plugin */
+  private static final long UNLIMITED_MEMORY_ESTIMATE = 2L << 30;
+
+  private final PhpStanProcessQueue myQueue;
+
+  public PhpStanGovernor() {
+    PhpStanGovernorSettings settings = PhpStanGovernorSettings.getInstance();
+    myQueue = new PhpStanProcessQueue(settings::getEffectiveMaxProcesses, settings::getEffectiveMemoryBudget);
+  }
+
+  public static PhpStanGovernor getInstance() {
+    return ApplicationManager.getApplication().getService(PhpStanGovernor.class);
+  }
+
+  /**
+   * Waits until a run analysing {@code fileCount} files of the project may start.
+   * Preemptible runs should {@link PhpStanProcessQueue.Permit#setSuspendHandler pause} when asked to.
+   *
+   * @throws ProcessCanceledException if the indicator is cancelled while waiting
+   */
+  public @NotNull PhpStanProcessQueue.Permit acquire(@NotNull Project project,
+                                                     int fileCount,
+                                                     @NotNull PhpStanPriority priority,
+                                                     @Nullable ProgressIndicator indicator) {
+    PhpStanProcessQueue.Claim claim =
+      estimate(project, fileCount, priority == PhpStanPriority.BATCH ? PhpStanConfigOverlay.RunKind.BATCH : PhpStanConfigOverlay.RunKind.EDITOR);
+    try {
+      PhpStanProcessQueue.Permit permit =
+        myQueue.acquire(claim, priority, () -> project.isDisposed() || indicator != null && indicator.isCanceled(), POLL_INTERVAL_MS);
+      if (permit == null) throw new ProcessCanceledException();
+      return permit;
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ProcessCanceledException(e);
+    }
+  }
+
+  /**
+   * @return whether a run starting now would have to wait for others
+   */
+  public boolean isSaturated() {
+    return myQueue.getQueueLength() > 0 ||
+           myQueue.getRunningProcesses() >= PhpStanGovernorSettings.getInstance().getEffectiveMaxProcesses();
+  }
+
+  /**
+   * Assumes the {@link PhpStanConfigOverlayService configuration overlay} for the run kind is used when there is one.
+   */
+  static @NotNull PhpStanProcessQueue.Claim estimate(@NotNull Project project, int fileCount, @NotNull PhpStanConfigOverlay.RunKind kind) {
+    PhpStanConfigOverlay.Parallel overlay = PhpStanConfigOverlayService.getInstance(project).getParallel(kind);
+    PhpStanNeonConfig config = overlay == null ? PhpStanNeonConfigService.getInstance(project).getConfig() : null;
+    Integer maxWorkers = overlay != null ? Integer.valueOf(overlay.maximumNumberOfProcesses())
+                         : config != null ? config.getParallelMaximumNumberOfProcesses() : null;
+    Integer jobSize = overlay != null ? Integer.valueOf(overlay.jobSize()) : config != null ? config.getParallelJobSize() : null;
+    long memoryLimit = PhpStanProcessQueue.parseMemorySize(PhpStanOptionsConfiguration.getInstance(project).getMemoryLimit());
+    return estimate(fileCount,
+                    maxWorkers != null ? maxWorkers : DEFAULT_MAX_WORKERS,
+                    jobSize != null ? jobSize : DEFAULT_JOB_SIZE,
+                    Runtime.getRuntime().availableProcessors(),
+                    memoryLimit > 0 ? memoryLimit : UNLIMITED_MEMORY_ESTIMATE);
+  }
+
+  /**
+   * Mirrors how PHPStan schedules a run: one worker per job, bounded by the CPU cores and the configured maximum,
+   * plus the main process when workers are used.
+   */
+  static @NotNull PhpStanProcessQueue.Claim estimate(int fileCount, int maxWorkers, int jobSize, int cpuCount, long memoryLimit) {
+    long jobs = (Math.max(1, (long)fileCount) + Math.max(1, jobSize) - 1) / Math.max(1, jobSize);
+    int workers = (int)Math.max(1, Math.min(jobs, Math.min(cpuCount, maxWorkers)));
+    int processes = workers > 1 ? workers + 1 : 1;
+    return new PhpStanProcessQueue.Claim(processes, processes * memoryLimit);
+  }
+}
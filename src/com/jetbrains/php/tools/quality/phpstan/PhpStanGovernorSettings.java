@@ -0,0 +1,123 @@
+package com.jetbrains.php.tools.quality.phpstan;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.components.PersistentStateComponent;
+import com.intellij.openapi.components.State;
+import com.intellij.openapi.components.Storage;
+import com.intellij.util.xmlb.XmlSerializerUtil;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Machine-wide limits for concurrent PHPStan processes and for their caches on disk, shared by all open projects.
+ */
+@State(name = "PhpStanGovernorSettings", storages = @Storage("phpstan.xml"))
+public class PhpStanGovernorSettings implements PersistentStateComponent<PhpStanGovernorSettings> {
+  static final @NonNls String DEFAULT_CACHE_QUOTA = "4G";
+  /** The fixed timeout runs had before timeouts were derived from previous runs */
+  static final int TIMEOUT_FLOOR_SECONDS = 30;
+  private int maxProcesses = 0;
+  private @NonNls String memoryBudget = "";
+  private int minTimeoutSeconds = TIMEOUT_FLOOR_SECONDS;
+  private int maxTimeoutSeconds = 600;
+  private @NonNls String cacheQuota = "";
+
+  /**
+   * @return maximum number of concurrent PHP processes, 0 for the number of CPU cores
+   */
+  public int getMaxProcesses() {
+    return maxProcesses;
+  }
+
+  public void setMaxProcesses(int maxProcesses) {
+    this.maxProcesses = maxProcesses;
+  }
+
+  /**
+   * @return total memory limit of concurrent PHP processes, e.g. {@code 16G}; empty for half of the physical memory
+   */
+  public String getMemoryBudget() {
+    return memoryBudget;
+  }
+
+  public void setMemoryBudget(String memoryBudget) {
+    this.memoryBudget = memoryBudget;
+  }
+
+  /**
+   * @return lower bound of the timeouts derived from previous runs, see {@link PhpStanMetrics#getAdaptiveTimeout}; never
+   * below {@value #TIMEOUT_FLOOR_SECONDS} seconds, as a run is killed when the system is only briefly busy otherwise
+   */
+  public int getMinTimeoutSeconds() {
+    return Math.max(TIMEOUT_FLOOR_SECONDS, minTimeoutSeconds);
+  }
+
+  public void setMinTimeoutSeconds(int minTimeoutSeconds) {
+    this.minTimeoutSeconds = minTimeoutSeconds;
+  }
+
+  /**
+   * @return upper bound of the timeouts derived from previous runs
+   */
+  public int getMaxTimeoutSeconds() {
+    return maxTimeoutSeconds;
+  }
+
+  public void setMaxTimeoutSeconds(int maxTimeoutSeconds) {
+    this.maxTimeoutSeconds = maxTimeoutSeconds;
+  }
+
+  /**
+   * @return disk quota of the {@link PhpStanCacheQuota cache directories} of the plugin, e.g. {@code 8G}; empty for
+   * {@value #DEFAULT_CACHE_QUOTA}
+   */
+  public String getCacheQuota() {
+    return cacheQuota;
+  }
+
+  public void setCacheQuota(String cacheQuota) {
+    this.cacheQuota = cacheQuota;
+  }
+
+  /**
+   * @return whether the text is empty or a positive size such as {@code 512M} or {@code 8G}
+   */
+  public static boolean isValidCacheQuota(@Nullable String cacheQuota) {
+    return cacheQuota == null || cacheQuota.isBlank() || PhpStanProcessQueue.parseMemorySize(cacheQuota) > 0;
+  }
+
+  public long getEffectiveCacheQuota() {
+    long quota = PhpStanProcessQueue.parseMemorySize(cacheQuota);
+    return quota > 0 ? quota : PhpStanProcessQueue.parseMemorySize(DEFAULT_CACHE_QUOTA);
+  }
+
+  public int getEffectiveMaxProcesses() {
+    return maxProcesses > 0 ? maxProcesses : Runtime.getRuntime().availableProcessors();
+  }
+
+  public long getEffectiveMemoryBudget() {
+    long budget = PhpStanProcessQueue.parseMemorySize(memoryBudget);
+    if (budget > 0) return budget;
+    if (ManagementFactory.getOperatingSystemMXBean() instanceof com.sun.management.OperatingSystemMXBean os) {
+      return os.getTotalMemorySize() / 2;
+    }
+    return Long.MAX_VALUE;
+  }
+
+  @Override
+  public @Nullable PhpStanGovernorSettings getState() {
+    return this;
+  }
+
+  @Override
+  public void loadState(@NotNull PhpStanGovernorSettings state) {
+    XmlSerializerUtil.copyBean(state, this);
+  }
+
+  public static PhpStanGovernorSettings getInstance() {
+    return ApplicationManager.getApplication().getService(PhpStanGovernorSettings.class);
+  }
+}
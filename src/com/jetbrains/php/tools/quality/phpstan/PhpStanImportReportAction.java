@@ -0,0 +1,89 @@
+package com.jetbrains.php.tools.quality.phpstan;
+
+import com.intellij.notification.Notification;
+import com.intellij.notification.NotificationType;
+import com.intellij.notification.Notifications;
+import com.intellij.openapi.actionSystem.ActionUpdateThread;
+import com.intellij.openapi.actionSystem.AnActionEvent;
+import com.intellij.openapi.fileChooser.FileChooser;
+import com.intellij.openapi.fileChooser.FileChooserDescriptorFactory;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.DumbAwareAction;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.ui.Messages;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Imports a report of PHPStan made elsewhere, such as by CI on the main branch, so batch runs only analyse the files
+ * changed since the commit it was made on.
+ */
+final class PhpStanImportReportAction extends DumbAwareAction {
+  private static final @NonNls String NOTIFICATION_GROUP = "PHPStan";
+  private static final @NonNls String DEFAULT_REVISION = "HEAD";
+
+  @Override
+  public @NotNull ActionUpdateThread getActionUpdateThread() {
+    return ActionUpdateThread.BGT;
+  }
+
+  @Override
+  public void update(@NotNull AnActionEvent e) {
+    Project project = e.getProject();
+    e.getPresentation().setEnabledAndVisible(project != null && project.getBasePath() != null);
+  }
+
+  @Override
+  public void actionPerformed(@NotNull AnActionEvent e) {
+    Project project = e.getProject();
+    if (project == null || project.getBasePath() == null) return;
+    VirtualFile file = FileChooser.chooseFile(
+      FileChooserDescriptorFactory.createSingleFileDescriptor().withTitle(PhpStanBundle.message("phpstan.import.report.choose")),
+      project, null);
+    if (file == null) return;
+    String revision = Messages.showInputDialog(project, PhpStanBundle.message("phpstan.import.report.commit"),
+                                               PhpStanBundle.message("phpstan.import.report.title"), null, DEFAULT_REVISION, null);
+    if (revision == null || revision.isBlank()) return;
+    new Task.Backgroundable(project, PhpStanBundle.message("phpstan.import.report.importing"), true) {
+      @Override
+      public void run(@NotNull ProgressIndicator indicator) {
+        importReport(project, Path.of(file.getPath()), revision.trim());
+      }
+    }.queue();
+  }
+
+  private static void importReport(@NotNull Project project, @NotNull Path reportFile, @NotNull String revision) {
+    PhpStanImportedReportService service = PhpStanImportedReportService.getInstance(project);
+    String commit = service.resolveCommit(revision);
+    if (commit == null) {
+      notify(project, PhpStanBundle.message("phpstan.import.report.unknown.commit", revision), NotificationType.ERROR);
+      return;
+    }
+    Path basePath = Path.of(project.getBasePath());
+    PhpStanImportedReport report;
+    try {
+      report = PhpStanImportedReport.parse(Files.readString(reportFile, StandardCharsets.UTF_8), commit,
+                                           path -> Files.exists(basePath.resolve(path)));
+    }
+    catch (IOException e) {
+      notify(project, PhpStanBundle.message("phpstan.import.report.failed", e.getMessage()), NotificationType.ERROR);
+      return;
+    }
+    service.setReport(report);
+    notify(project, PhpStanBundle.message("phpstan.import.report.imported", report.getProblemCount(), report.getFiles().size(),
+                                          commit.substring(0, Math.min(commit.length(), 10)), report.getSkippedFiles()),
+           NotificationType.INFORMATION);
+  }
+
+  private static void notify(@NotNull Project project, @NotNull String content, @NotNull NotificationType type) {
+    Notifications.Bus.notify(new Notification(NOTIFICATION_GROUP, PhpStanBundle.message("phpstan.notification.group"), content, type),
+                             project);
+  }
+}
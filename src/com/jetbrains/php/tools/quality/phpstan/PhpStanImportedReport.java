@@ -0,0 +1,149 @@
+package com.jetbrains.php.tools.quality.phpstan;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * Problems of a full analysis made elsewhere, such as by CI on the main branch, imported to seed batch runs: only the
+ * files that differ from the {@link #getCommit() commit} it was made on have to be analysed again.
+ * <p>
+ * Reports in the {@code checkstyle} and {@code json} formats of PHPStan are read. The machine that made the report
+ * has the project elsewhere, so files are found in the project by the longest part of their reported path that exists
+ * in it; files that can't be found are skipped.
+ */
+public final class PhpStanImportedReport {
+  private static final @NonNls String FILES = "files";
+  private static final @NonNls String MESSAGES = "messages";
+  private static final @NonNls String MESSAGE = "message";
+  private static final @NonNls String LINE = "line";
+
+  private final @NotNull String myCommit;
+  private final @NotNull Map<String, List<PhpStanSharedResultCache.Problem>> myProblems;
+  private final int mySkippedFiles;
+
+  private PhpStanImportedReport(@NotNull String commit,
+                                @NotNull Map<String, List<PhpStanSharedResultCache.Problem>> problems,
+                                int skippedFiles) {
+    myCommit = commit;
+    myProblems = problems;
+    mySkippedFiles = skippedFiles;
+  }
+
+  /**
+   * @param content the report
+   * @param commit  the commit the report was made on
+   * @param exists  whether a path relative to the project exists
+   * @throws IOException if the report can't be read
+   */
+  public static @NotNull PhpStanImportedReport parse(@NotNull String content, @NotNull String commit, @NotNull Predicate<String> exists)
+    throws IOException {
+    Map<String, List<PhpStanSharedResultCache.Problem>> reported =
+      content.stripLeading().startsWith("{") ? parseJson(content) : PhpStanSharedResultCache.parseReport(content);
+    Map<String, List<PhpStanSharedResultCache.Problem>> problems = new TreeMap<>();
+    int skipped = 0;
+    String prefix = null;
+    for (Map.Entry<String, List<PhpStanSharedResultCache.Problem>> entry : reported.entrySet()) {
+      String name = entry.getKey().replace('\\', '/');
+      // The files of one report mostly share the part of the path that is not in the project
+      String path = prefix != null && name.startsWith(prefix) && exists.test(name.substring(prefix.length()))
+                    ? name.substring(prefix.length()) : findInProject(name, exists);
+      if (path == null) {
+        skipped++;
+        continue;
+      }
+      prefix = name.substring(0, name.length() - path.length());
+      problems.computeIfAbsent(path, p -> new ArrayList<>()).addAll(entry.getValue());
+    }
+    return new PhpStanImportedReport(commit, problems, skipped);
+  }
+
+  private static @Nullable String findInProject(@NotNull String name, @NotNull Predicate<String> exists) {
+    String path = name;
+    while (true) {
+      while (path.startsWith("/")) path = path.substring(1);
+      if (path.isEmpty()) return null;
+      if (exists.test(path)) return path;
+      int slash = path.indexOf('/');
+      if (slash < 0) return null;
+      path = path.substring(slash + 1);
+    }
+  }
+
+  private static @NotNull Map<String, List<PhpStanSharedResultCache.Problem>> parseJson(@NotNull String content) throws IOException {
+    Map<String, List<PhpStanSharedResultCache.Problem>> problems = new HashMap<>();
+    try {
+      JsonElement root = JsonParser.parseString(content);
+      JsonObject files = root.isJsonObject() && root.getAsJsonObject().get(FILES) instanceof JsonObject object ? object : null;
+      if (files == null) throw new IOException("No files in the PHPStan report");
+      for (Map.Entry<String, JsonElement> file : files.entrySet()) {
+        List<PhpStanSharedResultCache.Problem> fileProblems = problems.computeIfAbsent(file.getKey(), name -> new ArrayList<>());
+        if (!(file.getValue() instanceof JsonObject fileObject) || !fileObject.has(MESSAGES)) continue;
+        for (JsonElement message : fileObject.getAsJsonArray(MESSAGES)) {
+          if (!(message instanceof JsonObject messageObject)) continue;
+          JsonElement line = messageObject.get(LINE);
+          JsonElement text = messageObject.get(MESSAGE);
+          fileProblems.add(new PhpStanSharedResultCache.Problem(true, line != null && !line.isJsonNull() ? line.getAsInt() : 0, 0,
+                                                                text != null && !text.isJsonNull() ? text.getAsString() : ""));
+        }
+      }
+    }
+    catch (JsonParseException | IllegalStateException | UnsupportedOperationException e) {
+      throw new IOException(e);
+    }
+    return problems;
+  }
+
+  public @NotNull String getCommit() {
+    return myCommit;
+  }
+
+  /**
+   * @return paths of the reported files relative to the project, including files without problems if the format lists
+   * them
+   */
+  public @NotNull Set<String> getFiles() {
+    return myProblems.keySet();
+  }
+
+  public int getProblemCount() {
+    int count = 0;
+    for (List<PhpStanSharedResultCache.Problem> problems : myProblems.values()) count += problems.size();
+    return count;
+  }
+
+  /**
+   * @return number of reported files not found in the project
+   */
+  public int getSkippedFiles() {
+    return mySkippedFiles;
+  }
+
+  /**
+   * @param included      whether the problems of a file are kept, by its path relative to the project; e.g. not for the
+   *                      changed files
+   * @param messageSuffix appended to every message, e.g. to tell where the problem comes from
+   * @return checkstyle report of the kept files, with paths relative to the project
+   */
+  public @NotNull String toReport(@NotNull Predicate<String> included, @NotNull String messageSuffix) {
+    StringBuilder report = new StringBuilder("<checkstyle>");
+    for (Map.Entry<String, List<PhpStanSharedResultCache.Problem>> entry : myProblems.entrySet()) {
+      if (!included.test(entry.getKey()) || entry.getValue().isEmpty()) continue;
+      List<PhpStanSharedResultCache.Problem> problems = new ArrayList<>();
+      for (PhpStanSharedResultCache.Problem problem : entry.getValue()) {
+        problems.add(new PhpStanSharedResultCache.Problem(problem.error(), problem.line(), problem.column(),
+                                                          problem.message() + messageSuffix));
+      }
+      report.append(PhpStanSharedResultCache.toReport(entry.getKey(), problems));
+    }
+    return report.append("</checkstyle>").toString();
+  }
+}
@@ -0,0 +1,90 @@
+package com.jetbrains.php.tools.quality.phpstan;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import com.jetbrains.php.tools.quality.QualityToolXmlMessageProcessor.ProblemDescription;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.IOException;
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * Keeps the {@link PhpStanImportedReport report imported} for the project and seeds batch runs with it: the problems of
+ * the files unchanged since the commit of the report are taken from it, and only the changed files are analysed.
+ * <p>
+ * Changed files are what {@link PhpStanChangedFiles git} tells apart from the commit in the working tree, untracked
+ * files included. If {@code git} can't tell, the report is not used. Seeded problems name the commit in their message.
+ * <p>
+ * Only sharded batch runs of the local PHPStan are seeded: the others analyse paths PHPStan resolves itself, so the
+ * changed files can't be passed to them instead.
+ */
+public final class PhpStanImportedReportService {
+  private static final Logger LOG = Logger.getInstance(PhpStanImportedReportService.class);
+  private static final int SHORT_COMMIT_LENGTH = 10;
+
+  private final Project myProject;
+  private volatile @Nullable PhpStanImportedReport myReport;
+
+  /**
+   * @param problems     problems of the files in the scope unchanged since the commit of the report
+   * @param changedFiles paths relative to the project of the files to analyse again
+   */
+  public record Seed(@NotNull String commit, @NotNull List<ProblemDescription> problems, @NotNull Set<String> changedFiles) {
+  }
+
+  public PhpStanImportedReportService(@NotNull Project project) {
+    myProject = project;
+  }
+
+  public static PhpStanImportedReportService getInstance(@NotNull Project project) {
+    return project.getService(PhpStanImportedReportService.class);
+  }
+
+  public @Nullable PhpStanImportedReport getReport() {
+    return myReport;
+  }
+
+  public void setReport(@Nullable PhpStanImportedReport report) {
+    myReport = report;
+  }
+
+  /**
+   * @param inScope whether a file is in the scope of the run, by its path relative to the project
+   * @return the seed of a batch run starting now, or null if no report is imported or the changed files are unknown
+   */
+  public @Nullable Seed createSeed(@NotNull Predicate<String> inScope) {
+    PhpStanImportedReport report = myReport;
+    String basePath = myProject.getBasePath();
+    if (report == null || basePath == null) return null;
+    Set<String> changed = PhpStanChangedFiles.find(basePath, report.getCommit());
+    if (changed == null) {
+      LOG.warn("Cannot tell the files changed since " + report.getCommit() + ", not using the imported PHPStan report");
+      return null;
+    }
+    String commit = report.getCommit().substring(0, Math.min(report.getCommit().length(), SHORT_COMMIT_LENGTH));
+    String suffix = " " + PhpStanBundle.message("phpstan.import.report.problem.suffix", commit);
+    try {
+      List<ProblemDescription> problems =
+        PhpStanMessageProcessor.parseReport(report.toReport(path -> !changed.contains(path) && inScope.test(path), suffix));
+      LOG.info("PHPStan batch run seeded with " + problems.size() + " problems from " + report.getCommit() + ", " +
+               changed.size() + " files changed since");
+      return new Seed(report.getCommit(), problems, changed);
+    }
+    catch (SAXException | IOException | ParserConfigurationException e) {
+      LOG.warn("Cannot read the imported PHPStan report", e);
+      return null;
+    }
+  }
+
+  /**
+   * @return the commit the revision names, or null if it isn't known
+   */
+  public @Nullable String resolveCommit(@NotNull String revision) {
+    String basePath = myProject.getBasePath();
+    return basePath != null ? PhpStanChangedFiles.resolveCommit(basePath, revision) : null;
+  }
+}
@@ -0,0 +1,65 @@
+package com.jetbrains.php.tools.quality.phpstan;
+
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * PHP settings PHPStan processes are launched with, passed as {@code -d} options of the interpreter.
+ * <p>
+ * The tuned profiles turn Xdebug off, which otherwise slows PHPStan down several times, and keep the opcodes of
+ * PHPStan and its dependencies in a file cache, so they are compiled once rather than on every launch: the CLI opcode
+ * cache lives only as long as the process.
+ * <p>
+ * Only processes the plugin starts itself are launched with a profile. Single-file on-the-fly runs are started by the
+ * platform, which runs the tool as configured and only takes options of PHPStan, so they keep the settings of the
+ * interpreter. The settings say so next to the profile.
+ */
+public enum PhpStanLaunchProfile {
+  /** The settings of the interpreter as they are */
+  DEFAULT,
+  /** Xdebug off and the opcode file cache on */
+  TUNED,
+  /** As {@link #TUNED}, with the JIT compiler on */
+  TUNED_WITH_JIT;
+
+  private static final @NonNls String JIT_BUFFER_SIZE = "64M";
+
+  /**
+   * @param opcacheDirectory existing directory to keep the compiled files in, as seen by the interpreter
+   * @return options to pass to the interpreter before the script
+   */
+  public @NotNull List<String> getPhpOptions(@NotNull String opcacheDirectory) {
+    @NonNls List<String> options = new ArrayList<>();
+    if (this == DEFAULT) return options;
+    // Xdebug 3; Xdebug 2 ignores the mode and is rare enough with PHPStan's PHP requirements
+    addSetting(options, "xdebug.mode", "off");
+    addSetting(options, "opcache.enable_cli", "1");
+    addSetting(options, "opcache.file_cache", opcacheDirectory);
+    if (this == TUNED_WITH_JIT) {
+      addSetting(options, "opcache.jit", "tracing");
+      addSetting(options, "opcache.jit_buffer_size", JIT_BUFFER_SIZE);
+    }
+    return options;
+  }
+
+  /**
+   * The options can only be passed when PHPStan is started as a script of the interpreter, not through a wrapper such as
+   * a Windows batch file.
+   */
+  public static boolean isPhpScript(@NotNull String toolPath) {
+    String name = toolPath.substring(Math.max(toolPath.lastIndexOf('/'), toolPath.lastIndexOf('\\')) + 1).toLowerCase(Locale.ROOT);
+    int dot = name.lastIndexOf('.');
+    if (dot < 0) return true;
+    String extension = name.substring(dot + 1);
+    return extension.equals("php") || extension.equals("phar");
+  }
+
+  private static void addSetting(@NotNull List<String> options, @NonNls @NotNull String name, @NotNull String value) {
+    options.add("-d");
+    options.add(name + "=" + value);
+  }
+}
@@ -0,0 +1,51 @@
+package com.jetbrains.php.tools.quality.phpstan;
+
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Recognises PHPStan runs that exceeded {@code --memory-limit} and splits their work, so the analysis can be retried
+ * in smaller parts instead of failing as a whole.
+ */
+public final class PhpStanMemoryRecovery {
+  /**
+   * Fatal error of PHP itself, and the messages PHPStan prints when the main process or a parallel worker crashed on it
+   */
+  private static final @NonNls Pattern OUT_OF_MEMORY = Pattern.compile(
+    "Allowed memory size of \\d+ bytes exhausted|Out of memory \\(allocated|reached configured PHP memory limit");
+
+  private PhpStanMemoryRecovery() {
+  }
+
+  /**
+   * PHPStan also exits with a non-zero code when it reports errors, so the output decides.
+   */
+  public static boolean isOutOfMemory(int exitCode, @NotNull CharSequence stdout, @NotNull CharSequence stderr) {
+    return exitCode != 0 && (OUT_OF_MEMORY.matcher(stderr).find() || OUT_OF_MEMORY.matcher(stdout).find());
+  }
+
+  /**
+   * Splits consecutive units into two parts with about the same number of files, keeping their order.
+   *
+   * @return the two parts, or null if there are fewer than two units
+   */
+  public static @Nullable List<List<PhpStanBatchPlan.Unit>> halve(@NotNull List<PhpStanBatchPlan.Unit> units) {
+    if (units.size() < 2) return null;
+    int total = 0;
+    for (PhpStanBatchPlan.Unit unit : units) total += unit.fileCount();
+    int size = 0;
+    int index = 0;
+    // Take units while the first part stays closer to half than it would be with the next unit
+    while (index < units.size() - 1) {
+      int next = size + units.get(index).fileCount();
+      if (index > 0 && Math.abs(2L * next - total) > Math.abs(2L * size - total)) break;
+      size = next;
+      index++;
+    }
+    return List.of(List.copyOf(units.subList(0, index)), List.copyOf(units.subList(index, units.size())));
+  }
+}
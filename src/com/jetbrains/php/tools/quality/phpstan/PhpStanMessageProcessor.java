@@ -18,7 +18,9 @@ import org.xml.sax.Attributes;
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
+import javax.xml.parsers.ParserConfigurationException;
 import java.io.IOException;
+import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
@@ -33,17 +35,29 @@ public class PhpStanMessageProcessor extends QualityToolXmlMessageProcessor {
   private static final String FILE_TAG = "file";
   private static final @NonNls String WARNING_MESSAGE_START = "<file";
   private static final @NonNls String WARNING_MESSAGE_END = "</file>";
+  private static final @NonNls String REPORT_START = "<checkstyle";
+  private static final @NonNls String REPORT_END = "</checkstyle>";
   private static final String WARNING_TAG = "warning";
   private static final @NonNls String LINE_NUMBER_ATTR = "line";
   private static final @NonNls String COLUMN_NUMBER_ATTR = "column";
   private static final String MESSAGE_ATTR = "message";
   private static final @NonNls String SEVERITY_ATTR = "severity";
   private static final String FILE_NAME_ATTR = "name";
+  private static final @NonNls String PREFIX = "phpstan";
   private final Set<ProblemDescription> lineMessages = new HashSet<>();
   private final HighlightDisplayLevel myWarningsHighlightLevel;
   final String myFilePath;
   final PsiFile myPsiFile;
   final Project myProject;
+  private final @Nullable String myOriginalFilePath;
+  private @Nullable PhpStanBaseline.Matcher myBaselineMatcher;
+  private volatile @NotNull String myPrefix = PREFIX;
+  private final @Nullable String myVersion;
+  private final @Nullable CharSequence myAnalysedContent;
+  private final long myAnalysedStamp;
+  private @Nullable PhpStanEditMapping myEditMapping;
+  private long myEditMappingStamp;
+  private volatile boolean myRemapped;
 
   protected PhpStanMessageProcessor(QualityToolAnnotatorInfo<?> info) {
     super(info);
@@ -51,6 +65,21 @@ public class PhpStanMessageProcessor extends QualityToolXmlMessageProcessor {
     myFilePath = info.getTempFilePath();
     myPsiFile = info.getPsiFile();
     myProject = info.getProject();
+    myOriginalFilePath = myPsiFile != null && myPsiFile.getVirtualFile() != null ? myPsiFile.getVirtualFile().getPath() : null;
+    PhpStanQualityToolAnnotatorInfo phpStanInfo = info instanceof PhpStanQualityToolAnnotatorInfo i ? i : null;
+    myAnalysedContent = phpStanInfo != null ? phpStanInfo.getContent() : null;
+    myAnalysedStamp = phpStanInfo != null ? phpStanInfo.getModificationStamp() : -1;
+    PhpStanConfiguration configuration = phpStanInfo != null ? phpStanInfo.getPhpStanConfiguration() : null;
+    // The interpreter that ran, which for remote ones is not the local PHPStan
+    myVersion = configuration != null
+                ? configuration.getVersion() : PhpStanConfigurationManager.getInstance(myProject).getLocalSettings().getVersion();
+  }
+
+  /**
+   * @return whether problems were mapped to a document edited while PHPStan analysed it
+   */
+  boolean isRemapped() {
+    return myRemapped;
   }
 
   @Override
@@ -66,21 +95,34 @@ public class PhpStanMessageProcessor extends QualityToolXmlMessageProcessor {
       if (myPsiFile != null) {
         List<ProblemDescription> list = messageHandler.getProblemList();
         if (list == null) return;
+        PhpStanBaseline baseline = myOriginalFilePath != null
+                                   ? PhpStanBaselineService.getInstance(myProject).getBaseline() : PhpStanBaseline.EMPTY;
+        boolean fileInBaseline = myOriginalFilePath != null && baseline.hasEntries(myOriginalFilePath);
+        myPrefix = getPrefix(baseline, myOriginalFilePath);
         for (ProblemDescription problem : list) {
           if (myProject.isDisposed()) return;
+          if (!lineMessages.add(problem)) continue;
+          String message = problem.getMessage();
+          if (fileInBaseline && isBaselined(baseline, message)) continue;
           Document document = ReadAction.compute(() -> PsiDocumentManager.getInstance(myPsiFile.getProject()).getDocument(myPsiFile));
+          PhpStanEditMapping mapping = document != null ? getEditMapping(document) : null;
           QualityToolMessage qualityToolMessage;
-          if (document != null && problem.getLineNumber() - 1 > 0 && problem.getLineNumber() - 1 < document.getLineCount()) {
+          if (mapping != null) {
+            PhpStanEditMapping.Range range = mapping.mapLine(problem.getLineNumber() - 1, problem.getColumn());
+            // The code the problem was reported for has been edited
+            if (range == null) continue;
+            myRemapped = true;
+            qualityToolMessage = new QualityToolMessage(this, TextRange.create(range.start(), range.end()), problem.getSeverity(), message);
+          }
+          else if (document != null && problem.getLineNumber() - 1 > 0 && problem.getLineNumber() - 1 < document.getLineCount()) {
             qualityToolMessage = new QualityToolMessage(this, TextRange
               .create(document.getLineStartOffset(problem.getLineNumber() - 1) + problem.getColumn(),
-                      document.getLineEndOffset(problem.getLineNumber() - 1)), problem.getSeverity(), problem.getMessage());
+                      document.getLineEndOffset(problem.getLineNumber() - 1)), problem.getSeverity(), message);
           }
           else {
-            qualityToolMessage = new QualityToolMessage(this, problem.getLineNumber(), problem.getSeverity(), problem.getMessage());
-          }
-          if (lineMessages.add(problem)) {
-            addMessage(qualityToolMessage);
+            qualityToolMessage = new QualityToolMessage(this, problem.getLineNumber(), problem.getSeverity(), message);
           }
+          addMessage(qualityToolMessage);
         }
       } else {
         final List<ProblemDescription> data = myProject.getUserData(PHPSTAN_ANNOTATOR_INFO);
@@ -95,6 +137,67 @@ public class PhpStanMessageProcessor extends QualityToolXmlMessageProcessor {
     }
   }
 
+  /**
+   * Results are computed for the text the run analysed. If the document was edited since, the offsets of the
+   * problems are mapped through the edits rather than taken from the lines of the current text.
+   *
+   * @return the mapping, or null if the document is unchanged or the analysed text is unknown
+   */
+  private @Nullable PhpStanEditMapping getEditMapping(@NotNull Document document) {
+    if (myAnalysedContent == null) return null;
+    return ReadAction.compute(() -> {
+      long stamp = document.getModificationStamp();
+      if (stamp == myAnalysedStamp) return null;
+      if (myEditMapping == null || myEditMappingStamp != stamp) {
+        myEditMapping = PhpStanEditMapping.create(myAnalysedContent, document.getImmutableCharSequence());
+        myEditMappingStamp = stamp;
+      }
+      return myEditMapping.isChanged() ? myEditMapping : null;
+    });
+  }
+
+  /**
+   * In editor mode PHPStan analyses the file under its real path and applies the baseline itself.
+   * Otherwise it reports the temporary copy, which the baseline never matches, so the baseline is applied here.
+   */
+  private boolean isBaselined(@NotNull PhpStanBaseline baseline, @NotNull String message) {
+    if (PhpStanVersionSupport.supportsEditorMode(myVersion)) {
+      return false;
+    }
+    if (myBaselineMatcher == null) {
+      myBaselineMatcher = baseline.newMatcher();
+    }
+    return myBaselineMatcher.isBaselined(myOriginalFilePath, message);
+  }
+
+  /**
+   * Parses a complete checkstyle report, such as the output of one shard of a batch run, into the problems of all files.
+   */
+  static @NotNull List<ProblemDescription> parseReport(@NotNull String output)
+    throws SAXException, IOException, ParserConfigurationException {
+    int start = output.indexOf(REPORT_START);
+    int end = output.lastIndexOf(REPORT_END);
+    if (start < 0 || end < start) return List.of();
+    PhpStanXmlMessageHandler handler = new PhpStanXmlMessageHandler(null);
+    PhpStanXml.newParser()
+      .parse(new InputSource(new StringReader(output.substring(start, end + REPORT_END.length()))), handler);
+    return handler.myAllProblems;
+  }
+
+  /**
+   * Takes the problems of the analysed file from the report of a run that analysed several files, file by file as the
+   * platform passes the output of a run of its own.
+   */
+  void processReport(@NotNull String output) throws SAXException, IOException {
+    int start = output.indexOf(WARNING_MESSAGE_START);
+    while (start >= 0) {
+      int end = output.indexOf(WARNING_MESSAGE_END, start);
+      if (end < 0) break;
+      processMessage(new InputSource(new StringReader(output.substring(start, end + WARNING_MESSAGE_END.length()))));
+      start = output.indexOf(WARNING_MESSAGE_START, end);
+    }
+  }
+
   @Override
   protected XMLMessageHandler getXmlMessageHandler() {
     return null;
@@ -115,8 +218,20 @@ public class PhpStanMessageProcessor extends QualityToolXmlMessageProcessor {
   }
 
   @Override
-  protected @NonNls @Nullable String getMessagePrefix() {
-    return "phpstan";
+  protected @Nullable String getMessagePrefix() {
+    return myPrefix;
+  }
+
+  /**
+   * Problems the baseline leaves in a file with entries in it are new since the baseline. Files without entries had no
+   * problems when it was generated, or were not covered by it, so nothing in them is marked. The mark goes beside the
+   * message, which add to ignored and the baseline match as PHPStan reported it.
+   *
+   * @param originalFilePath path of the analysed document, or null if the result covers several files
+   */
+  public static @NotNull String getPrefix(@NotNull PhpStanBaseline baseline, @Nullable String originalFilePath) {
+    return originalFilePath != null && baseline.hasEntries(originalFilePath)
+           ? PhpStanBundle.message("phpstan.new.since.baseline", PREFIX) : PREFIX;
   }
 
   @Override
@@ -139,6 +254,7 @@ public class PhpStanMessageProcessor extends QualityToolXmlMessageProcessor {
     }
 
     private List<ProblemDescription> myProblemList;
+    private final List<ProblemDescription> myAllProblems = new ArrayList<>();
 
     private List<ProblemDescription> getProblemList() {
       return myProblemList;
@@ -155,8 +271,10 @@ public class PhpStanMessageProcessor extends QualityToolXmlMessageProcessor {
           mySeverity = attributes.getValue(SEVERITY_ATTR).equals(ERROR_TAG) ? ERROR : WARNING;
           myLineNumber = parseLineNumber(attributes.getValue(LINE_NUMBER_ATTR));
           int column = parseLineNumber(attributes.getValue(COLUMN_NUMBER_ATTR));
-          myProblemList
-            .add(new ProblemDescription(mySeverity, myLineNumber, Math.max(0, column - 1), attributes.getValue(MESSAGE_ATTR), myFileAttr));
+          ProblemDescription problem =
+            new ProblemDescription(mySeverity, myLineNumber, Math.max(0, column - 1), attributes.getValue(MESSAGE_ATTR), myFileAttr);
+          myProblemList.add(problem);
+          myAllProblems.add(problem);
         }
       }
     }
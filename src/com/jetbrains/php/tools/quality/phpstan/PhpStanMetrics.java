@@ -0,0 +1,97 @@
+package com.jetbrains.php.tools.quality.phpstan;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.diagnostic.Logger;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Application-wide counters and durations of PHPStan runs, logged at debug level and used to tune scheduling.
+ */
+public final class PhpStanMetrics {
+  private static final Logger LOG = Logger.getInstance(PhpStanMetrics.class);
+  private static final double TIMEOUT_PERCENTILE = 0.95;
+  private static final double TIMEOUT_FACTOR = 3;
+
+  public enum Counter {
+    /** PHPStan processes started by the plugin or the platform on its behalf */
+    RUNS,
+    /** Runs stopped because their result was no longer needed */
+    CANCELLED_RUNS,
+    /** Processes, including parallel workers, killed while stopping runs */
+    KILLED_PROCESSES,
+    /** Runs that exceeded their timeout */
+    TIMED_OUT_RUNS,
+    /** On-the-fly runs answered from the result cache without starting PHPStan */
+    CACHED_RUNS,
+    /** On-the-fly runs answered from results stored by any project on this machine */
+    SHARED_RESULTS,
+    /** Cache directories deleted to keep within the disk quota */
+    EVICTED_CACHES,
+    /** Bytes freed by deleting cache directories */
+    RECLAIMED_CACHE_BYTES
+  }
+
+  private final Map<Counter, AtomicLong> myCounters = new EnumMap<>(Counter.class);
+  private final Map<PhpStanConfigOverlay.RunKind, PhpStanDurationHistory> myDurations = new EnumMap<>(PhpStanConfigOverlay.RunKind.class);
+
+  public PhpStanMetrics() {
+    for (Counter counter : Counter.values()) {
+      myCounters.put(counter, new AtomicLong());
+    }
+    for (PhpStanConfigOverlay.RunKind kind : PhpStanConfigOverlay.RunKind.values()) {
+      myDurations.put(kind, new PhpStanDurationHistory());
+    }
+  }
+
+  public static PhpStanMetrics getInstance() {
+    return ApplicationManager.getApplication().getService(PhpStanMetrics.class);
+  }
+
+  public void increment(@NotNull Counter counter) {
+    add(counter, 1);
+  }
+
+  public void add(@NotNull Counter counter, long delta) {
+    long value = myCounters.get(counter).addAndGet(delta);
+    if (LOG.isDebugEnabled()) {
+      LOG.debug(counter + " = " + value);
+    }
+  }
+
+  public long get(@NotNull Counter counter) {
+    return myCounters.get(counter).get();
+  }
+
+  /**
+   * Records how long a run took.
+   *
+   * @param key what the run analysed, e.g. the path of the file
+   */
+  public void recordDuration(@NotNull PhpStanConfigOverlay.RunKind kind, @NotNull String key, long durationMs) {
+    myDurations.get(kind).record(key, durationMs);
+  }
+
+  /**
+   * Records a run that timed out, so the next run of the key gets more time.
+   */
+  public void recordTimeout(@NotNull PhpStanConfigOverlay.RunKind kind, @NotNull String key, long timeoutMs) {
+    myDurations.get(kind).recordTimeout(key, timeoutMs);
+  }
+
+  /**
+   * @param configuredMs timeout of the tool configuration, used until enough runs have been observed
+   * @return a multiple of what most recent runs of the key took, within the bounds set in {@link PhpStanGovernorSettings}
+   */
+  public int getAdaptiveTimeout(@NotNull PhpStanConfigOverlay.RunKind kind, @NotNull String key, int configuredMs) {
+    PhpStanGovernorSettings settings = PhpStanGovernorSettings.getInstance();
+    PhpStanDurationHistory history = myDurations.get(kind);
+    long maxMs = settings.getMaxTimeoutSeconds() * 1000L;
+    long timeout = PhpStanDurationHistory.computeTimeout(history.getPercentile(key, TIMEOUT_PERCENTILE), TIMEOUT_FACTOR, configuredMs,
+                                                         settings.getMinTimeoutSeconds() * 1000L, maxMs);
+    return (int)Math.max(timeout, Math.min(maxMs, history.getMinimumTimeout(key)));
+  }
+}
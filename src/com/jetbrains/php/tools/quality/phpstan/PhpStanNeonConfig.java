@@ -0,0 +1,448 @@
+package com.jetbrains.php.tools.quality.phpstan;
+
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Effective PHPStan configuration built from a root {@code phpstan.neon} and everything it includes.
+ * <p>
+ * Files are merged the way PHPStan merges them: included files first, then the including file on top;
+ * mappings are merged recursively, lists are appended and keys ending with {@code !} replace the inherited value.
+ * Relative paths in the well-known path parameters are resolved against the directory of the file declaring them.
+ * <p>
+ * The {@link #getFingerprint() fingerprint} covers the content of the whole include tree and uses paths relative
+ * to the project root, so it is stable across machines and checkouts of the same repository.
+ */
+public final class PhpStanNeonConfig {
+  private static final @NonNls String INCLUDES = "includes";
+  private static final @NonNls String PARAMETERS = "parameters";
+  private static final @NonNls String SERVICES = "services";
+  private static final @NonNls String COLLECTORS = "collectors";
+  private static final @NonNls String COLLECTOR_TAG = "phpstan.collector";
+  private static final @NonNls String CURRENT_WORKING_DIRECTORY = "%currentWorkingDirectory%";
+  private static final @NonNls String ROOT_DIR = "%rootDir%";
+  private static final @NonNls Set<String> PATH_LIST_PARAMETERS =
+    Set.of("paths", "excludePaths", "excludes_analyse", "bootstrapFiles", "scanFiles", "scanDirectories");
+
+  private final @NotNull List<ConfigFile> myFiles;
+  private final @NotNull Map<String, Object> myParameters;
+  private final @NotNull String myFingerprint;
+  private final boolean myCollectors;
+
+  private PhpStanNeonConfig(@NotNull List<ConfigFile> files,
+                            @NotNull Map<String, Object> parameters,
+                            @NotNull String fingerprint,
+                            boolean collectors) {
+    myFiles = files;
+    myParameters = parameters;
+    myFingerprint = fingerprint;
+    myCollectors = collectors;
+  }
+
+  /**
+   * Loads the configuration rooted at {@code root}.
+   *
+   * @param root     path of the root configuration file
+   * @param basePath project root used for {@code %currentWorkingDirectory%} and for relative fingerprint paths
+   * @param reader   provides parsed files, allowing callers to cache them between loads
+   */
+  public static @NotNull PhpStanNeonConfig load(@NotNull Path root,
+                                                @Nullable String basePath,
+                                                @NotNull Function<Path, ConfigFile> reader) {
+    List<ConfigFile> files = new ArrayList<>();
+    Map<String, Object> merged = loadRecursively(root.toAbsolutePath().normalize(), reader, files, new HashSet<>());
+    Object parameters = merged.get(PARAMETERS);
+    //noinspection unchecked
+    Map<String, Object> parameterMap = parameters instanceof Map<?, ?> ? (Map<String, Object>)parameters : Map.of();
+    boolean collectors = !isEmpty(merged.get(COLLECTORS)) || containsValue(merged.get(SERVICES), COLLECTOR_TAG);
+    return new PhpStanNeonConfig(List.copyOf(files), Collections.unmodifiableMap(parameterMap), computeFingerprint(files, basePath),
+                                 collectors);
+  }
+
+  private static boolean isEmpty(@Nullable Object value) {
+    return value == null || value instanceof Collection<?> collection && collection.isEmpty() || value instanceof Map<?, ?> map && map.isEmpty();
+  }
+
+  private static boolean containsValue(@Nullable Object value, @NotNull String expected) {
+    if (value instanceof Map<?, ?> map) value = map.values();
+    if (value instanceof Collection<?> collection) {
+      for (Object item : collection) {
+        if (containsValue(item, expected)) return true;
+      }
+      return false;
+    }
+    return expected.equals(value);
+  }
+
+  private static @NotNull Map<String, Object> loadRecursively(@NotNull Path path,
+                                                             @NotNull Function<Path, ConfigFile> reader,
+                                                             @NotNull List<ConfigFile> files,
+                                                             @NotNull Set<Path> visited) {
+    Map<String, Object> result = new LinkedHashMap<>();
+    if (!visited.add(path)) return result;
+    ConfigFile file = reader.apply(path);
+    files.add(file);
+    for (String include : file.includes()) {
+      if (include.contains("://")) continue;
+      if (include.endsWith(".neon") || include.endsWith(".neon.dist")) {
+        merge(result, loadRecursively(Path.of(include).normalize(), reader, files, visited));
+      }
+      else if (visited.add(Path.of(include).normalize())) {
+        // Non-NEON includes (e.g. a PHP baseline) are not interpreted but still contribute to the fingerprint
+        files.add(reader.apply(Path.of(include).normalize()));
+      }
+    }
+    Map<String, Object> own = new LinkedHashMap<>(file.data());
+    own.remove(INCLUDES);
+    merge(result, own);
+    return result;
+  }
+
+  @SuppressWarnings("unchecked")
+  static void merge(@NotNull Map<String, Object> target, @NotNull Map<String, Object> source) {
+    for (Map.Entry<String, Object> entry : source.entrySet()) {
+      String key = entry.getKey();
+      Object value = entry.getValue();
+      if (key.endsWith("!")) {
+        target.put(key.substring(0, key.length() - 1), value);
+        continue;
+      }
+      Object existing = target.get(key);
+      if (existing instanceof Map<?, ?> existingMap && value instanceof Map<?, ?> valueMap) {
+        Map<String, Object> copy = new LinkedHashMap<>((Map<String, Object>)existingMap);
+        merge(copy, (Map<String, Object>)valueMap);
+        target.put(key, copy);
+      }
+      else if (existing instanceof List<?> existingList && value instanceof List<?> valueList) {
+        List<Object> copy = new ArrayList<>(existingList);
+        copy.addAll(valueList);
+        target.put(key, copy);
+      }
+      else {
+        target.put(key, value);
+      }
+    }
+  }
+
+  private static @NotNull String computeFingerprint(@NotNull List<ConfigFile> files, @Nullable String basePath) {
+    MessageDigest digest = sha256();
+    for (ConfigFile file : files) {
+      digest.update(relativize(file.path(), basePath).getBytes(StandardCharsets.UTF_8));
+      digest.update((byte)0);
+      digest.update(file.contentHash().getBytes(StandardCharsets.UTF_8));
+      digest.update((byte)'\n');
+    }
+    return HexFormat.of().formatHex(digest.digest());
+  }
+
+  /**
+   * @return all files of the include tree in load order, the root file included
+   */
+  public @NotNull List<ConfigFile> getFiles() {
+    return myFiles;
+  }
+
+  /**
+   * @return merged {@code parameters} section
+   */
+  public @NotNull Map<String, Object> getParameters() {
+    return myParameters;
+  }
+
+  /**
+   * @return hex SHA-256 over the relative paths and contents of the whole include tree
+   */
+  public @NotNull String getFingerprint() {
+    return myFingerprint;
+  }
+
+  /**
+   * @return analysed paths resolved to absolute system-independent paths
+   */
+  public @NotNull List<String> getPaths() {
+    return stringList(myParameters.get("paths"));
+  }
+
+  /**
+   * @return excluded paths and fnmatch patterns from both {@code excludePaths} forms and the legacy {@code excludes_analyse}
+   */
+  public @NotNull List<String> getExcludePaths() {
+    List<String> result = new ArrayList<>();
+    Object excludePaths = myParameters.get("excludePaths");
+    if (excludePaths instanceof Map<?, ?> map) {
+      result.addAll(stringList(map.get("analyse")));
+      result.addAll(stringList(map.get("analyseAndScan")));
+    }
+    else {
+      result.addAll(stringList(excludePaths));
+    }
+    result.addAll(stringList(myParameters.get("excludes_analyse")));
+    return result;
+  }
+
+  /**
+   * @return configured rule level, e.g. {@code "5"} or {@code "max"}
+   */
+  public @Nullable String getLevel() {
+    Object level = myParameters.get("level");
+    return level == null ? null : String.valueOf(level);
+  }
+
+  /**
+   * Whether PHPStan reports other errors when the analysed files are split between runs, as batch runs in shards do,
+   * than when it analyses them all at once: collectors gather data across all analysed files for the rules using it,
+   * and ignored errors without a path are reported as not matched by any run that doesn't come across them.
+   * <p>
+   * Collectors registered by extensions are not seen here; those declared in the configuration are.
+   */
+  public boolean requiresWholeAnalysis() {
+    if (myCollectors) return true;
+    if (Boolean.FALSE.equals(myParameters.get("reportUnmatchedIgnoredErrors"))) return false;
+    if (!(myParameters.get("ignoreErrors") instanceof List<?> ignoreErrors)) return false;
+    for (Object ignore : ignoreErrors) {
+      if (!(ignore instanceof Map<?, ?> map) || !map.containsKey("path") && !map.containsKey("paths")) return true;
+    }
+    return false;
+  }
+
+  public @Nullable Integer getParallelMaximumNumberOfProcesses() {
+    return parallelInt("maximumNumberOfProcesses");
+  }
+
+  public @Nullable Integer getParallelJobSize() {
+    return parallelInt("jobSize");
+  }
+
+  public @Nullable String getTmpDir() {
+    return myParameters.get("tmpDir") instanceof String tmpDir ? tmpDir : null;
+  }
+
+  private @Nullable Integer parallelInt(@NonNls @NotNull String key) {
+    return myParameters.get("parallel") instanceof Map<?, ?> parallel && parallel.get(key) instanceof Number number
+           ? number.intValue() : null;
+  }
+
+  private static @NotNull List<String> stringList(@Nullable Object value) {
+    if (value instanceof String string) return List.of(string);
+    if (!(value instanceof Collection<?> collection)) return List.of();
+    List<String> result = new ArrayList<>(collection.size());
+    for (Object item : collection) {
+      if (item instanceof String string) result.add(string);
+    }
+    return result;
+  }
+
+  /**
+   * A single parsed file of the include tree.
+   *
+   * @param path        absolute path of the file
+   * @param contentHash hex SHA-256 of the file content, or a marker for missing and unreadable files
+   * @param data        decoded content with path parameters resolved
+   * @param includes    absolute paths of included files, in declaration order
+   * @param error       parse or read error, if any
+   */
+  public record ConfigFile(@NotNull Path path,
+                           @NotNull String contentHash,
+                           @NotNull Map<String, Object> data,
+                           @NotNull List<String> includes,
+                           @Nullable String error) {
+
+    /**
+     * Reads and parses a configuration file. Never throws: unreadable files yield an empty model with {@link #error()} set.
+     */
+    public static @NotNull ConfigFile read(@NotNull Path path, @Nullable String basePath) {
+      byte[] content;
+      try {
+        content = Files.readAllBytes(path);
+      }
+      catch (IOException e) {
+        return new ConfigFile(path, "missing", Map.of(), List.of(), e.getMessage());
+      }
+      String hash = HexFormat.of().formatHex(sha256().digest(content));
+      String fileName = path.getFileName().toString();
+      if (!fileName.endsWith(".neon") && !fileName.endsWith(".neon.dist")) {
+        return new ConfigFile(path, hash, Map.of(), List.of(), null);
+      }
+      Object parsed;
+      try {
+        parsed = PhpStanNeonParser.parse(new String(content, StandardCharsets.UTF_8));
+      }
+      catch (PhpStanNeonParser.NeonException e) {
+        return new ConfigFile(path, hash, Map.of(), List.of(), e.getMessage());
+      }
+      if (!(parsed instanceof Map<?, ?>)) {
+        return new ConfigFile(path, hash, Map.of(), List.of(), null);
+      }
+      //noinspection unchecked
+      Map<String, Object> data = (Map<String, Object>)parsed;
+      Path directory = path.toAbsolutePath().getParent();
+      List<String> includes = new ArrayList<>();
+      for (String include : stringList(data.get(INCLUDES))) {
+        includes.add(resolvePath(include, directory, basePath));
+      }
+      if (data.get(PARAMETERS) instanceof Map<?, ?> parameters) {
+        //noinspection unchecked
+        resolveParameterPaths((Map<String, Object>)parameters, directory, basePath);
+      }
+      return new ConfigFile(path, hash, data, List.copyOf(includes), null);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private static void resolveParameterPaths(@NotNull Map<String, Object> parameters, @NotNull Path directory, @Nullable String basePath) {
+    for (Map.Entry<String, Object> entry : parameters.entrySet()) {
+      String key = entry.getKey().endsWith("!") ? entry.getKey().substring(0, entry.getKey().length() - 1) : entry.getKey();
+      Object value = entry.getValue();
+      if (PATH_LIST_PARAMETERS.contains(key)) {
+        entry.setValue(resolvePaths(value, directory, basePath));
+      }
+      else if ("tmpDir".equals(key) && value instanceof String string) {
+        entry.setValue(resolvePath(string, directory, basePath));
+      }
+      else if ("ignoreErrors".equals(key) && value instanceof List<?> list) {
+        for (Object item : list) {
+          if (item instanceof Map<?, ?> map) {
+            Map<String, Object> ignore = (Map<String, Object>)map;
+            if (ignore.get("path") instanceof String path) ignore.put("path", resolvePath(path, directory, basePath));
+            if (ignore.containsKey("paths")) ignore.put("paths", resolvePaths(ignore.get("paths"), directory, basePath));
+          }
+        }
+      }
+    }
+  }
+
+  private static @Nullable Object resolvePaths(@Nullable Object value, @NotNull Path directory, @Nullable String basePath) {
+    if (value instanceof String string) return resolvePath(string, directory, basePath);
+    if (value instanceof List<?> list) {
+      List<Object> result = new ArrayList<>(list.size());
+      for (Object item : list) result.add(item instanceof String string ? resolvePath(string, directory, basePath) : item);
+      return result;
+    }
+    if (value instanceof Map<?, ?> map) {
+      Map<String, Object> result = new LinkedHashMap<>();
+      for (Map.Entry<?, ?> entry : map.entrySet()) {
+        result.put(String.valueOf(entry.getKey()), resolvePaths(entry.getValue(), directory, basePath));
+      }
+      return result;
+    }
+    return value;
+  }
+
+  /**
+   * Changes the {@code includes} of a configuration file, for a copy of it next to the original, such as one leaving out
+   * the baseline. Only includes listed on lines of their own are changed.
+   *
+   * @param content   content of the file
+   * @param directory directory of the file, which relative includes are resolved against
+   * @param includes  new include by the resolved path of each include to change, or null to drop it
+   */
+  public static @NotNull String rewriteIncludes(@NotNull String content,
+                                                @NotNull Path directory,
+                                                @Nullable String basePath,
+                                                @NotNull Map<String, String> includes) {
+    StringBuilder result = new StringBuilder(content.length());
+    boolean inIncludes = false;
+    String[] lines = content.split("\n", -1);
+    for (int i = 0; i < lines.length; i++) {
+      String line = lines[i];
+      String trimmed = line.trim();
+      if (!line.isEmpty() && !Character.isWhitespace(line.charAt(0)) && !trimmed.startsWith("#")) {
+        inIncludes = trimmed.equals(INCLUDES + ":");
+      }
+      else if (inIncludes && trimmed.startsWith("-")) {
+        String value = unquote(stripComment(trimmed.substring(1).trim()));
+        String resolved = resolvePath(value, directory, basePath);
+        if (includes.containsKey(resolved)) {
+          String include = includes.get(resolved);
+          if (include == null) continue;
+          line = line.substring(0, line.indexOf('-') + 1) + " '" + include.replace("'", "''") + "'" + (line.endsWith("\r") ? "\r" : "");
+        }
+      }
+      result.append(line);
+      if (i < lines.length - 1) result.append('\n');
+    }
+    return result.toString();
+  }
+
+  private static @NotNull String stripComment(@NotNull String value) {
+    if (value.startsWith("'") || value.startsWith("\"")) {
+      int end = value.indexOf(value.charAt(0), 1);
+      return end > 0 ? value.substring(0, end + 1) : value;
+    }
+    int comment = value.indexOf(" #");
+    return comment >= 0 ? value.substring(0, comment).trim() : value;
+  }
+
+  private static @NotNull String unquote(@NotNull String value) {
+    if (value.length() >= 2 && (value.startsWith("'") && value.endsWith("'") || value.startsWith("\"") && value.endsWith("\""))) {
+      return value.substring(1, value.length() - 1);
+    }
+    return value;
+  }
+
+  /**
+   * Resolves a configuration path the way PHPStan does: parameters are expanded, relative paths are taken relative
+   * to the declaring file and patterns starting with a wildcard are kept as is.
+   */
+  static @NotNull String resolvePath(@NotNull String value, @NotNull Path directory, @Nullable String basePath) {
+    String root = basePath != null ? basePath : directory.toString();
+    String expanded = value
+      .replace(CURRENT_WORKING_DIRECTORY, root)
+      .replace(ROOT_DIR, root + "/vendor/phpstan/phpstan");
+    if (expanded.startsWith("*") || isAbsolute(expanded)) {
+      return toSystemIndependent(expanded);
+    }
+    return toSystemIndependent(normalize(toSystemIndependent(directory.toString()) + "/" + toSystemIndependent(expanded)));
+  }
+
+  static @NotNull String relativize(@NotNull Path path, @Nullable String basePath) {
+    String absolute = toSystemIndependent(path.toString());
+    if (basePath != null) {
+      String base = toSystemIndependent(basePath);
+      if (absolute.startsWith(base + "/")) return absolute.substring(base.length() + 1);
+    }
+    return absolute;
+  }
+
+  private static boolean isAbsolute(@NotNull String path) {
+    return path.startsWith("/") || path.startsWith("\\") || path.startsWith("phar://") ||
+           path.length() > 2 && Character.isLetter(path.charAt(0)) && path.charAt(1) == ':' &&
+           (path.charAt(2) == '/' || path.charAt(2) == '\\');
+  }
+
+  private static @NotNull String normalize(@NotNull String path) {
+    Deque<String> parts = new ArrayDeque<>();
+    for (String part : path.split("/", -1)) {
+      if (part.equals(".") || part.isEmpty() && !parts.isEmpty()) continue;
+      if (part.equals("..") && !parts.isEmpty() && !parts.peekLast().isEmpty()) {
+        parts.removeLast();
+        continue;
+      }
+      parts.addLast(part);
+    }
+    return String.join("/", parts);
+  }
+
+  private static @NotNull String toSystemIndependent(@NotNull String path) {
+    return path.replace('\\', '/');
+  }
+
+  private static @NotNull MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
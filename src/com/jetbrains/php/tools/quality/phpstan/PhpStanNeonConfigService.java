@@ -0,0 +1,147 @@
+package com.jetbrains.php.tools.quality.phpstan;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.ModificationTracker;
+import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileMoveEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFilePropertyChangeEvent;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.intellij.openapi.util.text.StringUtil.isEmpty;
+
+/**
+ * Keeps the parsed PHPStan configuration of the project up to date.
+ * <p>
+ * Every file of the include tree is parsed once and cached until a VFS event touches it, so editing one included file
+ * re-reads only that file. The modification count of this tracker changes whenever any file of the tree changes,
+ * and {@link #getFingerprint()} identifies the effective configuration, which makes it suitable as a cache key.
+ */
+public final class PhpStanNeonConfigService implements ModificationTracker, Disposable {
+  private static final Logger LOG = Logger.getInstance(PhpStanNeonConfigService.class);
+
+  private final Project myProject;
+  private final Map<Path, PhpStanNeonConfig.ConfigFile> myFiles = new ConcurrentHashMap<>();
+  private final AtomicLong myModificationCount = new AtomicLong();
+  private volatile @Nullable LoadedConfig myLoadedConfig;
+
+  private record LoadedConfig(@NotNull String root, long stamp, @NotNull PhpStanNeonConfig config) {
+  }
+
+  public PhpStanNeonConfigService(@NotNull Project project) {
+    myProject = project;
+    project.getMessageBus().connect(this).subscribe(VirtualFileManager.VFS_CHANGES, new BulkFileListener() {
+      @Override
+      public void after(@NotNull List<? extends @NotNull VFileEvent> events) {
+        if (myFiles.isEmpty()) return;
+        boolean changed = false;
+        for (VFileEvent event : events) {
+          changed |= invalidate(event.getPath());
+          if (event instanceof VFileMoveEvent moveEvent) {
+            changed |= invalidate(moveEvent.getNewPath());
+          }
+          else if (event instanceof VFilePropertyChangeEvent propertyEvent && propertyEvent.isRename()) {
+            changed |= invalidate(propertyEvent.getNewPath());
+          }
+        }
+        if (changed) {
+          myModificationCount.incrementAndGet();
+        }
+      }
+    });
+  }
+
+  public static PhpStanNeonConfigService getInstance(@NotNull Project project) {
+    return project.getService(PhpStanNeonConfigService.class);
+  }
+
+  /**
+   * @return the effective configuration of the file set in the PHPStan options, or null if none is set
+   */
+  public @Nullable PhpStanNeonConfig getConfig() {
+    String root = PhpStanOptionsConfiguration.getInstance(myProject).getConfig();
+    if (isEmpty(root)) return null;
+    long stamp = myModificationCount.get();
+    LoadedConfig loaded = myLoadedConfig;
+    if (loaded != null && loaded.stamp() == stamp && loaded.root().equals(root)) {
+      return loaded.config();
+    }
+    Path rootPath;
+    try {
+      rootPath = Path.of(root);
+    }
+    catch (InvalidPathException e) {
+      LOG.info("Invalid PHPStan configuration path: " + root);
+      return null;
+    }
+    PhpStanNeonConfig config = PhpStanNeonConfig.load(rootPath, myProject.getBasePath(), this::readFile);
+    myLoadedConfig = new LoadedConfig(root, stamp, config);
+    return config;
+  }
+
+  /**
+   * Identifies everything in the project settings and configuration files that affects PHPStan results.
+   *
+   * @return hex SHA-256 over the include tree fingerprint and the analysis options set in the IDE
+   */
+  public @NotNull String getFingerprint() {
+    PhpStanOptionsConfiguration options = PhpStanOptionsConfiguration.getInstance(myProject);
+    PhpStanNeonConfig config = getConfig();
+    @NonNls String key = "config=" + (config != null ? config.getFingerprint() : "") +
+                         "\nlevel=" + (config != null ? "" : options.getLevel()) +
+                         "\nautoload=" + options.getAutoload();
+    try {
+      return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8)));
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public long getModificationCount() {
+    return myModificationCount.get();
+  }
+
+  private @NotNull PhpStanNeonConfig.ConfigFile readFile(@NotNull Path path) {
+    return myFiles.computeIfAbsent(path, p -> {
+      PhpStanNeonConfig.ConfigFile file = PhpStanNeonConfig.ConfigFile.read(p, myProject.getBasePath());
+      if (file.error() != null) {
+        LOG.info("Cannot read PHPStan configuration " + p + ": " + file.error());
+      }
+      return file;
+    });
+  }
+
+  private boolean invalidate(@NotNull String eventPath) {
+    boolean changed = false;
+    for (Path path : myFiles.keySet()) {
+      String cachedPath = path.toString().replace('\\', '/');
+      if (cachedPath.equals(eventPath) || cachedPath.startsWith(eventPath + "/")) {
+        changed |= myFiles.remove(path) != null;
+      }
+    }
+    return changed;
+  }
+
+  @Override
+  public void dispose() {
+    myFiles.clear();
+  }
+}
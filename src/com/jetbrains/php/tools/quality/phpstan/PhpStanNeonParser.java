@@ -0,0 +1,484 @@
+package com.jetbrains.php.tools.quality.phpstan;
+
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parser for the NEON format used by PHPStan configuration files.
+ * <p>
+ * Supports block and inline mappings and sequences, quoted and bare strings, comments and entities.
+ * Mappings are decoded to {@link LinkedHashMap}, sequences to {@link List}, entities to {@link Entity}
+ * and scalars to {@link String}, {@link Boolean}, {@link Long}, {@link Double} or {@code null}.
+ *
+ * @see <a href="https://ne-on.org/">NEON specification</a>
+ */
+public final class PhpStanNeonParser {
+  private static final @NonNls String CLOSING_CHARS = ",]})";
+
+  private final CharSequence myText;
+  private final List<Token> myTokens = new ArrayList<>();
+  private int myPosition;
+
+  private PhpStanNeonParser(@NotNull CharSequence text) {
+    myText = text;
+  }
+
+  /**
+   * Parses NEON text.
+   *
+   * @param text NEON document
+   * @return decoded value, {@code null} for an empty document
+   * @throws NeonException if the document is malformed
+   */
+  public static @Nullable Object parse(@NotNull CharSequence text) throws NeonException {
+    PhpStanNeonParser parser = new PhpStanNeonParser(text);
+    parser.tokenize();
+    return parser.parseDocument();
+  }
+
+  /**
+   * NEON entity such as {@code Foo(bar, baz: 1)}.
+   */
+  public record Entity(@Nullable Object value, @NotNull Map<String, Object> attributes) {
+  }
+
+  public static final class NeonException extends Exception {
+    private final int myLine;
+
+    NeonException(@NotNull String message, int line) {
+      super(message + " on line " + line);
+      myLine = line;
+    }
+
+    public int getLine() {
+      return myLine;
+    }
+  }
+
+  // ==================== Lexer ====================
+
+  private enum TokenType {NEWLINE, LITERAL, STRING, CHAR, EOF}
+
+  private record Token(@NotNull TokenType type, @NotNull String text, int line, int column) {
+    boolean isChar(char c) {
+      return type == TokenType.CHAR && text.charAt(0) == c;
+    }
+  }
+
+  private void tokenize() throws NeonException {
+    int length = myText.length();
+    int offset = 0;
+    int line = 1;
+    int lineStart = 0;
+    while (offset < length) {
+      char c = myText.charAt(offset);
+      if (c == '\n' || c == '\r') {
+        // Collapse blank and comment-only lines; the NEWLINE token carries the indent of the next meaningful line
+        while (offset < length) {
+          char ch = myText.charAt(offset);
+          if (ch == '\n') {
+            line++;
+            lineStart = offset + 1;
+            offset++;
+          }
+          else if (ch == '\r' || ch == ' ' || ch == '\t') {
+            offset++;
+          }
+          else if (ch == '#') {
+            while (offset < length && myText.charAt(offset) != '\n') offset++;
+          }
+          else {
+            break;
+          }
+        }
+        int indentEnd = lineStart;
+        while (indentEnd < length && (myText.charAt(indentEnd) == ' ' || myText.charAt(indentEnd) == '\t')) indentEnd++;
+        addToken(TokenType.NEWLINE, myText.subSequence(lineStart, indentEnd).toString(), line, 0);
+        continue;
+      }
+      if (c == ' ' || c == '\t') {
+        offset++;
+        continue;
+      }
+      int column = offset - lineStart;
+      if (c == '#') {
+        while (offset < length && myText.charAt(offset) != '\n') offset++;
+        continue;
+      }
+      if (c == '\'' || c == '"') {
+        int[] lineCounter = {line};
+        int end = scanQuoted(offset, lineCounter);
+        addToken(TokenType.STRING, myText.subSequence(offset, end).toString(), line, column);
+        for (int i = offset; i < end; i++) {
+          if (myText.charAt(i) == '\n') lineStart = i + 1;
+        }
+        line = lineCounter[0];
+        offset = end;
+        continue;
+      }
+      if ("[]{}(),=".indexOf(c) >= 0) {
+        addToken(TokenType.CHAR, String.valueOf(c), line, column);
+        offset++;
+        continue;
+      }
+      if ((c == ':' || c == '-') && isSeparatorAt(offset + 1)) {
+        addToken(TokenType.CHAR, String.valueOf(c), line, column);
+        offset++;
+        continue;
+      }
+      int end = scanLiteral(offset);
+      addToken(TokenType.LITERAL, myText.subSequence(offset, end).toString(), line, column);
+      offset = end;
+    }
+    addToken(TokenType.EOF, "", line, 0);
+  }
+
+  private boolean isSeparatorAt(int offset) {
+    if (offset >= myText.length()) return true;
+    char c = myText.charAt(offset);
+    return c == ' ' || c == '\t' || c == '\n' || c == '\r' || CLOSING_CHARS.indexOf(c) >= 0;
+  }
+
+  private int scanLiteral(int offset) {
+    int length = myText.length();
+    int end = offset;
+    int lastNonBlank = offset;
+    while (end < length) {
+      char c = myText.charAt(end);
+      if (c == '\n' || c == '\r' || "[]{}(),=".indexOf(c) >= 0 && end > offset) break;
+      if (c == ':' && end > offset && isSeparatorAt(end + 1)) break;
+      if (c == '#' && end > offset && (myText.charAt(end - 1) == ' ' || myText.charAt(end - 1) == '\t')) break;
+      end++;
+      if (c != ' ' && c != '\t') lastNonBlank = end;
+    }
+    return lastNonBlank;
+  }
+
+  private int scanQuoted(int offset, int[] line) throws NeonException {
+    char quote = myText.charAt(offset);
+    int length = myText.length();
+    boolean triple = offset + 2 < length && myText.charAt(offset + 1) == quote && myText.charAt(offset + 2) == quote;
+    int i = offset + (triple ? 3 : 1);
+    while (i < length) {
+      char c = myText.charAt(i);
+      if (c == '\n') {
+        if (!triple) break;
+        line[0]++;
+      }
+      if (c == '\\' && quote == '"') {
+        i += 2;
+        continue;
+      }
+      if (c == quote) {
+        if (triple) {
+          if (i + 2 < length && myText.charAt(i + 1) == quote && myText.charAt(i + 2) == quote) return i + 3;
+        }
+        else if (quote == '\'' && i + 1 < length && myText.charAt(i + 1) == '\'') {
+          i += 2;
+          continue;
+        }
+        else {
+          return i + 1;
+        }
+      }
+      i++;
+    }
+    throw new NeonException("Unterminated string", line[0]);
+  }
+
+  private void addToken(@NotNull TokenType type, @NotNull String text, int line, int column) {
+    // Trailing blank lines do not start another block entry
+    if (type == TokenType.EOF && !myTokens.isEmpty() && myTokens.get(myTokens.size() - 1).type == TokenType.NEWLINE) {
+      myTokens.remove(myTokens.size() - 1);
+    }
+    // Consecutive NEWLINE tokens can appear after comments; keep the last one as it carries the real indent
+    if (type == TokenType.NEWLINE && !myTokens.isEmpty() && myTokens.get(myTokens.size() - 1).type == TokenType.NEWLINE) {
+      myTokens.set(myTokens.size() - 1, new Token(type, text, line, column));
+      return;
+    }
+    myTokens.add(new Token(type, text, line, column));
+  }
+
+  // ==================== Parser ====================
+
+  private @NotNull Token peek() {
+    return myTokens.get(myPosition);
+  }
+
+  private @NotNull Token next() {
+    return myTokens.get(myPosition++);
+  }
+
+  private @Nullable Object parseDocument() throws NeonException {
+    if (peek().type == TokenType.NEWLINE) next();
+    if (peek().type == TokenType.EOF) return null;
+    Object result = parseBlock(peek().column);
+    if (peek().type != TokenType.EOF) {
+      throw new NeonException("Unexpected '" + peek().text + "'", peek().line);
+    }
+    return result;
+  }
+
+  /**
+   * Parses a block whose first token is the current one and whose lines are indented by {@code indent} characters.
+   */
+  private @Nullable Object parseBlock(int indent) throws NeonException {
+    if (peek().isChar('-')) {
+      return parseBlockSequence(indent);
+    }
+    Object first = parseInlineValue();
+    if (!peek().isChar(':') && !peek().isChar('=')) {
+      return first;
+    }
+    return parseBlockMapping(indent, first);
+  }
+
+  private @NotNull List<Object> parseBlockSequence(int indent) throws NeonException {
+    List<Object> result = new ArrayList<>();
+    while (true) {
+      Token dash = next();
+      Token item = peek();
+      if (item.type == TokenType.NEWLINE || item.type == TokenType.EOF) {
+        int childIndent = item.type == TokenType.NEWLINE ? item.text.length() : -1;
+        if (childIndent > indent) {
+          next();
+          result.add(parseBlock(childIndent));
+        }
+        else {
+          result.add(null);
+        }
+      }
+      else {
+        result.add(parseBlock(Math.max(item.column, dash.column + 1)));
+      }
+      Token token = peek();
+      if (token.type != TokenType.NEWLINE || token.text.length() != indent || !myTokens.get(myPosition + 1).isChar('-')) {
+        return result;
+      }
+      next();
+    }
+  }
+
+  private @NotNull Map<String, Object> parseBlockMapping(int indent, @Nullable Object firstKey) throws NeonException {
+    Map<String, Object> result = new LinkedHashMap<>();
+    Object key = firstKey;
+    while (true) {
+      Token separator = next();
+      if (!separator.isChar(':') && !separator.isChar('=')) {
+        throw new NeonException("Expected ':' after key", separator.line);
+      }
+      Token value = peek();
+      Object parsed;
+      if (value.type == TokenType.NEWLINE || value.type == TokenType.EOF) {
+        int childIndent = value.type == TokenType.NEWLINE ? value.text.length() : -1;
+        if (childIndent > indent) {
+          next();
+          parsed = parseBlock(childIndent);
+        }
+        else if (childIndent == indent && myTokens.get(myPosition + 1).isChar('-')) {
+          // Sequence at the same indent as its key, as allowed by YAML-style configs
+          next();
+          parsed = parseBlockSequence(indent);
+        }
+        else {
+          parsed = null;
+        }
+      }
+      else {
+        parsed = parseInlineValue();
+      }
+      result.put(String.valueOf(key), parsed);
+      if (!continuesBlock(indent)) return result;
+      key = parseInlineValue();
+    }
+  }
+
+  /**
+   * Consumes a NEWLINE token if the next line continues the block at {@code indent}.
+   */
+  private boolean continuesBlock(int indent) throws NeonException {
+    Token token = peek();
+    if (token.type != TokenType.NEWLINE) {
+      if (token.type == TokenType.EOF || token.type == TokenType.CHAR && CLOSING_CHARS.indexOf(token.text.charAt(0)) >= 0) {
+        return false;
+      }
+      throw new NeonException("Unexpected '" + token.text + "'", token.line);
+    }
+    int nextIndent = token.text.length();
+    if (nextIndent > indent) {
+      throw new NeonException("Bad indentation", token.line);
+    }
+    if (nextIndent < indent) return false;
+    next();
+    return true;
+  }
+
+  private @Nullable Object parseInlineValue() throws NeonException {
+    Token token = next();
+    Object value;
+    switch (token.type) {
+      case STRING -> value = decodeString(token);
+      case LITERAL -> value = decodeLiteral(token.text);
+      case CHAR -> {
+        char c = token.text.charAt(0);
+        if (c == '[') return parseInlineCollection(']', false);
+        if (c == '{') return parseInlineCollection('}', true);
+        throw new NeonException("Unexpected '" + c + "'", token.line);
+      }
+      default -> throw new NeonException("Unexpected end of value", token.line);
+    }
+    while (peek().isChar('(')) {
+      next();
+      Object attributes = parseInlineCollection(')', false);
+      value = new Entity(value, toMap(attributes));
+    }
+    return value;
+  }
+
+  private @NotNull Object parseInlineCollection(char closing, boolean forceMap) throws NeonException {
+    Map<String, Object> map = new LinkedHashMap<>();
+    List<Object> list = new ArrayList<>();
+    boolean hasKeys = forceMap;
+    while (true) {
+      skipNewLines();
+      if (peek().isChar(closing)) {
+        next();
+        break;
+      }
+      if (peek().type == TokenType.EOF) {
+        throw new NeonException("Missing '" + closing + "'", peek().line);
+      }
+      Object item = peek().isChar(',') ? null : parseInlineValue();
+      skipNewLines();
+      if (peek().isChar(':') || peek().isChar('=')) {
+        next();
+        skipNewLines();
+        Object value = peek().isChar(',') || peek().isChar(closing) ? null : parseInlineValue();
+        if (!hasKeys) {
+          for (int i = 0; i < list.size(); i++) map.put(String.valueOf(i), list.get(i));
+          hasKeys = true;
+        }
+        map.put(String.valueOf(item), value);
+      }
+      else if (hasKeys) {
+        map.put(String.valueOf(map.size()), item);
+      }
+      else {
+        list.add(item);
+      }
+      skipNewLines();
+      if (peek().isChar(',')) next();
+    }
+    return hasKeys ? map : list;
+  }
+
+  private void skipNewLines() {
+    while (peek().type == TokenType.NEWLINE) next();
+  }
+
+  private static @NotNull Map<String, Object> toMap(@NotNull Object collection) {
+    if (collection instanceof Map<?, ?>) {
+      //noinspection unchecked
+      return (Map<String, Object>)collection;
+    }
+    Map<String, Object> result = new LinkedHashMap<>();
+    List<?> list = (List<?>)collection;
+    for (int i = 0; i < list.size(); i++) result.put(String.valueOf(i), list.get(i));
+    return result;
+  }
+
+  private static @Nullable Object decodeLiteral(@NotNull String text) {
+    switch (text) {
+      case "true", "True", "TRUE", "yes", "Yes", "YES", "on", "On", "ON" -> {
+        return Boolean.TRUE;
+      }
+      case "false", "False", "FALSE", "no", "No", "NO", "off", "Off", "OFF" -> {
+        return Boolean.FALSE;
+      }
+      case "null", "Null", "NULL" -> {
+        return null;
+      }
+    }
+    char first = text.charAt(0);
+    if (first == '-' || first == '+' || Character.isDigit(first)) {
+      try {
+        return Long.parseLong(text);
+      }
+      catch (NumberFormatException ignored) {
+      }
+      if (text.indexOf('.') >= 0 || text.indexOf('e') >= 0 || text.indexOf('E') >= 0) {
+        try {
+          return Double.parseDouble(text);
+        }
+        catch (NumberFormatException ignored) {
+        }
+      }
+    }
+    return text;
+  }
+
+  private static @NotNull String decodeString(@NotNull Token token) throws NeonException {
+    String text = token.text;
+    char quote = text.charAt(0);
+    boolean triple = text.length() >= 6 && text.startsWith(String.valueOf(quote).repeat(3));
+    String body = triple ? dedentTriple(text.substring(3, text.length() - 3)) : text.substring(1, text.length() - 1);
+    if (quote == '\'') {
+      return body.replace("''", "'");
+    }
+    StringBuilder result = new StringBuilder(body.length());
+    for (int i = 0; i < body.length(); i++) {
+      char c = body.charAt(i);
+      if (c != '\\' || i + 1 >= body.length()) {
+        result.append(c);
+        continue;
+      }
+      char escaped = body.charAt(++i);
+      switch (escaped) {
+        case 'n' -> result.append('\n');
+        case 't' -> result.append('\t');
+        case 'r' -> result.append('\r');
+        case 'b' -> result.append('\b');
+        case 'f' -> result.append('\f');
+        case '0' -> result.append('\0');
+        case '/', '\\', '"' -> result.append(escaped);
+        case 'u' -> {
+          if (i + 4 >= body.length()) throw new NeonException("Invalid unicode escape", token.line);
+          try {
+            result.append((char)Integer.parseInt(body.substring(i + 1, i + 5), 16));
+          }
+          catch (NumberFormatException e) {
+            throw new NeonException("Invalid unicode escape", token.line);
+          }
+          i += 4;
+        }
+        default -> throw new NeonException("Invalid escape sequence \\" + escaped, token.line);
+      }
+    }
+    return result.toString();
+  }
+
+  private static @NotNull String dedentTriple(@NotNull String body) {
+    // Multiline strings start on the line after the opening quotes and share the indent of their first line
+    int firstBreak = body.indexOf('\n');
+    int lastBreak = body.lastIndexOf('\n');
+    if (firstBreak < 0 || firstBreak == lastBreak && body.substring(0, firstBreak).isBlank()) {
+      return body.strip();
+    }
+    String content = body.substring(firstBreak + 1, lastBreak);
+    int indent = 0;
+    while (indent < content.length() && (content.charAt(indent) == ' ' || content.charAt(indent) == '\t')) indent++;
+    String prefix = content.substring(0, indent);
+    StringBuilder result = new StringBuilder();
+    for (String line : content.split("\n", -1)) {
+      if (!result.isEmpty()) result.append('\n');
+      result.append(line.startsWith(prefix) ? line.substring(indent) : line.stripLeading());
+    }
+    return result.toString();
+  }
+}
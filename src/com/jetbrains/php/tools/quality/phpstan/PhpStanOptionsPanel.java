@@ -28,6 +28,11 @@ public class PhpStanOptionsPanel extends QualityToolsOptionsPanel {
   private JBIntSpinner myJBIntSpinner;
   private PhpTextFieldWithSdkBasedBrowse myConfigPathTextField;
   private PhpTextFieldWithSdkBasedBrowse myAutoloadPathTextField;
+  private JBIntSpinner myMaxProcessesSpinner;
+  private JBTextField myMemoryBudgetTextField;
+  private JBIntSpinner myMinTimeoutSpinner;
+  private JBIntSpinner myMaxTimeoutSpinner;
+  private JBTextField myCacheQuotaTextField;
   private final QualityToolConfigurationComboBox myComboBox;
 
   public PhpStanOptionsPanel(Project project,
@@ -43,6 +48,9 @@ public class PhpStanOptionsPanel extends QualityToolsOptionsPanel {
     myConfigPathTextField
       .init(project, getSdkAdditionalData(project, comboBox), PhpStanBundle.message("phpstan.configuration.file"), true, false);
     myAutoloadPathTextField.setText(configuration.getAutoload());
+    resetGovernorSettings();
+    myMemoryBudgetTextField.getEmptyText().setText(PhpStanBundle.message("phpstan.memory.budget.auto"));
+    myCacheQuotaTextField.getEmptyText().setText(PhpStanGovernorSettings.DEFAULT_CACHE_QUOTA);
     myAutoloadPathTextField
       .init(project, getSdkAdditionalData(project, comboBox), PhpStanBundle.message("phpstan.autoload.file"), true, false);
     myConfigPathTextField.getTextField().getDocument().addDocumentListener(new DocumentAdapter() {
@@ -51,10 +59,29 @@ public class PhpStanOptionsPanel extends QualityToolsOptionsPanel {
         validate.run();
       }
     });
+    myCacheQuotaTextField.getDocument().addDocumentListener(new DocumentAdapter() {
+      @Override
+      protected void textChanged(@NotNull DocumentEvent e) {
+        validate.run();
+      }
+    });
   }
 
   private void createUIComponents() {
     myJBIntSpinner = new JBIntSpinner(4, 0, 8);
+    myMaxProcessesSpinner = new JBIntSpinner(0, 0, 256);
+    myMinTimeoutSpinner = new JBIntSpinner(PhpStanGovernorSettings.TIMEOUT_FLOOR_SECONDS,
+                                           PhpStanGovernorSettings.TIMEOUT_FLOOR_SECONDS, 3600);
+    myMaxTimeoutSpinner = new JBIntSpinner(600, 1, 86400);
+  }
+
+  private void resetGovernorSettings() {
+    PhpStanGovernorSettings settings = PhpStanGovernorSettings.getInstance();
+    myMaxProcessesSpinner.setNumber(settings.getMaxProcesses());
+    myMemoryBudgetTextField.setText(settings.getMemoryBudget());
+    myMinTimeoutSpinner.setNumber(settings.getMinTimeoutSeconds());
+    myMaxTimeoutSpinner.setNumber(settings.getMaxTimeoutSeconds());
+    myCacheQuotaTextField.setText(settings.getCacheQuota());
   }
 
   @Override
@@ -70,6 +97,7 @@ public class PhpStanOptionsPanel extends QualityToolsOptionsPanel {
     myJBIntSpinner.setNumber(configuration.getLevel());
     myConfigPathTextField.setText(configuration.getConfig());
     myAutoloadPathTextField.setText(configuration.getAutoload());
+    resetGovernorSettings();
   }
 
   @Override
@@ -80,6 +108,12 @@ public class PhpStanOptionsPanel extends QualityToolsOptionsPanel {
     if (myJBIntSpinner.getNumber() != configuration.getLevel()) return true;
     if (!StringUtil.equals(myConfigPathTextField.getText(), configuration.getConfig())) return true;
     if (!StringUtil.equals(myAutoloadPathTextField.getText(), configuration.getAutoload())) return true;
+    PhpStanGovernorSettings settings = PhpStanGovernorSettings.getInstance();
+    if (myMaxProcessesSpinner.getNumber() != settings.getMaxProcesses()) return true;
+    if (!StringUtil.equals(myMemoryBudgetTextField.getText(), settings.getMemoryBudget())) return true;
+    if (myMinTimeoutSpinner.getNumber() != settings.getMinTimeoutSeconds()) return true;
+    if (myMaxTimeoutSpinner.getNumber() != settings.getMaxTimeoutSeconds()) return true;
+    if (!StringUtil.equals(myCacheQuotaTextField.getText(), settings.getCacheQuota())) return true;
     return false;
   }
 
@@ -91,10 +125,26 @@ public class PhpStanOptionsPanel extends QualityToolsOptionsPanel {
     configuration.setLevel(myJBIntSpinner.getNumber());
     configuration.setConfig(myConfigPathTextField.getText());
     configuration.setAutoload(myAutoloadPathTextField.getText());
+    PhpStanGovernorSettings settings = PhpStanGovernorSettings.getInstance();
+    settings.setMaxProcesses(myMaxProcessesSpinner.getNumber());
+    settings.setMemoryBudget(myMemoryBudgetTextField.getText().trim());
+    settings.setMinTimeoutSeconds(myMinTimeoutSpinner.getNumber());
+    settings.setMaxTimeoutSeconds(Math.max(myMinTimeoutSpinner.getNumber(), myMaxTimeoutSpinner.getNumber()));
+    String quota = myCacheQuotaTextField.getText().trim();
+    // An invalid quota is reported by validatePath() and keeps the previous one
+    boolean quotaChanged = PhpStanGovernorSettings.isValidCacheQuota(quota) && !StringUtil.equals(quota, settings.getCacheQuota());
+    if (quotaChanged) settings.setCacheQuota(quota);
+    // Runs started with the previous settings produce results nobody will look at
+    PhpStanProcessTracker.getInstance(myProject).cancelAll();
+    PhpStanWarmUpService.getInstance(myProject).schedule();
+    if (quotaChanged) PhpStanCacheQuotaService.getInstance().pruneSoon();
   }
 
   @Override
   protected @Nullable String validatePath() {
+    if (!PhpStanGovernorSettings.isValidCacheQuota(myCacheQuotaTextField.getText())) {
+      return PhpStanBundle.message("phpstan.cache.quota.invalid", myCacheQuotaTextField.getText().trim());
+    }
     PhpInterpreter interpreter = getSelectedInterpreter(myProject, myComboBox);
     if (interpreter != null && interpreter.isRemote()) {
       //TODO: validate remote path?
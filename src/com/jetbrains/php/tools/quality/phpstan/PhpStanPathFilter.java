@@ -0,0 +1,63 @@
+package com.jetbrains.php.tools.quality.phpstan;
+
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.GeneratedSourcesFilter;
+import com.intellij.openapi.roots.ProjectFileIndex;
+import com.intellij.openapi.util.SystemInfo;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Decides before spawning PHPStan whether a file is analysed at all.
+ * <p>
+ * Files on the PHPStan ignored list are always skipped. If the active configuration declares {@code paths}, they and
+ * {@code excludePaths} decide; otherwise library, excluded and generated files of the project are skipped as well.
+ */
+public final class PhpStanPathFilter {
+  private final Project myProject;
+  private volatile @Nullable CompiledMatcher myMatcher;
+
+  private record CompiledMatcher(@Nullable PhpStanNeonConfig config, @NotNull PhpStanPathMatcher matcher) {
+  }
+
+  public PhpStanPathFilter(@NotNull Project project) {
+    myProject = project;
+  }
+
+  public static PhpStanPathFilter getInstance(@NotNull Project project) {
+    return project.getService(PhpStanPathFilter.class);
+  }
+
+  /**
+   * @return true if PHPStan should be run for the file
+   */
+  public boolean isInScope(@NotNull VirtualFile file) {
+    if (PhpStanBlackList.getInstance(myProject).containsFile(file)) return false;
+    PhpStanNeonConfig config = PhpStanNeonConfigService.getInstance(myProject).getConfig();
+    if (!getMatcher(config).matches(file.getPath())) return false;
+    if (config != null && !config.getPaths().isEmpty()) return true;
+    return ReadAction.compute(() -> {
+      if (myProject.isDisposed() || !file.isValid()) return false;
+      ProjectFileIndex index = ProjectFileIndex.getInstance(myProject);
+      return index.isInContent(file) &&
+             !index.isInLibrary(file) &&
+             !index.isExcluded(file) &&
+             !GeneratedSourcesFilter.isGeneratedSourceByAnyFilter(file, myProject);
+    });
+  }
+
+  private @NotNull PhpStanPathMatcher getMatcher(@Nullable PhpStanNeonConfig config) {
+    CompiledMatcher compiled = myMatcher;
+    if (compiled != null && compiled.config() == config) {
+      return compiled.matcher();
+    }
+    PhpStanPathMatcher matcher = config == null
+                                 ? PhpStanPathMatcher.all()
+                                 : PhpStanPathMatcher.create(config.getPaths(), config.getExcludePaths(),
+                                                             SystemInfo.isFileSystemCaseSensitive);
+    myMatcher = new CompiledMatcher(config, matcher);
+    return matcher;
+  }
+}
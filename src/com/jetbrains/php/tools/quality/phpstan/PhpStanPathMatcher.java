@@ -0,0 +1,119 @@
+package com.jetbrains.php.tools.quality.phpstan;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Decides whether a file is analysed by PHPStan according to the {@code paths} and {@code excludePaths} parameters.
+ * <p>
+ * Plain entries match the path itself and everything below it. Entries containing wildcards are matched like
+ * PHPStan does it with {@code fnmatch()}: {@code *} and {@code ?} also match directory separators.
+ * All paths are expected to be absolute and system-independent.
+ */
+public final class PhpStanPathMatcher {
+  private static final PhpStanPathMatcher ALL = new PhpStanPathMatcher(null, null);
+
+  private final @Nullable Matcher myIncludes;
+  private final @Nullable Matcher myExcludes;
+
+  private PhpStanPathMatcher(@Nullable Matcher includes, @Nullable Matcher excludes) {
+    myIncludes = includes;
+    myExcludes = excludes;
+  }
+
+  /**
+   * @param paths         analysed paths; an empty list means every file is analysed
+   * @param excludePaths  excluded paths and patterns
+   * @param caseSensitive whether the file system is case-sensitive
+   */
+  public static @NotNull PhpStanPathMatcher create(@NotNull List<String> paths, @NotNull List<String> excludePaths, boolean caseSensitive) {
+    if (paths.isEmpty() && excludePaths.isEmpty()) return ALL;
+    return new PhpStanPathMatcher(Matcher.compile(paths, caseSensitive), Matcher.compile(excludePaths, caseSensitive));
+  }
+
+  public static @NotNull PhpStanPathMatcher all() {
+    return ALL;
+  }
+
+  /**
+   * @param path absolute system-independent path of a file
+   * @return true if PHPStan would analyse the file
+   */
+  public boolean matches(@NotNull String path) {
+    if (myIncludes != null && !myIncludes.matches(path)) return false;
+    return myExcludes == null || !myExcludes.matches(path);
+  }
+
+  private record Matcher(@NotNull List<String> prefixes, @Nullable Pattern pattern, boolean caseSensitive) {
+
+    static @Nullable Matcher compile(@NotNull List<String> entries, boolean caseSensitive) {
+      if (entries.isEmpty()) return null;
+      List<String> prefixes = new ArrayList<>();
+      StringBuilder regex = new StringBuilder();
+      for (String entry : entries) {
+        String path = trimTrailingSlash(entry.replace('\\', '/'));
+        if (path.indexOf('*') >= 0 || path.indexOf('?') >= 0 || path.indexOf('[') >= 0) {
+          if (!regex.isEmpty()) regex.append('|');
+          regex.append(globToRegex(path));
+        }
+        else {
+          prefixes.add(caseSensitive ? path : path.toLowerCase());
+        }
+      }
+      Pattern pattern = regex.isEmpty() ? null : Pattern.compile(regex.toString(), caseSensitive ? 0 : Pattern.CASE_INSENSITIVE);
+      return new Matcher(List.copyOf(prefixes), pattern, caseSensitive);
+    }
+
+    boolean matches(@NotNull String path) {
+      String candidate = caseSensitive ? path : path.toLowerCase();
+      for (String prefix : prefixes) {
+        if (candidate.startsWith(prefix) &&
+            (candidate.length() == prefix.length() || candidate.charAt(prefix.length()) == '/')) {
+          return true;
+        }
+      }
+      return pattern != null && pattern.matcher(path).matches();
+    }
+  }
+
+  private static @NotNull String trimTrailingSlash(@NotNull String path) {
+    return path.length() > 1 && path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+  }
+
+  static @NotNull String globToRegex(@NotNull String glob) {
+    StringBuilder result = new StringBuilder("(?:");
+    for (int i = 0; i < glob.length(); i++) {
+      char c = glob.charAt(i);
+      switch (c) {
+        case '*' -> result.append(".*");
+        case '?' -> result.append('.');
+        case '[' -> {
+          int end = glob.indexOf(']', i + 2);
+          if (end < 0) {
+            result.append("\\[");
+            break;
+          }
+          String body = glob.substring(i + 1, end);
+          result.append('[');
+          if (body.startsWith("!")) {
+            result.append('^');
+            body = body.substring(1);
+          }
+          result.append(body.replace("\\", "\\\\").replace("[", "\\["));
+          result.append(']');
+          i = end;
+        }
+        default -> {
+          if ("\\.^$|+(){}".indexOf(c) >= 0) result.append('\\');
+          result.append(c);
+        }
+      }
+    }
+    // Like plain entries, a pattern naming a directory also matches everything below it
+    return result.append(")(?:/.*)?").toString();
+  }
+}
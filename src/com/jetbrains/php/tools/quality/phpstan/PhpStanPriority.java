@@ -0,0 +1,27 @@
+package com.jetbrains.php.tools.quality.phpstan;
+
+/**
+ * Priority classes of PHPStan runs, highest first.
+ */
+public enum PhpStanPriority {
+  /** The file in the focused editor: the user is waiting for its highlighting */
+  FOCUSED_EDITOR,
+  /** Files shown in other editors */
+  VISIBLE_EDITOR,
+  /** Re-analysis of files nobody is looking at right now */
+  BACKGROUND,
+  /** Batch inspections and other whole-project jobs */
+  BATCH;
+
+  /**
+   * @return whether runs of this class are paused while runs of a higher class are active. Runs with a timeout are not
+   * paused whatever their class, as the timeout would keep running meanwhile.
+   */
+  public boolean isPreemptible() {
+    return this == BACKGROUND || this == BATCH;
+  }
+
+  public boolean isHigherThan(PhpStanPriority other) {
+    return ordinal() < other.ordinal();
+  }
+}
@@ -0,0 +1,231 @@
+package com.jetbrains.php.tools.quality.phpstan;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Admission queue for PHPStan runs, limiting the number of concurrent PHP processes and the memory they may claim.
+ * <p>
+ * Waiting runs are admitted by {@link PhpStanPriority priority class}, then in arrival order: a run waits while a run
+ * of a higher class or an earlier run of the same class is still queued, so large runs are not starved by a stream of
+ * small ones. A run larger than the limits is admitted once nothing else is running.
+ * <p>
+ * Running {@link PhpStanPriority#isPreemptible() preemptible} runs that can be paused are suspended while a run of a
+ * higher class is waiting or running, and resumed afterwards. Suspended runs keep their memory but release their
+ * processes, since a paused process uses no CPU.
+ */
+public final class PhpStanProcessQueue {
+  private final IntSupplier myMaxProcesses;
+  private final LongSupplier myMemoryBudget;
+  private final TreeSet<Ticket> myWaiting = new TreeSet<>();
+  private final Set<Permit> myRunning = new LinkedHashSet<>();
+  private long myNextSequence;
+  private int myRunningProcesses;
+  private long myClaimedMemory;
+
+  /**
+   * @param processes   number of PHP processes of the run, including parallel workers
+   * @param memoryBytes memory the run may claim, the sum of the memory limits of its processes
+   */
+  public record Claim(int processes, long memoryBytes) {
+  }
+
+  private record Ticket(@NotNull Claim claim, @NotNull PhpStanPriority priority, long sequence) implements Comparable<Ticket> {
+    @Override
+    public int compareTo(@NotNull Ticket o) {
+      int result = priority.compareTo(o.priority);
+      return result != 0 ? result : Long.compare(sequence, o.sequence);
+    }
+  }
+
+  /**
+   * @param maxProcesses maximum number of concurrent processes
+   * @param memoryBudget maximum memory in bytes claimed by concurrent runs
+   */
+  public PhpStanProcessQueue(@NotNull IntSupplier maxProcesses, @NotNull LongSupplier memoryBudget) {
+    myMaxProcesses = maxProcesses;
+    myMemoryBudget = memoryBudget;
+  }
+
+  /**
+   * Waits until the run may start.
+   *
+   * @param cancelled polled while waiting
+   * @return the permit to close once the run has finished, or null if the wait was cancelled
+   */
+  public @Nullable Permit acquire(@NotNull Claim claim,
+                                  @NotNull PhpStanPriority priority,
+                                  @NotNull BooleanSupplier cancelled,
+                                  long pollMillis) throws InterruptedException {
+    List<Runnable> notifications;
+    Ticket ticket;
+    synchronized (myWaiting) {
+      ticket = new Ticket(claim, priority, myNextSequence++);
+      myWaiting.add(ticket);
+      notifications = updateSuspension();
+    }
+    notifications.forEach(Runnable::run);
+    Permit permit = null;
+    try {
+      synchronized (myWaiting) {
+        while (true) {
+          if (myWaiting.first() == ticket && fits(claim)) {
+            myWaiting.remove(ticket);
+            permit = new Permit(claim, priority);
+            myRunning.add(permit);
+            myRunningProcesses += claim.processes();
+            myClaimedMemory += claim.memoryBytes();
+            // The next waiter may fit as well
+            myWaiting.notifyAll();
+            return permit;
+          }
+          if (cancelled.getAsBoolean()) return null;
+          myWaiting.wait(pollMillis);
+        }
+      }
+    }
+    finally {
+      if (permit == null) {
+        synchronized (myWaiting) {
+          myWaiting.remove(ticket);
+          myWaiting.notifyAll();
+          notifications = updateSuspension();
+        }
+        notifications.forEach(Runnable::run);
+      }
+    }
+  }
+
+  private boolean fits(@NotNull Claim claim) {
+    // Runs suspended in favour of this one must not keep it waiting, or neither would ever proceed
+    if (myRunning.stream().allMatch(permit -> permit.mySuspended)) return true;
+    return myRunningProcesses + claim.processes() <= myMaxProcesses.getAsInt() &&
+           myClaimedMemory + claim.memoryBytes() <= myMemoryBudget.getAsLong();
+  }
+
+  /**
+   * Suspends preemptible runs below the highest active class and resumes the others.
+   *
+   * @return suspend handler calls to make outside the lock
+   */
+  private @NotNull List<Runnable> updateSuspension() {
+    PhpStanPriority top = myWaiting.isEmpty() ? null : myWaiting.first().priority();
+    for (Permit permit : myRunning) {
+      if (top == null || permit.myPriority.isHigherThan(top)) top = permit.myPriority;
+    }
+    List<Runnable> notifications = new ArrayList<>();
+    for (Permit permit : myRunning) {
+      Consumer<Boolean> handler = permit.mySuspendHandler;
+      boolean suspend = handler != null && permit.myPriority.isPreemptible() && top != null && top.isHigherThan(permit.myPriority);
+      if (suspend == permit.mySuspended) continue;
+      permit.mySuspended = suspend;
+      myRunningProcesses += suspend ? -permit.myClaim.processes() : permit.myClaim.processes();
+      if (handler != null) notifications.add(() -> handler.accept(suspend));
+    }
+    if (!notifications.isEmpty()) myWaiting.notifyAll();
+    return notifications;
+  }
+
+  public int getRunningProcesses() {
+    synchronized (myWaiting) {
+      return myRunningProcesses;
+    }
+  }
+
+  public long getClaimedMemory() {
+    synchronized (myWaiting) {
+      return myClaimedMemory;
+    }
+  }
+
+  public int getQueueLength() {
+    synchronized (myWaiting) {
+      return myWaiting.size();
+    }
+  }
+
+  public final class Permit implements AutoCloseable {
+    private final Claim myClaim;
+    private final PhpStanPriority myPriority;
+    private boolean mySuspended;
+    private @Nullable Consumer<Boolean> mySuspendHandler;
+
+    private Permit(@NotNull Claim claim, @NotNull PhpStanPriority priority) {
+      myClaim = claim;
+      myPriority = priority;
+    }
+
+    /**
+     * Sets the handler pausing ({@code true}) and resuming ({@code false}) the run when it is preempted.
+     * A run without a handler is never suspended. Removing the handler of a suspended run resumes it.
+     */
+    public void setSuspendHandler(@Nullable Consumer<Boolean> handler) {
+      List<Runnable> notifications = new ArrayList<>();
+      synchronized (myWaiting) {
+        if (!myRunning.contains(this)) return;
+        Consumer<Boolean> previous = mySuspendHandler;
+        if (mySuspended && previous != null) {
+          mySuspended = false;
+          myRunningProcesses += myClaim.processes();
+          notifications.add(() -> previous.accept(false));
+        }
+        mySuspendHandler = handler;
+        notifications.addAll(updateSuspension());
+      }
+      notifications.forEach(Runnable::run);
+    }
+
+    public boolean isSuspended() {
+      synchronized (myWaiting) {
+        return mySuspended;
+      }
+    }
+
+    @Override
+    public void close() {
+      List<Runnable> notifications;
+      synchronized (myWaiting) {
+        if (!myRunning.remove(this)) return;
+        if (!mySuspended) myRunningProcesses -= myClaim.processes();
+        myClaimedMemory -= myClaim.memoryBytes();
+        // The run has finished, so there is nothing left to resume
+        mySuspended = false;
+        mySuspendHandler = null;
+        notifications = updateSuspension();
+        myWaiting.notifyAll();
+      }
+      notifications.forEach(Runnable::run);
+    }
+  }
+
+  /**
+   * Parses a PHP memory size such as {@code 512M} or {@code 2G}.
+   *
+   * @return size in bytes, or -1 for unlimited ({@code -1}) and unparsable values
+   */
+  public static long parseMemorySize(@Nullable String value) {
+    if (value == null) return -1;
+    String trimmed = value.trim().toUpperCase(Locale.ROOT);
+    if (trimmed.isEmpty()) return -1;
+    long multiplier = switch (trimmed.charAt(trimmed.length() - 1)) {
+      case 'K' -> 1L << 10;
+      case 'M' -> 1L << 20;
+      case 'G' -> 1L << 30;
+      default -> 1;
+    };
+    String number = multiplier == 1 ? trimmed : trimmed.substring(0, trimmed.length() - 1);
+    try {
+      long parsed = Long.parseLong(number.trim());
+      return parsed < 0 ? -1 : parsed * multiplier;
+    }
+    catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+}
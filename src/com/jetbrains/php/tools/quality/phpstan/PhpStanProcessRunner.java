@@ -0,0 +1,131 @@
+package com.jetbrains.php.tools.quality.phpstan;
+
+import com.intellij.execution.ExecutionException;
+import com.intellij.execution.configurations.GeneralCommandLine;
+import com.intellij.execution.process.CapturingProcessHandler;
+import com.intellij.execution.process.ProcessOutput;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.SystemInfo;
+import com.jetbrains.php.config.PhpProjectConfigurationFacade;
+import com.jetbrains.php.config.interpreters.PhpInterpreter;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.intellij.openapi.util.text.StringUtil.isEmpty;
+
+/**
+ * Runs the locally configured PHPStan executable for IDE-driven jobs that are not bound to a single editor,
+ * such as baseline generation.
+ */
+public final class PhpStanProcessRunner {
+  private static final Logger LOG = Logger.getInstance(PhpStanProcessRunner.class);
+  private static final @NonNls String NICE = "nice";
+  private static final @NonNls String LOW_PRIORITY_NICENESS = "10";
+  private static final @NonNls String OPCACHE_DIR = "phpstan/opcache";
+
+  private PhpStanProcessRunner() {
+  }
+
+  /**
+   * @return path to the local PHPStan executable, or null if none is configured
+   */
+  public static @Nullable String getLocalToolPath(@NotNull Project project) {
+    String toolPath = PhpStanConfigurationManager.getInstance(project).getLocalSettings().getToolPath();
+    return isEmpty(toolPath) ? null : toolPath;
+  }
+
+  /**
+   * Creates a command line running the local PHPStan in the project directory.
+   *
+   * @param lowPriority whether to lower the OS scheduling priority of the process, where supported
+   */
+  public static @NotNull GeneralCommandLine createCommandLine(@NotNull Project project,
+                                                              @NotNull String toolPath,
+                                                              @NotNull List<String> options,
+                                                              boolean lowPriority) {
+    List<String> command = new ArrayList<>();
+    if (lowPriority && SystemInfo.isUnix) command.addAll(List.of(NICE, "-n", LOW_PRIORITY_NICENESS));
+    command.addAll(getLaunchCommand(project, toolPath));
+    return new GeneralCommandLine(command)
+      .withParameters(options)
+      .withWorkDirectory(project.getBasePath())
+      .withCharset(StandardCharsets.UTF_8)
+      .withParentEnvironmentType(GeneralCommandLine.ParentEnvironmentType.CONSOLE);
+  }
+
+  /**
+   * Starts PHPStan through the local CLI interpreter of the project when its {@link PhpStanLaunchProfile launch profile}
+   * needs options of the interpreter, and directly otherwise. Without such an interpreter the profile is not applied,
+   * rather than guessing which PHP the tool would run with.
+   */
+  private static @NotNull List<String> getLaunchCommand(@NotNull Project project, @NotNull String toolPath) {
+    PhpStanLaunchProfile profile = PhpStanConfigurationManager.getInstance(project).getLocalSettings().getLaunchProfile();
+    if (profile == PhpStanLaunchProfile.DEFAULT || !PhpStanLaunchProfile.isPhpScript(toolPath)) return List.of(toolPath);
+    String php = getLocalPhp(project);
+    if (php == null) {
+      LOG.info("The project has no local PHP interpreter, running " + toolPath + " without the " + profile + " launch profile");
+      return List.of(toolPath);
+    }
+    Path opcacheDirectory = getOpcacheDirectory(project);
+    try {
+      Files.createDirectories(opcacheDirectory);
+    }
+    catch (IOException e) {
+      LOG.warn("Cannot create the opcode cache directory " + opcacheDirectory, e);
+      return List.of(toolPath);
+    }
+    List<String> command = new ArrayList<>();
+    command.add(php);
+    command.addAll(profile.getPhpOptions(opcacheDirectory.toString()));
+    command.add(toolPath);
+    return command;
+  }
+
+  /**
+   * @return the PHP executable of the CLI interpreter of the project, or null if it has none or a remote one
+   */
+  private static @Nullable String getLocalPhp(@NotNull Project project) {
+    PhpInterpreter interpreter = PhpProjectConfigurationFacade.getInstance(project).getInterpreter();
+    if (interpreter == null || interpreter.isRemote()) return null;
+    String php = interpreter.getPathToPhpExecutable();
+    return isEmpty(php) ? null : php;
+  }
+
+  /**
+   * @return directory of the compiled files of PHPStan run for the project with a tuned launch profile
+   */
+  static @NotNull Path getOpcacheDirectory(@NotNull Project project) {
+    return Path.of(PathManager.getSystemPath(), OPCACHE_DIR, project.getLocationHash());
+  }
+
+  /**
+   * Runs the process to completion, killing its whole process tree if the indicator is cancelled or the timeout elapses.
+   */
+  public static @NotNull ProcessOutput run(@NotNull Project project,
+                                           @NotNull GeneralCommandLine commandLine,
+                                           @NotNull ProgressIndicator indicator,
+                                           int timeoutMs) throws ExecutionException {
+    // The process starts with the handler, so admission has to be granted first
+    try (PhpStanProcessQueue.Permit permit =
+           PhpStanGovernor.getInstance().acquire(project, Integer.MAX_VALUE, PhpStanPriority.BATCH, indicator)) {
+      LOG.info("PHPStan command: " + commandLine.getCommandLineString());
+      CapturingProcessHandler handler = new CapturingProcessHandler(commandLine);
+      try (PhpStanProcessTracker.Run run = PhpStanProcessTracker.getInstance(project).track(handler.getProcess(), indicator)) {
+        // A run with a timeout is not paused, as the timeout would keep running meanwhile
+        if (timeoutMs <= 0 && PhpStanProcessTree.isSignalSupported()) permit.setSuspendHandler(run::setSuspended);
+        return handler.runProcessWithProgressIndicator(indicator, timeoutMs);
+      }
+    }
+  }
+}
@@ -0,0 +1,215 @@
+package com.jetbrains.php.tools.quality.phpstan;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.fileEditor.FileEditorManager;
+import com.intellij.openapi.fileEditor.FileEditorManagerListener;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static com.jetbrains.php.tools.quality.phpstan.PhpStanMetrics.Counter.*;
+
+/**
+ * Keeps track of running PHPStan processes and kills their whole process tree as soon as the result is no longer
+ * needed: the progress indicator of the run is cancelled, the analysed file is closed or the settings change.
+ * <p>
+ * The indicator of a run is checked every {@value #POLL_INTERVAL_MS} ms until the run is cancelled or its process exits.
+ * The descendants of a run are remembered while it runs, so parallel workers are killed even when their parent has
+ * already exited.
+ */
+public final class PhpStanProcessTracker implements Disposable {
+  private static final long POLL_INTERVAL_MS = 10;
+  private static final long DESCENDANTS_REFRESH_MS = 500;
+
+  private final Set<Run> myRuns = ConcurrentHashMap.newKeySet();
+
+  public static PhpStanProcessTracker getInstance(@NotNull Project project) {
+    return project.getService(PhpStanProcessTracker.class);
+  }
+
+  /**
+   * Tracks a process started by the plugin.
+   */
+  public @NotNull Run track(@NotNull Process process, @Nullable ProgressIndicator indicator) {
+    ProcessHandle handle = process.toHandle();
+    return start(() -> List.of(handle), null, indicator);
+  }
+
+  /**
+   * Tracks a process started by the platform on behalf of the plugin, identified by an argument unique to the run,
+   * such as its temporary file.
+   * <p>
+   * Only processes of a local interpreter can be found: the command run through SSH or Docker holds the mapped path,
+   * which SSH even joins with the rest of the command into one argument. Runs of remote interpreters aren't tracked.
+   */
+  public @NotNull Run trackByArgument(@NotNull String argument, @Nullable VirtualFile file, @Nullable ProgressIndicator indicator) {
+    return start(() -> PhpStanProcessTree.findByArgument(argument), file, indicator);
+  }
+
+  private @NotNull Run start(@NotNull Supplier<List<ProcessHandle>> roots, @Nullable VirtualFile file, @Nullable ProgressIndicator indicator) {
+    Run run = new Run(roots, file, indicator);
+    myRuns.add(run);
+    PhpStanMetrics.getInstance().increment(RUNS);
+    return run;
+  }
+
+  /**
+   * Cancels the runs analysing the file.
+   */
+  public void cancel(@NotNull VirtualFile file) {
+    for (Run run : myRuns) {
+      if (file.equals(run.myFile)) run.cancel();
+    }
+  }
+
+  public void cancelAll() {
+    for (Run run : myRuns) {
+      run.cancel();
+    }
+  }
+
+  @Override
+  public void dispose() {
+    cancelAll();
+  }
+
+  public final class Run implements AutoCloseable {
+    private final Supplier<List<ProcessHandle>> myRootFinder;
+    private final @Nullable VirtualFile myFile;
+    private final @Nullable ProgressIndicator myIndicator;
+    private final Set<ProcessHandle> myKnownProcesses = ConcurrentHashMap.newKeySet();
+    private final ScheduledFuture<?> myWatchdog;
+    private volatile @Nullable List<ProcessHandle> myRoots;
+    private volatile boolean myCancelled;
+    private volatile boolean myStopped;
+    private long myLastRefresh;
+
+    private Run(@NotNull Supplier<List<ProcessHandle>> rootFinder, @Nullable VirtualFile file, @Nullable ProgressIndicator indicator) {
+      myRootFinder = rootFinder;
+      myFile = file;
+      myIndicator = indicator;
+      myWatchdog = AppExecutorUtil.getAppScheduledExecutorService()
+        .scheduleWithFixedDelay(this::tick, POLL_INTERVAL_MS, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+      if (myStopped) myWatchdog.cancel(false);
+    }
+
+    private void tick() {
+      if (myIndicator != null && myIndicator.isCanceled()) {
+        cancel();
+      }
+      else if (myCancelled) {
+        // The run was cancelled before its process was started
+        kill();
+      }
+      else if (System.currentTimeMillis() - myLastRefresh >= DESCENDANTS_REFRESH_MS) {
+        myLastRefresh = System.currentTimeMillis();
+        myKnownProcesses.addAll(PhpStanProcessTree.collect(getRoots()));
+      }
+    }
+
+    /**
+     * @return the processes of the run, looked up until they are found and then kept
+     */
+    private @NotNull List<ProcessHandle> getRoots() {
+      List<ProcessHandle> roots = myRoots;
+      if (roots != null) return roots;
+      roots = myRootFinder.get();
+      if (roots.isEmpty()) return roots;
+      myRoots = roots;
+      // Workers that outlive their parent are killed on close
+      CompletableFuture.allOf(roots.stream().map(ProcessHandle::onExit).toArray(CompletableFuture[]::new))
+        .thenRun(this::stopWatching);
+      return roots;
+    }
+
+    private void stopWatching() {
+      myStopped = true;
+      // Null while the constructor schedules the watchdog, which then sees the flag
+      if (myWatchdog != null) myWatchdog.cancel(false);
+    }
+
+    /**
+     * Kills the process tree of the run. The caller sees the process terminate as if it had been destroyed.
+     */
+    public void cancel() {
+      synchronized (this) {
+        if (myCancelled) return;
+        myCancelled = true;
+      }
+      PhpStanMetrics.getInstance().increment(CANCELLED_RUNS);
+      kill();
+    }
+
+    /**
+     * Kills the process tree once it is found, then stops watching the run.
+     */
+    private synchronized void kill() {
+      if (myStopped) return;
+      List<ProcessHandle> roots = getRoots();
+      if (roots.isEmpty()) return;
+      Set<ProcessHandle> processes = PhpStanProcessTree.collect(roots);
+      processes.addAll(myKnownProcesses);
+      stopWatching();
+      int killed = PhpStanProcessTree.destroy(processes);
+      if (killed > 0) {
+        PhpStanMetrics.getInstance().add(KILLED_PROCESSES, killed);
+      }
+    }
+
+    public boolean isCancelled() {
+      return myCancelled;
+    }
+
+    /**
+     * Pauses or resumes the process tree of the run, see {@link PhpStanProcessQueue.Permit#setSuspendHandler}.
+     * Workers spawned while the run is paused are paused by the next call only, but their parent is paused already.
+     */
+    public synchronized void setSuspended(boolean suspended) {
+      if (myCancelled) return;
+      Set<ProcessHandle> processes = PhpStanProcessTree.collect(getRoots());
+      myKnownProcesses.addAll(processes);
+      PhpStanProcessTree.suspend(processes, suspended);
+    }
+
+    /**
+     * Stops watching the run. Workers that outlived their parent, e.g. after a timeout, are killed.
+     */
+    @Override
+    public void close() {
+      stopWatching();
+      myRuns.remove(this);
+      int killed = PhpStanProcessTree.destroy(myKnownProcesses);
+      if (killed > 0) {
+        PhpStanMetrics.getInstance().add(KILLED_PROCESSES, killed);
+      }
+    }
+  }
+
+  /**
+   * Cancels on-the-fly runs of files that are no longer open in any editor.
+   */
+  static final class FileCloseListener implements FileEditorManagerListener {
+    private final Project myProject;
+
+    FileCloseListener(@NotNull Project project) {
+      myProject = project;
+    }
+
+    @Override
+    public void fileClosed(@NotNull FileEditorManager source, @NotNull VirtualFile file) {
+      if (!source.isFileOpen(file)) {
+        getInstance(myProject).cancel(file);
+      }
+    }
+  }
+}
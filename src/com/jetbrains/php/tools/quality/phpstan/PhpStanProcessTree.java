@@ -0,0 +1,94 @@
+package com.jetbrains.php.tools.quality.phpstan;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds, pauses and kills PHPStan process trees, including the parallel workers PHPStan spawns.
+ */
+public final class PhpStanProcessTree {
+  private PhpStanProcessTree() {
+  }
+
+  /**
+   * @return the roots and all their live descendants
+   */
+  public static @NotNull Set<ProcessHandle> collect(@NotNull Collection<ProcessHandle> roots) {
+    Set<ProcessHandle> result = new LinkedHashSet<>();
+    for (ProcessHandle root : roots) {
+      if (!root.isAlive()) continue;
+      result.add(root);
+      root.descendants().forEach(result::add);
+    }
+    return result;
+  }
+
+  /**
+   * Kills the processes, parents first so they can't spawn new workers meanwhile.
+   * The tree has to be collected beforehand: once a parent is gone its workers are re-parented and can't be found.
+   *
+   * @return number of processes killed
+   */
+  public static int destroy(@NotNull Collection<ProcessHandle> processes) {
+    int killed = 0;
+    for (ProcessHandle process : processes) {
+      if (process.isAlive() && process.destroyForcibly()) killed++;
+    }
+    return killed;
+  }
+
+  /**
+   * Pauses ({@code SIGSTOP}) or resumes ({@code SIGCONT}) the processes. Only supported on Unix-like systems.
+   *
+   * @return whether the signal was delivered
+   */
+  public static boolean suspend(@NotNull Collection<ProcessHandle> processes, boolean suspend) {
+    if (processes.isEmpty() || !isSignalSupported()) return false;
+    List<String> command = new ArrayList<>();
+    command.add("kill");
+    command.add(suspend ? "-STOP" : "-CONT");
+    for (ProcessHandle process : processes) {
+      command.add(String.valueOf(process.pid()));
+    }
+    try {
+      Process kill = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+      // Processes that exited meanwhile make kill fail for their pid only
+      return kill.waitFor(5, TimeUnit.SECONDS);
+    }
+    catch (IOException e) {
+      return false;
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  public static boolean isSignalSupported() {
+    return !System.getProperty("os.name", "").toLowerCase(Locale.ROOT).startsWith("windows");
+  }
+
+  /**
+   * @return processes started by the IDE whose command line contains the argument, such as the temporary file of a run
+   */
+  public static @NotNull List<ProcessHandle> findByArgument(@NotNull String argument) {
+    List<ProcessHandle> result = new ArrayList<>();
+    ProcessHandle.current().descendants().forEach(process -> {
+      ProcessHandle.Info info = process.info();
+      boolean matches = info.arguments()
+        .map(arguments -> Arrays.asList(arguments).contains(argument))
+        .orElseGet(() -> info.commandLine().map(commandLine -> commandLine.contains(argument)).orElse(false));
+      if (matches) result.add(process);
+    });
+    return result;
+  }
+}
@@ -8,13 +8,140 @@ import com.jetbrains.php.tools.quality.QualityToolConfiguration;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.List;
+
+/**
+ * Information collected for a PHPStan run. Options of the run that depend on more than the analysed file are taken from
+ * it: the run gets an {@link RunInspection inspection} of its own, which the platform passes back to
+ * {@link PhpStanAnnotatorProxy#getOptions}.
+ */
 public class PhpStanQualityToolAnnotatorInfo extends QualityToolAnnotatorInfo<PhpStanValidationInspection> {
+  private final @NotNull PhpStanConfigOverlay.RunKind myRunKind;
+  private final @NotNull String myDurationKey;
+  private final int myTimeoutMs;
+  private final @Nullable CharSequence myContent;
+  private final long myModificationStamp;
+  private final @Nullable PhpStanConfiguration myPhpStanConfiguration;
+  private volatile @Nullable String myEditorTempPath;
+  private volatile @Nullable List<String> myScopePaths;
 
   public PhpStanQualityToolAnnotatorInfo(@Nullable PsiFile psiFile,
                                          @NotNull PhpStanValidationInspection inspection,
                                          @NotNull InspectionProfile profile,
                                          @NotNull Project project,
                                          @NotNull QualityToolConfiguration configuration, boolean isOnTheFly) {
+    this(psiFile, profile, project, configuration, isOnTheFly,
+         psiFile != null && isOnTheFly ? PhpStanConfigOverlay.RunKind.EDITOR : PhpStanConfigOverlay.RunKind.BATCH,
+         String.valueOf(project.getBasePath()), configuration.getTimeout(), null, -1);
+  }
+
+  /**
+   * @param durationKey what the run analyses, see {@link PhpStanMetrics#recordDuration}
+   * @param timeoutMs   timeout of the run, already set in the configuration
+   * @param content     text of the document the run analyses, or null to only use the temporary file of the platform
+   * @param stamp       modification stamp of the document with that text
+   */
+  public PhpStanQualityToolAnnotatorInfo(@Nullable PsiFile psiFile,
+                                         @NotNull InspectionProfile profile,
+                                         @NotNull Project project,
+                                         @NotNull QualityToolConfiguration configuration,
+                                         boolean isOnTheFly,
+                                         @NotNull PhpStanConfigOverlay.RunKind runKind,
+                                         @NotNull String durationKey,
+                                         int timeoutMs,
+                                         @Nullable CharSequence content,
+                                         long stamp) {
+    this(psiFile, new RunInspection(), profile, project, configuration, isOnTheFly, runKind, durationKey, timeoutMs, content, stamp);
+  }
+
+  private PhpStanQualityToolAnnotatorInfo(@Nullable PsiFile psiFile,
+                                          @NotNull RunInspection inspection,
+                                          @NotNull InspectionProfile profile,
+                                          @NotNull Project project,
+                                          @NotNull QualityToolConfiguration configuration,
+                                          boolean isOnTheFly,
+                                          @NotNull PhpStanConfigOverlay.RunKind runKind,
+                                          @NotNull String durationKey,
+                                          int timeoutMs,
+                                          @Nullable CharSequence content,
+                                          long stamp) {
     super(psiFile, inspection, profile, project, configuration, isOnTheFly);
+    inspection.myInfo = this;
+    myRunKind = runKind;
+    myDurationKey = durationKey;
+    myTimeoutMs = timeoutMs;
+    myContent = content;
+    myModificationStamp = stamp;
+    myPhpStanConfiguration = configuration instanceof PhpStanConfiguration phpStanConfiguration ? phpStanConfiguration : null;
+  }
+
+  public @NotNull PhpStanConfigOverlay.RunKind getRunKind() {
+    return myRunKind;
+  }
+
+  public @NotNull String getDurationKey() {
+    return myDurationKey;
+  }
+
+  public int getTimeoutMs() {
+    return myTimeoutMs;
+  }
+
+  public @Nullable CharSequence getContent() {
+    return myContent;
+  }
+
+  public long getModificationStamp() {
+    return myModificationStamp;
+  }
+
+  /**
+   * @return the configuration the run uses, with its timeout
+   */
+  public @Nullable PhpStanConfiguration getPhpStanConfiguration() {
+    return myPhpStanConfiguration;
+  }
+
+  /**
+   * @return copy of the document passed as {@code --tmp-file} instead of the temporary file of the platform, or null
+   */
+  public @Nullable String getEditorTempPath() {
+    return myEditorTempPath;
+  }
+
+  public void setEditorTempPath(@Nullable String editorTempPath) {
+    myEditorTempPath = editorTempPath;
+  }
+
+  /**
+   * @return paths a non-sharded batch run analyses instead of the whole project, or null
+   */
+  public @Nullable List<String> getScopePaths() {
+    return myScopePaths;
+  }
+
+  public void setScopePaths(@Nullable List<String> scopePaths) {
+    myScopePaths = scopePaths;
+  }
+
+  /**
+   * @return whether the run uses the local interpreter
+   */
+  public boolean isLocal() {
+    return getInterpreterId() == null;
+  }
+
+  /**
+   * The inspection of a single run, leading back to its information.
+   */
+  public static final class RunInspection extends PhpStanValidationInspection {
+    private PhpStanQualityToolAnnotatorInfo myInfo;
+
+    private RunInspection() {
+    }
+
+    public @NotNull PhpStanQualityToolAnnotatorInfo getInfo() {
+      return myInfo;
+    }
   }
 }
@@ -0,0 +1,114 @@
+package com.jetbrains.php.tools.quality.phpstan;
+
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Results of on-the-fly runs by the content they analysed, so undo, switching tabs or saving an unchanged file don't
+ * start PHPStan again for text it has just analysed.
+ * <p>
+ * PHPStan also reads the other files of the project from disk, so every change of such a file invalidates all results,
+ * except the results of the changed file itself: its analysed content comes from the editor, not from disk.
+ * Only the most recently used results are kept.
+ *
+ * @param <V> the result of a run
+ */
+public final class PhpStanResultCache<V> {
+  static final int MAX_ENTRIES = 100;
+  /** Changes remembered to tell whether only the analysed file changed since its result was stored */
+  static final int MAX_CHANGES = 64;
+  private static final @NonNls Set<String> DEPENDENCY_EXTENSIONS = Set.of("php", "phtml", "inc", "module", "stub");
+  private static final @NonNls Set<String> DEPENDENCY_NAMES = Set.of("composer.json", "composer.lock");
+  /** Metadata of version control and of the IDE, refreshed often */
+  private static final @NonNls List<String> IGNORED_DIRECTORIES = List.of(".git", ".idea");
+
+  /**
+   * @param path        path of the analysed file
+   * @param contentHash hash of the analysed text
+   * @param fingerprint {@link PhpStanNeonConfigService#getFingerprint() fingerprint} of the configuration
+   * @param tool        version and interpreter of PHPStan
+   */
+  public record Key(@NotNull String path, @NotNull String contentHash, @NotNull String fingerprint, @NotNull String tool) {
+  }
+
+  private record Entry<V>(@NotNull V value, long generation) {
+  }
+
+  private final Map<Key, Entry<V>> myEntries = new LinkedHashMap<>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Key, Entry<V>> eldest) {
+      return size() > MAX_ENTRIES;
+    }
+  };
+  // Changed path of each of the last generations, the latest last; null if the change is not limited to one file
+  private final Deque<String> myChanges = new ArrayDeque<>();
+  private long myGeneration;
+
+  public synchronized @Nullable V get(@NotNull Key key) {
+    Entry<V> entry = myEntries.get(key);
+    if (entry == null) return null;
+    if (!isValid(entry, key.path())) {
+      myEntries.remove(key);
+      return null;
+    }
+    return entry.value();
+  }
+
+  /**
+   * @return the generation to pass to {@link #put} for a run starting now
+   */
+  public synchronized long getGeneration() {
+    return myGeneration;
+  }
+
+  /**
+   * @param generation {@link #getGeneration() generation} when the run started, so files changed while it ran still
+   *                   invalidate its result
+   */
+  public synchronized void put(@NotNull Key key, @NotNull V value, long generation) {
+    myEntries.put(key, new Entry<>(value, generation));
+  }
+
+  /**
+   * @param path the changed file, or null if unknown or if many files changed at once
+   */
+  public synchronized void fileChanged(@Nullable String path) {
+    myGeneration++;
+    myChanges.addLast(path != null ? path : "");
+    if (myChanges.size() > MAX_CHANGES) myChanges.removeFirst();
+  }
+
+  public synchronized void clear() {
+    myEntries.clear();
+    myChanges.clear();
+  }
+
+  private boolean isValid(@NotNull Entry<V> entry, @NotNull String path) {
+    long missed = myGeneration - entry.generation();
+    if (missed == 0) return true;
+    if (missed > myChanges.size()) return false;
+    Iterator<String> changes = myChanges.descendingIterator();
+    for (long i = 0; i < missed; i++) {
+      if (!path.equals(changes.next())) return false;
+    }
+    return true;
+  }
+
+  /**
+   * @return whether PHPStan may read the file while analysing others: PHP code, stubs, Composer files, or a directory
+   * outside the metadata of version control and the IDE
+   */
+  public static boolean isDependency(@NotNull String path) {
+    String normalized = path.replace('\\', '/');
+    for (String directory : IGNORED_DIRECTORIES) {
+      if (normalized.contains("/" + directory + "/") || normalized.endsWith("/" + directory)) return false;
+    }
+    String name = path.substring(Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\')) + 1);
+    if (DEPENDENCY_NAMES.contains(name)) return true;
+    int dot = name.lastIndexOf('.');
+    return dot < 0 || DEPENDENCY_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+  }
+}
@@ -0,0 +1,62 @@
+package com.jetbrains.php.tools.quality.phpstan;
+
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads the dependencies between files from the result cache PHPStan writes to its {@code tmpDir} after analysing the
+ * project, {@code resultCache.php}.
+ * <p>
+ * The cache lists for every analysed file the files depending on it, exported by {@code var_export}. Which files a file
+ * depends on is the inverse of that.
+ */
+public final class PhpStanResultCacheFile {
+  public static final @NonNls String NAME = "resultCache.php";
+  private static final @NonNls String DEPENDENCIES = "'dependencies' =>";
+  private static final Pattern FILE = Pattern.compile("^ {2}'((?:[^'\\\\]|\\\\.)*)' => $");
+  private static final Pattern DEPENDENT_FILE = Pattern.compile("^ {6}\\d+ => '((?:[^'\\\\]|\\\\.)*)',$");
+
+  private PhpStanResultCacheFile() {
+  }
+
+  /**
+   * @param content content of {@value #NAME}
+   * @return the files each analysed file depends on, by the absolute paths PHPStan uses; empty if the content isn't
+   * understood
+   */
+  public static @NotNull Map<String, Set<String>> readDependencies(@NotNull String content) {
+    int start = content.indexOf(DEPENDENCIES);
+    if (start < 0) return Map.of();
+    Map<String, Set<String>> dependencies = new HashMap<>();
+    String file = null;
+    for (String line : content.substring(start).split("\r?\n")) {
+      // The exported array ends with a parenthesis at the start of a line
+      if (line.startsWith(")")) break;
+      Matcher fileMatcher = FILE.matcher(line);
+      if (fileMatcher.matches()) {
+        file = unescape(fileMatcher.group(1));
+        dependencies.computeIfAbsent(file, f -> new HashSet<>());
+        continue;
+      }
+      Matcher dependentMatcher = DEPENDENT_FILE.matcher(line);
+      if (file != null && dependentMatcher.matches()) {
+        dependencies.computeIfAbsent(unescape(dependentMatcher.group(1)), f -> new HashSet<>()).add(file);
+      }
+    }
+    return dependencies;
+  }
+
+  private static @NotNull String unescape(@NotNull String exported) {
+    StringBuilder result = new StringBuilder(exported.length());
+    for (int i = 0; i < exported.length(); i++) {
+      char c = exported.charAt(i);
+      if (c == '\\' && i + 1 < exported.length()) c = exported.charAt(++i);
+      result.append(c);
+    }
+    return result.toString();
+  }
+}
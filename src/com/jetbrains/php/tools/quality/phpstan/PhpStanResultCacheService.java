@@ -0,0 +1,85 @@
+package com.jetbrains.php.tools.quality.phpstan;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFileMoveEvent;
+import com.intellij.openapi.vfs.newvfs.events.VFilePropertyChangeEvent;
+import com.jetbrains.php.tools.quality.QualityToolMessageProcessor;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+
+/**
+ * Provides the {@link PhpStanResultCache results of on-the-fly runs} of the project and invalidates them when a file
+ * PHPStan may depend on changes on disk.
+ */
+public final class PhpStanResultCacheService implements Disposable {
+  private final Project myProject;
+  private final PhpStanResultCache<QualityToolMessageProcessor> myCache = new PhpStanResultCache<>();
+
+  public PhpStanResultCacheService(@NotNull Project project) {
+    myProject = project;
+    project.getMessageBus().connect(this).subscribe(VirtualFileManager.VFS_CHANGES, new BulkFileListener() {
+      @Override
+      public void after(@NotNull List<? extends @NotNull VFileEvent> events) {
+        String changed = null;
+        int count = 0;
+        for (VFileEvent event : events) {
+          String path = event.getPath();
+          if (event instanceof VFileMoveEvent || event instanceof VFilePropertyChangeEvent propertyEvent && propertyEvent.isRename()) {
+            // Moving a file changes what other files resolve to, whatever it is named
+            count += 2;
+          }
+          else if (PhpStanResultCache.isDependency(path)) {
+            count++;
+            changed = path;
+          }
+        }
+        if (count > 0) myCache.fileChanged(count == 1 ? changed : null);
+      }
+    });
+  }
+
+  public static PhpStanResultCacheService getInstance(@NotNull Project project) {
+    return project.getService(PhpStanResultCacheService.class);
+  }
+
+  /**
+   * @param content text the run analyses
+   * @return key of the result of the run, or null if the version of PHPStan is unknown
+   */
+  public @Nullable PhpStanResultCache.Key createKey(@NotNull VirtualFile file, @NotNull CharSequence content, @Nullable String interpreterId) {
+    String version = PhpStanConfigurationManager.getInstance(myProject).getLocalSettings().getVersion();
+    if (version == null) return null;
+    return new PhpStanResultCache.Key(file.getPath(), sha256(content.toString()),
+                                      PhpStanNeonConfigService.getInstance(myProject).getFingerprint(),
+                                      version + "@" + (interpreterId != null ? interpreterId : ""));
+  }
+
+  public @NotNull PhpStanResultCache<QualityToolMessageProcessor> getCache() {
+    return myCache;
+  }
+
+  private static @NotNull String sha256(@NotNull String content) {
+    try {
+      return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content.getBytes(StandardCharsets.UTF_8)));
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public void dispose() {
+    myCache.clear();
+  }
+}
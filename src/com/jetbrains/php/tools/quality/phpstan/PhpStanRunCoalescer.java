@@ -0,0 +1,132 @@
+package com.jetbrains.php.tools.quality.phpstan;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Merges runs requested within a short window for the same key, such as the configuration, into one run, so PHPStan
+ * bootstraps once for all of them.
+ * <p>
+ * The first request of a window waits for the others and runs them together on its thread, unless no others are
+ * expected. Requests the merged run gives no result for, including all requests of a window nobody else joined, are
+ * left to their callers to run alone. The merged run is only cancelled once all its requests are.
+ *
+ * @param <K> what requests must share to be merged
+ * @param <T> a request
+ * @param <R> the result of a request
+ */
+public final class PhpStanRunCoalescer<K, T, R> {
+  private final long myWindowMs;
+  private final int myMaxRequests;
+  private final long myPollMs;
+  private final @NotNull Runner<T, R> myRunner;
+  private final Map<K, Window<T, R>> myOpen = new HashMap<>();
+
+  public interface Runner<T, R> {
+    /**
+     * @param requests  at least two requests
+     * @param cancelled whether all requests have been cancelled, polled while running
+     * @return results of the requests analysed together, by request
+     */
+    @NotNull Map<T, R> run(@NotNull List<T> requests, @NotNull BooleanSupplier cancelled);
+  }
+
+  private static final class Window<T, R> {
+    final Map<T, BooleanSupplier> requests = new LinkedHashMap<>();
+    final CompletableFuture<Map<T, R>> results = new CompletableFuture<>();
+    boolean closed;
+  }
+
+  /**
+   * @param windowMs    how long the first request waits for others
+   * @param maxRequests requests after which a window is closed early
+   * @param pollMs      interval to check for cancellation while waiting
+   */
+  public PhpStanRunCoalescer(long windowMs, int maxRequests, long pollMs, @NotNull Runner<T, R> runner) {
+    myWindowMs = windowMs;
+    myMaxRequests = maxRequests;
+    myPollMs = pollMs;
+    myRunner = runner;
+  }
+
+  /**
+   * @param othersExpected whether other requests may join, otherwise a request opening a window runs alone right away
+   * @param cancelled      polled while waiting
+   * @return the result of the merged run, or null if the request has to run alone or was cancelled
+   */
+  public @Nullable R submit(@NotNull K key, @NotNull T request, boolean othersExpected, @NotNull BooleanSupplier cancelled)
+    throws InterruptedException {
+    Window<T, R> window;
+    boolean first;
+    synchronized (this) {
+      window = myOpen.get(key);
+      first = window == null;
+      if (first) {
+        if (!othersExpected) return null;
+        window = new Window<>();
+        myOpen.put(key, window);
+      }
+      window.requests.put(request, cancelled);
+      if (window.requests.size() >= myMaxRequests) {
+        close(key, window);
+      }
+    }
+    return first ? runWindow(key, window, request, cancelled) : await(window, request, cancelled);
+  }
+
+  private @Nullable R runWindow(@NotNull K key, @NotNull Window<T, R> window, @NotNull T request, @NotNull BooleanSupplier cancelled)
+    throws InterruptedException {
+    Map<T, R> results = Map.of();
+    try {
+      List<T> requests = new ArrayList<>();
+      List<BooleanSupplier> waiters;
+      synchronized (this) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(myWindowMs);
+        long remaining;
+        while (!window.closed && !cancelled.getAsBoolean() && (remaining = deadline - System.nanoTime()) > 0) {
+          wait(Math.max(1, Math.min(myPollMs, TimeUnit.NANOSECONDS.toMillis(remaining))));
+        }
+        close(key, window);
+        waiters = List.copyOf(window.requests.values());
+        window.requests.forEach((waiting, waiterCancelled) -> {
+          if (!waiterCancelled.getAsBoolean()) requests.add(waiting);
+        });
+      }
+      if (requests.size() < 2) return null;
+      results = myRunner.run(requests, () -> waiters.stream().allMatch(BooleanSupplier::getAsBoolean));
+      return cancelled.getAsBoolean() ? null : results.get(request);
+    }
+    finally {
+      // Waiting requests run alone if the merged run failed
+      window.results.complete(results);
+    }
+  }
+
+  private @Nullable R await(@NotNull Window<T, R> window, @NotNull T request, @NotNull BooleanSupplier cancelled)
+    throws InterruptedException {
+    while (!cancelled.getAsBoolean()) {
+      try {
+        return window.results.get(myPollMs, TimeUnit.MILLISECONDS).get(request);
+      }
+      catch (TimeoutException ignored) {
+      }
+      catch (ExecutionException e) {
+        return null;
+      }
+    }
+    return null;
+  }
+
+  private void close(@NotNull K key, @NotNull Window<T, R> window) {
+    window.closed = true;
+    myOpen.remove(key, window);
+    notifyAll();
+  }
+}
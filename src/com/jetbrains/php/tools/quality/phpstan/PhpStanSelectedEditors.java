@@ -0,0 +1,55 @@
+package com.jetbrains.php.tools.quality.phpstan;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.fileEditor.FileEditorManager;
+import com.intellij.openapi.fileEditor.FileEditorManagerEvent;
+import com.intellij.openapi.fileEditor.FileEditorManagerListener;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.vfs.VirtualFile;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.List;
+
+/**
+ * Files selected in the editors of the project, for the {@link PhpStanPriority priority} of on-the-fly runs.
+ * <p>
+ * {@link FileEditorManager} may only be asked on the EDT, while runs start on background threads, so the selection is
+ * copied whenever it changes.
+ */
+public final class PhpStanSelectedEditors {
+  private final Project myProject;
+  private volatile @NotNull List<VirtualFile> mySelectedFiles = List.of();
+
+  public PhpStanSelectedEditors(@NotNull Project project) {
+    myProject = project;
+    ApplicationManager.getApplication().invokeLater(this::update, project.getDisposed());
+  }
+
+  public static PhpStanSelectedEditors getInstance(@NotNull Project project) {
+    return project.getService(PhpStanSelectedEditors.class);
+  }
+
+  /**
+   * @return selected files of all splitters, the one of the focused splitter first
+   */
+  public @NotNull List<VirtualFile> getSelectedFiles() {
+    return mySelectedFiles;
+  }
+
+  private void update() {
+    mySelectedFiles = List.of(FileEditorManager.getInstance(myProject).getSelectedFiles());
+  }
+
+  static final class SelectionListener implements FileEditorManagerListener {
+    private final Project myProject;
+
+    SelectionListener(@NotNull Project project) {
+      myProject = project;
+    }
+
+    @Override
+    public void selectionChanged(@NotNull FileEditorManagerEvent event) {
+      getInstance(myProject).update();
+    }
+  }
+}
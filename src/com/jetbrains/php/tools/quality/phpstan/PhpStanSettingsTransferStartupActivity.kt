@@ -24,5 +24,7 @@ private class PhpStanSettingsTransferStartupActivity : ProjectActivity {
         instance.isTransferred = true
       }
     }
+    // The result cache of PHPStan is likely cold, or stale after changes made while the project was closed
+    PhpStanWarmUpService.getInstance(project).schedule()
   }
 }
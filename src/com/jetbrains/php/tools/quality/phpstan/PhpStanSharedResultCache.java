@@ -0,0 +1,251 @@
+package com.jetbrains.php.tools.quality.phpstan;
+
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Problems PHPStan reported per file, in a directory shared by all projects on the machine, so checkouts of the same
+ * repository, such as git worktrees, reuse the analysis of files they have in common.
+ * <p>
+ * An entry is addressed by the {@link #createKey key} of what was analysed: the path relative to the project, the
+ * content, the configuration and the version of PHPStan. It records the files the analysed file depends on with their
+ * hashes, and is only used while they have the same content in the project looking it up. Paths are relative to the
+ * project, so problems are reported the same way in every checkout.
+ */
+public final class PhpStanSharedResultCache {
+  private static final @NonNls String FORMAT = "phpstan-shared-result 1";
+  private static final @NonNls String DEPENDENCY = "D ";
+  private static final @NonNls String PROBLEM = "P ";
+  private static final @NonNls String FILE_TAG = "file";
+  private static final @NonNls String ERROR_TAG = "error";
+  private static final @NonNls String WARNING_TAG = "warning";
+
+  private final @NotNull Path myDirectory;
+
+  /**
+   * @param column column as PHPStan reports it, 1-based, or 0 if unknown
+   */
+  public record Problem(boolean error, int line, int column, @NotNull String message) {
+  }
+
+  /**
+   * @param dependencies hash of each file the analysed file depends on, by its path relative to the project
+   * @param problems     problems of the analysed file
+   */
+  public record Entry(@NotNull Map<String, String> dependencies, @NotNull List<Problem> problems) {
+  }
+
+  public PhpStanSharedResultCache(@NotNull Path directory) {
+    myDirectory = directory;
+  }
+
+  /**
+   * @param path        path of the analysed file relative to the project
+   * @param contentHash {@link #hash(CharSequence) hash} of the analysed content
+   * @param fingerprint {@link PhpStanNeonConfig#getFingerprint() fingerprint} of the configuration
+   * @param tool        version of PHPStan and hashes of the installed dependencies
+   */
+  public static @NotNull String createKey(@NotNull String path, @NotNull String contentHash, @NotNull String fingerprint, @NotNull String tool) {
+    return hash((path + "\n" + contentHash + "\n" + fingerprint + "\n" + tool).getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * @return hash of the text without a byte order mark and with {@code \n} line separators, so the content of an
+   * editor and the decoded content of the same file on disk hash alike, whatever its encoding and line separators
+   */
+  public static @NotNull String hash(@NotNull CharSequence text) {
+    String normalized = text.toString();
+    if (normalized.startsWith("\uFEFF")) normalized = normalized.substring(1);
+    normalized = normalized.replace("\r\n", "\n").replace('\r', '\n');
+    return hash(normalized.getBytes(StandardCharsets.UTF_8));
+  }
+
+  public static @NotNull String hash(byte @NotNull [] content) {
+    try {
+      return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @param hasher current hash of a dependency by its relative path, or null if it doesn't exist
+   * @return the problems of the entry, or null if there is none or a dependency changed
+   */
+  public @Nullable List<Problem> get(@NotNull String key, @NotNull Function<String, String> hasher) throws IOException {
+    Path file = getFile(key);
+    List<String> lines;
+    try {
+      lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+    }
+    catch (NoSuchFileException e) {
+      return null;
+    }
+    if (lines.isEmpty() || !FORMAT.equals(lines.get(0))) return null;
+    Entry entry = parse(lines);
+    if (entry == null) return null;
+    for (Map.Entry<String, String> dependency : entry.dependencies().entrySet()) {
+      if (!dependency.getValue().equals(hasher.apply(dependency.getKey()))) return null;
+    }
+    // Pruning evicts the least recently used entries first
+    Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+    return entry.problems();
+  }
+
+  public void put(@NotNull String key, @NotNull Entry entry) throws IOException {
+    StringBuilder content = new StringBuilder(FORMAT).append('\n');
+    for (Map.Entry<String, String> dependency : new TreeMap<>(entry.dependencies()).entrySet()) {
+      content.append(DEPENDENCY).append(dependency.getValue()).append(' ').append(escape(dependency.getKey())).append('\n');
+    }
+    for (Problem problem : entry.problems()) {
+      content.append(PROBLEM).append(problem.error() ? 'E' : 'W').append(' ').append(problem.line()).append(' ')
+        .append(problem.column()).append(' ').append(escape(problem.message())).append('\n');
+    }
+    Path file = getFile(key);
+    Files.createDirectories(file.getParent());
+    // Other projects may read the entry meanwhile, so it is replaced at once
+    Path temp = Files.createTempFile(file.getParent(), key, ".tmp");
+    try {
+      Files.writeString(temp, content, StandardCharsets.UTF_8);
+      Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  private @NotNull Path getFile(@NotNull String key) {
+    return myDirectory.resolve(key.substring(0, 2)).resolve(key);
+  }
+
+  private static @Nullable Entry parse(@NotNull List<String> lines) {
+    Map<String, String> dependencies = new HashMap<>();
+    List<Problem> problems = new ArrayList<>();
+    for (String line : lines.subList(1, lines.size())) {
+      if (line.startsWith(DEPENDENCY)) {
+        int space = line.indexOf(' ', DEPENDENCY.length());
+        if (space < 0) return null;
+        dependencies.put(unescape(line.substring(space + 1)), line.substring(DEPENDENCY.length(), space));
+      }
+      else if (line.startsWith(PROBLEM)) {
+        String[] parts = line.substring(PROBLEM.length()).split(" ", 4);
+        if (parts.length < 4) return null;
+        try {
+          problems.add(new Problem("E".equals(parts[0]), Integer.parseInt(parts[1]), Integer.parseInt(parts[2]), unescape(parts[3])));
+        }
+        catch (NumberFormatException e) {
+          return null;
+        }
+      }
+    }
+    return new Entry(dependencies, problems);
+  }
+
+  /**
+   * @param report checkstyle report of PHPStan
+   * @return problems by the name PHPStan reported the file under
+   */
+  public static @NotNull Map<String, List<Problem>> parseReport(@NotNull String report) throws IOException {
+    Map<String, List<Problem>> problems = new HashMap<>();
+    int start = report.indexOf("<checkstyle");
+    int end = report.lastIndexOf("</checkstyle>");
+    if (start < 0 || end < start) return problems;
+    try {
+      PhpStanXml.newParser().parse(
+        new InputSource(new StringReader(report.substring(start, end + "</checkstyle>".length()))), new DefaultHandler() {
+          private List<Problem> myFileProblems;
+
+          @Override
+          public void startElement(String uri, String localName, String qName, Attributes attributes) {
+            if (FILE_TAG.equals(qName)) {
+              myFileProblems = problems.computeIfAbsent(attributes.getValue("name"), name -> new ArrayList<>());
+            }
+            else if (myFileProblems != null && (ERROR_TAG.equals(qName) || WARNING_TAG.equals(qName))) {
+              myFileProblems.add(new Problem(ERROR_TAG.equals(attributes.getValue("severity")), parseInt(attributes.getValue("line")),
+                                             parseInt(attributes.getValue("column")), Objects.requireNonNullElse(attributes.getValue("message"), "")));
+            }
+          }
+        });
+    }
+    catch (SAXException | ParserConfigurationException e) {
+      throw new IOException(e);
+    }
+    return problems;
+  }
+
+  /**
+   * @return the problems as the report of PHPStan on the file, for {@link PhpStanMessageProcessor} to read
+   */
+  public static @NotNull String toReport(@NotNull String path, @NotNull List<Problem> problems) {
+    StringBuilder report = new StringBuilder("<file name=\"").append(escapeXml(path)).append("\">");
+    for (Problem problem : problems) {
+      report.append("<error line=\"").append(problem.line()).append("\" column=\"").append(problem.column())
+        .append("\" severity=\"").append(problem.error() ? ERROR_TAG : WARNING_TAG)
+        .append("\" message=\"").append(escapeXml(problem.message())).append("\"/>");
+    }
+    return report.append("</file>").toString();
+  }
+
+  private static int parseInt(@Nullable String value) {
+    try {
+      return value != null ? Integer.parseInt(value.trim()) : 0;
+    }
+    catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  private static @NotNull String escape(@NotNull String value) {
+    return value.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r");
+  }
+
+  private static @NotNull String unescape(@NotNull String value) {
+    StringBuilder result = new StringBuilder(value.length());
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '\\' && i + 1 < value.length()) {
+        c = value.charAt(++i);
+        if (c == 'n') c = '\n';
+        else if (c == 'r') c = '\r';
+      }
+      result.append(c);
+    }
+    return result.toString();
+  }
+
+  private static @NotNull String escapeXml(@NotNull String value) {
+    StringBuilder result = new StringBuilder(value.length());
+    for (char c : value.toCharArray()) {
+      switch (c) {
+        case '&' -> result.append("&amp;");
+        case '<' -> result.append("&lt;");
+        case '>' -> result.append("&gt;");
+        case '"' -> result.append("&quot;");
+        case '\n' -> result.append("&#10;");
+        case '\r' -> result.append("&#13;");
+        default -> result.append(c);
+      }
+    }
+    return result.toString();
+  }
+}
@@ -0,0 +1,192 @@
+package com.jetbrains.php.tools.quality.phpstan;
+
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.fileEditor.impl.LoadTextUtil;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.vfs.LocalFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.jetbrains.php.tools.quality.QualityToolMessageProcessor;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.xml.sax.SAXException;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shares the results of PHPStan between the projects on this machine, such as git worktrees of one repository, through
+ * a {@link PhpStanSharedResultCache content-addressed cache}.
+ * <p>
+ * Full analyses of the project, such as the warm-up, store the problems of every analysed file with the files it
+ * depends on, as recorded in the result cache of PHPStan. On-the-fly runs of the local PHPStan look them up before
+ * starting PHPStan. Installed packages are covered by the hash of {@code composer.lock} instead of file by file.
+ * <p>
+ * Files are hashed as text, so an entry stored from the disk matches the editor content of a file with a byte order
+ * mark, {@code \r\n} line separators or another encoding than UTF-8.
+ */
+public final class PhpStanSharedResultCacheService {
+  private static final Logger LOG = Logger.getInstance(PhpStanSharedResultCacheService.class);
+  private static final @NonNls String SHARED_DIR = "phpstan/shared";
+  private static final @NonNls String COMPOSER_LOCK = "composer.lock";
+  private static final @NonNls String VENDOR_DIR = "vendor/";
+
+  private final Project myProject;
+  private final PhpStanSharedResultCache myCache = new PhpStanSharedResultCache(Path.of(PathManager.getSystemPath(), SHARED_DIR));
+  private @Nullable String myComposerLockStamp;
+  private @Nullable String myComposerLockHash;
+  /**
+   * Hashes of analysed files and their dependencies by path, valid while the VFS modification stamp is the same.
+   */
+  private final Map<String, StampedHash> myHashes = new ConcurrentHashMap<>();
+
+  private record StampedHash(long stamp, @NotNull String hash) {
+  }
+
+  public PhpStanSharedResultCacheService(@NotNull Project project) {
+    myProject = project;
+  }
+
+  public static PhpStanSharedResultCacheService getInstance(@NotNull Project project) {
+    return project.getService(PhpStanSharedResultCacheService.class);
+  }
+
+  /**
+   * @return the result of an on-the-fly run of the content of the file stored by any project, or null if there is none
+   */
+  public @Nullable QualityToolMessageProcessor get(@NotNull PhpStanQualityToolAnnotatorInfo info, @NotNull VirtualFile file) {
+    CharSequence content = info.getContent();
+    String basePath = myProject.getBasePath();
+    String path = basePath != null ? getRelativePath(basePath, file.getPath()) : null;
+    if (content == null || path == null || info.getInterpreterId() != null) return null;
+    try {
+      String key = createKey(path, PhpStanSharedResultCache.hash(content));
+      if (key == null) return null;
+      List<PhpStanSharedResultCache.Problem> problems = myCache.get(key, dependency -> hash(Path.of(basePath, dependency)));
+      if (problems == null) return null;
+      PhpStanMessageProcessor processor = new PhpStanMessageProcessor(info);
+      processor.processReport(PhpStanSharedResultCache.toReport(path, problems));
+      return processor;
+    }
+    catch (IOException | SAXException e) {
+      LOG.debug("Cannot read shared PHPStan result of " + path, e);
+      return null;
+    }
+  }
+
+  /**
+   * Stores the problems of the files a full analysis of the project analysed.
+   *
+   * @param report  output of PHPStan
+   * @param started when the analysis started; files modified since then are skipped
+   */
+  public void storeFullAnalysis(@NotNull String report, long started) {
+    String basePath = myProject.getBasePath();
+    Path resultCacheFile = PhpStanConfigOverlayService.getInstance(myProject).getResultCacheFile();
+    if (basePath == null || resultCacheFile == null) return;
+    try {
+      Map<String, Set<String>> dependencies =
+        PhpStanResultCacheFile.readDependencies(Files.readString(resultCacheFile, StandardCharsets.UTF_8));
+      if (dependencies.isEmpty()) return;
+      Map<String, List<PhpStanSharedResultCache.Problem>> problems = new HashMap<>();
+      for (Map.Entry<String, List<PhpStanSharedResultCache.Problem>> entry : PhpStanSharedResultCache.parseReport(report).entrySet()) {
+        String name = FileUtil.toSystemIndependentName(entry.getKey());
+        String path = Path.of(name).isAbsolute() ? getRelativePath(basePath, name) : name;
+        if (path != null) problems.put(path, entry.getValue());
+      }
+      Map<String, String> hashes = new HashMap<>();
+      int stored = 0;
+      for (Map.Entry<String, Set<String>> file : dependencies.entrySet()) {
+        if (storeFile(basePath, file.getKey(), file.getValue(), problems, hashes, started)) stored++;
+      }
+      LOG.info("Stored shared PHPStan results of " + stored + " files");
+    }
+    catch (NoSuchFileException e) {
+      LOG.debug("No PHPStan result cache at " + resultCacheFile);
+    }
+    catch (IOException e) {
+      LOG.warn("Cannot store shared PHPStan results", e);
+    }
+  }
+
+  /**
+   * @param hashes hashes of the files by their relative paths, shared by the files of one analysis
+   * @return whether a new entry was stored
+   */
+  private boolean storeFile(@NotNull String basePath,
+                            @NotNull String absolutePath,
+                            @NotNull Set<String> fileDependencies,
+                            @NotNull Map<String, List<PhpStanSharedResultCache.Problem>> problems,
+                            @NotNull Map<String, String> hashes,
+                            long started) throws IOException {
+    String path = getRelativePath(basePath, FileUtil.toSystemIndependentName(absolutePath));
+    if (path == null || path.startsWith(VENDOR_DIR)) return false;
+    Path file = Path.of(basePath, path);
+    // The analysed content is gone if the file changed during the analysis
+    if (!Files.isRegularFile(file) || Files.getLastModifiedTime(file).toMillis() >= started) return false;
+    String contentHash = hash(file);
+    String key = contentHash != null ? createKey(path, contentHash) : null;
+    if (key == null) return false;
+    Map<String, String> dependencyHashes = new HashMap<>();
+    for (String dependency : fileDependencies) {
+      String dependencyPath = getRelativePath(basePath, FileUtil.toSystemIndependentName(dependency));
+      // Outside the project only PHPStan itself and its stubs are expected, which its version covers
+      if (dependencyPath == null || dependencyPath.startsWith(VENDOR_DIR)) continue;
+      String hash = hashes.computeIfAbsent(dependencyPath, p -> hash(Path.of(basePath, p)));
+      if (hash == null) return false;
+      dependencyHashes.put(dependencyPath, hash);
+    }
+    if (myCache.get(key, hashes::get) != null) return false;
+    myCache.put(key, new PhpStanSharedResultCache.Entry(dependencyHashes, problems.getOrDefault(path, List.of())));
+    return true;
+  }
+
+  /**
+   * @return key of the entry, or null if the version of PHPStan is unknown
+   */
+  private @Nullable String createKey(@NotNull String path, @NotNull String contentHash) throws IOException {
+    String version = PhpStanConfigurationManager.getInstance(myProject).getLocalSettings().getVersion();
+    if (version == null) return null;
+    String fingerprint = PhpStanNeonConfigService.getInstance(myProject).getFingerprint();
+    return PhpStanSharedResultCache.createKey(path, contentHash, fingerprint, version + "@" + getComposerLockHash());
+  }
+
+  private synchronized @NotNull String getComposerLockHash() throws IOException {
+    Path composerLock = Path.of(Objects.requireNonNull(myProject.getBasePath()), COMPOSER_LOCK);
+    if (!Files.isRegularFile(composerLock)) return "";
+    String stamp = Files.getLastModifiedTime(composerLock).toMillis() + ":" + Files.size(composerLock);
+    if (!stamp.equals(myComposerLockStamp)) {
+      myComposerLockHash = PhpStanSharedResultCache.hash(Files.readAllBytes(composerLock));
+      myComposerLockStamp = stamp;
+    }
+    return Objects.requireNonNull(myComposerLockHash);
+  }
+
+  private static @Nullable String getRelativePath(@NotNull String basePath, @NotNull String path) {
+    String prefix = StringUtil.trimEnd(basePath, "/") + "/";
+    return path.startsWith(prefix) ? path.substring(prefix.length()) : null;
+  }
+
+  /**
+   * @return {@link PhpStanSharedResultCache#hash(CharSequence) hash} of the text of the file as the VFS loads it, or
+   * null if there is no such file
+   */
+  private @Nullable String hash(@NotNull Path file) {
+    VirtualFile virtualFile = LocalFileSystem.getInstance().findFileByNioFile(file);
+    if (virtualFile == null || !virtualFile.isValid() || virtualFile.isDirectory()) return null;
+    long stamp = virtualFile.getModificationStamp();
+    StampedHash cached = myHashes.get(virtualFile.getPath());
+    if (cached != null && cached.stamp() == stamp) return cached.hash();
+    String hash = PhpStanSharedResultCache.hash(LoadTextUtil.loadText(virtualFile));
+    myHashes.put(virtualFile.getPath(), new StampedHash(stamp, hash));
+    return hash;
+  }
+}
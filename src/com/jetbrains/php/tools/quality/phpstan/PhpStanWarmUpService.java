@@ -0,0 +1,199 @@
+package com.jetbrains.php.tools.quality.phpstan;
+
+import com.intellij.execution.ExecutionException;
+import com.intellij.execution.configurations.GeneralCommandLine;
+import com.intellij.execution.process.ProcessOutput;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.roots.ProjectRootManager;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.openapi.vfs.VirtualFileManager;
+import com.intellij.openapi.vfs.newvfs.BulkFileListener;
+import com.intellij.openapi.vfs.newvfs.events.VFileEvent;
+import com.intellij.profile.codeInspection.InspectionProfileManager;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import com.jetbrains.php.tools.quality.QualityToolAnnotatorInfo;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import static com.intellij.openapi.util.text.StringUtil.isNotEmpty;
+
+/**
+ * Rebuilds the result cache of PHPStan in the background when it is likely cold: after the project is opened, after
+ * the PHPStan settings are applied, and after the dependencies or the PHPStan configuration change on disk.
+ * <p>
+ * PHPStan only uses its result cache when it analyses the paths the cache was built for, not when it is given single
+ * files. Once the warm-up has completed, on-the-fly runs of the local PHPStan in editor mode therefore analyse the
+ * {@link #getWarmPaths paths of the warm-up} with the same configuration, and PHPStan reanalyses only the edited file
+ * and its dependents. Until then they analyse their files alone.
+ * <p>
+ * The warm-up runs at the lowest {@link PhpStanPriority priority}, paused while editor runs wait, and is cancelled
+ * when a newer trigger arrives. Triggers are collected for {@value #DELAY_SECONDS} seconds, which covers a
+ * {@code composer install}. Only runs of the local PHPStan are warmed up.
+ */
+public final class PhpStanWarmUpService implements Disposable {
+  private static final Logger LOG = Logger.getInstance(PhpStanWarmUpService.class);
+  private static final long DELAY_SECONDS = 10;
+  private static final @NonNls String COMPOSER_LOCK = "/composer.lock";
+  private static final @NonNls String INSTALLED_PACKAGES = "/vendor/composer/installed.json";
+  private static final @NonNls String NEON_EXTENSION = ".neon";
+  private static final @NonNls String NEON_DIST_EXTENSION = ".neon.dist";
+
+  private final Project myProject;
+  private @Nullable ScheduledFuture<?> myScheduled;
+  private @Nullable ProgressIndicator myRunning;
+  private volatile @Nullable List<String> myWarmPaths;
+
+  public PhpStanWarmUpService(@NotNull Project project) {
+    myProject = project;
+    project.getMessageBus().connect(this).subscribe(VirtualFileManager.VFS_CHANGES, new BulkFileListener() {
+      @Override
+      public void after(@NotNull List<? extends @NotNull VFileEvent> events) {
+        for (VFileEvent event : events) {
+          if (isTrigger(event.getPath(), project.getBasePath())) {
+            schedule();
+            return;
+          }
+        }
+      }
+    });
+  }
+
+  public static PhpStanWarmUpService getInstance(@NotNull Project project) {
+    return project.getService(PhpStanWarmUpService.class);
+  }
+
+  /**
+   * Warms the result cache up after a delay, cancelling the warm-up in progress, if any.
+   */
+  public synchronized void schedule() {
+    if (myProject.isDisposed()) return;
+    // The cache may be cold until the warm-up is done
+    myWarmPaths = null;
+    if (myScheduled != null) myScheduled.cancel(false);
+    myScheduled = AppExecutorUtil.getAppScheduledExecutorService().schedule(this::start, DELAY_SECONDS, TimeUnit.SECONDS);
+  }
+
+  private synchronized void start() {
+    myScheduled = null;
+    if (myProject.isDisposed()) return;
+    if (myRunning != null) myRunning.cancel();
+    new Task.Backgroundable(myProject, PhpStanBundle.message("phpstan.warm.up.title"), true) {
+      @Override
+      public void run(@NotNull ProgressIndicator indicator) {
+        synchronized (PhpStanWarmUpService.this) {
+          if (myRunning != null) myRunning.cancel();
+          myRunning = indicator;
+        }
+        try {
+          warmUp(indicator);
+        }
+        finally {
+          synchronized (PhpStanWarmUpService.this) {
+            if (myRunning == indicator) myRunning = null;
+          }
+        }
+      }
+    }.queue();
+  }
+
+  private void warmUp(@NotNull ProgressIndicator indicator) {
+    String toolPath = PhpStanProcessRunner.getLocalToolPath(myProject);
+    PhpStanGlobalInspection tool = (PhpStanGlobalInspection)PhpStanQualityToolType.INSTANCE.getGlobalTool(myProject, null);
+    List<String> paths = getPaths();
+    if (toolPath == null || tool == null || paths == null || !isLocalAndEnabled()) return;
+    List<String> options = PhpStanCacheHealthService.withCacheReport(tool.getCommandLineOptions(paths, null, null, myProject));
+    GeneralCommandLine commandLine = PhpStanProcessRunner.createCommandLine(myProject, toolPath, options, true);
+    long started = System.currentTimeMillis();
+    try {
+      ProcessOutput output = PhpStanProcessRunner.run(myProject, commandLine, indicator, -1);
+      if (!indicator.isCanceled()) {
+        long duration = System.currentTimeMillis() - started;
+        LOG.info("PHPStan result cache warmed up in " + duration + " ms");
+        PhpStanCacheHealthService.getInstance(myProject).recordOutput(output.getStderr(), duration, true);
+        if (output.getStdout().contains("<checkstyle")) {
+          PhpStanSharedResultCacheService.getInstance(myProject).storeFullAnalysis(output.getStdout(), started);
+          myWarmPaths = List.copyOf(paths);
+        }
+      }
+    }
+    catch (ExecutionException e) {
+      LOG.warn("Cannot warm up the PHPStan result cache", e);
+    }
+    catch (ProcessCanceledException ignored) {
+    }
+  }
+
+  /**
+   * @return the paths the result cache was last built for, empty for those of the configuration, or null if the cache
+   * is not known to be warm
+   */
+  public @Nullable List<String> getWarmPaths() {
+    return myWarmPaths;
+  }
+
+  /**
+   * Arguments of an on-the-fly run in editor mode, after its options.
+   *
+   * @param warmPaths {@link #getWarmPaths paths of the warm-up} to analyse along with the file, so the result cache is
+   *                  used, or null to analyse the file alone
+   */
+  public static @NotNull List<String> getEditorModeArguments(@NotNull String tmpFile,
+                                                             @NotNull String originalFile,
+                                                             @Nullable List<String> warmPaths) {
+    @NonNls List<String> arguments = new ArrayList<>(List.of("--tmp-file", tmpFile, "--instead-of", originalFile));
+    if (warmPaths != null) {
+      arguments.addAll(warmPaths);
+    }
+    else {
+      arguments.add(originalFile);
+    }
+    return arguments;
+  }
+
+  /**
+   * @return whether PHPStan is enabled for the project and runs on this machine
+   */
+  private boolean isLocalAndEnabled() {
+    QualityToolAnnotatorInfo<PhpStanValidationInspection> info = ReadAction.compute(
+      () -> PhpStanAnnotatorProxy.INSTANCE.collectAnnotatorInfo(null, null, myProject,
+                                                                InspectionProfileManager.getInstance(myProject).getCurrentProfile(), false));
+    return info != null && info.getInterpreterId() == null;
+  }
+
+  /**
+   * @return an empty list to analyse the paths of the configuration, the source roots if there is no configuration, or
+   * null if there is nothing to analyse
+   */
+  private @Nullable List<String> getPaths() {
+    List<String> paths = new ArrayList<>();
+    if (isNotEmpty(PhpStanOptionsConfiguration.getInstance(myProject).getConfig())) return paths;
+    for (VirtualFile root : ProjectRootManager.getInstance(myProject).getContentSourceRoots()) {
+      paths.add(root.getPath());
+    }
+    return paths.isEmpty() ? null : paths;
+  }
+
+  private static boolean isTrigger(@NotNull String path, @Nullable String basePath) {
+    if (basePath == null || !path.startsWith(basePath)) return false;
+    return path.endsWith(COMPOSER_LOCK) || path.endsWith(INSTALLED_PACKAGES) ||
+           path.endsWith(NEON_EXTENSION) || path.endsWith(NEON_DIST_EXTENSION);
+  }
+
+  @Override
+  public synchronized void dispose() {
+    if (myScheduled != null) myScheduled.cancel(false);
+    if (myRunning != null) myRunning.cancel();
+  }
+}
@@ -0,0 +1,37 @@
+package com.jetbrains.php.tools.quality.phpstan;
+
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.xml.sax.SAXException;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+/**
+ * Parsers for the checkstyle reports the plugin reads itself, such as the output of batch shards and imported reports.
+ * <p>
+ * Reports may come from outside the IDE, so document type declarations are rejected and nothing is loaded from the
+ * network or the disk while parsing.
+ */
+public final class PhpStanXml {
+  private static final @NonNls String DISALLOW_DOCTYPE = "http://apache.org/xml/features/disallow-doctype-decl";
+  private static final @NonNls String EXTERNAL_GENERAL_ENTITIES = "http://xml.org/sax/features/external-general-entities";
+  private static final @NonNls String EXTERNAL_PARAMETER_ENTITIES = "http://xml.org/sax/features/external-parameter-entities";
+  private static final @NonNls String LOAD_EXTERNAL_DTD = "http://apache.org/xml/features/nonvalidating/load-external-dtd";
+
+  private PhpStanXml() {
+  }
+
+  public static @NotNull SAXParser newParser() throws ParserConfigurationException, SAXException {
+    SAXParserFactory factory = SAXParserFactory.newDefaultInstance();
+    factory.setFeature(DISALLOW_DOCTYPE, true);
+    factory.setFeature(EXTERNAL_GENERAL_ENTITIES, false);
+    factory.setFeature(EXTERNAL_PARAMETER_ENTITIES, false);
+    factory.setFeature(LOAD_EXTERNAL_DTD, false);
+    factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+    factory.setXIncludeAware(false);
+    return factory.newSAXParser();
+  }
+}
@@ -0,0 +1,125 @@
+package com.jetbrains.php.tools.quality.phpstan.remote;
+
+import com.intellij.execution.process.ProcessIOExecutorService;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Compresses the standard output of a command on the side it runs on, such as the checkstyle report of PHPStan in a
+ * container, and decompresses it here while it is read. The report shrinks about tenfold, which matters for large
+ * projects on slow links.
+ * <p>
+ * The error output stays uncompressed, and the exit code is that of the command rather than of {@code gzip}.
+ */
+public final class PhpStanCompressedOutput {
+  // The exit code of the command reaches the outer shell through descriptor 4, its output goes to gzip and then to 3
+  private static final @NonNls String SCRIPT =
+    "{ s=$( { { \"$@\"; echo $? >&4; } | gzip -1c >&3; } 4>&1 ); } 3>&1; exit \"$s\"";
+  /**
+   * Command telling whether the other side can compress the output.
+   */
+  public static final @NonNls List<String> PROBE_COMMAND = List.of("sh", "-c", "command -v gzip >/dev/null");
+  private static final long POLL_INTERVAL_MS = 50;
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /**
+   * @param cancelled whether the process was stopped because its output was no longer needed
+   * @param timedOut  whether the process was stopped because it ran out of time
+   */
+  public record Output(@NotNull String stdout, @NotNull String stderr, int exitCode, boolean cancelled, boolean timedOut) {
+  }
+
+  private PhpStanCompressedOutput() {
+  }
+
+  /**
+   * @return command line running the command with its standard output compressed
+   */
+  public static @NotNull List<String> wrap(@NotNull List<String> command) {
+    List<String> result = new ArrayList<>(List.of("sh", "-c", SCRIPT, "phpstan"));
+    result.addAll(command);
+    return result;
+  }
+
+  /**
+   * Reads the output of a process running a {@link #wrap wrapped} command to its end, destroying the process if it is
+   * cancelled or doesn't finish in time.
+   *
+   * @param cancelled polled while the process runs
+   */
+  public static @NotNull Output read(@NotNull Process process, @NotNull Charset charset, @NotNull BooleanSupplier cancelled, long timeoutMs)
+    throws IOException {
+    process.getOutputStream().close();
+    // The reads block until the process ends, so they don't belong in the common pool
+    CompletableFuture<String> stdout =
+      CompletableFuture.supplyAsync(() -> readCompressed(process.getInputStream(), charset), ProcessIOExecutorService.INSTANCE);
+    CompletableFuture<String> stderr =
+      CompletableFuture.supplyAsync(() -> readPlain(process.getErrorStream(), charset), ProcessIOExecutorService.INSTANCE);
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+    boolean isCancelled = false;
+    boolean timedOut = false;
+    try {
+      while (!process.waitFor(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+        if (cancelled.getAsBoolean()) {
+          isCancelled = true;
+          break;
+        }
+        if (System.nanoTime() - deadline > 0) {
+          timedOut = true;
+          break;
+        }
+      }
+      if (isCancelled || timedOut) {
+        process.destroyForcibly();
+        return new Output("", "", -1, isCancelled, timedOut);
+      }
+      return new Output(stdout.get(), stderr.get(), process.exitValue(), false, false);
+    }
+    catch (InterruptedException e) {
+      process.destroyForcibly();
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException();
+    }
+    catch (ExecutionException e) {
+      throw e.getCause() instanceof UncheckedIOException unchecked ? unchecked.getCause() : new IOException(e.getCause());
+    }
+  }
+
+  private static @NotNull String readCompressed(@NotNull InputStream stream, @NotNull Charset charset) {
+    try (PushbackInputStream input = new PushbackInputStream(stream, 1)) {
+      int first = input.read();
+      // The command may have failed before writing anything, leaving gzip with no output at all
+      if (first == -1) return "";
+      input.unread(first);
+      return readPlain(new GZIPInputStream(input, BUFFER_SIZE), charset);
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static @NotNull String readPlain(@NotNull InputStream stream, @NotNull Charset charset) {
+    StringBuilder result = new StringBuilder();
+    try (Reader reader = new InputStreamReader(stream, charset)) {
+      char[] buffer = new char[BUFFER_SIZE];
+      int read;
+      while ((read = reader.read(buffer)) != -1) {
+        result.append(buffer, 0, read);
+      }
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return result.toString();
+  }
+}
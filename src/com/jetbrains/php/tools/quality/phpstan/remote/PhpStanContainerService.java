@@ -0,0 +1,275 @@
+package com.jetbrains.php.tools.quality.phpstan.remote;
+
+import com.intellij.execution.ExecutionException;
+import com.intellij.execution.configurations.GeneralCommandLine;
+import com.intellij.execution.process.CapturingProcessHandler;
+import com.intellij.execution.process.ProcessOutput;
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.Task;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import com.jetbrains.php.tools.quality.phpstan.*;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static com.jetbrains.php.tools.quality.QualityToolAnnotator.updateIfRemoteMappingExists;
+
+/**
+ * Keeps one {@link PhpStanDockerContainer container} running per interpreter of the project that has a
+ * {@link PhpStanRemoteConfiguration#getContainerImage() persistent container image} set, and runs analysis in it.
+ * <p>
+ * The project directory is mounted where the path mappings of the interpreter expect it, and the copies of the editor
+ * contents are shared through a directory of their own. Containers are stopped after {@value #IDLE_TIMEOUT_MINUTES}
+ * idle minutes and when the project is closed.
+ */
+public final class PhpStanContainerService implements Disposable {
+  private static final Logger LOG = Logger.getInstance(PhpStanContainerService.class);
+  private static final long IDLE_TIMEOUT_MINUTES = 10;
+  private static final @NonNls String DOCKER = "docker";
+  private static final @NonNls String CONTAINERS_DIR = "phpstan/containers";
+  private static final @NonNls String CONTAINER_EDITOR_DIR = "/tmp/phpstan-editor";
+  private static final @NonNls String CONTAINER_OPCACHE_DIR = "/tmp/phpstan-opcache";
+  private static final @NonNls String OPCACHE_SUFFIX = "-opcache";
+  private static final @NonNls String PHP = "php";
+  private static final int HASH_LENGTH = 16;
+
+  private final Project myProject;
+  private final Map<String, Container> myContainers = new ConcurrentHashMap<>();
+  private final ScheduledFuture<?> myIdleCheck;
+
+  /**
+   * @param starting whether a task starting or checking the container is queued or running
+   */
+  private record Container(@NotNull PhpStanDockerContainer container,
+                           @NotNull PhpStanEditorTempFiles editorFiles,
+                           @NotNull Path opcacheDirectory,
+                           @NotNull AtomicBoolean starting) {
+    /**
+     * Creates the mounted directories first, so they aren't created by Docker as root.
+     */
+    void start(@NotNull ProgressIndicator indicator) throws IOException {
+      Files.createDirectories(editorFiles.getDirectory());
+      Files.createDirectories(opcacheDirectory);
+      container.ensureRunning(indicator);
+    }
+  }
+
+  public PhpStanContainerService(@NotNull Project project) {
+    myProject = project;
+    myIdleCheck = AppExecutorUtil.getAppScheduledExecutorService()
+      .scheduleWithFixedDelay(this::stopIdle, 1, 1, TimeUnit.MINUTES);
+  }
+
+  public static PhpStanContainerService getInstance(@NotNull Project project) {
+    return project.getService(PhpStanContainerService.class);
+  }
+
+  /**
+   * Runs on-the-fly analysis of the file in the persistent container of the configuration.
+   *
+   * @return the output of PHPStan, or null if the file has to be analysed the usual way
+   */
+  public @Nullable ProcessOutput analyse(@NotNull PhpStanRemoteConfiguration configuration,
+                                         @NotNull VirtualFile file,
+                                         @NotNull CharSequence content,
+                                         @Nullable ProgressIndicator indicator,
+                                         int timeoutMs) {
+    PhpStanGlobalInspection tool = (PhpStanGlobalInspection)PhpStanQualityToolType.INSTANCE.getGlobalTool(myProject, null);
+    Container container = getContainer(configuration);
+    if (tool == null || container == null || !prepare(container)) return null;
+    try {
+      Path copy = container.editorFiles().write(file.getPath(), content, file.getCharset());
+      String editorFile = CONTAINER_EDITOR_DIR + "/" + copy.getFileName();
+      List<String> command = createPhpCommand(configuration);
+      command.addAll(tool.getCommandLineOptions(editorFile, file.getPath(), myProject, false));
+      return exec(container.container(), command, indicator, timeoutMs);
+    }
+    catch (IOException e) {
+      LOG.warn("Cannot use the PHPStan container " + container.container().getName() + ", starting a container per run", e);
+      return null;
+    }
+  }
+
+  /**
+   * Runs batch analysis in the persistent container of the configuration.
+   *
+   * @param options options of PHPStan, with the paths to analyse
+   * @return the output of PHPStan, or null if the project has to be analysed the usual way
+   */
+  public @Nullable ProcessOutput analyseProject(@NotNull PhpStanRemoteConfiguration configuration,
+                                                @NotNull List<String> options,
+                                                @Nullable ProgressIndicator indicator,
+                                                int timeoutMs) {
+    Container container = getContainer(configuration);
+    if (container == null || !prepare(container)) return null;
+    List<String> command = createPhpCommand(configuration);
+    command.addAll(options);
+    return exec(container.container(), command, indicator, timeoutMs);
+  }
+
+  /**
+   * Starts or checks the container in a background task when due. Runs are analysed the usual way until the container
+   * is started, rather than waiting for an image to be pulled.
+   *
+   * @return whether the container can be used now
+   */
+  private boolean prepare(@NotNull Container container) {
+    if (container.container().needsCheck() && container.starting().compareAndSet(false, true)) {
+      new Task.Backgroundable(myProject, PhpStanBundle.message("phpstan.container.starting"), true) {
+        @Override
+        public void run(@NotNull ProgressIndicator indicator) {
+          try {
+            container.start(indicator);
+          }
+          catch (IOException e) {
+            LOG.warn("Cannot start the PHPStan container " + container.container().getName() + ", starting a container per run", e);
+          }
+          finally {
+            container.starting().set(false);
+          }
+        }
+      }.queue();
+    }
+    return container.container().isStarted();
+  }
+
+  private static @NotNull List<String> createPhpCommand(@NotNull PhpStanRemoteConfiguration configuration) {
+    List<String> command = new ArrayList<>();
+    command.add(PHP);
+    command.addAll(configuration.getLaunchProfile().getPhpOptions(CONTAINER_OPCACHE_DIR));
+    command.add(configuration.getToolPath());
+    return command;
+  }
+
+  /**
+   * Runs PHPStan with {@code docker exec}, with its output {@link PhpStanCompressedOutput compressed} in the container
+   * when it can be. Each run gets an id of its own, so cancelling it stops its processes in the container only.
+   */
+  private @Nullable ProcessOutput exec(@NotNull PhpStanDockerContainer container,
+                                       @NotNull List<String> command,
+                                       @Nullable ProgressIndicator indicator,
+                                       int timeoutMs) {
+    boolean compressed = container.supportsCompression();
+    String runId = UUID.randomUUID().toString();
+    GeneralCommandLine commandLine =
+      new GeneralCommandLine(container.createExecCommand(compressed ? PhpStanCompressedOutput.wrap(command) : command, runId))
+        .withCharset(StandardCharsets.UTF_8)
+        .withParentEnvironmentType(GeneralCommandLine.ParentEnvironmentType.CONSOLE);
+    ProcessOutput output;
+    try {
+      LOG.info("PHPStan command: " + commandLine.getCommandLineString());
+      // Pausing docker exec would not pause PHPStan in the container, so the run gets no suspend handler
+      if (compressed) {
+        Process process = commandLine.createProcess();
+        try (PhpStanProcessTracker.Run ignored = PhpStanProcessTracker.getInstance(myProject).track(process, indicator)) {
+          PhpStanCompressedOutput.Output result = PhpStanCompressedOutput.read(
+            process, StandardCharsets.UTF_8, () -> myProject.isDisposed() || indicator != null && indicator.isCanceled(), timeoutMs);
+          output = new ProcessOutput(result.stdout(), result.stderr(), result.exitCode(), result.timedOut(), result.cancelled());
+        }
+      }
+      else {
+        CapturingProcessHandler handler = new CapturingProcessHandler(commandLine);
+        try (PhpStanProcessTracker.Run ignored = PhpStanProcessTracker.getInstance(myProject).track(handler.getProcess(), indicator)) {
+          output = indicator != null ? handler.runProcessWithProgressIndicator(indicator, timeoutMs) : handler.runProcess(timeoutMs);
+        }
+      }
+    }
+    catch (ExecutionException | IOException e) {
+      LOG.warn("Cannot run PHPStan in the container " + container.getName(), e);
+      return null;
+    }
+    if (output.isCancelled() || output.isTimeout()) {
+      // Killing docker exec leaves PHPStan running in the container
+      container.killProcesses(runId);
+    }
+    else if (!output.getStdout().contains("<checkstyle")) {
+      LOG.info("PHPStan in the container " + container.getName() + " gave no report: " +
+               StringUtil.first(output.getStdout() + output.getStderr(), 1000, true));
+    }
+    return output;
+  }
+
+  private @Nullable Container getContainer(@NotNull PhpStanRemoteConfiguration configuration) {
+    String image = configuration.getContainerImage().trim();
+    String basePath = myProject.getBasePath();
+    if (image.isEmpty() || basePath == null || StringUtil.isEmpty(configuration.getToolPath())) return null;
+    String name = "phpstan-" + sha256(myProject.getLocationHash() + "\n" + configuration.getInterpreterId() + "\n" + image)
+      .substring(0, HASH_LENGTH);
+    return myContainers.computeIfAbsent(name, n -> {
+      Path editorDir = Path.of(PathManager.getSystemPath(), CONTAINERS_DIR, n);
+      String workDir = updateIfRemoteMappingExists(basePath, myProject, PhpStanQualityToolType.INSTANCE);
+      // Kept on this machine, so the compiled files outlive the container
+      Path opcacheDir = Path.of(PathManager.getSystemPath(), CONTAINERS_DIR, n + OPCACHE_SUFFIX);
+      List<PhpStanDockerContainer.Mount> mounts = List.of(new PhpStanDockerContainer.Mount(basePath, workDir),
+                                                          new PhpStanDockerContainer.Mount(editorDir.toString(), CONTAINER_EDITOR_DIR),
+                                                          new PhpStanDockerContainer.Mount(opcacheDir.toString(), CONTAINER_OPCACHE_DIR));
+      return new Container(new PhpStanDockerContainer(DOCKER, n, image, mounts, workDir), new PhpStanEditorTempFiles(editorDir), opcacheDir,
+                           new AtomicBoolean());
+    });
+  }
+
+  /**
+   * @return the directories mounted into the containers of the project, which pruning of the caches keeps
+   */
+  public @NotNull List<Path> getCacheDirectories() {
+    List<Path> directories = new ArrayList<>();
+    for (Container container : myContainers.values()) {
+      directories.add(container.editorFiles().getDirectory());
+      directories.add(container.opcacheDirectory());
+    }
+    return directories;
+  }
+
+  private void stopIdle() {
+    for (Container container : myContainers.values()) {
+      if (container.container().stopIfIdle(TimeUnit.MINUTES.toMillis(IDLE_TIMEOUT_MINUTES))) {
+        LOG.info("Stopped idle PHPStan container " + container.container().getName());
+      }
+    }
+  }
+
+  private static @NotNull String sha256(@NotNull String content) {
+    try {
+      return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content.getBytes(StandardCharsets.UTF_8)));
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public void dispose() {
+    myIdleCheck.cancel(false);
+    List<Container> containers = new ArrayList<>(myContainers.values());
+    myContainers.clear();
+    // Removing a container takes a while, which closing the project should not wait for
+    AppExecutorUtil.getAppExecutorService().execute(() -> {
+      for (Container container : containers) {
+        container.container().stop();
+        container.editorFiles().clear();
+      }
+    });
+  }
+}
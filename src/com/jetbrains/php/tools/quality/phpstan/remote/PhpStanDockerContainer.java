@@ -0,0 +1,239 @@
+package com.jetbrains.php.tools.quality.phpstan.remote;
+
+import com.intellij.execution.ExecutionException;
+import com.intellij.execution.configurations.GeneralCommandLine;
+import com.intellij.execution.process.CapturingProcessHandler;
+import com.intellij.execution.process.ProcessOutput;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long-lived Docker container that PHPStan runs are executed in with {@code docker exec}, so a run doesn't pay for
+ * creating a container and mounting its volumes.
+ * <p>
+ * The container only sleeps until it is stopped; it is started on first use, checked to be still running at most every
+ * {@value #HEALTH_CHECK_INTERVAL_MS} ms, and started again if it is not. Starting and checking happen
+ * {@link #ensureRunning apart} from the runs, which only use the container once it is {@link #isStarted started}.
+ */
+public final class PhpStanDockerContainer {
+  static final long HEALTH_CHECK_INTERVAL_MS = 30_000;
+  private static final long START_TIMEOUT_MS = 300_000;
+  private static final long COMMAND_TIMEOUT_MS = 30_000;
+  private static final @NonNls String LABEL = "com.jetbrains.php.phpstan";
+  private static final @NonNls String RUN_ID_VARIABLE = "PHPSTAN_IDE_RUN";
+
+  private final @NotNull String myDocker;
+  private final @NotNull String myName;
+  private final @NotNull String myImage;
+  private final @NotNull List<Mount> myMounts;
+  private final @NotNull String myWorkDir;
+  private volatile boolean myStarted;
+  private volatile boolean myChecked;
+  private volatile long myLastCheck;
+  private volatile boolean myCompression;
+  private volatile long myLastUse = System.nanoTime();
+
+  /**
+   * @param hostPath      directory on this machine
+   * @param containerPath where the directory appears in the container
+   */
+  public record Mount(@NotNull String hostPath, @NotNull String containerPath) {
+  }
+
+  /**
+   * @param docker  the Docker command line client
+   * @param name    name of the container, unique per project and interpreter
+   * @param workDir working directory of the commands in the container
+   */
+  public PhpStanDockerContainer(@NotNull String docker,
+                                @NotNull String name,
+                                @NotNull String image,
+                                @NotNull List<Mount> mounts,
+                                @NotNull String workDir) {
+    myDocker = docker;
+    myName = name;
+    myImage = image;
+    myMounts = List.copyOf(mounts);
+    myWorkDir = workDir;
+  }
+
+  public @NotNull String getName() {
+    return myName;
+  }
+
+  /**
+   * @return whether the container is known to be running, without asking Docker
+   */
+  public boolean isStarted() {
+    myLastUse = System.nanoTime();
+    return myStarted;
+  }
+
+  /**
+   * @return whether {@link #ensureRunning} has something to do: the container is not started or has not been checked
+   * for a while. A failed start is not retried within {@value #HEALTH_CHECK_INTERVAL_MS} ms either.
+   */
+  public boolean needsCheck() {
+    return !myChecked || System.nanoTime() - myLastCheck >= TimeUnit.MILLISECONDS.toNanos(HEALTH_CHECK_INTERVAL_MS);
+  }
+
+  /**
+   * Starts the container unless it is known to be running. Takes as long as pulling the image may, so it should run
+   * in a task of its own rather than in a run waiting for the container.
+   *
+   * @throws ProcessCanceledException if the indicator is cancelled, the container is then checked again on next use
+   */
+  public synchronized void ensureRunning(@Nullable ProgressIndicator indicator) throws IOException {
+    myLastUse = System.nanoTime();
+    if (!needsCheck()) return;
+    myChecked = true;
+    myLastCheck = System.nanoTime();
+    try {
+      if (myStarted && isRunning(indicator)) return;
+      myStarted = false;
+      // A container of the same name may be left over from a crashed IDE
+      remove();
+      run(START_TIMEOUT_MS, indicator, createRunCommand());
+      myCompression = probeCompression(indicator);
+      myStarted = true;
+    }
+    catch (ProcessCanceledException e) {
+      myChecked = false;
+      throw e;
+    }
+  }
+
+  /**
+   * @return whether the output of commands can be {@link PhpStanCompressedOutput compressed} in the container
+   */
+  public boolean supportsCompression() {
+    return myCompression;
+  }
+
+  private boolean probeCompression(@Nullable ProgressIndicator indicator) {
+    try {
+      run(COMMAND_TIMEOUT_MS, indicator, createExecCommand(PhpStanCompressedOutput.PROBE_COMMAND));
+      return true;
+    }
+    catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * @return the command line running the command in the container
+   */
+  public @NotNull List<String> createExecCommand(@NotNull List<String> command) {
+    return createExecCommand(command, null);
+  }
+
+  /**
+   * @param runId identifies the processes of the command to {@link #killProcesses kill} them, inherited by the
+   *              processes it starts such as parallel workers
+   * @return the command line running the command in the container
+   */
+  public @NotNull List<String> createExecCommand(@NotNull List<String> command, @Nullable String runId) {
+    myLastUse = System.nanoTime();
+    List<String> result = new ArrayList<>(List.of(myDocker, "exec", "-w", myWorkDir));
+    if (runId != null) result.addAll(List.of("-e", RUN_ID_VARIABLE + "=" + runId));
+    result.add(myName);
+    result.addAll(command);
+    return result;
+  }
+
+  @NotNull List<String> createRunCommand() {
+    @NonNls List<String> command = new ArrayList<>(List.of(myDocker, "run", "-d", "--rm", "--init", "--name", myName, "--label", LABEL));
+    for (Mount mount : myMounts) {
+      command.add("-v");
+      command.add(mount.hostPath() + ":" + mount.containerPath());
+    }
+    command.addAll(List.of("-w", myWorkDir, "--entrypoint", "sleep", myImage, "infinity"));
+    return command;
+  }
+
+  public boolean isRunning() {
+    return isRunning(null);
+  }
+
+  private boolean isRunning(@Nullable ProgressIndicator indicator) {
+    try {
+      return "true".equals(run(COMMAND_TIMEOUT_MS, indicator, List.of(myDocker, "inspect", "-f", "{{.State.Running}}", myName)).trim());
+    }
+    catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Stops the processes in the container of a cancelled command, found by its run id in their environment: killing
+   * {@code docker exec} on this machine leaves them running.
+   */
+  public void killProcesses(@NotNull String runId) {
+    // The run id is passed as $0, outside the environment of the shell running the script
+    @NonNls String script = "for p in /proc/[0-9]*; do " +
+                            "tr '\\0' '\\n' 2>/dev/null < $p/environ | grep -qxF \"" + RUN_ID_VARIABLE + "=$0\" && kill ${p#/proc/}; done";
+    runQuietly(myDocker, "exec", myName, "sh", "-c", script, runId);
+  }
+
+  /**
+   * @return whether the container was stopped because it has not been used for the given time
+   */
+  public synchronized boolean stopIfIdle(long idleMs) {
+    if (!myStarted || System.nanoTime() - myLastUse < TimeUnit.MILLISECONDS.toNanos(idleMs)) return false;
+    stop();
+    return true;
+  }
+
+  public synchronized void stop() {
+    if (!myStarted) return;
+    myStarted = false;
+    myChecked = false;
+    remove();
+  }
+
+  private void remove() {
+    runQuietly(myDocker, "rm", "-f", myName);
+  }
+
+  private static void runQuietly(@NotNull String... command) {
+    try {
+      run(COMMAND_TIMEOUT_MS, null, List.of(command));
+    }
+    catch (IOException ignored) {
+    }
+  }
+
+  /**
+   * @return standard output of the command
+   * @throws IOException              if it cannot be started, fails or times out
+   * @throws ProcessCanceledException if the indicator is cancelled
+   */
+  private static @NotNull String run(long timeoutMs, @Nullable ProgressIndicator indicator, @NotNull List<String> command) throws IOException {
+    GeneralCommandLine commandLine = new GeneralCommandLine(command).withCharset(StandardCharsets.UTF_8).withRedirectErrorStream(true);
+    ProcessOutput output;
+    try {
+      CapturingProcessHandler handler = new CapturingProcessHandler(commandLine);
+      output = indicator != null
+               ? handler.runProcessWithProgressIndicator(indicator, (int)timeoutMs)
+               : handler.runProcess((int)timeoutMs);
+    }
+    catch (ExecutionException e) {
+      throw new IOException(e);
+    }
+    if (output.isCancelled()) throw new ProcessCanceledException();
+    if (output.isTimeout()) throw new IOException("Timed out: " + commandLine.getCommandLineString());
+    if (output.getExitCode() != 0) {
+      throw new IOException(commandLine.getCommandLineString() + " exited with " + output.getExitCode() + ": " + output.getStdout().trim());
+    }
+    return output.getStdout();
+  }
+}
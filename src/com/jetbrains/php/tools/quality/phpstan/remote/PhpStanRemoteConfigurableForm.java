@@ -0,0 +1,61 @@
+package com.jetbrains.php.tools.quality.phpstan.remote;
+
+import com.intellij.openapi.options.ConfigurationException;
+import com.intellij.openapi.project.Project;
+import com.intellij.ui.components.JBTextField;
+import com.intellij.util.ui.FormBuilder;
+import com.jetbrains.php.tools.quality.phpstan.PhpStanBundle;
+import com.jetbrains.php.tools.quality.phpstan.PhpStanConfigurableForm;
+import org.jetbrains.annotations.NotNull;
+
+import javax.swing.*;
+
+/**
+ * Settings of PHPStan run by an interpreter, with the image of the {@link PhpStanContainerService persistent container}
+ * and the host to {@link PhpStanSshSyncService keep the editor contents on}.
+ */
+public class PhpStanRemoteConfigurableForm extends PhpStanConfigurableForm<PhpStanRemoteConfiguration> {
+  private final PhpStanRemoteConfiguration myConfiguration;
+  private final JBTextField myContainerImageField = new JBTextField();
+  private final JBTextField mySshDestinationField = new JBTextField();
+
+  public PhpStanRemoteConfigurableForm(@NotNull Project project, @NotNull PhpStanRemoteConfiguration configuration) {
+    super(project, configuration);
+    myConfiguration = configuration;
+  }
+
+  @Override
+  public JComponent createComponent() {
+    JComponent component = super.createComponent();
+    myContainerImageField.getEmptyText().setText(PhpStanBundle.message("phpstan.persistent.container.none"));
+    mySshDestinationField.getEmptyText().setText(PhpStanBundle.message("phpstan.editor.sync.none"));
+    return FormBuilder.createFormBuilder()
+      .addComponent(component)
+      .addLabeledComponent(PhpStanBundle.message("label.persistent.container.image"), myContainerImageField)
+      .addTooltip(PhpStanBundle.message("phpstan.persistent.container.hint"))
+      .addLabeledComponent(PhpStanBundle.message("label.editor.sync.ssh.destination"), mySshDestinationField)
+      .addTooltip(PhpStanBundle.message("phpstan.editor.sync.hint"))
+      .getPanel();
+  }
+
+  @Override
+  public boolean isModified() {
+    return super.isModified() ||
+           !myContainerImageField.getText().trim().equals(myConfiguration.getContainerImage()) ||
+           !mySshDestinationField.getText().trim().equals(myConfiguration.getSshDestination());
+  }
+
+  @Override
+  public void apply() throws ConfigurationException {
+    super.apply();
+    myConfiguration.setContainerImage(myContainerImageField.getText().trim());
+    myConfiguration.setSshDestination(mySshDestinationField.getText().trim());
+  }
+
+  @Override
+  public void reset() {
+    super.reset();
+    myContainerImageField.setText(myConfiguration.getContainerImage());
+    mySshDestinationField.setText(myConfiguration.getSshDestination());
+  }
+}
@@ -20,6 +20,8 @@ import static com.jetbrains.php.tools.quality.QualityToolProjectConfiguration.DE
 @Tag("phpstan_by_interpreter")
 public class PhpStanRemoteConfiguration extends PhpStanConfiguration implements PhpSdkDependentConfiguration {
   private String myInterpreterId;
+  private @NlsSafe String myContainerImage = "";
+  private @NlsSafe String mySshDestination = "";
 
   @Override
   @Attribute("interpreter_id")
@@ -32,6 +34,32 @@ public class PhpStanRemoteConfiguration extends PhpStanConfiguration implements
     myInterpreterId = interpreterId;
   }
 
+  /**
+   * @return image of the container kept running to execute PHPStan in, or an empty string to let the interpreter
+   * start a container for every run
+   */
+  @Attribute("persistent_container_image")
+  public @NotNull @NlsSafe String getContainerImage() {
+    return myContainerImage;
+  }
+
+  public void setContainerImage(@Nullable @NlsSafe String containerImage) {
+    myContainerImage = containerImage != null ? containerImage : "";
+  }
+
+  /**
+   * @return SSH host, as given to {@code ssh}, to keep the copies of the editor contents on for on-the-fly runs, or an
+   * empty string to let the interpreter upload them for every run
+   */
+  @Attribute("editor_sync_ssh_destination")
+  public @NotNull @NlsSafe String getSshDestination() {
+    return mySshDestination;
+  }
+
+  public void setSshDestination(@Nullable @NlsSafe String sshDestination) {
+    mySshDestination = sshDestination != null ? sshDestination : "";
+  }
+
   @Override
   public @NotNull @NlsContexts.Label String getPresentableName(@Nullable Project project) {
     if (isCreatedAsDefaultInterpreterConfiguration()) return PhpBundle.message("quality.tools.label.by.default.project.interpreter");
@@ -53,6 +81,8 @@ public class PhpStanRemoteConfiguration extends PhpStanConfiguration implements
   public PhpStanRemoteConfiguration clone() {
     PhpStanRemoteConfiguration settings = new PhpStanRemoteConfiguration();
     settings.myInterpreterId = myInterpreterId;
+    settings.myContainerImage = myContainerImage;
+    settings.mySshDestination = mySshDestination;
     settings.setCreatedAsDefaultInterpreterConfiguration(this.isCreatedAsDefaultInterpreterConfiguration());
     settings.setDeletedFromTheList(this.isDeletedFromTheList());
     clone(settings);
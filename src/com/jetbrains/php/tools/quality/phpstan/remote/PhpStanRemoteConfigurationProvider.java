@@ -41,8 +41,7 @@ public class PhpStanRemoteConfigurationProvider extends PhpStanConfigurationProv
   public @Nullable QualityToolConfigurableForm<PhpStanRemoteConfiguration> createConfigurationForm(@NotNull Project project,
                                                                                                    @NotNull PhpStanConfiguration settings) {
     if (settings instanceof PhpStanRemoteConfiguration remoteConfiguration) {
-      final PhpStanConfigurableForm<PhpStanRemoteConfiguration> delegate =
-        new PhpStanConfigurableForm<>(project, remoteConfiguration);
+      final PhpStanConfigurableForm<PhpStanRemoteConfiguration> delegate = new PhpStanRemoteConfigurableForm(project, remoteConfiguration);
       return new QualityToolByInterpreterConfigurableForm<>(project, remoteConfiguration, delegate);
     }
     return null;
@@ -0,0 +1,275 @@
+package com.jetbrains.php.tools.quality.phpstan.remote;
+
+import com.jetbrains.php.tools.quality.phpstan.PhpStanEditorTempFiles;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Keeps copies of the editor contents on an SSH host at stable paths, to pass to PHPStan as {@code --tmp-file}.
+ * <p>
+ * The commands share one multiplexed connection, which OpenSSH keeps open for {@value #CONTROL_PERSIST_SECONDS}
+ * seconds after the last one. A copy is only sent when the content changed, and then only the region between the
+ * parts it has in common with the content sent before. The host rebuilds the file from these parts and checks its
+ * hash, and the whole content is sent when that fails, such as when the previous copy was removed. The first copy of a
+ * document is taken from the copy left by an earlier session or from the document deployed on the host when either
+ * has the same hash, so saved documents are not sent at all. The copies are kept in a directory only the connected user
+ * can access.
+ * <p>
+ * Commands and the wait for other documents' commands stop when the run they are made for is cancelled.
+ */
+public final class PhpStanSshSync {
+  static final int MAX_FILES = 200;
+  private static final int CONTROL_PERSIST_SECONDS = 600;
+  private static final long COMMAND_TIMEOUT_MS = 30_000;
+  private static final long POLL_INTERVAL_MS = 50;
+  private static final int MISMATCH_EXIT_CODE = 3;
+  private static final int NOT_OWNED_EXIT_CODE = 4;
+  private static final @NonNls String FULL = "-1";
+  private static final @NonNls String EXISTING = "-2";
+  // $1 target, $2 bytes kept from the start of the previous copy, -1 for the whole content or -2 to keep the target or
+  // copy $5 instead of sending anything, $3 bytes kept from its end, $4 hash of the result, $5 the document on the host
+  private static final @NonNls String SCRIPT =
+    "set -e; t=\"$1.$$\"; mkdir -p -m 700 \"${1%/*}\"; " +
+    "h() { s=$(sha256sum \"$1\" 2>/dev/null || shasum -a 256 \"$1\"); echo \"${s%% *}\"; }; " +
+    "if [ \"$2\" = -2 ]; then " +
+    "[ -f \"$1\" ] && [ \"$(h \"$1\")\" = \"$4\" ] && exit 0; " +
+    "[ -n \"$5\" ] && [ -f \"$5\" ] && [ \"$(h \"$5\")\" = \"$4\" ] || exit 3; cp \"$5\" \"$t\"; " +
+    "elif [ \"$2\" = -1 ]; then cat > \"$t\"; " +
+    "else [ -f \"$1\" ] || exit 3; { head -c \"$2\" \"$1\"; cat; tail -c \"$3\" \"$1\"; } > \"$t\"; fi; " +
+    "[ \"$(h \"$t\")\" = \"$4\" ] || { rm -f \"$t\"; exit 3; }; mv -f \"$t\" \"$1\"";
+  // $1 the directory of the copies, relative to the home directory unless absolute; prints its absolute path
+  private static final @NonNls String PREPARE_SCRIPT =
+    "set -e; cd; mkdir -p -m 700 \"$1\"; [ -d \"$1\" ] && [ ! -L \"$1\" ] && [ -O \"$1\" ] || exit 4; cd \"$1\"; pwd";
+
+  private final @NotNull List<String> mySsh;
+  private final @NotNull String myDestination;
+  private final @Nullable Path myControlPath;
+  private final @NotNull String myRemoteDirectory;
+  private @Nullable String myPreparedDirectory;
+  private final Map<String, byte[]> mySent = new LinkedHashMap<>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+      return size() > MAX_FILES;
+    }
+  };
+  private final ReentrantLock myLock = new ReentrantLock();
+  private long myBytesSent;
+
+  /**
+   * @param ssh             the OpenSSH client command
+   * @param destination     host to connect to, as given to {@code ssh}
+   * @param controlPath     socket of the shared connection, or null to connect for every command
+   * @param remoteDirectory directory on the host to keep the copies in, relative to the home directory unless absolute.
+   *                        It is created on first use and only used if it is owned by the user connected as.
+   */
+  public PhpStanSshSync(@NotNull List<String> ssh,
+                        @NotNull String destination,
+                        @Nullable Path controlPath,
+                        @NotNull String remoteDirectory) {
+    mySsh = List.copyOf(ssh);
+    myDestination = destination;
+    myControlPath = controlPath;
+    myRemoteDirectory = remoteDirectory;
+  }
+
+  /**
+   * @param originalPath path of the document in the project
+   * @param hostPath     path of the document deployed on the host when it is likely the same, such as when saved
+   * @param cancelled    polled while waiting for the host
+   * @return path of the copy of the document on the host, brought up to date if it was not
+   * @throws CancellationException if cancelled meanwhile
+   */
+  public @NotNull String sync(@NotNull String originalPath,
+                              @Nullable String hostPath,
+                              byte @NotNull [] content,
+                              @NotNull BooleanSupplier cancelled) throws IOException {
+    lock(cancelled);
+    try {
+      return doSync(originalPath, hostPath, content, cancelled);
+    }
+    finally {
+      myLock.unlock();
+    }
+  }
+
+  private @NotNull String doSync(@NotNull String originalPath,
+                                 @Nullable String hostPath,
+                                 byte @NotNull [] content,
+                                 @NotNull BooleanSupplier cancelled) throws IOException {
+    String remotePath = prepareDirectory(cancelled) + "/" + PhpStanEditorTempFiles.getFileName(originalPath);
+    byte[] previous = mySent.get(originalPath);
+    if (previous != null && Arrays.equals(previous, content)) return remotePath;
+    // Dropped first, so a failure below leads to sending the whole content next time
+    mySent.remove(originalPath);
+    String hash = HexFormat.of().formatHex(sha256(content));
+    boolean written = false;
+    if (previous != null) {
+      int prefix = 0;
+      int common = Math.min(previous.length, content.length);
+      while (prefix < common && previous[prefix] == content[prefix]) prefix++;
+      int suffix = 0;
+      while (suffix < common - prefix && previous[previous.length - 1 - suffix] == content[content.length - 1 - suffix]) suffix++;
+      written = write(remotePath, String.valueOf(prefix), String.valueOf(suffix), hash,
+                      Arrays.copyOfRange(content, prefix, content.length - suffix), null, cancelled);
+    }
+    else if (hostPath != null) {
+      written = write(remotePath, EXISTING, "0", hash, new byte[0], hostPath, cancelled);
+    }
+    if (!written && !write(remotePath, FULL, "0", hash, content, null, cancelled)) {
+      throw new IOException("The copy of " + originalPath + " on " + myDestination + " does not match after sending it");
+    }
+    mySent.put(originalPath, content);
+    return remotePath;
+  }
+
+  /**
+   * Creates the directory of the copies, so other users of the host can neither read the copies nor swap them.
+   *
+   * @return absolute path of the directory on the host
+   */
+  private @NotNull String prepareDirectory(@NotNull BooleanSupplier cancelled) throws IOException {
+    if (myPreparedDirectory != null) return myPreparedDirectory;
+    Result result = run(createCommand(PREPARE_SCRIPT, myRemoteDirectory), new byte[0], cancelled);
+    if (result.exitCode() == NOT_OWNED_EXIT_CODE) {
+      throw new IOException(myRemoteDirectory + " on " + myDestination + " is not a directory of the user");
+    }
+    String directory = result.output().trim();
+    if (result.exitCode() != 0 || !directory.startsWith("/")) {
+      throw new IOException("Cannot create " + myRemoteDirectory + " on " + myDestination + ", exit code " + result.exitCode());
+    }
+    myPreparedDirectory = directory;
+    return directory;
+  }
+
+  /**
+   * @return bytes of content sent to the host so far
+   */
+  public long getBytesSent() {
+    myLock.lock();
+    try {
+      return myBytesSent;
+    }
+    finally {
+      myLock.unlock();
+    }
+  }
+
+  /**
+   * Closes the shared connection.
+   */
+  public void close() {
+    myLock.lock();
+    try {
+      mySent.clear();
+      myPreparedDirectory = null;
+      if (myControlPath == null) return;
+      List<String> command = new ArrayList<>(mySsh);
+      command.addAll(List.of("-o", "ControlPath=" + myControlPath, "-O", "exit", myDestination));
+      run(command, new byte[0], () -> false);
+    }
+    catch (IOException ignored) {
+    }
+    finally {
+      myLock.unlock();
+    }
+  }
+
+  private void lock(@NotNull BooleanSupplier cancelled) {
+    try {
+      while (!myLock.tryLock(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+        if (cancelled.getAsBoolean()) throw new CancellationException();
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new CancellationException();
+    }
+  }
+
+  /**
+   * @return false if the host could not rebuild the copy from the parts of the previous one
+   */
+  private boolean write(@NotNull String remotePath, @NotNull String prefix, @NotNull String suffix, @NotNull String hash,
+                        byte @NotNull [] data, @Nullable String hostPath, @NotNull BooleanSupplier cancelled) throws IOException {
+    List<String> command = createCommand(SCRIPT, remotePath, prefix, suffix, hash, hostPath != null ? hostPath : "");
+    myBytesSent += data.length;
+    int exitCode = run(command, data, cancelled).exitCode();
+    if (exitCode == MISMATCH_EXIT_CODE) return false;
+    if (exitCode != 0) throw new IOException("Cannot write " + remotePath + " on " + myDestination + ", exit code " + exitCode);
+    return true;
+  }
+
+  private @NotNull List<String> createCommand(@NotNull String script, @NotNull String... arguments) {
+    @NonNls List<String> command = new ArrayList<>(mySsh);
+    if (myControlPath != null) {
+      command.addAll(List.of("-o", "ControlMaster=auto", "-o", "ControlPath=" + myControlPath,
+                             "-o", "ControlPersist=" + CONTROL_PERSIST_SECONDS));
+    }
+    command.addAll(List.of("-o", "BatchMode=yes", myDestination));
+    // The remote shell parses the command line again
+    StringJoiner remoteCommand = new StringJoiner(" ");
+    remoteCommand.add(quote("sh")).add(quote("-c")).add(quote(script)).add(quote("phpstan-sync"));
+    for (String argument : arguments) {
+      remoteCommand.add(quote(argument));
+    }
+    command.add(remoteCommand.toString());
+    return command;
+  }
+
+  static @NotNull String quote(@NotNull String argument) {
+    return "'" + argument.replace("'", "'\\''") + "'";
+  }
+
+  private record Result(int exitCode, @NotNull String output) {
+  }
+
+  private static @NotNull Result run(@NotNull List<String> command, byte @NotNull [] input, @NotNull BooleanSupplier cancelled)
+    throws IOException {
+    Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.DISCARD).start();
+    try {
+      try (OutputStream stdin = process.getOutputStream()) {
+        stdin.write(input);
+      }
+      long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(COMMAND_TIMEOUT_MS);
+      while (!process.waitFor(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS)) {
+        if (cancelled.getAsBoolean()) {
+          process.destroyForcibly();
+          throw new CancellationException();
+        }
+        if (System.nanoTime() - deadline > 0) {
+          process.destroyForcibly();
+          throw new IOException("Timed out: " + String.join(" ", command));
+        }
+      }
+      // The output is a path at most, which fits into the pipe, so it is read once the command is done
+      return new Result(process.exitValue(), new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8));
+    }
+    catch (InterruptedException e) {
+      process.destroyForcibly();
+      Thread.currentThread().interrupt();
+      throw new IOException(e);
+    }
+  }
+
+  private static byte @NotNull [] sha256(byte @NotNull [] bytes) {
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(bytes);
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+}
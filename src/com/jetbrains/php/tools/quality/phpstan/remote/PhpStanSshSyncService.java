@@ -0,0 +1,139 @@
+package com.jetbrains.php.tools.quality.phpstan.remote;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.application.PathManager;
+import com.intellij.openapi.application.ReadAction;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.fileEditor.FileDocumentManager;
+import com.intellij.openapi.progress.ProcessCanceledException;
+import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.progress.ProgressManager;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.SystemInfo;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.concurrency.AppExecutorUtil;
+import com.jetbrains.php.tools.quality.phpstan.PhpStanQualityToolType;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.jetbrains.php.tools.quality.QualityToolAnnotator.updateIfRemoteMappingExists;
+
+/**
+ * Keeps the {@link PhpStanSshSync copies of the editor contents} on the hosts of the SSH interpreters of the project
+ * that have an {@link PhpStanRemoteConfiguration#getSshDestination() editor sync destination} set.
+ * <p>
+ * The shared connections are opened by OpenSSH on first use and closed with the project. Windows builds of OpenSSH
+ * don't multiplex connections, so there every copy opens a connection of its own. The copies of a document are
+ * written by one run at a time, see {@link com.jetbrains.php.tools.quality.phpstan.PhpStanEditorTempFileService#lock}.
+ */
+public final class PhpStanSshSyncService implements Disposable {
+  private static final Logger LOG = Logger.getInstance(PhpStanSshSyncService.class);
+  private static final @NonNls String SSH = "ssh";
+  private static final @NonNls String CONTROL_DIRECTORY = "phpstan-ssh";
+  // Unix sockets are limited to 104 characters on macOS, of which OpenSSH needs 17 for the name it binds first
+  private static final int MAX_CONTROL_PATH_LENGTH = 87;
+  // Relative to the home directory on the host
+  private static final @NonNls String REMOTE_DIRECTORY = ".cache/phpstan-editor/";
+  private static final int HASH_LENGTH = 16;
+
+  private final Project myProject;
+  private final Map<String, PhpStanSshSync> mySyncs = new ConcurrentHashMap<>();
+
+  public PhpStanSshSyncService(@NotNull Project project) {
+    myProject = project;
+  }
+
+  public static PhpStanSshSyncService getInstance(@NotNull Project project) {
+    return project.getService(PhpStanSshSyncService.class);
+  }
+
+  /**
+   * Saved documents are copied from where they are deployed on the host, if the copy there is the same.
+   *
+   * @return path of the copy of the document on the host of the configuration, or null to pass the temporary file of
+   * the platform
+   * @throws ProcessCanceledException if the run is cancelled meanwhile
+   */
+  public @Nullable String sync(@NotNull PhpStanRemoteConfiguration configuration,
+                               @NotNull VirtualFile file,
+                               @NotNull CharSequence content) {
+    String destination = configuration.getSshDestination().trim();
+    if (destination.isEmpty()) return null;
+    PhpStanSshSync sync = mySyncs.computeIfAbsent(destination, this::createSync);
+    String hostPath = ReadAction.compute(() -> FileDocumentManager.getInstance().isFileModified(file))
+                      ? null : updateIfRemoteMappingExists(file.getPath(), myProject, PhpStanQualityToolType.INSTANCE);
+    ProgressIndicator indicator = ProgressManager.getGlobalProgressIndicator();
+    try {
+      return sync.sync(file.getPath(), hostPath, content.toString().getBytes(file.getCharset()),
+                       () -> myProject.isDisposed() || indicator != null && indicator.isCanceled());
+    }
+    catch (CancellationException e) {
+      throw new ProcessCanceledException(e);
+    }
+    catch (IOException e) {
+      LOG.warn("Cannot copy " + file.getPath() + " to " + destination, e);
+      return null;
+    }
+  }
+
+  private @NotNull PhpStanSshSync createSync(@NotNull String destination) {
+    String hash = sha256(myProject.getLocationHash() + "\n" + destination).substring(0, HASH_LENGTH);
+    Path controlPath = SystemInfo.isWindows ? null : createControlPath(hash);
+    return new PhpStanSshSync(List.of(SSH), destination, controlPath, REMOTE_DIRECTORY + myProject.getLocationHash());
+  }
+
+  /**
+   * @return socket of the shared connection in the system directory of the IDE, which other users can't access, or
+   * null to connect for every copy if the path is too long for a socket
+   */
+  private static @Nullable Path createControlPath(@NotNull String hash) {
+    Path directory = Path.of(PathManager.getSystemPath(), CONTROL_DIRECTORY);
+    Path controlPath = directory.resolve(hash);
+    if (controlPath.toString().length() > MAX_CONTROL_PATH_LENGTH) {
+      LOG.info("Not sharing SSH connections, the socket path is too long: " + controlPath);
+      return null;
+    }
+    try {
+      Files.createDirectories(directory);
+      return controlPath;
+    }
+    catch (IOException e) {
+      LOG.warn("Cannot create " + directory + ", not sharing SSH connections", e);
+      return null;
+    }
+  }
+
+  private static @NotNull String sha256(@NotNull String content) {
+    try {
+      return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content.getBytes(StandardCharsets.UTF_8)));
+    }
+    catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public void dispose() {
+    List<PhpStanSshSync> syncs = new ArrayList<>(mySyncs.values());
+    mySyncs.clear();
+    AppExecutorUtil.getAppExecutorService().execute(() -> {
+      for (PhpStanSshSync sync : syncs) {
+        sync.close();
+      }
+    });
+  }
+}
@@ -0,0 +1,45 @@
+package com.jetbrains.php.phpstan.quality.tools;
+
+import com.jetbrains.php.tools.quality.phpstan.PhpStanBaseline;
+import com.jetbrains.php.tools.quality.phpstan.PhpStanBaselineDiff;
+import org.junit.Test;
+
+import java.util.List;
+
+import static com.jetbrains.php.tools.quality.phpstan.PhpStanBaselineDiff.Kind.*;
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the structural baseline diff.
+ */
+public class PhpStanBaselineDiffTest {
+
+  @Test
+  public void testChanges() {
+    PhpStanBaseline oldBaseline = PhpStanBaseline.of(List.of(
+      new PhpStanBaseline.Entry("/p/src/A.php", "#^Kept$#", false, 1),
+      new PhpStanBaseline.Entry("/p/src/A.php", "#^Fixed$#", false, 2),
+      new PhpStanBaseline.Entry("/p/src/B.php", "#^Grown$#", false, 1)));
+    PhpStanBaseline newBaseline = PhpStanBaseline.of(List.of(
+      new PhpStanBaseline.Entry("/p/src/A.php", "#^Kept$#", false, 1),
+      new PhpStanBaseline.Entry("/p/src/B.php", "#^Grown$#", false, 3),
+      new PhpStanBaseline.Entry("/p/src/C.php", "Introduced", true, 1)));
+
+    PhpStanBaselineDiff diff = PhpStanBaselineDiff.compute(oldBaseline, newBaseline);
+
+    assertEquals(List.of(
+      new PhpStanBaselineDiff.Change(REMOVED, "/p/src/A.php", "#^Fixed$#", 2, 0),
+      new PhpStanBaselineDiff.Change(COUNT_CHANGED, "/p/src/B.php", "#^Grown$#", 1, 3),
+      new PhpStanBaselineDiff.Change(ADDED, "/p/src/C.php", "Introduced", 0, 1)), diff.getChanges());
+    assertEquals(1, diff.count(ADDED));
+    assertEquals(1, diff.count(REMOVED));
+    assertEquals(1, diff.count(COUNT_CHANGED));
+  }
+
+  @Test
+  public void testIdenticalBaselines() {
+    PhpStanBaseline baseline = PhpStanBaseline.of(List.of(new PhpStanBaseline.Entry("/p/src/A.php", "#^Kept$#", false, 1)));
+    assertTrue(PhpStanBaselineDiff.compute(baseline, baseline).isEmpty());
+    assertEquals(1, PhpStanBaselineDiff.compute(PhpStanBaseline.EMPTY, baseline).count(ADDED));
+  }
+}
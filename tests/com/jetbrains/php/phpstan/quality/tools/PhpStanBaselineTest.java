@@ -0,0 +1,103 @@
+package com.jetbrains.php.phpstan.quality.tools;
+
+import com.jetbrains.php.tools.quality.phpstan.PhpStanBaseline;
+import com.jetbrains.php.tools.quality.phpstan.PhpStanMessageProcessor;
+import com.jetbrains.php.tools.quality.phpstan.PhpStanNeonConfig;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the baseline lookup index.
+ */
+public class PhpStanBaselineTest {
+
+  @Test
+  public void testCountsAreConsumed() throws IOException {
+    Path root = Files.createTempDirectory("phpstan-baseline");
+    String base = root.toString().replace('\\', '/');
+    PhpStanBaseline baseline = readBaseline(root, """
+      parameters:
+      \tignoreErrors:
+      \t\t-
+      \t\t\tmessage: "#^Method Foo\\\\:\\\\:bar\\\\(\\\\) has no return type specified\\\\.$#"
+      \t\t\tcount: 2
+      \t\t\tpath: src/Foo.php
+      """);
+
+    assertTrue(baseline.hasEntries(base + "/src/Foo.php"));
+    assertFalse(baseline.hasEntries(base + "/src/Bar.php"));
+
+    PhpStanBaseline.Matcher matcher = baseline.newMatcher();
+    String message = "Method Foo::bar() has no return type specified.";
+    assertTrue(matcher.isBaselined(base + "/src/Foo.php", message));
+    assertTrue(matcher.isBaselined(base + "/src/Foo.php", message));
+    assertFalse("Occurrences beyond the recorded count are new", matcher.isBaselined(base + "/src/Foo.php", message));
+    assertFalse(matcher.isBaselined(base + "/src/Foo.php", "Method Foo::baz() has no return type specified."));
+    assertTrue("A new matcher starts with fresh counts", baseline.newMatcher().isBaselined(base + "/src/Foo.php", message));
+  }
+
+  @Test
+  public void testDuplicateEntriesAreFolded() throws IOException {
+    Path root = Files.createTempDirectory("phpstan-baseline");
+    String base = root.toString().replace('\\', '/');
+    PhpStanBaseline baseline = readBaseline(root, """
+      parameters:
+          ignoreErrors:
+              - {message: '#^Undefined variable#', path: src/Foo.php}
+              - {message: '#^Undefined variable#', count: 2, path: src/Foo.php}
+              - {rawMessage: 'Variable $x might not be defined.', identifier: variable.undefined, count: 1, path: src/Foo.php}
+      """);
+
+    assertEquals(2, baseline.getEntries(base + "/src/Foo.php").size());
+    PhpStanBaseline.Matcher matcher = baseline.newMatcher();
+    for (int i = 0; i < 3; i++) {
+      assertTrue(matcher.isBaselined(base + "/src/Foo.php", "Undefined variable: $y"));
+    }
+    assertFalse(matcher.isBaselined(base + "/src/Foo.php", "Undefined variable: $y"));
+    assertTrue(matcher.isBaselined(base + "/src/Foo.php", "Variable $x might not be defined."));
+    assertFalse(matcher.isBaselined(base + "/src/Foo.php", "Variable $z might not be defined."));
+  }
+
+  @Test
+  public void testPatternModifiers() throws IOException {
+    Path root = Files.createTempDirectory("phpstan-baseline");
+    String base = root.toString().replace('\\', '/');
+    PhpStanBaseline baseline = readBaseline(root, """
+      parameters:
+          ignoreErrors:
+              - {message: '~^call to undefined function~i', path: src/functions.php}
+      """);
+
+    assertTrue(baseline.newMatcher().isBaselined(base + "/src/functions.php", "Call to undefined function foo()."));
+  }
+
+  @Test
+  public void testOnlyFilesWithEntriesAreMarked() throws IOException {
+    Path root = Files.createTempDirectory("phpstan-baseline");
+    String base = root.toString().replace('\\', '/');
+    PhpStanBaseline baseline = readBaseline(root, """
+      parameters:
+          ignoreErrors:
+              - {message: '#^Undefined variable#', path: src/Foo.php}
+      """);
+
+    assertEquals("No mark in files without baseline entries", "phpstan",
+                 PhpStanMessageProcessor.getPrefix(baseline, base + "/src/Bar.php"));
+    assertEquals("phpstan", PhpStanMessageProcessor.getPrefix(baseline, null));
+    assertEquals("phpstan", PhpStanMessageProcessor.getPrefix(PhpStanBaseline.EMPTY, base + "/src/Foo.php"));
+    assertNotEquals("phpstan", PhpStanMessageProcessor.getPrefix(baseline, base + "/src/Foo.php"));
+  }
+
+  private static PhpStanBaseline readBaseline(Path root, String content) throws IOException {
+    Path file = root.resolve("phpstan-baseline.neon");
+    Files.writeString(file, content);
+    PhpStanNeonConfig.ConfigFile configFile = PhpStanNeonConfig.ConfigFile.read(file, root.toString());
+    assertNull(configFile.error());
+    return PhpStanBaseline.fromConfigFile(configFile);
+  }
+}
@@ -0,0 +1,140 @@
+package com.jetbrains.php.phpstan.quality.tools;
+
+import com.jetbrains.php.tools.quality.phpstan.PhpStanBatchPlan;
+import com.jetbrains.php.tools.quality.phpstan.PhpStanBatchProgress;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for batch run sharding and progress tracking.
+ */
+public class PhpStanBatchPlanTest {
+  private static final Map<String, List<String>> TREE = Map.of(
+    "/p/src", List.of("/p/src/A", "/p/src/B", "/p/src/C.php"),
+    "/p/src/A", List.of("/p/src/A/A1.php", "/p/src/A/A2.php", "/p/src/A/A3.php"),
+    "/p/src/B", List.of("/p/src/B/B1.php", "/p/src/B/B2.php", "/p/src/B/README.md", "/p/src/B/Sub"),
+    "/p/src/B/Sub", List.of("/p/src/B/Sub/S1.php"));
+
+  @Test
+  public void testUnitsAreGroupedInOrder() {
+    PhpStanBatchPlan plan = PhpStanBatchPlan.create(List.of(
+      new PhpStanBatchPlan.Unit("/p/src/A", 150),
+      new PhpStanBatchPlan.Unit("/p/src/B", 100),
+      new PhpStanBatchPlan.Unit("/p/src/C", 0),
+      new PhpStanBatchPlan.Unit("/p/src/D.php", 1),
+      new PhpStanBatchPlan.Unit("/p/src/E", 500)), 4, 200);
+
+    assertEquals(751, plan.getFileCount());
+    List<PhpStanBatchPlan.Shard> shards = plan.getShards();
+    assertEquals(2, shards.size());
+    assertEquals(List.of("/p/src/A", "/p/src/B"), shards.get(0).paths());
+    assertEquals(List.of("/p/src/D.php", "/p/src/E"), shards.get(1).paths());
+
+    assertSame(shards.get(0), plan.findShard("/p/src/B/Deep/Foo.php"));
+    assertSame(shards.get(1), plan.findShard("/p/src/D.php"));
+    assertNull(plan.findShard("/p/src/C/Foo.php"));
+    assertNull(plan.findShard("/p/src/Bar.php"));
+  }
+
+  @Test
+  public void testProgress() {
+    PhpStanBatchProgress progress = new PhpStanBatchProgress(400);
+    assertEquals(-1, progress.estimateRemainingMillis(1000));
+
+    progress.startShard(200);
+    assertFalse(progress.update("Note: Using configuration file /p/phpstan.neon.\n"));
+    assertTrue(progress.update("  20/200 [===-------------------------]  10%\n 100/200 [==============--------------]  50%\n"));
+    assertEquals(100, progress.getProcessedFiles());
+    assertEquals(0.25, progress.getFraction(), 0.001);
+    assertEquals(3000, progress.estimateRemainingMillis(1000));
+
+    progress.finishShard();
+    progress.startShard(200);
+    assertEquals(200, progress.getProcessedFiles());
+    progress.update(" 200/200 [============================] 100%");
+    assertEquals(1.0, progress.getFraction(), 0.001);
+    assertEquals(0, progress.estimateRemainingMillis(1000));
+  }
+
+  @Test
+  public void testPausesAreLeftOutOfEstimate() {
+    PhpStanBatchProgress progress = new PhpStanBatchProgress(400);
+    progress.startShard(400);
+    progress.update(" 100/400 [=======---------------------]  25%");
+    progress.setPaused(true, 1500);
+    progress.setPaused(true, 1800);
+    assertEquals("Paused since 1500", 1500, progress.getActiveMillis(0, 5000));
+    progress.setPaused(false, 4500);
+    progress.setPaused(false, 4800);
+    assertEquals(2000, progress.getActiveMillis(0, 5000));
+    assertEquals("Rate of the active time only", 6000, progress.estimateRemainingMillis(progress.getActiveMillis(0, 5000)));
+  }
+
+  @Test
+  public void testPartiallyIncludedDirectoryIsSplit() {
+    Map<String, Integer> counts = new HashMap<>();
+    List<PhpStanBatchPlan.Unit> units =
+      PhpStanBatchPlan.collectUnits(createTree(path -> !path.equals("/p/src/B/B2.php")), List.of("/p/src"), counts, 1, 1);
+    assertEquals(List.of(new PhpStanBatchPlan.Unit("/p/src/A", 3),
+                         new PhpStanBatchPlan.Unit("/p/src/B/B1.php", 1),
+                         new PhpStanBatchPlan.Unit("/p/src/B/Sub", 1),
+                         new PhpStanBatchPlan.Unit("/p/src/C.php", 1)), units);
+    assertEquals(6, (int)counts.get("/p/src"));
+    assertEquals(2, (int)counts.get("/p/src/B"));
+    assertEquals(0, (int)counts.get("/p/src/B/B2.php"));
+    assertEquals(0, (int)counts.get("/p/src/B/README.md"));
+  }
+
+  @Test
+  public void testLargeDirectoryIsSplit() {
+    Map<String, Integer> counts = new HashMap<>();
+    List<PhpStanBatchPlan.Unit> units = PhpStanBatchPlan.collectUnits(createTree(path -> true), List.of("/p/src"), counts, 1, 2);
+    assertEquals(List.of(new PhpStanBatchPlan.Unit("/p/src/A", 3),
+                         new PhpStanBatchPlan.Unit("/p/src/B", 3),
+                         new PhpStanBatchPlan.Unit("/p/src/C.php", 1)), units);
+    assertEquals(7, (int)counts.get("/p/src"));
+
+    assertEquals(List.of(new PhpStanBatchPlan.Unit("/p/src", 7)),
+                 PhpStanBatchPlan.collectUnits(createTree(path -> true), List.of("/p/src"), new HashMap<>(), 200, 2));
+  }
+
+  @Test
+  public void testScopeWithoutAnalysedFiles() {
+    Map<String, Integer> counts = new HashMap<>();
+    Set<String> partial = PhpStanBatchPlan.count(createTree(path -> false), List.of("/p/src"), counts);
+    assertEquals(0, (int)counts.get("/p/src"));
+    assertTrue(partial.contains("/p/src/B/Sub"));
+    assertTrue(PhpStanBatchPlan.collectUnits(createTree(path -> false), List.of("/p/src"), counts, 1, 1).isEmpty());
+  }
+
+  private static PhpStanBatchPlan.FileTree<String> createTree(Predicate<String> scope) {
+    return new PhpStanBatchPlan.FileTree<>() {
+      @Override
+      public String getPath(String file) {
+        return file;
+      }
+
+      @Override
+      public List<String> getChildren(String file) {
+        return TREE.get(file);
+      }
+
+      @Override
+      public boolean isAnalysed(String file) {
+        return file.endsWith(".php");
+      }
+
+      @Override
+      public boolean isInScope(String file) {
+        return scope.test(file);
+      }
+    };
+  }
+}
@@ -0,0 +1,93 @@
+package com.jetbrains.php.phpstan.quality.tools;
+
+import com.jetbrains.php.tools.quality.phpstan.PhpStanCacheHealth;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the detection of a result cache of PHPStan invalidated on every run.
+ */
+public class PhpStanCacheHealthTest {
+  private static final String RESTORED = "Note: Using configuration file /project/phpstan.neon.\n" +
+                                         "Result cache restored. 1 file will be reanalysed.\n" +
+                                         "Result cache is saved.\n";
+  private static final String MISSING = "Result cache not used because the cache file does not exist.\n";
+
+  private static String mismatch(String keys) {
+    return "Result cache not used because the metadata do not match: " + keys + "\n";
+  }
+
+  @Test
+  public void testRepeatedMissingCacheFile() {
+    PhpStanCacheHealth health = new PhpStanCacheHealth();
+    assertNull(health.recordOutput("config", MISSING, 100, false));
+    assertNull(health.recordOutput("config", MISSING, 100, false));
+    PhpStanCacheHealth.Diagnosis diagnosis = health.recordOutput("config", MISSING, 100, false);
+    assertNotNull(diagnosis);
+    assertEquals(PhpStanCacheHealth.Cause.CHANGING_TMP_DIR, diagnosis.cause());
+    assertNull("Diagnosed once", health.recordOutput("config", MISSING, 100, false));
+  }
+
+  @Test
+  public void testRestoredCacheInterruptsStreak() {
+    PhpStanCacheHealth health = new PhpStanCacheHealth();
+    assertNull(health.recordOutput("config", mismatch("executedFilesHashes"), 100, false));
+    assertNull(health.recordOutput("config", mismatch("executedFilesHashes"), 100, false));
+    assertNull(health.recordOutput("config", RESTORED, 100, false));
+    assertNull(health.recordOutput("config", mismatch("executedFilesHashes"), 100, false));
+    assertNull(health.recordOutput("config", mismatch("executedFilesHashes"), 100, false));
+    PhpStanCacheHealth.Diagnosis diagnosis = health.recordOutput("config", mismatch("executedFilesHashes"), 100, false);
+    assertNotNull(diagnosis);
+    assertEquals(PhpStanCacheHealth.Cause.NON_DETERMINISTIC_BOOTSTRAP, diagnosis.cause());
+  }
+
+  @Test
+  public void testMetadataCauses() {
+    PhpStanCacheHealth health = new PhpStanCacheHealth();
+    for (int i = 0; i < 5; i++) {
+      assertNull("Updated dependencies are expected", health.recordOutput("config", mismatch("composerLocks, composerInstalled"), 100, false));
+    }
+    health.recordOutput("config", mismatch("projectConfig"), 100, false);
+    health.recordOutput("config", mismatch("projectConfig, level"), 100, false);
+    PhpStanCacheHealth.Diagnosis diagnosis = health.recordOutput("config", mismatch("projectConfig"), 100, false);
+    assertNotNull(diagnosis);
+    assertEquals(PhpStanCacheHealth.Cause.CHANGING_CONFIG, diagnosis.cause());
+    assertTrue(diagnosis.details().contains("projectConfig"));
+  }
+
+  @Test
+  public void testChangedInputsReset() {
+    PhpStanCacheHealth health = new PhpStanCacheHealth();
+    assertNull(health.recordOutput("a", MISSING, 100, false));
+    assertNull(health.recordOutput("a", MISSING, 100, false));
+    assertNull(health.recordOutput("b", MISSING, 100, false));
+    assertNull(health.recordOutput("b", MISSING, 100, false));
+    assertNotNull(health.recordOutput("b", MISSING, 100, false));
+    assertNull("Output without result cache details", health.recordOutput("b", "PHP Warning: something\n", 100, false));
+  }
+
+  @Test
+  public void testSlowRuns() {
+    PhpStanCacheHealth health = new PhpStanCacheHealth();
+    assertNull("No full analysis to compare with", health.recordDuration("config", 60_000));
+    health.recordOutput("config", MISSING, 60_000, true);
+    assertNull(health.recordDuration("config", 40_000));
+    assertNull(health.recordDuration("config", 40_000));
+    assertNull("A fast run interrupts the streak", health.recordDuration("config", 2_000));
+    assertNull(health.recordDuration("config", 40_000));
+    assertNull(health.recordDuration("config", 40_000));
+    PhpStanCacheHealth.Diagnosis diagnosis = health.recordDuration("config", 40_000);
+    assertNotNull(diagnosis);
+    assertEquals(PhpStanCacheHealth.Cause.SLOW_RUNS, diagnosis.cause());
+  }
+
+  @Test
+  public void testSmallProjectIsNotJudgedByDuration() {
+    PhpStanCacheHealth health = new PhpStanCacheHealth();
+    health.recordOutput("config", MISSING, 3_000, true);
+    for (int i = 0; i < 5; i++) {
+      assertNull(health.recordDuration("config", 2_500));
+    }
+  }
+}
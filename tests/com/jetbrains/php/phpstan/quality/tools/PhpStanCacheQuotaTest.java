@@ -0,0 +1,89 @@
+package com.jetbrains.php.phpstan.quality.tools;
+
+import com.jetbrains.php.tools.quality.phpstan.PhpStanCacheQuota;
+import com.jetbrains.php.tools.quality.phpstan.PhpStanGovernorSettings;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the disk quota of the cache directories.
+ */
+public class PhpStanCacheQuotaTest {
+  @Test
+  public void testScan() throws Exception {
+    Path root = Files.createTempDirectory("phpstan-cache");
+    Path generation = createGeneration(root.resolve("tmp"), "a", 1000, 5_000_000);
+    Files.writeString(root.resolve("tmp").resolve("stray.txt"), "not a generation");
+
+    List<PhpStanCacheQuota.Generation> generations =
+      PhpStanCacheQuota.scan(List.of(root.resolve("tmp"), root.resolve("missing")));
+    assertEquals(1, generations.size());
+    assertEquals(generation, generations.get(0).directory());
+    assertEquals(1000, generations.get(0).size());
+    assertEquals(5_000_000, generations.get(0).lastUsed());
+  }
+
+  @Test
+  public void testLeastRecentlyUsedAreEvicted() throws Exception {
+    Path root = Files.createTempDirectory("phpstan-cache");
+    Path oldest = createGeneration(root, "oldest", 1000, 1_000_000);
+    Path older = createGeneration(root, "older", 1000, 2_000_000);
+    Path newer = createGeneration(root, "newer", 1000, 3_000_000);
+
+    PhpStanCacheQuota.Result result = PhpStanCacheQuota.prune(PhpStanCacheQuota.scan(List.of(root)), 1500, Set.of());
+    assertEquals(3000, result.size());
+    assertEquals(2000, result.reclaimed());
+    assertEquals(2, result.evicted());
+    assertFalse(Files.exists(oldest));
+    assertFalse(Files.exists(older));
+    assertTrue(Files.exists(newer));
+  }
+
+  @Test
+  public void testGenerationsInUseAreKept() throws Exception {
+    Path root = Files.createTempDirectory("phpstan-cache");
+    Path current = createGeneration(root, "current", 3000, 1_000_000);
+    Path other = createGeneration(root, "other", 1000, 2_000_000);
+
+    PhpStanCacheQuota.Result result = PhpStanCacheQuota.prune(PhpStanCacheQuota.scan(List.of(root)), 1000, Set.of(current));
+    assertEquals(1, result.evicted());
+    assertTrue("The cache of the current configuration stays even above the quota", Files.exists(current));
+    assertFalse(Files.exists(other));
+  }
+
+  @Test
+  public void testNothingEvictedWithinQuota() throws Exception {
+    Path root = Files.createTempDirectory("phpstan-cache");
+    createGeneration(root, "a", 1000, 1_000_000);
+    PhpStanCacheQuota.Result result = PhpStanCacheQuota.prune(PhpStanCacheQuota.scan(List.of(root)), 1000, Set.of());
+    assertEquals(0, result.evicted());
+    assertEquals(0, result.reclaimed());
+  }
+
+  @Test
+  public void testQuotaValidation() {
+    assertTrue(PhpStanGovernorSettings.isValidCacheQuota(""));
+    assertTrue(PhpStanGovernorSettings.isValidCacheQuota(" 8g "));
+    assertTrue(PhpStanGovernorSettings.isValidCacheQuota("512M"));
+    assertFalse(PhpStanGovernorSettings.isValidCacheQuota("0"));
+    assertFalse(PhpStanGovernorSettings.isValidCacheQuota("-1G"));
+    assertFalse(PhpStanGovernorSettings.isValidCacheQuota("8 GB"));
+    assertFalse(PhpStanGovernorSettings.isValidCacheQuota("lots"));
+  }
+
+  private static Path createGeneration(Path root, String name, int size, long lastUsed) throws Exception {
+    Path directory = Files.createDirectories(root.resolve(name).resolve("cache"));
+    Path file = Files.write(directory.resolve("data.php"), new byte[size]);
+    Files.setLastModifiedTime(file, FileTime.fromMillis(lastUsed));
+    Files.setLastModifiedTime(directory, FileTime.fromMillis(lastUsed));
+    Files.setLastModifiedTime(directory.getParent(), FileTime.fromMillis(lastUsed));
+    return directory.getParent();
+  }
+}
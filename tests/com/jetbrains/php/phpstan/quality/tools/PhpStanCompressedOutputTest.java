@@ -0,0 +1,65 @@
+package com.jetbrains.php.phpstan.quality.tools;
+
+import com.jetbrains.php.tools.quality.phpstan.remote.PhpStanCompressedOutput;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Unit tests for the compressed output of commands, run with the shell and {@code gzip} of this machine.
+ */
+public class PhpStanCompressedOutputTest {
+  @Test
+  public void testOutputIsDecompressed() throws Exception {
+    assumeTrue(run(PhpStanCompressedOutput.PROBE_COMMAND));
+    String report = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<checkstyle>\n" +
+                    "<file name=\"src/F\u00f6\u00f6.php\"><error line=\"3\" severity=\"error\" message=\"Undefined\"/></file>\n".repeat(5000) +
+                    "</checkstyle>\n";
+    Path file = Files.writeString(Files.createTempFile("phpstan-report", ".xml"), report);
+    Process process = new ProcessBuilder(PhpStanCompressedOutput.wrap(List.of("sh", "-c", "cat \"$0\"; echo warning >&2; exit 1",
+                                                                              file.toString()))).start();
+    PhpStanCompressedOutput.Output output = PhpStanCompressedOutput.read(process, StandardCharsets.UTF_8, () -> false, 60_000);
+    assertEquals(report, output.stdout());
+    assertEquals("warning\n", output.stderr());
+    assertEquals("The exit code of the command, not of gzip", 1, output.exitCode());
+  }
+
+  @Test
+  public void testNoOutput() throws Exception {
+    assumeTrue(run(PhpStanCompressedOutput.PROBE_COMMAND));
+    Process process = new ProcessBuilder(PhpStanCompressedOutput.wrap(List.of("true"))).start();
+    PhpStanCompressedOutput.Output output = PhpStanCompressedOutput.read(process, StandardCharsets.UTF_8, () -> false, 60_000);
+    assertEquals("", output.stdout());
+    assertEquals(0, output.exitCode());
+  }
+
+  @Test
+  public void testCancelledAndTimedOut() throws Exception {
+    assumeTrue(run(PhpStanCompressedOutput.PROBE_COMMAND));
+    Process process = new ProcessBuilder(PhpStanCompressedOutput.wrap(List.of("sleep", "60"))).start();
+    PhpStanCompressedOutput.Output output = PhpStanCompressedOutput.read(process, StandardCharsets.UTF_8, () -> true, 60_000);
+    assertTrue(output.cancelled());
+    assertFalse(process.isAlive());
+
+    process = new ProcessBuilder(PhpStanCompressedOutput.wrap(List.of("sleep", "60"))).start();
+    output = PhpStanCompressedOutput.read(process, StandardCharsets.UTF_8, () -> false, 100);
+    assertTrue(output.timedOut());
+    assertFalse(output.cancelled());
+  }
+
+  private static boolean run(List<String> command) throws Exception {
+    try {
+      return new ProcessBuilder(command).start().waitFor() == 0;
+    }
+    catch (IOException e) {
+      return false;
+    }
+  }
+}
@@ -0,0 +1,81 @@
+package com.jetbrains.php.phpstan.quality.tools;
+
+import com.jetbrains.php.tools.quality.phpstan.PhpStanConfigOverlay;
+import com.jetbrains.php.tools.quality.phpstan.PhpStanConfigOverlay.Parallel;
+import com.jetbrains.php.tools.quality.phpstan.PhpStanConfigOverlay.RunKind;
+import com.jetbrains.php.tools.quality.phpstan.PhpStanNeonParser;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the machine-tuned configuration overlay.
+ */
+public class PhpStanConfigOverlayTest {
+  @Test
+  public void testParallel() {
+    assertEquals(new Parallel(1, 20), PhpStanConfigOverlay.computeParallel(RunKind.EDITOR, 16, 16));
+    // One process is left for the main process of PHPStan
+    assertEquals(new Parallel(7, 20), PhpStanConfigOverlay.computeParallel(RunKind.BATCH, 16, 8));
+    assertEquals(new Parallel(4, 20), PhpStanConfigOverlay.computeParallel(RunKind.BATCH, 4, 16));
+    assertEquals(new Parallel(1, 20), PhpStanConfigOverlay.computeParallel(RunKind.BATCH, 4, 1));
+  }
+
+  @Test
+  public void testRender() throws Exception {
+    String content = PhpStanConfigOverlay.render(RunKind.BATCH, "/home/o'brien/app/phpstan.neon", new Parallel(3, 20), "/tmp/phpstan cache");
+    Map<?, ?> parsed = (Map<?, ?>)PhpStanNeonParser.parse(content);
+    assertEquals(List.of("/home/o'brien/app/phpstan.neon"), parsed.get("includes"));
+    Map<?, ?> parameters = (Map<?, ?>)parsed.get("parameters");
+    assertEquals("/tmp/phpstan cache", parameters.get("tmpDir"));
+    Map<?, ?> parallel = (Map<?, ?>)parameters.get("parallel");
+    assertEquals(3L, parallel.get("maximumNumberOfProcesses"));
+    assertEquals(20L, parallel.get("jobSize"));
+
+    String withoutTmpDir = PhpStanConfigOverlay.render(RunKind.EDITOR, "phpstan.neon", new Parallel(1, 20), null);
+    assertFalse(((Map<?, ?>)((Map<?, ?>)PhpStanNeonParser.parse(withoutTmpDir)).get("parameters")).containsKey("tmpDir"));
+  }
+
+  @Test
+  public void testUnifiedCgroupQuota() throws Exception {
+    Path root = Files.createTempDirectory("phpstan-cgroup");
+    Path slice = Files.createDirectories(root.resolve("user.slice/ide.scope"));
+    Files.writeString(root.resolve("user.slice/cpu.max"), "400000 100000\n");
+    Files.writeString(slice.resolve("cpu.max"), "max 100000\n");
+    assertEquals(4, PhpStanConfigOverlay.readCgroupCpuLimit(root, "0::/user.slice/ide.scope\n"));
+
+    Files.writeString(slice.resolve("cpu.max"), "150000 100000\n");
+    assertEquals("Fractions are rounded up", 2, PhpStanConfigOverlay.readCgroupCpuLimit(root, "0::/user.slice/ide.scope\n"));
+    assertEquals("Other groups don't apply", -1, PhpStanConfigOverlay.readCgroupCpuLimit(root, "0::/system.slice\n"));
+  }
+
+  @Test
+  public void testLegacyCgroupQuota() throws Exception {
+    Path root = Files.createTempDirectory("phpstan-cgroup");
+    Path cpu = Files.createDirectories(root.resolve("cpu"));
+    Files.writeString(cpu.resolve("cpu.cfs_quota_us"), "-1\n");
+    Files.writeString(cpu.resolve("cpu.cfs_period_us"), "100000\n");
+    assertEquals(-1, PhpStanConfigOverlay.readCgroupCpuLimit(root, null));
+
+    Files.writeString(cpu.resolve("cpu.cfs_quota_us"), "300000\n");
+    assertEquals(3, PhpStanConfigOverlay.readCgroupCpuLimit(root, null));
+  }
+
+  @Test
+  public void testLegacyCgroupQuotaOfOwnGroup() throws Exception {
+    Path root = Files.createTempDirectory("phpstan-cgroup");
+    Path group = Files.createDirectories(root.resolve("cpu,cpuacct/user.slice/ide.scope"));
+    Files.writeString(group.resolve("cpu.cfs_quota_us"), "200000\n");
+    Files.writeString(group.resolve("cpu.cfs_period_us"), "100000\n");
+    String selfCgroups = "4:memory:/user.slice\n3:cpu,cpuacct:/user.slice/ide.scope\n1:name=systemd:/user.slice/ide.scope\n";
+    assertEquals(2, PhpStanConfigOverlay.readCgroupCpuLimit(root, selfCgroups));
+    assertEquals("Other groups don't apply", -1, PhpStanConfigOverlay.readCgroupCpuLimit(root, "3:cpu,cpuacct:/system.slice\n"));
+    assertEquals("Group mounted as the root in a container", -1,
+                 PhpStanConfigOverlay.readCgroupCpuLimit(root, "3:cpu,cpuacct:/docker/0123abcd\n"));
+  }
+}
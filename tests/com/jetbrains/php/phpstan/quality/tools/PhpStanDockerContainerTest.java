@@ -0,0 +1,73 @@
+package com.jetbrains.php.phpstan.quality.tools;
+
+import com.jetbrains.php.tools.quality.phpstan.remote.PhpStanDockerContainer;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Unit tests for the persistent container; the lifecycle test needs Docker and a local {@code alpine} image.
+ */
+public class PhpStanDockerContainerTest {
+  private static final String IMAGE = "alpine";
+
+  @Test
+  public void testExecCommand() {
+    PhpStanDockerContainer container = new PhpStanDockerContainer("docker", "phpstan-test", IMAGE, List.of(), "/app");
+    assertEquals(List.of("docker", "exec", "-w", "/app", "phpstan-test", "php", "vendor/bin/phpstan", "analyse"),
+                 container.createExecCommand(List.of("php", "vendor/bin/phpstan", "analyse")));
+    assertEquals(List.of("docker", "exec", "-w", "/app", "-e", "PHPSTAN_IDE_RUN=42", "phpstan-test", "php", "vendor/bin/phpstan"),
+                 container.createExecCommand(List.of("php", "vendor/bin/phpstan"), "42"));
+  }
+
+  @Test
+  public void testLifecycle() throws Exception {
+    assumeTrue(run("docker", "image", "inspect", IMAGE));
+    Path dir = Files.createTempDirectory("phpstan-container");
+    Files.writeString(dir.resolve("a.txt"), "mounted");
+    String name = "phpstan-test-" + ProcessHandle.current().pid();
+    PhpStanDockerContainer container =
+      new PhpStanDockerContainer("docker", name, IMAGE, List.of(new PhpStanDockerContainer.Mount(dir.toString(), "/app")), "/app");
+    try {
+      container.ensureRunning(null);
+      assertTrue(container.isRunning());
+      assertTrue(run(container.createExecCommand(List.of("grep", "-q", "mounted", "a.txt")).toArray(String[]::new)));
+
+      Process cancelled = new ProcessBuilder(container.createExecCommand(List.of("sleep", "60"), "cancelled")).start();
+      Process other = new ProcessBuilder(container.createExecCommand(List.of("sleep", "60"), "other")).start();
+      Thread.sleep(1000);
+      container.killProcesses("cancelled");
+      assertTrue("Processes of the run are stopped", cancelled.waitFor(10, TimeUnit.SECONDS));
+      assertTrue("Processes of other runs are left alone", other.isAlive());
+      other.destroy();
+
+      assertFalse(container.stopIfIdle(TimeUnit.MINUTES.toMillis(10)));
+      assertTrue(container.stopIfIdle(0));
+      assertFalse(container.isRunning());
+
+      container.ensureRunning(null);
+      assertTrue("Started again after being stopped", container.isRunning());
+    }
+    finally {
+      container.stop();
+    }
+  }
+
+  private static boolean run(String... command) throws Exception {
+    Process process;
+    try {
+      process = new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+    }
+    catch (IOException e) {
+      return false;
+    }
+    return process.waitFor(60, TimeUnit.SECONDS) && process.exitValue() == 0;
+  }
+}
@@ -0,0 +1,57 @@
+package com.jetbrains.php.phpstan.quality.tools;
+
+import com.jetbrains.php.tools.quality.phpstan.PhpStanDocumentLocks;
+import org.junit.Test;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for serialising the on-the-fly runs of a document.
+ */
+public class PhpStanDocumentLocksTest {
+  @Test
+  public void testRunsOfDocumentAreSerialised() throws Exception {
+    PhpStanDocumentLocks locks = new PhpStanDocumentLocks();
+    CountDownLatch acquired = new CountDownLatch(1);
+    CompletableFuture<Void> second;
+    try (PhpStanDocumentLocks.Lock ignored = locks.lock("/app/Foo.php", () -> false)) {
+      second = CompletableFuture.runAsync(() -> {
+        try (PhpStanDocumentLocks.Lock ignored2 = locks.lock("/app/Foo.php", () -> false)) {
+          acquired.countDown();
+        }
+      });
+      assertFalse("The second run waits for the first", acquired.await(100, TimeUnit.MILLISECONDS));
+      try (PhpStanDocumentLocks.Lock other = locks.lock("/app/Bar.php", () -> false)) {
+        assertNotNull("Other documents don't wait", other);
+      }
+    }
+    second.get(5, TimeUnit.SECONDS);
+    assertEquals(0, locks.size());
+  }
+
+  @Test
+  public void testCancelledRunStopsWaiting() throws Exception {
+    PhpStanDocumentLocks locks = new PhpStanDocumentLocks();
+    AtomicBoolean cancelled = new AtomicBoolean();
+    try (PhpStanDocumentLocks.Lock ignored = locks.lock("/app/Foo.php", () -> false)) {
+      CompletableFuture<Void> second = CompletableFuture.runAsync(() -> locks.lock("/app/Foo.php", cancelled::get).close());
+      cancelled.set(true);
+      try {
+        second.get(5, TimeUnit.SECONDS);
+        fail("The cancelled run got the lock");
+      }
+      catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof CancellationException);
+      }
+      assertEquals(1, locks.size());
+    }
+    assertEquals(0, locks.size());
+  }
+}
@@ -0,0 +1,63 @@
+package com.jetbrains.php.phpstan.quality.tools;
+
+import com.jetbrains.php.tools.quality.phpstan.PhpStanDurationHistory;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the run durations adaptive timeouts are derived from.
+ */
+public class PhpStanDurationHistoryTest {
+
+  @Test
+  public void testPercentile() {
+    PhpStanDurationHistory history = new PhpStanDurationHistory();
+    assertEquals(-1, history.getPercentile("a.php", 0.95));
+    for (int i = 1; i <= 20; i++) {
+      history.record("a.php", i * 100);
+    }
+    assertEquals(1900, history.getPercentile("a.php", 0.95));
+    assertEquals(1000, history.getPercentile("a.php", 0.5));
+    // Only the most recent runs count
+    for (int i = 0; i < 20; i++) {
+      history.record("a.php", 50);
+    }
+    assertEquals(50, history.getPercentile("a.php", 0.95));
+  }
+
+  @Test
+  public void testFallbackToAllKeys() {
+    PhpStanDurationHistory history = new PhpStanDurationHistory();
+    for (int i = 0; i < 10; i++) {
+      history.record("file" + i + ".php", 400);
+    }
+    assertEquals("Too few samples of its own", 400, history.getPercentile("file0.php", 0.95));
+    assertEquals(400, history.getPercentile("new.php", 0.95));
+  }
+
+  @Test
+  public void testTimedOutRunsGetMoreTime() {
+    PhpStanDurationHistory history = new PhpStanDurationHistory();
+    for (int i = 0; i < 20; i++) {
+      history.record("a.php", 1000);
+    }
+    assertEquals(-1, history.getMinimumTimeout("a.php"));
+    history.recordTimeout("a.php", 30000);
+    assertEquals("A single timeout is not among the slowest runs", 1000, history.getPercentile("a.php", 0.95));
+    assertEquals(60000, history.getMinimumTimeout("a.php"));
+    history.recordTimeout("a.php", 60000);
+    assertEquals(120000, history.getMinimumTimeout("a.php"));
+    assertEquals("Other keys are not affected", -1, history.getMinimumTimeout("b.php"));
+    history.record("a.php", 40000);
+    assertEquals(-1, history.getMinimumTimeout("a.php"));
+  }
+
+  @Test
+  public void testComputeTimeout() {
+    assertEquals("No history", 30000, PhpStanDurationHistory.computeTimeout(-1, 3, 30000, 5000, 600000));
+    assertEquals(5000, PhpStanDurationHistory.computeTimeout(400, 3, 30000, 5000, 600000));
+    assertEquals(90000, PhpStanDurationHistory.computeTimeout(30000, 3, 30000, 5000, 600000));
+    assertEquals(600000, PhpStanDurationHistory.computeTimeout(400000, 3, 30000, 5000, 600000));
+  }
+}
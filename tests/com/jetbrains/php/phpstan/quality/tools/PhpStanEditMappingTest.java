@@ -0,0 +1,51 @@
+package com.jetbrains.php.phpstan.quality.tools;
+
+import com.jetbrains.php.tools.quality.phpstan.PhpStanEditMapping;
+import com.jetbrains.php.tools.quality.phpstan.PhpStanEditMapping.Range;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for mapping results of an edited document.
+ */
+public class PhpStanEditMappingTest {
+  private static final String ANALYSED = "<?php\n$a = foo();\n$b = bar();\n$c = baz();\n";
+
+  @Test
+  public void testUnchangedText() {
+    PhpStanEditMapping mapping = PhpStanEditMapping.create(ANALYSED, ANALYSED);
+    assertFalse(mapping.isChanged());
+    assertEquals(new Range(6, 17), mapping.mapLine(1, 0));
+    assertEquals(new Range(11, 17), mapping.mapLine(1, 5));
+    assertNull("No such line", mapping.mapLine(10, 0));
+  }
+
+  @Test
+  public void testProblemsAroundTheEdit() {
+    String current = ANALYSED.replace("bar()", "bar(1, 2)");
+    PhpStanEditMapping mapping = PhpStanEditMapping.create(ANALYSED, current);
+    assertTrue(mapping.isChanged());
+    assertEquals("Before the edit", new Range(6, 17), mapping.mapLine(1, 0));
+    assertNull("Edited line", mapping.mapLine(2, 0));
+    Range shifted = mapping.mapLine(3, 0);
+    assertNotNull(shifted);
+    assertEquals("$c = baz();", current.substring(shifted.start(), shifted.end()));
+  }
+
+  @Test
+  public void testDeletedLines() {
+    String current = ANALYSED.replace("$b = bar();\n", "");
+    PhpStanEditMapping mapping = PhpStanEditMapping.create(ANALYSED, current);
+    assertNull(mapping.mapLine(2, 0));
+    Range shifted = mapping.mapLine(3, 5);
+    assertNotNull(shifted);
+    assertEquals("baz();", current.substring(shifted.start(), shifted.end()));
+  }
+
+  @Test
+  public void testCarriageReturnIsNotPartOfTheLine() {
+    PhpStanEditMapping mapping = PhpStanEditMapping.create("<?php\r\nfoo();\r\n", "<?php\r\nfoo();\r\nbar();\r\n");
+    assertEquals(new Range(7, 13), mapping.mapLine(1, 0));
+  }
+}
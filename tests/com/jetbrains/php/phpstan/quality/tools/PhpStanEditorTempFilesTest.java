@@ -0,0 +1,66 @@
+package com.jetbrains.php.phpstan.quality.tools;
+
+import com.jetbrains.php.tools.quality.phpstan.PhpStanEditorTempFiles;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the reused copies of the editor contents.
+ */
+public class PhpStanEditorTempFilesTest {
+  @Test
+  public void testCopyIsReusedPerDocument() throws Exception {
+    PhpStanEditorTempFiles files = new PhpStanEditorTempFiles(Files.createTempDirectory("phpstan-editor"));
+    Path first = files.write("/app/src/Foo.php", "<?php echo 1;", StandardCharsets.UTF_8);
+    assertTrue(first.getFileName().toString().endsWith("-Foo.php"));
+    assertEquals("<?php echo 1;", Files.readString(first));
+
+    Path second = files.write("/app/src/Foo.php", "<?php echo 2;", StandardCharsets.UTF_8);
+    assertEquals(first, second);
+    assertEquals("<?php echo 2;", Files.readString(second));
+
+    Path other = files.write("/app/tests/Foo.php", "<?php echo 3;", StandardCharsets.UTF_8);
+    assertNotEquals("Files of the same name are told apart", first, other);
+  }
+
+  @Test
+  public void testUnchangedContentIsNotRewritten() throws Exception {
+    PhpStanEditorTempFiles files = new PhpStanEditorTempFiles(Files.createTempDirectory("phpstan-editor"));
+    Path file = files.write("/app/Foo.php", "<?php", StandardCharsets.UTF_8);
+    FileTime marker = FileTime.fromMillis(1_000_000L);
+    Files.setLastModifiedTime(file, marker);
+    files.write("/app/Foo.php", "<?php", StandardCharsets.UTF_8);
+    assertEquals(marker, Files.getLastModifiedTime(file));
+
+    Files.delete(file);
+    files.write("/app/Foo.php", "<?php", StandardCharsets.UTF_8);
+    assertEquals("A removed copy is written again", "<?php", Files.readString(file));
+  }
+
+  @Test
+  public void testClear() throws Exception {
+    Path directory = Files.createTempDirectory("phpstan-editor");
+    PhpStanEditorTempFiles files = new PhpStanEditorTempFiles(directory);
+    Path file = files.write("/app/Foo.php", "<?php", StandardCharsets.UTF_8);
+    files.clear();
+    assertFalse(Files.exists(file));
+    try (var entries = Files.list(directory)) {
+      assertEquals(0, entries.count());
+    }
+  }
+
+  @Test
+  public void testChooseDirectory() throws Exception {
+    Path ram = Files.createTempDirectory("phpstan-shm");
+    Path fallback = Files.createTempDirectory("phpstan-tmp");
+    assertEquals(ram, PhpStanEditorTempFiles.chooseDirectory(ram, fallback));
+    assertEquals(fallback, PhpStanEditorTempFiles.chooseDirectory(ram.resolve("missing"), fallback));
+    assertEquals(fallback, PhpStanEditorTempFiles.chooseDirectory(null, fallback));
+  }
+}
@@ -0,0 +1,109 @@
+package com.jetbrains.php.phpstan.quality.tools;
+
+import com.jetbrains.php.tools.quality.phpstan.PhpStanChangedFiles;
+import com.jetbrains.php.tools.quality.phpstan.PhpStanImportedReport;
+import com.jetbrains.php.tools.quality.phpstan.PhpStanSharedResultCache;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Unit tests for reports of PHPStan made elsewhere, such as by CI.
+ */
+public class PhpStanImportedReportTest {
+  private static final Set<String> PROJECT = Set.of("src/A.php", "src/B.php", "src/Sub/C.php");
+
+  @Test
+  public void testCheckstyleWithPathsOfOtherMachine() throws IOException {
+    String content = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                     "<checkstyle>\n" +
+                     "<file name=\"/builds/team/repo/src/A.php\">\n" +
+                     "  <error line=\"3\" column=\"1\" severity=\"error\" message=\"Undefined variable: $a\" />\n" +
+                     "</file>\n" +
+                     "<file name=\"/builds/team/repo/src/Sub/C.php\">\n" +
+                     "  <error line=\"7\" column=\"1\" severity=\"error\" message=\"Missing return type.\" />\n" +
+                     "</file>\n" +
+                     "<file name=\"/builds/team/repo/src/Removed.php\">\n" +
+                     "  <error line=\"1\" column=\"1\" severity=\"error\" message=\"Gone.\" />\n" +
+                     "</file>\n" +
+                     "</checkstyle>\n";
+    PhpStanImportedReport report = PhpStanImportedReport.parse(content, "abc123", PROJECT::contains);
+    assertEquals("abc123", report.getCommit());
+    assertEquals(Set.of("src/A.php", "src/Sub/C.php"), report.getFiles());
+    assertEquals(1, report.getSkippedFiles());
+    assertEquals(2, report.getProblemCount());
+
+    Map<String, List<PhpStanSharedResultCache.Problem>> kept = PhpStanSharedResultCache.parseReport(report.toReport(path -> !path.equals("src/A.php"), " (abc123)"));
+    assertEquals(Map.of("src/Sub/C.php", List.of(new PhpStanSharedResultCache.Problem(true, 7, 1, "Missing return type. (abc123)"))), kept);
+  }
+
+  @Test
+  public void testJson() throws IOException {
+    String content = "{\"totals\":{\"errors\":0,\"file_errors\":2}," +
+                     "\"files\":{\"src/B.php\":{\"errors\":2,\"messages\":[" +
+                     "{\"message\":\"Call to an undefined method B::c().\",\"line\":12,\"ignorable\":true}," +
+                     "{\"message\":\"No line.\",\"line\":null,\"ignorable\":true}]}}," +
+                     "\"errors\":[]}";
+    PhpStanImportedReport report = PhpStanImportedReport.parse(content, "abc123", PROJECT::contains);
+    assertEquals(Set.of("src/B.php"), report.getFiles());
+    assertEquals(Map.of("src/B.php", List.of(new PhpStanSharedResultCache.Problem(true, 12, 0, "Call to an undefined method B::c()."),
+                                             new PhpStanSharedResultCache.Problem(true, 0, 0, "No line."))),
+                 PhpStanSharedResultCache.parseReport(report.toReport(path -> true, "")));
+  }
+
+  @Test
+  public void testInvalidJson() {
+    try {
+      PhpStanImportedReport.parse("{\"totals\": ", "abc123", PROJECT::contains);
+      fail("Truncated report");
+    }
+    catch (IOException ignored) {
+    }
+  }
+
+  @Test
+  public void testChangedFilesOfProjectInSubdirectory() throws Exception {
+    Path repository = Files.createTempDirectory("phpstan-git");
+    assumeTrue(git(repository, "init", "-q"));
+    Path project = Files.createDirectories(repository.resolve("app/src"));
+    Files.writeString(project.resolve("A.php"), "<?php\n");
+    Files.writeString(project.resolve("B.php"), "<?php\n");
+    Files.createDirectories(repository.resolve("other"));
+    Files.writeString(repository.resolve("other/C.php"), "<?php\n");
+    assertTrue(git(repository, "add", "."));
+    assertTrue(git(repository, "-c", "user.name=PHPStan", "-c", "user.email=phpstan@example.com", "commit", "-q", "-m", "Initial"));
+    String commit = PhpStanChangedFiles.resolveCommit(repository.resolve("app").toString(), "HEAD");
+    assertNotNull(commit);
+
+    Files.writeString(project.resolve("A.php"), "<?php\nnew B;\n");
+    Files.writeString(project.resolve("New.php"), "<?php\n");
+    Files.writeString(repository.resolve("other/C.php"), "<?php\nnew C;\n");
+    Files.writeString(repository.resolve("other/D.php"), "<?php\n");
+    assertEquals(Set.of("src/A.php", "src/New.php"), PhpStanChangedFiles.find(repository.resolve("app").toString(), commit));
+    assertNull(PhpStanChangedFiles.find(repository.resolve("app").toString(), "0000000000000000000000000000000000000000"));
+  }
+
+  /**
+   * @return whether the command succeeded
+   */
+  private static boolean git(Path directory, String... parameters) throws InterruptedException {
+    List<String> command = new ArrayList<>(List.of("git"));
+    command.addAll(List.of(parameters));
+    try {
+      return new ProcessBuilder(command).directory(directory.toFile()).redirectErrorStream(true)
+               .redirectOutput(ProcessBuilder.Redirect.DISCARD).start().waitFor() == 0;
+    }
+    catch (IOException e) {
+      return false;
+    }
+  }
+}
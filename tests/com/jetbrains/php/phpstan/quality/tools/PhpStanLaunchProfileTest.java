@@ -0,0 +1,81 @@
+package com.jetbrains.php.phpstan.quality.tools;
+
+import com.jetbrains.php.tools.quality.phpstan.PhpStanLaunchProfile;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Unit tests for the PHP settings PHPStan is launched with; the launch test needs {@code php} with OPcache on the PATH.
+ */
+public class PhpStanLaunchProfileTest {
+  @Test
+  public void testOptions() {
+    assertEquals(List.of(), PhpStanLaunchProfile.DEFAULT.getPhpOptions("/cache"));
+    assertEquals(List.of("-d", "xdebug.mode=off", "-d", "opcache.enable_cli=1", "-d", "opcache.file_cache=/cache"),
+                 PhpStanLaunchProfile.TUNED.getPhpOptions("/cache"));
+    List<String> jit = PhpStanLaunchProfile.TUNED_WITH_JIT.getPhpOptions("/cache");
+    assertTrue(jit.containsAll(PhpStanLaunchProfile.TUNED.getPhpOptions("/cache")));
+    assertTrue(jit.contains("opcache.jit=tracing"));
+  }
+
+  @Test
+  public void testPhpScript() {
+    assertTrue(PhpStanLaunchProfile.isPhpScript("/app/vendor/bin/phpstan"));
+    assertTrue(PhpStanLaunchProfile.isPhpScript("/opt/phpstan.phar"));
+    assertTrue(PhpStanLaunchProfile.isPhpScript("C:\\tools\\phpstan.PHAR"));
+    assertFalse(PhpStanLaunchProfile.isPhpScript("C:\\app\\vendor\\bin\\phpstan.bat"));
+    assertFalse(PhpStanLaunchProfile.isPhpScript("/usr/local/bin/phpstan.sh"));
+  }
+
+  @Test
+  public void testFileCacheIsUsedAcrossLaunches() throws Exception {
+    assumeTrue("1".equals(run(List.of("php", "-d", "opcache.enable_cli=1", "-r",
+                                      "echo (int)(function_exists('opcache_get_status') && opcache_get_status() !== false);"))));
+    Path dir = Files.createTempDirectory("phpstan-launch");
+    Path script = dir.resolve("script.php");
+    Files.writeString(script, "<?php echo 'first ', ini_get('xdebug.mode') === false ? 'none' : ini_get('xdebug.mode');");
+    // OPcache skips files changed within the last seconds
+    FileTime modified = FileTime.from(Instant.now().minus(1, ChronoUnit.HOURS));
+    Files.setLastModifiedTime(script, modified);
+    Path cache = Files.createDirectory(dir.resolve("opcache"));
+
+    List<String> tuned = new ArrayList<>(List.of("php"));
+    tuned.addAll(PhpStanLaunchProfile.TUNED.getPhpOptions(cache.toString()));
+    tuned.add(script.toString());
+    String output = run(tuned);
+    assertTrue(output, "first off".equals(output) || "first none".equals(output));
+    try (Stream<Path> files = Files.walk(cache)) {
+      assertTrue("Compiled files are written", files.anyMatch(Files::isRegularFile));
+    }
+
+    // Same size and time, so only the compiled file tells the versions apart
+    Files.writeString(script, Files.readString(script).replace("first", "again"));
+    Files.setLastModifiedTime(script, modified);
+    assertTrue(run(List.of("php", script.toString())).startsWith("again"));
+    assertEquals("Compiled by the previous launch", output, run(tuned));
+  }
+
+  private static String run(List<String> command) throws Exception {
+    try {
+      Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.DISCARD).start();
+      String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+      return process.waitFor() == 0 ? output.trim() : null;
+    }
+    catch (IOException e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,44 @@
+package com.jetbrains.php.phpstan.quality.tools;
+
+import com.jetbrains.php.tools.quality.phpstan.PhpStanBatchPlan.Unit;
+import com.jetbrains.php.tools.quality.phpstan.PhpStanMemoryRecovery;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for recovering batch runs that exceeded the memory limit.
+ */
+public class PhpStanMemoryRecoveryTest {
+
+  @Test
+  public void testOutOfMemoryDetection() {
+    assertTrue(PhpStanMemoryRecovery.isOutOfMemory(
+      255, "", "PHP Fatal error:  Allowed memory size of 536870912 bytes exhausted (tried to allocate 20480 bytes)"));
+    assertTrue(PhpStanMemoryRecovery.isOutOfMemory(
+      1, "", "PHPStan process crashed because it reached configured PHP memory limit: 512M"));
+    assertTrue(PhpStanMemoryRecovery.isOutOfMemory(
+      1, "<checkstyle><error message=\"Child process error (exit code 255): Allowed memory size of 2147483648 bytes exhausted\"/>", ""));
+    assertFalse("Reported errors make PHPStan exit with 1 as well",
+                PhpStanMemoryRecovery.isOutOfMemory(1, "<checkstyle><error message=\"Undefined variable\"/></checkstyle>", ""));
+    assertFalse(PhpStanMemoryRecovery.isOutOfMemory(0, "", "Allowed memory size of 1 bytes exhausted"));
+  }
+
+  @Test
+  public void testHalve() {
+    Unit a = new Unit("/p/a", 10);
+    Unit b = new Unit("/p/b", 10);
+    Unit c = new Unit("/p/c", 10);
+    Unit d = new Unit("/p/d", 10);
+    assertEquals(List.of(List.of(a, b), List.of(c, d)), PhpStanMemoryRecovery.halve(List.of(a, b, c, d)));
+
+    Unit large = new Unit("/p/large", 100);
+    assertEquals(List.of(List.of(large), List.of(a, b)), PhpStanMemoryRecovery.halve(List.of(large, a, b)));
+    assertEquals(List.of(List.of(a, b), List.of(large)), PhpStanMemoryRecovery.halve(List.of(a, b, large)));
+
+    assertNull(PhpStanMemoryRecovery.halve(List.of(large)));
+    assertNull(PhpStanMemoryRecovery.halve(List.of()));
+  }
+}
@@ -0,0 +1,181 @@
+package com.jetbrains.php.phpstan.quality.tools;
+
+import com.jetbrains.php.tools.quality.phpstan.PhpStanNeonConfig;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for loading PHPStan configuration include trees and computing their fingerprint.
+ */
+public class PhpStanNeonConfigTest {
+
+  @Test
+  public void testIncludesAreMerged() throws IOException {
+    Path root = Files.createTempDirectory("phpstan-config");
+    String base = root.toString().replace('\\', '/');
+    Files.writeString(root.resolve("phpstan.neon"), """
+      includes:
+          - config/common.neon
+      parameters:
+          level: 8
+          paths:
+              - tests
+          excludePaths:
+              analyse:
+                  - tests/fixtures/*
+      """);
+    Files.createDirectories(root.resolve("config"));
+    Files.writeString(root.resolve("config/common.neon"), """
+      parameters:
+          level: 5
+          paths:
+              - ../src
+          excludePaths:
+              - */generated/*
+          tmpDir: ../var/phpstan
+          parallel:
+              maximumNumberOfProcesses: 8
+              jobSize: 20
+      """);
+
+    PhpStanNeonConfig config = load(root, base);
+    assertEquals("8", config.getLevel());
+    assertEquals(List.of(base + "/src", base + "/tests"), config.getPaths());
+    assertEquals(List.of(base + "/tests/fixtures/*"), config.getExcludePaths());
+    assertEquals(base + "/var/phpstan", config.getTmpDir());
+    assertEquals(Integer.valueOf(8), config.getParallelMaximumNumberOfProcesses());
+    assertEquals(Integer.valueOf(20), config.getParallelJobSize());
+    assertEquals(2, config.getFiles().size());
+  }
+
+  @Test
+  public void testReplaceMarker() throws IOException {
+    Path root = Files.createTempDirectory("phpstan-config");
+    Files.writeString(root.resolve("phpstan.neon"), """
+      includes:
+          - base.neon
+      parameters:
+          paths!:
+              - app
+      """);
+    Files.writeString(root.resolve("base.neon"), """
+      parameters:
+          paths:
+              - src
+      """);
+
+    String base = root.toString().replace('\\', '/');
+    assertEquals(List.of(base + "/app"), load(root, base).getPaths());
+  }
+
+  @Test
+  public void testFingerprint() throws IOException {
+    Path first = Files.createTempDirectory("phpstan-config");
+    Path second = Files.createTempDirectory("phpstan-config");
+    for (Path root : List.of(first, second)) {
+      Files.writeString(root.resolve("phpstan.neon"), "includes:\n    - phpstan-baseline.neon\n");
+      Files.writeString(root.resolve("phpstan-baseline.neon"), "parameters:\n    ignoreErrors: []\n");
+    }
+    String fingerprint = load(first, first.toString()).getFingerprint();
+    assertEquals("Fingerprint should not depend on the checkout location",
+                 fingerprint, load(second, second.toString()).getFingerprint());
+
+    Files.writeString(first.resolve("phpstan-baseline.neon"), "parameters:\n    ignoreErrors: [{message: '#x#', path: a.php}]\n");
+    assertNotEquals("Changes in included files should change the fingerprint",
+                    fingerprint, load(first, first.toString()).getFingerprint());
+  }
+
+  @Test
+  public void testMissingAndMalformedFiles() throws IOException {
+    Path root = Files.createTempDirectory("phpstan-config");
+    Files.writeString(root.resolve("phpstan.neon"), "includes:\n    - missing.neon\n    - broken.neon\n");
+    Files.writeString(root.resolve("broken.neon"), "parameters: [unclosed\n");
+
+    PhpStanNeonConfig config = load(root, root.toString());
+    assertEquals(3, config.getFiles().size());
+    assertNotNull(config.getFiles().get(1).error());
+    assertNotNull(config.getFiles().get(2).error());
+    assertTrue(config.getPaths().isEmpty());
+  }
+
+  @Test
+  public void testRequiresWholeAnalysis() throws IOException {
+    Path root = Files.createTempDirectory("phpstan-config");
+    Files.writeString(root.resolve("phpstan.neon"), """
+      parameters:
+          ignoreErrors:
+              - message: '#Undefined#'
+                path: src/A.php
+      """);
+    assertFalse(load(root, root.toString()).requiresWholeAnalysis());
+
+    Files.writeString(root.resolve("phpstan.neon"), """
+      parameters:
+          ignoreErrors:
+              - '#Undefined#'
+      """);
+    assertTrue(load(root, root.toString()).requiresWholeAnalysis());
+
+    Files.writeString(root.resolve("phpstan.neon"), """
+      parameters:
+          reportUnmatchedIgnoredErrors: false
+          ignoreErrors:
+              - '#Undefined#'
+      """);
+    assertFalse(load(root, root.toString()).requiresWholeAnalysis());
+
+    Files.writeString(root.resolve("phpstan.neon"), """
+      services:
+          -
+              class: App\\UnusedClassCollector
+              tags:
+                  - phpstan.collector
+      """);
+    assertTrue(load(root, root.toString()).requiresWholeAnalysis());
+
+    Files.writeString(root.resolve("phpstan.neon"), """
+      collectors:
+          - App\\UnusedClassCollector
+      """);
+    assertTrue(load(root, root.toString()).requiresWholeAnalysis());
+  }
+
+  @Test
+  public void testRewriteIncludes() {
+    Path directory = Path.of("/app");
+    String content = """
+      includes:
+          - phpstan-baseline.neon # generated
+          - 'config/common.neon'
+          - vendor/phpstan/phpstan-strict-rules/rules.neon
+      parameters:
+          level: 8
+      """;
+    Map<String, String> includes = new HashMap<>();
+    includes.put("/app/phpstan-baseline.neon", null);
+    includes.put("/app/config/common.neon", "/app/config/.common-1.neon");
+    assertEquals("""
+                   includes:
+                       - '/app/config/.common-1.neon'
+                       - vendor/phpstan/phpstan-strict-rules/rules.neon
+                   parameters:
+                       level: 8
+                   """, PhpStanNeonConfig.rewriteIncludes(content, directory, "/app", includes));
+    assertEquals("Other sections are left alone", "parameters:\n    paths:\n        - phpstan-baseline.neon\n",
+                 PhpStanNeonConfig.rewriteIncludes("parameters:\n    paths:\n        - phpstan-baseline.neon\n", directory, "/app",
+                                                   includes));
+  }
+
+  private static PhpStanNeonConfig load(Path root, String basePath) {
+    return PhpStanNeonConfig.load(root.resolve("phpstan.neon"), basePath,
+                                  path -> PhpStanNeonConfig.ConfigFile.read(path, basePath));
+  }
+}
@@ -0,0 +1,123 @@
+package com.jetbrains.php.phpstan.quality.tools;
+
+import com.jetbrains.php.tools.quality.phpstan.PhpStanNeonParser;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the NEON parser used to read PHPStan configuration files.
+ */
+public class PhpStanNeonParserTest {
+
+  @Test
+  public void testEmptyDocument() throws Exception {
+    assertNull(PhpStanNeonParser.parse(""));
+    assertNull(PhpStanNeonParser.parse("\n# only a comment\n\n"));
+  }
+
+  @Test
+  public void testBlockMapping() throws Exception {
+    Map<?, ?> result = (Map<?, ?>)PhpStanNeonParser.parse("""
+      parameters:
+          level: 5
+          tmpDir: var/cache/phpstan # trailing comment
+          reportUnmatchedIgnoredErrors: false
+      """);
+    Map<?, ?> parameters = (Map<?, ?>)result.get("parameters");
+    assertEquals(5L, parameters.get("level"));
+    assertEquals("var/cache/phpstan", parameters.get("tmpDir"));
+    assertEquals(false, parameters.get("reportUnmatchedIgnoredErrors"));
+  }
+
+  @Test
+  public void testBlockSequence() throws Exception {
+    Map<?, ?> result = (Map<?, ?>)PhpStanNeonParser.parse("""
+      includes:
+      \t- phpstan-baseline.neon
+      \t- vendor/phpstan/phpstan-strict-rules/rules.neon
+      parameters:
+      \tpaths:
+      \t\t- src
+      \t\t- tests
+      """);
+    assertEquals(List.of("phpstan-baseline.neon", "vendor/phpstan/phpstan-strict-rules/rules.neon"), result.get("includes"));
+    assertEquals(List.of("src", "tests"), ((Map<?, ?>)result.get("parameters")).get("paths"));
+  }
+
+  @Test
+  public void testSequenceOfMappings() throws Exception {
+    Map<?, ?> result = (Map<?, ?>)PhpStanNeonParser.parse("""
+      parameters:
+      \tignoreErrors:
+      \t\t-
+      \t\t\tmessage: "#^Call to an undefined method Foo\\\\:\\\\:bar\\\\(\\\\)\\\\.$#"
+      \t\t\tcount: 2
+      \t\t\tpath: src/Foo.php
+      \t\t- message: '#^Access to an undefined property#'
+      \t\t  path: src/Bar.php
+      """);
+    List<?> ignoreErrors = (List<?>)((Map<?, ?>)result.get("parameters")).get("ignoreErrors");
+    assertEquals(2, ignoreErrors.size());
+    Map<?, ?> first = (Map<?, ?>)ignoreErrors.get(0);
+    assertEquals("#^Call to an undefined method Foo\\:\\:bar\\(\\)\\.$#", first.get("message"));
+    assertEquals(2L, first.get("count"));
+    assertEquals("src/Foo.php", first.get("path"));
+    Map<?, ?> second = (Map<?, ?>)ignoreErrors.get(1);
+    assertEquals("#^Access to an undefined property#", second.get("message"));
+    assertEquals("src/Bar.php", second.get("path"));
+  }
+
+  @Test
+  public void testInlineCollections() throws Exception {
+    Map<?, ?> result = (Map<?, ?>)PhpStanNeonParser.parse("""
+      excludePaths: [tests/fixtures/*, 'src/Legacy']
+      parallel: {maximumNumberOfProcesses: 4, jobSize: 20}
+      multiline: [
+          a,
+          b
+      ]
+      """);
+    assertEquals(List.of("tests/fixtures/*", "src/Legacy"), result.get("excludePaths"));
+    assertEquals(Map.of("maximumNumberOfProcesses", 4L, "jobSize", 20L), result.get("parallel"));
+    assertEquals(List.of("a", "b"), result.get("multiline"));
+  }
+
+  @Test
+  public void testQuotedStrings() throws Exception {
+    Map<?, ?> result = (Map<?, ?>)PhpStanNeonParser.parse("""
+      single: 'it''s'
+      double: "tab\\there"
+      hash: 'not # a comment'
+      """);
+    assertEquals("it's", result.get("single"));
+    assertEquals("tab\there", result.get("double"));
+    assertEquals("not # a comment", result.get("hash"));
+  }
+
+  @Test
+  public void testEntities() throws Exception {
+    Map<?, ?> result = (Map<?, ?>)PhpStanNeonParser.parse("""
+      services:
+          -
+              class: App\\PHPStan\\Rule
+              tags: [phpstan.rules.rule]
+          - factory: App\\Factory(%currentWorkingDirectory%, debug: true)
+      """);
+    List<?> services = (List<?>)result.get("services");
+    assertEquals(List.of("phpstan.rules.rule"), ((Map<?, ?>)services.get(0)).get("tags"));
+    PhpStanNeonParser.Entity entity = (PhpStanNeonParser.Entity)((Map<?, ?>)services.get(1)).get("factory");
+    assertEquals("App\\Factory", entity.value());
+    assertEquals("%currentWorkingDirectory%", entity.attributes().get("0"));
+    assertEquals(true, entity.attributes().get("debug"));
+  }
+
+  @Test
+  public void testMalformedDocument() {
+    assertThrows(PhpStanNeonParser.NeonException.class, () -> PhpStanNeonParser.parse("key: 'unterminated"));
+    assertThrows(PhpStanNeonParser.NeonException.class, () -> PhpStanNeonParser.parse("list: [a, b"));
+  }
+}
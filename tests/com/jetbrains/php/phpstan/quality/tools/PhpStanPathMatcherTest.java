@@ -0,0 +1,56 @@
+package com.jetbrains.php.phpstan.quality.tools;
+
+import com.jetbrains.php.tools.quality.phpstan.PhpStanPathMatcher;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for matching files against PHPStan's {@code paths} and {@code excludePaths}.
+ */
+public class PhpStanPathMatcherTest {
+
+  @Test
+  public void testEmptyConfigurationMatchesEverything() {
+    PhpStanPathMatcher matcher = PhpStanPathMatcher.create(List.of(), List.of(), true);
+    assertTrue(matcher.matches("/project/vendor/foo/bar.php"));
+  }
+
+  @Test
+  public void testPaths() {
+    PhpStanPathMatcher matcher = PhpStanPathMatcher.create(List.of("/project/src", "/project/bootstrap.php"), List.of(), true);
+    assertTrue(matcher.matches("/project/src/Foo.php"));
+    assertTrue(matcher.matches("/project/src/Sub/Bar.php"));
+    assertTrue(matcher.matches("/project/bootstrap.php"));
+    assertFalse("Sibling with a common prefix should not match", matcher.matches("/project/src2/Foo.php"));
+    assertFalse(matcher.matches("/project/vendor/foo/bar.php"));
+  }
+
+  @Test
+  public void testExcludePaths() {
+    PhpStanPathMatcher matcher = PhpStanPathMatcher.create(
+      List.of("/project/src", "/project/tests"),
+      List.of("/project/src/Legacy", "*/fixtures/*", "/project/tests/*/data/*.php"), true);
+    assertTrue(matcher.matches("/project/src/Foo.php"));
+    assertFalse(matcher.matches("/project/src/Legacy/Old.php"));
+    assertFalse(matcher.matches("/project/tests/Unit/fixtures/Sample.php"));
+    assertFalse(matcher.matches("/project/tests/Unit/data/sample.php"));
+    assertTrue(matcher.matches("/project/tests/Unit/FooTest.php"));
+  }
+
+  @Test
+  public void testCharacterClasses() {
+    PhpStanPathMatcher matcher = PhpStanPathMatcher.create(List.of(), List.of("/project/src/[!A]*.php"), true);
+    assertTrue(matcher.matches("/project/src/Allowed.php"));
+    assertFalse(matcher.matches("/project/src/Excluded.php"));
+  }
+
+  @Test
+  public void testCaseInsensitive() {
+    PhpStanPathMatcher matcher = PhpStanPathMatcher.create(List.of("C:/Project/src"), List.of("*/Generated/*"), false);
+    assertTrue(matcher.matches("c:/project/SRC/Foo.php"));
+    assertFalse(matcher.matches("C:/Project/src/generated/Foo.php"));
+  }
+}
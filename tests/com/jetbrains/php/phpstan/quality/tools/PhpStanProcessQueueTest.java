@@ -0,0 +1,142 @@
+package com.jetbrains.php.phpstan.quality.tools;
+
+import com.jetbrains.php.tools.quality.phpstan.PhpStanPriority;
+import com.jetbrains.php.tools.quality.phpstan.PhpStanProcessQueue;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the admission queue of PHPStan runs.
+ */
+public class PhpStanProcessQueueTest {
+  private static final long GB = 1L << 30;
+
+  @Test
+  public void testLimits() throws Exception {
+    PhpStanProcessQueue queue = new PhpStanProcessQueue(() -> 4, () -> 8 * GB);
+    PhpStanProcessQueue.Permit first = queue.acquire(new PhpStanProcessQueue.Claim(1, 2 * GB), PhpStanPriority.BATCH, () -> false, 10);
+    PhpStanProcessQueue.Permit second = queue.acquire(new PhpStanProcessQueue.Claim(3, 6 * GB), PhpStanPriority.BATCH, () -> false, 10);
+    assertNotNull(first);
+    assertNotNull(second);
+    assertEquals(4, queue.getRunningProcesses());
+    assertEquals(8 * GB, queue.getClaimedMemory());
+
+    assertNull("Over budget and cancelled", queue.acquire(new PhpStanProcessQueue.Claim(1, GB), PhpStanPriority.BATCH, () -> true, 10));
+    assertEquals(0, queue.getQueueLength());
+
+    CompletableFuture<PhpStanProcessQueue.Permit> waiting = CompletableFuture.supplyAsync(() -> acquire(queue, PhpStanPriority.BATCH, 1, 2 * GB));
+    assertThrows(TimeoutException.class, () -> waiting.get(100, TimeUnit.MILLISECONDS));
+    first.close();
+    first.close();
+    PhpStanProcessQueue.Permit third = waiting.get(5, TimeUnit.SECONDS);
+    assertNotNull(third);
+    assertEquals(4, queue.getRunningProcesses());
+    second.close();
+    third.close();
+    assertEquals(0, queue.getRunningProcesses());
+    assertEquals(0, queue.getClaimedMemory());
+  }
+
+  @Test
+  public void testOversizedRunIsAdmittedAlone() throws Exception {
+    PhpStanProcessQueue queue = new PhpStanProcessQueue(() -> 2, () -> GB);
+    PhpStanProcessQueue.Permit permit = queue.acquire(new PhpStanProcessQueue.Claim(17, 34 * GB), PhpStanPriority.BATCH, () -> false, 10);
+    assertNotNull(permit);
+    assertNull(queue.acquire(new PhpStanProcessQueue.Claim(1, 1), PhpStanPriority.BATCH, () -> true, 10));
+    permit.close();
+  }
+
+  @Test
+  public void testArrivalOrder() throws Exception {
+    PhpStanProcessQueue queue = new PhpStanProcessQueue(() -> 4, () -> 100 * GB);
+    PhpStanProcessQueue.Permit running = queue.acquire(new PhpStanProcessQueue.Claim(2, GB), PhpStanPriority.BATCH, () -> false, 10);
+    assertNotNull(running);
+    // A large run arrives first; a later small run that would fit must not overtake it
+    CompletableFuture<PhpStanProcessQueue.Permit> large = CompletableFuture.supplyAsync(() -> acquire(queue, PhpStanPriority.BATCH, 4, GB));
+    while (queue.getQueueLength() == 0) Thread.sleep(5);
+    CompletableFuture<PhpStanProcessQueue.Permit> small = CompletableFuture.supplyAsync(() -> acquire(queue, PhpStanPriority.BATCH, 1, GB));
+    assertThrows(TimeoutException.class, () -> small.get(100, TimeUnit.MILLISECONDS));
+    running.close();
+    large.get(5, TimeUnit.SECONDS).close();
+    small.get(5, TimeUnit.SECONDS).close();
+  }
+
+  @Test
+  public void testHigherPriorityIsAdmittedFirst() throws Exception {
+    PhpStanProcessQueue queue = new PhpStanProcessQueue(() -> 2, () -> 100 * GB);
+    PhpStanProcessQueue.Permit running = queue.acquire(new PhpStanProcessQueue.Claim(2, GB), PhpStanPriority.VISIBLE_EDITOR, () -> false, 10);
+    assertNotNull(running);
+    CompletableFuture<PhpStanProcessQueue.Permit> batch = CompletableFuture.supplyAsync(() -> acquire(queue, PhpStanPriority.BATCH, 1, GB));
+    while (queue.getQueueLength() == 0) Thread.sleep(5);
+    CompletableFuture<PhpStanProcessQueue.Permit> focused =
+      CompletableFuture.supplyAsync(() -> acquire(queue, PhpStanPriority.FOCUSED_EDITOR, 2, GB));
+    while (queue.getQueueLength() == 1) Thread.sleep(5);
+    running.close();
+    PhpStanProcessQueue.Permit focusedPermit = focused.get(5, TimeUnit.SECONDS);
+    assertThrows(TimeoutException.class, () -> batch.get(100, TimeUnit.MILLISECONDS));
+    focusedPermit.close();
+    batch.get(5, TimeUnit.SECONDS).close();
+  }
+
+  @Test
+  public void testBatchRunIsSuspendedWhileEditorRunIsActive() throws Exception {
+    PhpStanProcessQueue queue = new PhpStanProcessQueue(() -> 4, () -> 4 * GB);
+    PhpStanProcessQueue.Permit batch = queue.acquire(new PhpStanProcessQueue.Claim(4, 4 * GB), PhpStanPriority.BATCH, () -> false, 10);
+    assertNotNull(batch);
+    List<Boolean> events = new ArrayList<>();
+    batch.setSuspendHandler(events::add);
+    assertFalse(batch.isSuspended());
+
+    // The batch run holds all processes and memory, yet pausing it lets the editor run in
+    PhpStanProcessQueue.Permit editor = acquire(queue, PhpStanPriority.FOCUSED_EDITOR, 1, GB);
+    assertNotNull(editor);
+    assertTrue(batch.isSuspended());
+    assertEquals(List.of(true), events);
+    assertEquals(1, queue.getRunningProcesses());
+    assertEquals(5 * GB, queue.getClaimedMemory());
+
+    editor.close();
+    assertFalse(batch.isSuspended());
+    assertEquals(List.of(true, false), events);
+    assertEquals(4, queue.getRunningProcesses());
+    batch.close();
+    assertEquals(0, queue.getRunningProcesses());
+    assertEquals(0, queue.getClaimedMemory());
+  }
+
+  @Test
+  public void testRunWithoutSuspendHandlerIsNotSuspended() throws Exception {
+    PhpStanProcessQueue queue = new PhpStanProcessQueue(() -> 1, () -> 100 * GB);
+    PhpStanProcessQueue.Permit batch = queue.acquire(new PhpStanProcessQueue.Claim(1, GB), PhpStanPriority.BATCH, () -> false, 10);
+    assertNotNull(batch);
+    assertNull(queue.acquire(new PhpStanProcessQueue.Claim(1, GB), PhpStanPriority.FOCUSED_EDITOR, () -> true, 10));
+    assertFalse(batch.isSuspended());
+    batch.close();
+  }
+
+  @Test
+  public void testParseMemorySize() {
+    assertEquals(2 * GB, PhpStanProcessQueue.parseMemorySize("2G"));
+    assertEquals(512L << 20, PhpStanProcessQueue.parseMemorySize("512m"));
+    assertEquals(1024, PhpStanProcessQueue.parseMemorySize("1024"));
+    assertEquals(-1, PhpStanProcessQueue.parseMemorySize("-1"));
+    assertEquals(-1, PhpStanProcessQueue.parseMemorySize(""));
+    assertEquals(-1, PhpStanProcessQueue.parseMemorySize("lots"));
+  }
+
+  private static PhpStanProcessQueue.Permit acquire(PhpStanProcessQueue queue, PhpStanPriority priority, int processes, long memory) {
+    try {
+      return queue.acquire(new PhpStanProcessQueue.Claim(processes, memory), priority, () -> false, 10);
+    }
+    catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
@@ -0,0 +1,40 @@
+package com.jetbrains.php.phpstan.quality.tools;
+
+import com.jetbrains.php.tools.quality.phpstan.PhpStanProcessTree;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeFalse;
+
+/**
+ * Unit tests for process tree termination.
+ */
+public class PhpStanProcessTreeTest {
+
+  @Test
+  public void testWorkersAreKilled() throws Exception {
+    assumeFalse(System.getProperty("os.name").startsWith("Windows"));
+    String marker = UUID.randomUUID().toString();
+    // A parent with two "workers", like PHPStan with parallel processes
+    Process process = new ProcessBuilder("sh", "-c", "sleep 60 & sleep 60 & wait", marker).start();
+    Set<ProcessHandle> tree = Set.of();
+    for (int i = 0; i < 100 && tree.size() < 3; i++) {
+      Thread.sleep(20);
+      tree = PhpStanProcessTree.collect(List.of(process.toHandle()));
+    }
+    assertEquals(3, tree.size());
+    assertEquals(List.of(process.toHandle()), PhpStanProcessTree.findByArgument(marker));
+
+    assertEquals(3, PhpStanProcessTree.destroy(tree));
+    assertTrue(process.waitFor(5, TimeUnit.SECONDS));
+    for (ProcessHandle handle : tree) {
+      handle.onExit().get(5, TimeUnit.SECONDS);
+      assertFalse(handle.isAlive());
+    }
+  }
+}
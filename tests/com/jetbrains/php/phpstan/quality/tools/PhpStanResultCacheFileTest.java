@@ -0,0 +1,70 @@
+package com.jetbrains.php.phpstan.quality.tools;
+
+import com.jetbrains.php.tools.quality.phpstan.PhpStanResultCacheFile;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for reading the dependencies between files from the result cache of PHPStan.
+ */
+public class PhpStanResultCacheFileTest {
+
+  @Test
+  public void testReadDependencies() {
+    String content = "<?php declare(strict_types = 1);\n" +
+                     "\n" +
+                     "return [\n" +
+                     "\t'lastFullAnalysisTime' => 1700000000,\n" +
+                     "\t'meta' => array (\n" +
+                     "  'level' => '8',\n" +
+                     "  'projectConfig' => '{parameters: {level: 8}}',\n" +
+                     "),\n" +
+                     "\t'dependencies' => array (\n" +
+                     "  '/project/src/A.php' => \n" +
+                     "  array (\n" +
+                     "    'fileHash' => 'a1',\n" +
+                     "    'dependentFiles' => \n" +
+                     "    array (\n" +
+                     "      0 => '/project/src/B.php',\n" +
+                     "      1 => '/project/src/C\\'s.php',\n" +
+                     "    ),\n" +
+                     "  ),\n" +
+                     "  '/project/src/B.php' => \n" +
+                     "  array (\n" +
+                     "    'fileHash' => 'b1',\n" +
+                     "    'dependentFiles' => \n" +
+                     "    array (\n" +
+                     "      0 => '/project/src/C\\'s.php',\n" +
+                     "    ),\n" +
+                     "  ),\n" +
+                     "  '/project/src/C\\'s.php' => \n" +
+                     "  array (\n" +
+                     "    'fileHash' => 'c1',\n" +
+                     "    'dependentFiles' => \n" +
+                     "    array (\n" +
+                     "    ),\n" +
+                     "  ),\n" +
+                     "),\n" +
+                     "\t'exportedNodesCallback' => static function (): array { return array (\n" +
+                     "  '/project/src/A.php' => \n" +
+                     "  array (\n" +
+                     "      0 => '/project/src/D.php',\n" +
+                     "  ),\n" +
+                     "); },\n" +
+                     "];\n";
+    Map<String, Set<String>> dependencies = PhpStanResultCacheFile.readDependencies(content);
+    assertEquals(Set.of(), dependencies.get("/project/src/A.php"));
+    assertEquals(Set.of("/project/src/A.php"), dependencies.get("/project/src/B.php"));
+    assertEquals(Set.of("/project/src/A.php", "/project/src/B.php"), dependencies.get("/project/src/C's.php"));
+    assertEquals(3, dependencies.size());
+  }
+
+  @Test
+  public void testUnknownContent() {
+    assertTrue(PhpStanResultCacheFile.readDependencies("<?php return [];").isEmpty());
+  }
+}
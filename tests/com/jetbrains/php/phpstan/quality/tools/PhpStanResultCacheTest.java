@@ -0,0 +1,61 @@
+package com.jetbrains.php.phpstan.quality.tools;
+
+import com.jetbrains.php.tools.quality.phpstan.PhpStanResultCache;
+import com.jetbrains.php.tools.quality.phpstan.PhpStanResultCache.Key;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the result cache of on-the-fly runs.
+ */
+public class PhpStanResultCacheTest {
+  private static final Key FOO = new Key("/app/src/Foo.php", "a1", "config", "2.1.17@");
+  private static final Key BAR = new Key("/app/src/Bar.php", "b1", "config", "2.1.17@");
+
+  @Test
+  public void testHit() {
+    PhpStanResultCache<String> cache = new PhpStanResultCache<>();
+    cache.put(FOO, "result", cache.getGeneration());
+    assertEquals("result", cache.get(FOO));
+    assertNull("Other content", cache.get(new Key(FOO.path(), "a2", "config", "2.1.17@")));
+    assertNull("Other configuration", cache.get(new Key(FOO.path(), "a1", "other", "2.1.17@")));
+    assertNull("Other version", cache.get(new Key(FOO.path(), "a1", "config", "2.1.18@")));
+  }
+
+  @Test
+  public void testSavingTheAnalysedFileKeepsItsResult() {
+    PhpStanResultCache<String> cache = new PhpStanResultCache<>();
+    cache.put(FOO, "foo", cache.getGeneration());
+    cache.put(BAR, "bar", cache.getGeneration());
+    cache.fileChanged(FOO.path());
+    cache.fileChanged(FOO.path());
+    assertEquals("foo", cache.get(FOO));
+    assertNull("Bar may depend on Foo", cache.get(BAR));
+
+    cache.fileChanged(null);
+    assertNull(cache.get(FOO));
+  }
+
+  @Test
+  public void testChangeDuringRunInvalidatesItsResult() {
+    PhpStanResultCache<String> cache = new PhpStanResultCache<>();
+    long generation = cache.getGeneration();
+    cache.fileChanged(BAR.path());
+    cache.put(FOO, "foo", generation);
+    assertNull(cache.get(FOO));
+  }
+
+  @Test
+  public void testDependencies() {
+    assertTrue(PhpStanResultCache.isDependency("/app/src/Foo.php"));
+    assertTrue(PhpStanResultCache.isDependency("/app/stubs/Foo.STUB"));
+    assertTrue(PhpStanResultCache.isDependency("/app/composer.lock"));
+    assertTrue("Directories", PhpStanResultCache.isDependency("/app/src"));
+    assertFalse(PhpStanResultCache.isDependency("/app/README.md"));
+    assertFalse(PhpStanResultCache.isDependency("/app/package.json"));
+    assertFalse(PhpStanResultCache.isDependency("/app/.gitignore"));
+    assertFalse(PhpStanResultCache.isDependency("/app/.git/index"));
+    assertFalse(PhpStanResultCache.isDependency("C:\\app\\.idea\\workspace"));
+  }
+}
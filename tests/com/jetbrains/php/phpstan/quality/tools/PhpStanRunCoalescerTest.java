@@ -0,0 +1,142 @@
+package com.jetbrains.php.phpstan.quality.tools;
+
+import com.jetbrains.php.tools.quality.phpstan.PhpStanRunCoalescer;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for merging on-the-fly runs requested at about the same time.
+ */
+public class PhpStanRunCoalescerTest {
+  private final List<List<String>> myRuns = Collections.synchronizedList(new ArrayList<>());
+
+  private PhpStanRunCoalescer<String, String, String> createCoalescer(long windowMs, int maxRequests) {
+    return new PhpStanRunCoalescer<>(windowMs, maxRequests, 5, (requests, cancelled) -> {
+      myRuns.add(requests);
+      Map<String, String> results = new HashMap<>();
+      for (String request : requests) {
+        if (!request.startsWith("skip")) results.put(request, "checked " + request);
+      }
+      return results;
+    });
+  }
+
+  @Test
+  public void testRequestsWithinWindowRunTogether() throws Exception {
+    PhpStanRunCoalescer<String, String, String> coalescer = createCoalescer(300, 10);
+    ExecutorService executor = Executors.newFixedThreadPool(3);
+    try {
+      List<Future<String>> results = new ArrayList<>();
+      for (String file : List.of("A.php", "B.php", "skip.php")) {
+        results.add(executor.submit(() -> coalescer.submit("config", file, true, () -> false)));
+      }
+      assertEquals("checked A.php", results.get(0).get(5, TimeUnit.SECONDS));
+      assertEquals("checked B.php", results.get(1).get(5, TimeUnit.SECONDS));
+      assertNull("Left to run alone", results.get(2).get(5, TimeUnit.SECONDS));
+      assertEquals(1, myRuns.size());
+      assertEquals(Set.of("A.php", "B.php", "skip.php"), new HashSet<>(myRuns.get(0)));
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testSingleRequestRunsAlone() throws Exception {
+    PhpStanRunCoalescer<String, String, String> coalescer = createCoalescer(10, 10);
+    assertNull(coalescer.submit("config", "A.php", true, () -> false));
+    assertTrue(myRuns.isEmpty());
+  }
+
+  @Test
+  public void testOtherKeysAreNotMerged() throws Exception {
+    PhpStanRunCoalescer<String, String, String> coalescer = createCoalescer(100, 10);
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Future<String> first = executor.submit(() -> coalescer.submit("config", "A.php", true, () -> false));
+      Future<String> second = executor.submit(() -> coalescer.submit("other config", "B.php", true, () -> false));
+      assertNull(first.get(5, TimeUnit.SECONDS));
+      assertNull(second.get(5, TimeUnit.SECONDS));
+      assertTrue(myRuns.isEmpty());
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testFullWindowRunsEarly() throws Exception {
+    PhpStanRunCoalescer<String, String, String> coalescer = createCoalescer(60_000, 2);
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Future<String> first = executor.submit(() -> coalescer.submit("config", "A.php", true, () -> false));
+      Future<String> second = executor.submit(() -> coalescer.submit("config", "B.php", true, () -> false));
+      assertEquals("checked A.php", first.get(5, TimeUnit.SECONDS));
+      assertEquals("checked B.php", second.get(5, TimeUnit.SECONDS));
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testCancelledFirstRequestLeavesOthersToRunAlone() throws Exception {
+    PhpStanRunCoalescer<String, String, String> coalescer = createCoalescer(60_000, 10);
+    AtomicBoolean cancelled = new AtomicBoolean();
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Future<String> first = executor.submit(() -> coalescer.submit("config", "A.php", true, cancelled::get));
+      Thread.sleep(50);
+      Future<String> second = executor.submit(() -> coalescer.submit("config", "B.php", true, () -> false));
+      Thread.sleep(50);
+      cancelled.set(true);
+      assertNull(first.get(5, TimeUnit.SECONDS));
+      assertNull(second.get(5, TimeUnit.SECONDS));
+      assertTrue(myRuns.isEmpty());
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testRunsAloneRightAwayWhenNoOthersAreExpected() throws Exception {
+    PhpStanRunCoalescer<String, String, String> coalescer = createCoalescer(60_000, 10);
+    long started = System.nanoTime();
+    assertNull(coalescer.submit("config", "A.php", false, () -> false));
+    assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) < 10_000);
+    assertTrue(myRuns.isEmpty());
+  }
+
+  @Test
+  public void testMergedRunIsCancelledOnlyWhenAllRequestsAre() throws Exception {
+    AtomicBoolean firstCancelled = new AtomicBoolean();
+    AtomicBoolean secondCancelled = new AtomicBoolean();
+    List<Boolean> cancelledWhileRunning = Collections.synchronizedList(new ArrayList<>());
+    PhpStanRunCoalescer<String, String, String> coalescer = new PhpStanRunCoalescer<>(60_000, 2, 5, (requests, cancelled) -> {
+      cancelledWhileRunning.add(cancelled.getAsBoolean());
+      firstCancelled.set(true);
+      cancelledWhileRunning.add(cancelled.getAsBoolean());
+      secondCancelled.set(true);
+      cancelledWhileRunning.add(cancelled.getAsBoolean());
+      return Map.of();
+    });
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Future<String> first = executor.submit(() -> coalescer.submit("config", "A.php", true, firstCancelled::get));
+      Thread.sleep(50);
+      Future<String> second = executor.submit(() -> coalescer.submit("config", "B.php", true, secondCancelled::get));
+      assertNull(first.get(5, TimeUnit.SECONDS));
+      assertNull(second.get(5, TimeUnit.SECONDS));
+      assertEquals("Cancelled once no request is waiting any more", List.of(false, false, true), cancelledWhileRunning);
+    }
+    finally {
+      executor.shutdownNow();
+    }
+  }
+}
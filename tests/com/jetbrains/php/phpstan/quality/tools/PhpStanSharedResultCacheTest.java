@@ -0,0 +1,108 @@
+package com.jetbrains.php.phpstan.quality.tools;
+
+import com.jetbrains.php.tools.quality.phpstan.PhpStanSharedResultCache;
+import com.jetbrains.php.tools.quality.phpstan.PhpStanXml;
+import org.junit.Test;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the results of PHPStan shared by checkouts of the same repository.
+ */
+public class PhpStanSharedResultCacheTest {
+  private static final String REPORT = "Note: Using configuration file phpstan.neon.\n" +
+                                       "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                                       "<checkstyle>\n" +
+                                       "<file name=\"src/A.php\">\n" +
+                                       "  <error line=\"12\" column=\"1\" severity=\"error\" message=\"Call to undefined method &quot;B::c()&quot; &amp; more.\" />\n" +
+                                       "  <error line=\"3\" column=\"0\" severity=\"warning\" message=\"Line one&#10;line two\" />\n" +
+                                       "</file>\n" +
+                                       "<file name=\"src/C.php\">\n" +
+                                       "  <error line=\"1\" severity=\"error\" message=\"Class C not found.\" />\n" +
+                                       "</file>\n" +
+                                       "</checkstyle>\n";
+
+  @Test
+  public void testParseReport() throws IOException {
+    Map<String, List<PhpStanSharedResultCache.Problem>> problems = PhpStanSharedResultCache.parseReport(REPORT);
+    assertEquals(2, problems.size());
+    assertEquals(List.of(new PhpStanSharedResultCache.Problem(true, 12, 1, "Call to undefined method \"B::c()\" & more."),
+                         new PhpStanSharedResultCache.Problem(false, 3, 0, "Line one\nline two")),
+                 problems.get("src/A.php"));
+    assertEquals(List.of(new PhpStanSharedResultCache.Problem(true, 1, 0, "Class C not found.")), problems.get("src/C.php"));
+    assertTrue(PhpStanSharedResultCache.parseReport("PHP Fatal error: out of memory").isEmpty());
+  }
+
+  @Test
+  public void testReportRoundTrip() throws IOException {
+    List<PhpStanSharedResultCache.Problem> problems = PhpStanSharedResultCache.parseReport(REPORT).get("src/A.php");
+    String report = "<checkstyle>" + PhpStanSharedResultCache.toReport("src/A&B.php", problems) + "</checkstyle>";
+    assertEquals(Map.of("src/A&B.php", problems), PhpStanSharedResultCache.parseReport(report));
+  }
+
+  @Test
+  public void testSharedBetweenCheckouts() throws IOException {
+    PhpStanSharedResultCache cache = new PhpStanSharedResultCache(Files.createTempDirectory("phpstan-shared"));
+    String contentHash = PhpStanSharedResultCache.hash("<?php new B;".getBytes(StandardCharsets.UTF_8));
+    String key = PhpStanSharedResultCache.createKey("src/A.php", contentHash, "config", "2.1.17");
+    assertNotEquals(key, PhpStanSharedResultCache.createKey("src/A.php", contentHash, "config", "2.1.18"));
+    List<PhpStanSharedResultCache.Problem> problems = List.of(new PhpStanSharedResultCache.Problem(true, 1, 2, "Message\\ with\nnewline"));
+    assertNull(cache.get(key, path -> "b1"));
+    cache.put(key, new PhpStanSharedResultCache.Entry(Map.of("src/B.php", "b1", "src/with space.php", "s1"), problems));
+
+    Map<String, String> otherCheckout = Map.of("src/B.php", "b1", "src/with space.php", "s1");
+    assertEquals(problems, cache.get(key, otherCheckout::get));
+    assertNull("Dependency changed", cache.get(key, Map.of("src/B.php", "b2", "src/with space.php", "s1")::get));
+    assertNull("Dependency missing", cache.get(key, Map.of("src/B.php", "b1")::get));
+  }
+
+  @Test
+  public void testEditorContentMatchesFileOnDisk() {
+    String editor = "<?php\n// Grüße\nnew B;\n";
+    String hash = PhpStanSharedResultCache.hash(editor);
+    byte[] windows = "\uFEFF<?php\r\n// Grüße\r\nnew B;\r\n".getBytes(StandardCharsets.UTF_8);
+    assertEquals(hash, PhpStanSharedResultCache.hash(new String(windows, StandardCharsets.UTF_8)));
+    byte[] latin1 = editor.getBytes(StandardCharsets.ISO_8859_1);
+    assertEquals(hash, PhpStanSharedResultCache.hash(new String(latin1, StandardCharsets.ISO_8859_1)));
+    assertEquals(hash, PhpStanSharedResultCache.hash("<?php\r// Grüße\rnew B;\r"));
+    assertNotEquals(hash, PhpStanSharedResultCache.hash("<?php\n// Grüße\nnew C;\n"));
+  }
+
+  @Test
+  public void testCorruptEntryIsIgnored() throws IOException {
+    Path directory = Files.createTempDirectory("phpstan-shared");
+    PhpStanSharedResultCache cache = new PhpStanSharedResultCache(directory);
+    String key = PhpStanSharedResultCache.createKey("src/A.php", "hash", "config", "2.1.17");
+    cache.put(key, new PhpStanSharedResultCache.Entry(Map.of(), List.of()));
+    assertEquals(List.of(), cache.get(key, path -> null));
+    Files.writeString(directory.resolve(key.substring(0, 2)).resolve(key), "phpstan-shared-result 1\nP E x 1 message\n");
+    assertNull(cache.get(key, path -> null));
+  }
+
+  @Test
+  public void testExternalEntitiesAreNotResolved() throws Exception {
+    Path secret = Files.createTempFile("phpstan-secret", ".txt");
+    Files.writeString(secret, "secret");
+    String report = "<?xml version=\"1.0\"?>\n" +
+                    "<!DOCTYPE checkstyle [<!ENTITY secret SYSTEM \"" + secret.toUri() + "\">]>\n" +
+                    "<checkstyle><file name=\"&secret;\"/></checkstyle>";
+    try {
+      PhpStanXml.newParser().parse(new InputSource(new StringReader(report)), new DefaultHandler());
+      fail("Document type declaration accepted");
+    }
+    catch (SAXException e) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,141 @@
+package com.jetbrains.php.phpstan.quality.tools;
+
+import com.jetbrains.php.tools.quality.phpstan.remote.PhpStanSshSync;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Unit tests for the copies of the editor contents on an SSH host, against a stand-in for {@code ssh} that runs the
+ * remote command on this machine.
+ */
+public class PhpStanSshSyncTest {
+  private static final String STAND_IN = """
+    #!/bin/sh
+    while [ $# -gt 0 ]; do
+      case "$1" in
+        -O) exit 0;;
+        -o) shift 2;;
+        *) break;;
+      esac
+    done
+    shift
+    exec sh -c "$*"
+    """;
+
+  private record Host(PhpStanSshSync sync, Path directory) {
+  }
+
+  private static Host createHost() throws Exception {
+    assumeTrue(Files.isExecutable(Path.of("/bin/sh")));
+    Path dir = Files.createTempDirectory("phpstan-ssh");
+    Path ssh = Files.writeString(dir.resolve("ssh"), STAND_IN);
+    assertTrue(ssh.toFile().setExecutable(true));
+    Path remote = dir.resolve("remote");
+    return new Host(new PhpStanSshSync(List.of(ssh.toString()), "user@host", dir.resolve("control"), remote.toString()), remote);
+  }
+
+  @Test
+  public void testOnlyChangedPartIsSent() throws Exception {
+    Host host = createHost();
+    PhpStanSshSync sync = host.sync();
+    String content = "<?php\n" + "echo 'line';\n".repeat(1000);
+    String path = sync.sync("/app/src/Foo.php", null, bytes(content), () -> false);
+    assertTrue(path.startsWith(host.directory().toString()));
+    assertEquals(content, Files.readString(Path.of(path)));
+    long sent = sync.getBytesSent();
+    assertEquals(content.length(), sent);
+
+    String edited = content.replaceFirst("line", "edited line");
+    assertEquals(path, sync.sync("/app/src/Foo.php", null, bytes(edited), () -> false));
+    assertEquals(edited, Files.readString(Path.of(path)));
+    assertTrue("Only the edit is sent", sync.getBytesSent() - sent < 20);
+  }
+
+  @Test
+  public void testUnchangedContentIsNotSent() throws Exception {
+    PhpStanSshSync sync = createHost().sync();
+    sync.sync("/app/Foo.php", null, bytes("<?php echo 1;"), () -> false);
+    long sent = sync.getBytesSent();
+    sync.sync("/app/Foo.php", null, bytes("<?php echo 1;"), () -> false);
+    assertEquals(sent, sync.getBytesSent());
+  }
+
+  @Test
+  public void testChangedRemoteCopyIsReplaced() throws Exception {
+    PhpStanSshSync sync = createHost().sync();
+    Path path = Path.of(sync.sync("/app/Foo.php", null, bytes("<?php echo 1; // first"), () -> false));
+    Files.writeString(path, "<?php echo 1; // tampered with");
+    sync.sync("/app/Foo.php", null, bytes("<?php echo 2; // first"), () -> false);
+    assertEquals("<?php echo 2; // first", Files.readString(path));
+
+    Files.delete(path);
+    sync.sync("/app/Foo.php", null, bytes("<?php echo 3; // first"), () -> false);
+    assertEquals("<?php echo 3; // first", Files.readString(path));
+  }
+
+  @Test
+  public void testFilesOfSameNameAreToldApart() throws Exception {
+    PhpStanSshSync sync = createHost().sync();
+    String first = sync.sync("/app/src/Foo.php", null, bytes("<?php // src"), () -> false);
+    String second = sync.sync("/app/tests/Foo.php", null, bytes("<?php // tests"), () -> false);
+    assertNotEquals(first, second);
+    assertEquals("<?php // src", Files.readString(Path.of(first)));
+  }
+
+  @Test
+  public void testSavedDocumentIsCopiedOnTheHost() throws Exception {
+    Host host = createHost();
+    PhpStanSshSync sync = host.sync();
+    Path deployed = Files.createDirectories(host.directory().resolve("deployed")).resolve("Foo.php");
+    Files.writeString(deployed, "<?php echo 1;");
+    String path = sync.sync("/app/Foo.php", deployed.toString(), bytes("<?php echo 1;"), () -> false);
+    assertEquals("<?php echo 1;", Files.readString(Path.of(path)));
+    assertEquals("Nothing sent", 0, sync.getBytesSent());
+
+    Path other = Files.writeString(host.directory().resolve("deployed").resolve("Bar.php"), "<?php echo 'deployed';");
+    String copy = sync.sync("/app/Bar.php", other.toString(), bytes("<?php echo 'edited';"), () -> false);
+    assertEquals("Sent when the deployed document differs", "<?php echo 'edited';", Files.readString(Path.of(copy)));
+  }
+
+  @Test
+  public void testDirectoryOfOthersIsNotUsed() throws Exception {
+    Host host = createHost();
+    // A directory set up by someone else in place of the user's
+    Files.createSymbolicLink(host.directory(), Files.createDirectory(host.directory().resolveSibling("elsewhere")));
+    try {
+      host.sync().sync("/app/Foo.php", null, bytes("<?php echo 1;"), () -> false);
+      fail("Written to " + host.directory());
+    }
+    catch (IOException expected) {
+    }
+    assertEquals(0, host.sync().getBytesSent());
+  }
+
+  @Test
+  public void testCancelledWhileWaitingForTheHost() throws Exception {
+    Host host = createHost();
+    Path ssh = host.directory().getParent().resolve("ssh");
+    Files.writeString(ssh, "#!/bin/sh\nsleep 60\n");
+    long started = System.nanoTime();
+    try {
+      host.sync().sync("/app/Foo.php", null, bytes("<?php echo 1;"), () -> System.nanoTime() - started > 100_000_000L);
+      fail("Cancelled");
+    }
+    catch (CancellationException expected) {
+    }
+    assertTrue("Not waiting for the timeout", System.nanoTime() - started < 20_000_000_000L);
+  }
+
+  private static byte[] bytes(String content) {
+    return content.getBytes(StandardCharsets.UTF_8);
+  }
+}
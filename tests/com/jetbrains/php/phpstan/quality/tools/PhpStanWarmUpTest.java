@@ -0,0 +1,83 @@
+package com.jetbrains.php.phpstan.quality.tools;
+
+import com.jetbrains.php.tools.quality.phpstan.PhpStanCacheHealth;
+import com.jetbrains.php.tools.quality.phpstan.PhpStanWarmUpService;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Unit tests for on-the-fly runs after the result cache is warmed up; the cache test needs {@code phpstan} 1.12.27 or
+ * later on the PATH.
+ */
+public class PhpStanWarmUpTest {
+  private static final String CONFIG = """
+    parameters:
+      level: 5
+      paths:
+        - src
+      tmpDir: tmp
+    """;
+
+  private record Output(String stdout, String stderr) {
+  }
+
+  @Test
+  public void testEditorModeArguments() {
+    assertEquals(List.of("--tmp-file", "/tmp/A.php", "--instead-of", "/app/src/A.php", "/app/src/A.php"),
+                 PhpStanWarmUpService.getEditorModeArguments("/tmp/A.php", "/app/src/A.php", null));
+    assertEquals("The paths of the configuration", List.of("--tmp-file", "/tmp/A.php", "--instead-of", "/app/src/A.php"),
+                 PhpStanWarmUpService.getEditorModeArguments("/tmp/A.php", "/app/src/A.php", List.of()));
+    assertEquals(List.of("--tmp-file", "/tmp/A.php", "--instead-of", "/app/src/A.php", "/app/src", "/app/lib"),
+                 PhpStanWarmUpService.getEditorModeArguments("/tmp/A.php", "/app/src/A.php", List.of("/app/src", "/app/lib")));
+  }
+
+  @Test
+  public void testEditorRunAfterWarmUpUsesResultCache() throws Exception {
+    assumeTrue(run(Path.of("."), List.of("phpstan", "--version")) != null);
+    Path dir = Files.createTempDirectory("phpstan-warm-up");
+    Files.writeString(dir.resolve("phpstan.neon"), CONFIG);
+    Path src = Files.createDirectory(dir.resolve("src"));
+    Path a = Files.writeString(src.resolve("A.php"), "<?php\nfunction a(): int { return b(); }\n");
+    Files.writeString(src.resolve("B.php"), "<?php\nfunction b(): int { return 1; }\n");
+    List<String> options = List.of("phpstan", "analyse", "-c", "phpstan.neon", "--error-format=checkstyle", "--no-progress",
+                                   "--no-ansi", "--no-interaction", PhpStanCacheHealth.VERBOSE_OPTION);
+
+    Output warmUp = run(dir, options);
+    assertNotNull(warmUp);
+    assertTrue(warmUp.stdout(), warmUp.stdout().contains("<checkstyle"));
+
+    Path edited = Files.writeString(dir.resolve("edited-A.php"), "<?php\nfunction a(): string { return b(); }\n");
+    List<String> editorRun = new ArrayList<>(options);
+    editorRun.addAll(PhpStanWarmUpService.getEditorModeArguments(edited.toString(), a.toString(), List.of()));
+    Output output = run(dir, editorRun);
+    assertNotNull(output);
+    assertTrue(output.stderr(), output.stderr().contains("Result cache restored"));
+    assertTrue("The edited contents are analysed", output.stdout().contains("should return string but returns int"));
+  }
+
+  /**
+   * @return the output, or null if the command cannot be run
+   */
+  private static Output run(Path dir, List<String> command) throws Exception {
+    try {
+      Process process = new ProcessBuilder(command).directory(dir.toFile()).start();
+      process.getOutputStream().close();
+      String stdout = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+      String stderr = new String(process.getErrorStream().readAllBytes(), StandardCharsets.UTF_8);
+      process.waitFor();
+      return new Output(stdout, stderr);
+    }
+    catch (IOException e) {
+      return null;
+    }
+  }
+}